@@ -0,0 +1,266 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
+import edu.caltech.ipac.firefly.server.security.SsoAdapter;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.Cookie;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Measures the per-call cost of the {@link TokenRelay} entry points Firefly invokes for every
+ * outbound request. One relay is shared by all benchmark threads, as it is in Firefly; every
+ * thread serves its own mocked request.
+ *
+ * <p>Run with {@code gradle jmh -PjmhIncludes=TokenRelayBenchmark}; the GC profiler reports the
+ * allocation rate per operation. The mocks are not free, so {@link #mockBaseline} measures the mock
+ * interactions of {@link #setAuthCredential} alone; the relay's own cost is the difference.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TokenRelayBenchmark {
+
+    /**
+     * Downstream calls of a typical Firefly TAP and image session.
+     */
+    static final String[] REQUEST_URLS = {
+        "https://ws-uv.canfar.net/youcat/sync?LANG=ADQL&REQUEST=doQuery&QUERY=SELECT+*+FROM+tap_schema.tables",
+        "https://ws-uv.canfar.net/youcat/capabilities",
+        "https://ws-cadc.canfar.net/minoc/files/cadc:CFHT/2003654o.fits.fz?SUB=%5B1%5D%5B100:200,100:200%5D",
+        "https://cadc-ccda.hia-iha.nrc-cnrc.gc.ca/argus/sync?LANG=ADQL&QUERY=SELECT+TOP+10+*+FROM+caom2.Plane",
+        "https://irsa.ipac.caltech.edu/TAP/sync?LANG=ADQL&QUERY=SELECT+*+FROM+fp_psc",
+        "https://mirror.example.org:8443/tap/tables",
+        "https://evilcanfar.net/youcat/sync",
+    };
+
+    /**
+     * Allow-lists by name, from the default single domain to a CADC production list.
+     */
+    static final Map<String, String> DOMAIN_LISTS = Map.of(
+            "single", ".canfar.net",
+            "cadc", ".canfar.net,cadc-ccda.hia-iha.nrc-cnrc.gc.ca,.cadc.dao.nrc.ca,mirror.example.org:8443,.local.mirror:8080");
+
+    @Param({"64", "1024", "4096"})
+    public int cookieSize;
+
+    @Param({"single", "cadc"})
+    public String domains;
+
+    TokenRelay relay;
+    TokenRelay rateLimitedRelay;
+    TokenRelay tracingRelay;
+    String allowedDomain;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        allowedDomain = DOMAIN_LISTS.get(domains);
+        relay = new BenchmarkRelay(RelayConfig.fromMap(Map.of(RelayConfig.ALLOWED_DOMAIN, allowedDomain)));
+        // A limit no benchmark thread reaches, so every call takes the under-limit path
+        rateLimitedRelay = new BenchmarkRelay(RelayConfig.fromMap(Map.of(
+                RelayConfig.ALLOWED_DOMAIN, allowedDomain, RelayConfig.RATE_LIMIT, "1000000000")));
+        // Headers only, so the cost measured is the ID generation and traceparent formatting
+        tracingRelay = new BenchmarkRelay(RelayConfig.fromMap(Map.of(
+                RelayConfig.ALLOWED_DOMAIN, allowedDomain, RelayConfig.TRACING, "true")));
+    }
+
+    /**
+     * The requests served by one benchmark thread. Two agents are kept so that alternating between
+     * them forces the relay to resolve a new request every call.
+     */
+    @State(Scope.Thread)
+    public static class RequestState {
+        RequestAgent agent;
+        RequestAgent nextAgent;
+        HttpServiceInput[] inputs;
+        int call;
+
+        @Setup(Level.Trial)
+        public void setUp(TokenRelayBenchmark benchmark) {
+            agent = mockAgent(benchmark.cookieSize);
+            nextAgent = mockAgent(benchmark.cookieSize);
+            inputs = new HttpServiceInput[REQUEST_URLS.length];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = mock(HttpServiceInput.class, withSettings().stubOnly());
+                when(inputs[i].getRequestUrl()).thenReturn(REQUEST_URLS[i]);
+            }
+            BenchmarkRelay.CURRENT_AGENT.set(agent);
+        }
+
+        String nextUrl() {
+            return REQUEST_URLS[call++ % REQUEST_URLS.length];
+        }
+
+        HttpServiceInput nextInputs() {
+            return inputs[call++ % inputs.length];
+        }
+    }
+
+    @Benchmark
+    public SsoAdapter.Token getAuthToken(RequestState state) {
+        return relay.getAuthToken();
+    }
+
+    @Benchmark
+    public SsoAdapter.Token getAuthTokenNewRequest(RequestState state) {
+        RequestAgent previous = state.agent;
+        state.agent = state.nextAgent;
+        state.nextAgent = previous;
+        BenchmarkRelay.CURRENT_AGENT.set(state.agent);
+        return relay.getAuthToken();
+    }
+
+    @Benchmark
+    public void setAuthCredential(RequestState state) {
+        relay.setAuthCredential(state.nextInputs());
+    }
+
+    @Benchmark
+    public void setAuthCredentialRateLimited(RequestState state) {
+        rateLimitedRelay.setAuthCredential(state.nextInputs());
+    }
+
+    @Benchmark
+    public void setAuthCredentialTraced(RequestState state) {
+        tracingRelay.setAuthCredential(state.nextInputs());
+    }
+
+    @Benchmark
+    public String getCachePartition(RequestState state) {
+        return relay.getCachePartition(state.nextUrl());
+    }
+
+    @Benchmark
+    public void mockBaseline(RequestState state) {
+        HttpServiceInput inputs = state.nextInputs();
+        state.agent.getHeader(CookieHeader.HEADER);
+        inputs.setHeader("Authorization", inputs.getRequestUrl());
+    }
+
+    @Benchmark
+    public boolean isRequestToAllowedDomain(RequestState state) {
+        return TokenRelay.isRequestToAllowedDomain(state.nextUrl(), allowedDomain);
+    }
+
+    /**
+     * Mocks a request agent as Firefly provides it: the raw {@code Cookie} header, which the relay
+     * reads first, holds the SSO cookie among the analytics and session cookies a browser sends to
+     * canfar.net. The parsed cookie is stubbed as well, for the fallback path of older Firefly
+     * versions.
+     */
+    static RequestAgent mockAgent(int cookieSize) {
+        StringBuilder value = new StringBuilder(cookieSize);
+        while (value.length() < cookieSize) {
+            value.append("eyJhbGciOiJSUzI1NiJ9");
+        }
+        value.setLength(cookieSize);
+        Cookie cookie = new Cookie("CADC_SSO", value.toString());
+        cookie.setDomain(".canfar.net");
+        String header = "_ga=GA1.2.1234567890.1700000000; _gid=GA1.2.987654321.1700000000; CADC_SSO=" + value
+                        + "; JSESSIONID=0123456789ABCDEF0123456789ABCDEF; firefly.prefs=%7B%22theme%22%3A%22dark%22%7D";
+        RequestAgent agent = mock(RequestAgent.class, withSettings().stubOnly());
+        when(agent.getHeader(CookieHeader.HEADER)).thenReturn(header);
+        when(agent.getHeader("Host")).thenReturn("www.canfar.net");
+        when(agent.getCookie("CADC_SSO")).thenReturn(cookie);
+        return agent;
+    }
+
+    /**
+     * A relay that serves the request agent of the calling benchmark thread, as Firefly's
+     * ServerContext does for servlet threads.
+     */
+    static class BenchmarkRelay extends TokenRelay {
+        static final ThreadLocal<RequestAgent> CURRENT_AGENT = new ThreadLocal<>();
+
+        BenchmarkRelay(RelayConfig config) {
+            super(config);
+        }
+
+        @Override
+        RequestAgent getRequestAgent() {
+            return CURRENT_AGENT.get();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.RequestAgent;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures how the throughput of one {@link TokenRelay}, shared by every request thread as it is
+ * in Firefly, scales with the number of threads. Each operation serves one request: a request
+ * agent not seen before on the thread, then the token lookups of its downstream calls.
+ *
+ * <p>Compare a run on one thread with one on every core, e.g.
+ * {@code gradle jmh -PjmhIncludes=TokenRelayThroughputBenchmark -PjmhThreads=8}. The request
+ * agents are plain subclasses that answer from fields rather than mocks, so that the relay and not
+ * the mock framework is measured.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TokenRelayThroughputBenchmark {
+
+    static final int AGENTS_PER_THREAD = 2000;
+    static final int CALLS_PER_REQUEST = 8;
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    TokenRelay relay;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        relay = new TokenRelayBenchmark.BenchmarkRelay(RelayConfig.fromMap(Map.of()));
+    }
+
+    /**
+     * The requests of one benchmark thread, each with a token no other thread uses.
+     */
+    @State(Scope.Thread)
+    public static class Requests {
+        RequestAgent[] agents;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            int thread = THREADS.getAndIncrement();
+            agents = new RequestAgent[AGENTS_PER_THREAD];
+            for (int i = 0; i < agents.length; i++) {
+                agents[i] = new BrowserAgent("_ga=GA1.2.1234567890.1700000000; CADC_SSO=token-" + thread + "-" + i
+                                             + "; JSESSIONID=0123456789ABCDEF", "www.canfar.net");
+            }
+        }
+    }
+
+    @Benchmark
+    public void serveRequest(Requests requests, Blackhole blackhole) {
+        TokenRelayBenchmark.BenchmarkRelay.CURRENT_AGENT.set(requests.agents[requests.next++ % AGENTS_PER_THREAD]);
+        for (int call = 0; call < CALLS_PER_REQUEST; call++) {
+            blackhole.consume(relay.getAuthToken());
+        }
+    }
+
+    /**
+     * A request agent answering with the headers a browser sends.
+     */
+    static final class BrowserAgent extends RequestAgent {
+        private final String cookieHeader;
+        private final String host;
+
+        BrowserAgent(String cookieHeader, String host) {
+            this.cookieHeader = cookieHeader;
+            this.host = host;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            if (CookieHeader.HEADER.equalsIgnoreCase(name)) {
+                return cookieHeader;
+            }
+            return "Host".equalsIgnoreCase(name) ? host : null;
+        }
+
+        @Override
+        public String getHeader(String name, String defaultValue) {
+            String value = getHeader(name);
+            return (value == null) ? defaultValue : value;
+        }
+    }
+}
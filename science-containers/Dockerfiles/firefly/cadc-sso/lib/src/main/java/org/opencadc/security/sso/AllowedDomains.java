@@ -0,0 +1,519 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A compiled allow-list of the downstream hosts that may receive the relayed credential.
+ *
+ * <p>The allow-list is a comma-separated list of rules:</p>
+ * <ul>
+ *   <li>{@code .canfar.net}: any subdomain of {@code canfar.net}, but not {@code canfar.net} itself.</li>
+ *   <li>{@code canfar.net}: {@code canfar.net} itself and any of its subdomains.</li>
+ *   <li>{@code =ws-uv.canfar.net}: {@code ws-uv.canfar.net} itself, but none of its subdomains.</li>
+ *   <li>{@code localhost:8443}: any of these forms restricted to a single port.</li>
+ * </ul>
+ *
+ * <p>Rules are compiled into a trie of reversed host labels ({@code net -> canfar -> ws-uv}), so a
+ * lookup walks the request host from its last label to its first with one hash probe per label.
+ * Matching always happens on label boundaries, so {@code .canfar.net} does not allow
+ * {@code evilcanfar.net}. The host and port are located directly in the request URL string,
+ * without building {@code URI} or {@code URL} objects, and the decision is remembered in a small
+ * direct-mapped cache keyed by host and port.</p>
+ *
+ * <p>Instances are immutable apart from the decision cache, which only ever holds immutable
+ * entries, so they can be shared by all request threads.</p>
+ */
+final class AllowedDomains {
+
+    private static final int ANY_PORT = -1;
+    private static final int CACHE_SIZE = 1024;
+
+    private final String spec;
+    private final Node root;
+    private final Decision[] cache = new Decision[CACHE_SIZE];
+
+    private AllowedDomains(String spec, Node root) {
+        this.spec = spec;
+        this.root = root;
+    }
+
+    /**
+     * Compiles the given allow-list.
+     *
+     * @param spec The comma-separated allow-list rules.
+     * @return AllowedDomains The compiled allow-list. An empty specification allows nothing.
+     * @throws IllegalArgumentException If a rule is not a valid host, domain or port.
+     */
+    static AllowedDomains compile(String spec) {
+        Builder builder = new Builder();
+        if (spec != null) {
+            for (String rule : spec.split(",")) {
+                String trimmed = rule.trim();
+                if (!trimmed.isEmpty()) {
+                    builder.add(trimmed);
+                }
+            }
+        }
+        return new AllowedDomains(spec, builder.build());
+    }
+
+    /**
+     * Checks whether the given request URL is allowed to receive the relayed credential.
+     *
+     * @param requestURL The absolute http or https URL of the downstream request.
+     * @return true if the URL's host and port match one of the rules, false otherwise, including
+     *     when the URL cannot be parsed.
+     */
+    boolean isAllowed(String requestURL) {
+        Decision decision = decide(requestURL);
+        return decision != null && decision.allowed;
+    }
+
+    /**
+     * Decides whether the given request URL is allowed to receive the relayed credential.
+     * Repeated calls for the same host and port return the same decision instance from the
+     * decision cache, so its host can be used as a map key without allocating.
+     *
+     * @param requestURL The absolute http or https URL of the downstream request.
+     * @return Decision The decision, or null if the URL cannot be parsed.
+     */
+    Decision decide(String requestURL) {
+        if (requestURL == null || root == null) {
+            return null;
+        }
+        int hostStart = hostStart(requestURL);
+        if (hostStart < 0) {
+            return null;
+        }
+        int hostEnd = hostEnd(requestURL, hostStart);
+        if (hostEnd < 0) {
+            return null;
+        }
+        int port = port(requestURL, hostStart, hostEnd);
+        if (port < 0) {
+            return null;
+        }
+        if (requestURL.charAt(hostEnd - 1) == '.') {
+            hostEnd--; // fully qualified form, e.g. ws-uv.canfar.net.
+        }
+        if (hostEnd == hostStart) {
+            return null;
+        }
+
+        int hash = hashIgnoreCase(requestURL, hostStart, hostEnd) * 31 + port;
+        int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+        Decision cached = cache[slot];
+        if (cached != null && cached.matches(requestURL, hostStart, hostEnd, port)) {
+            return cached;
+        }
+        boolean allowed = match(requestURL, hostStart, hostEnd, port);
+        Decision decision = new Decision(requestURL.substring(hostStart, hostEnd).toLowerCase(Locale.ROOT), port, allowed);
+        cache[slot] = decision;
+        return decision;
+    }
+
+    /**
+     * @return The allow-list specification this instance was compiled from.
+     */
+    String getSpec() {
+        return spec;
+    }
+
+    @Override
+    public String toString() {
+        return "AllowedDomains[" + spec + "]";
+    }
+
+    /**
+     * Walks the trie from the last label of the host to the first.
+     */
+    private boolean match(String url, int hostStart, int hostEnd, int port) {
+        Node node = root;
+        int labelEnd = hostEnd;
+        while (labelEnd > hostStart) {
+            int labelStart = url.lastIndexOf('.', labelEnd - 1) + 1;
+            if (labelStart < hostStart) {
+                labelStart = hostStart;
+            }
+            node = node.child(url, labelStart, labelEnd);
+            if (node == null) {
+                return false;
+            }
+            boolean moreLabels = labelStart > hostStart;
+            if (moreLabels && allows(node.subdomainPorts, port)) {
+                return true;
+            }
+            if (!moreLabels && allows(node.exactPorts, port)) {
+                return true;
+            }
+            labelEnd = labelStart - 1;
+        }
+        return false;
+    }
+
+    private static boolean allows(int[] ports, int port) {
+        if (ports == null) {
+            return false;
+        }
+        for (int allowed : ports) {
+            if (allowed == ANY_PORT || allowed == port) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Locates the start of the host in an absolute http or https URL.
+     *
+     * @return The index of the first host character, or -1 if the URL is not http or https.
+     */
+    static int hostStart(String url) {
+        int start;
+        if (url.regionMatches(true, 0, "https://", 0, 8)) {
+            start = 8;
+        } else if (url.regionMatches(true, 0, "http://", 0, 7)) {
+            start = 7;
+        } else {
+            return -1;
+        }
+        // Skip any user info: the host follows the last '@' of the authority.
+        int authorityEnd = authorityEnd(url, start);
+        int at = url.lastIndexOf('@', authorityEnd - 1);
+        return (at >= start) ? at + 1 : start;
+    }
+
+    /**
+     * Locates the end of the host, validating its characters along the way.
+     *
+     * @return The index just past the last host character, or -1 if the host is invalid.
+     */
+    static int hostEnd(String url, int hostStart) {
+        int authorityEnd = authorityEnd(url, hostStart);
+        if (hostStart < authorityEnd && url.charAt(hostStart) == '[') {
+            int close = url.indexOf(']', hostStart);
+            return (close < 0 || close >= authorityEnd) ? -1 : close + 1;
+        }
+        int i = hostStart;
+        while (i < authorityEnd) {
+            char c = url.charAt(i);
+            if (c == ':') {
+                break;
+            }
+            if (c == '.' && (i == hostStart || url.charAt(i - 1) == '.')) {
+                return -1; // empty label
+            }
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '.' || c == '-' || c == '_')) {
+                return -1;
+            }
+            i++;
+        }
+        return (i == hostStart) ? -1 : i;
+    }
+
+    /**
+     * Reads the port following the host, defaulting to the scheme's port.
+     *
+     * @return The port, or -1 if it is not a valid number.
+     */
+    static int port(String url, int hostStart, int hostEnd) {
+        int authorityEnd = authorityEnd(url, hostEnd);
+        if (hostEnd == authorityEnd || hostEnd + 1 == authorityEnd && url.charAt(hostEnd) == ':') {
+            return (url.charAt(4) == ':') ? 80 : 443;
+        }
+        if (url.charAt(hostEnd) != ':' || authorityEnd - hostEnd > 6) {
+            return -1;
+        }
+        int port = 0;
+        for (int i = hostEnd + 1; i < authorityEnd; i++) {
+            char c = url.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            port = port * 10 + (c - '0');
+        }
+        return (port > 65535) ? -1 : port;
+    }
+
+    private static int authorityEnd(String url, int from) {
+        int length = url.length();
+        for (int i = from; i < length; i++) {
+            char c = url.charAt(i);
+            if (c == '/' || c == '?' || c == '#') {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private static int hashIgnoreCase(String s, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + lowerCase(s.charAt(i));
+        }
+        return hash;
+    }
+
+    private static char lowerCase(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * The decision for one host and port.
+     */
+    static final class Decision {
+        private final String host;
+        private final int port;
+        private final boolean allowed;
+
+        private Decision(String host, int port, boolean allowed) {
+            this.host = host;
+            this.port = port;
+            this.allowed = allowed;
+        }
+
+        /**
+         * @return The lower-case host, without a trailing dot.
+         */
+        String getHost() {
+            return host;
+        }
+
+        /**
+         * @return The port, or the scheme's default port if the URL has none.
+         */
+        int getPort() {
+            return port;
+        }
+
+        boolean isAllowed() {
+            return allowed;
+        }
+
+        private boolean matches(String url, int hostStart, int hostEnd, int port) {
+            return this.port == port
+                    && host.length() == hostEnd - hostStart
+                    && url.regionMatches(true, hostStart, host, 0, host.length());
+        }
+    }
+
+    /**
+     * A trie node for one host label. Children are kept in an open-addressed table keyed by the
+     * lower-cased label, so a child is found without allocating a substring of the request URL.
+     */
+    private static final class Node {
+        private String[] labels;
+        private Node[] children;
+        private int size;
+        private int[] exactPorts;
+        private int[] subdomainPorts;
+
+        private Node child(String url, int start, int end) {
+            if (labels == null) {
+                return null;
+            }
+            int length = end - start;
+            int mask = labels.length - 1;
+            for (int slot = spread(hashIgnoreCase(url, start, end)) & mask; labels[slot] != null; slot = (slot + 1) & mask) {
+                String label = labels[slot];
+                if (label.length() == length && url.regionMatches(true, start, label, 0, length)) {
+                    return children[slot];
+                }
+            }
+            return null;
+        }
+
+        private Node addChild(String label) {
+            if (labels == null) {
+                labels = new String[4];
+                children = new Node[4];
+            } else {
+                int mask = labels.length - 1;
+                for (int slot = spread(label.hashCode()) & mask; labels[slot] != null; slot = (slot + 1) & mask) {
+                    if (labels[slot].equals(label)) {
+                        return children[slot];
+                    }
+                }
+                if ((size + 1) * 2 > labels.length) {
+                    resize();
+                }
+            }
+            Node child = new Node();
+            insert(label, child);
+            size++;
+            return child;
+        }
+
+        private void resize() {
+            String[] oldLabels = labels;
+            Node[] oldChildren = children;
+            labels = new String[oldLabels.length * 2];
+            children = new Node[oldLabels.length * 2];
+            for (int i = 0; i < oldLabels.length; i++) {
+                if (oldLabels[i] != null) {
+                    insert(oldLabels[i], oldChildren[i]);
+                }
+            }
+        }
+
+        private void insert(String label, Node child) {
+            int mask = labels.length - 1;
+            int slot = spread(label.hashCode()) & mask;
+            while (labels[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            labels[slot] = label;
+            children[slot] = child;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    /**
+     * Collects rules into a trie. Nodes are only mutated here, before the trie is published.
+     */
+    private static final class Builder {
+        private final Node root = new Node();
+        private boolean empty = true;
+
+        private void add(String rule) {
+            String text = rule.toLowerCase(Locale.ROOT);
+            int port = ANY_PORT;
+            int colon = text.lastIndexOf(':');
+            if (colon >= 0 && text.indexOf(']') < colon) {
+                port = parsePort(rule, text.substring(colon + 1));
+                text = text.substring(0, colon);
+            }
+            boolean exact = text.startsWith("=");
+            if (exact) {
+                text = text.substring(1);
+            }
+            boolean subdomains = false;
+            if (!exact && text.startsWith("*.")) {
+                text = text.substring(1);
+            }
+            if (!exact && text.startsWith(".")) {
+                subdomains = true;
+                text = text.substring(1);
+            }
+            if (text.endsWith(".")) {
+                text = text.substring(0, text.length() - 1);
+            }
+            String probe = "https://" + text;
+            if (text.isEmpty() || hostEnd(probe, 8) != probe.length()) {
+                throw new IllegalArgumentException("Invalid allowed domain: " + rule);
+            }
+
+            String[] labels = text.split("\\.", -1);
+            Node node = root;
+            for (int i = labels.length - 1; i >= 0; i--) {
+                if (labels[i].isEmpty()) {
+                    throw new IllegalArgumentException("Invalid allowed domain: " + rule);
+                }
+                node = node.addChild(labels[i]);
+            }
+            // A bare rule keeps matching what the suffix match of earlier releases did, on label boundaries
+            if (!exact) {
+                node.subdomainPorts = appendPort(node.subdomainPorts, port);
+            }
+            if (!subdomains) {
+                node.exactPorts = appendPort(node.exactPorts, port);
+            }
+            empty = false;
+        }
+
+        private static int parsePort(String rule, String port) {
+            try {
+                int value = Integer.parseInt(port);
+                if (value > 0 && value <= 65535) {
+                    return value;
+                }
+            } catch (NumberFormatException ignored) {
+                // reported below
+            }
+            throw new IllegalArgumentException("Invalid port in allowed domain: " + rule);
+        }
+
+        private static int[] appendPort(int[] ports, int port) {
+            if (ports == null) {
+                return new int[] {port};
+            }
+            int[] grown = Arrays.copyOf(ports, ports.length + 1);
+            grown[ports.length] = port;
+            return grown;
+        }
+
+        private Node build() {
+            return empty ? null : root;
+        }
+    }
+}
@@ -0,0 +1,465 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * An append-only binary journal of the relay's credential decisions, for security review.
+ *
+ * <p>The journal is a directory of segment files, {@code audit-<sequence>.seg}, each mapped into
+ * memory whole. A segment starts with a {@value #HEADER_BYTES}-byte header, the magic number and
+ * the format version, followed by fixed {@value #RECORD_BYTES}-byte little-endian records:</p>
+ * <ul>
+ *   <li>the time of the decision, in milliseconds since the epoch (8 bytes),</li>
+ *   <li>the 128-bit digest of the keyed {@link CredentialFingerprints credential fingerprint}, of
+ *       the user when the identity was already resolved, of the token otherwise, or of the proxy
+ *       certificate, or 0 (16 bytes),</li>
+ *   <li>the host id (4 bytes),</li>
+ *   <li>the {@link Decision} and the {@link Reason} (1 byte each), the kind of the fingerprint,
+ *       e.g. {@code u} for a user, or 0 (1 byte), and 1 reserved byte.</li>
+ * </ul>
+ *
+ * <p>Host ids are numbered from 1 in the order hosts are first seen, and listed once in the
+ * {@value #HOSTS_FILE} file of the directory, as tab-separated id and name lines, so records stay
+ * fixed-size and distinct hosts never share an id. Journals on the same directory assign ids under
+ * a lock on the file. At most {@value #MAX_NAMED_HOSTS} hosts are listed; others get the id
+ * {@value #UNNAMED_HOST}. Tokens and user names are never written: a user's records are found by
+ * their keyed fingerprint, see {@link AuditQuery}.</p>
+ *
+ * <p>An append claims its slot with one atomic add on the segment's cursor and writes the record
+ * with absolute puts into the mapping, publishing the timestamp last with release semantics, so
+ * appends do not lock and do not allocate, and a reader never sees a half-written record: a
+ * record whose timestamp is still 0 is skipped. When a segment is full, the appender that
+ * overflows it maps the next one; only this rotation takes a lock. At most the configured number
+ * of segments are kept, the oldest are deleted. Records reach the disk when the operating system
+ * writes back the mapped pages, and full segments are forced to disk when they are rotated out.
+ * When the next segment cannot be created, decisions are dropped and counted, and an append at
+ * least {@value #RETRY_MILLIS} ms later tries again.</p>
+ */
+final class AuditJournal {
+
+    static final int MAGIC = 0x43534155;
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 16;
+    static final int RECORD_BYTES = 32;
+    static final String SEGMENT_PREFIX = "audit-";
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String HOSTS_FILE = "hosts.tsv";
+
+    /**
+     * Hosts beyond this many are not added to the hosts file and are journaled as {@link #UNNAMED_HOST}.
+     */
+    static final int MAX_NAMED_HOSTS = 4096;
+    static final int UNNAMED_HOST = -1;
+    static final long RETRY_MILLIS = 1_000L;
+
+    /**
+     * Serializes the journals of this process on the hosts file, as the file lock is held per process.
+     */
+    private static final Object HOSTS_LOCK = new Object();
+
+    private static final VarHandle TIMESTAMP = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * What the relay did with the credential.
+     */
+    enum Decision {
+        RELAYED, WITHHELD, DENIED, REJECTED;
+
+        private static final Decision[] CODES = values();
+
+        static Decision of(int code) {
+            return (code >= 0 && code < CODES.length) ? CODES[code] : null;
+        }
+
+        String getId() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Why the relay made the decision.
+     */
+    enum Reason {
+        BEARER, EXCHANGED, COOKIE, CERTIFICATE, REFUSED, REVOKED, POLICY, NOT_EXCHANGED, RATE_LIMIT, CIRCUIT_OPEN;
+
+        private static final Reason[] CODES = values();
+
+        static Reason of(int code) {
+            return (code >= 0 && code < CODES.length) ? CODES[code] : null;
+        }
+
+        String getId() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final LongSupplier clock;
+    private final RelayEventLog events;
+    private final RelayEventLog.Policy policy;
+    private final ConcurrentHashMap<String, Integer> hostIds = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    private volatile Segment current;
+    private volatile boolean closed;
+    private volatile long retryAt;
+
+    /**
+     * Opens the journal in a directory, creating it if needed, and starts a new segment after any
+     * left by earlier processes.
+     *
+     * @param directory The directory of the segments.
+     * @param segmentBytes The size of a segment file, at least one record.
+     * @param maxSegments The number of segments kept, at least 1.
+     * @param clock The wall clock, in milliseconds.
+     * @param events The log that write failures are reported to.
+     * @param policy The rate limits of the log.
+     * @throws IOException If the directory or the first segment cannot be created.
+     */
+    AuditJournal(Path directory, int segmentBytes, int maxSegments, LongSupplier clock,
+                 RelayEventLog events, RelayEventLog.Policy policy) throws IOException {
+        if (segmentBytes < HEADER_BYTES + RECORD_BYTES || maxSegments < 1) {
+            throw new IllegalArgumentException("Invalid audit journal: " + maxSegments + " segments of "
+                                               + segmentBytes + " bytes");
+        }
+        this.directory = directory;
+        // Whole records only, so every timestamp stays 8-byte aligned
+        this.segmentBytes = HEADER_BYTES + (segmentBytes - HEADER_BYTES) / RECORD_BYTES * RECORD_BYTES;
+        this.maxSegments = maxSegments;
+        this.clock = clock;
+        this.events = events;
+        this.policy = policy;
+        Files.createDirectories(directory);
+        hostIds.putAll(readHosts(directory));
+        this.current = createSegment();
+    }
+
+    /**
+     * Appends a decision.
+     *
+     * @param fingerprint The {@link CredentialFingerprints} fingerprint of the credential, or null
+     *                    if there is none.
+     * @param host The destination host, or null.
+     * @param decision What the relay did.
+     * @param reason Why.
+     */
+    void append(String fingerprint, String host, Decision decision, Reason reason) {
+        Integer known = (host == null) ? null : hostIds.get(host);
+        int hostId = (host == null) ? 0
+                : (known != null) ? known : (hostIds.size() >= MAX_NAMED_HOSTS) ? UNNAMED_HOST : nameHost(host);
+        long high = (fingerprint == null) ? 0L : CredentialFingerprints.digestWord(fingerprint, 0);
+        long low = (fingerprint == null) ? 0L : CredentialFingerprints.digestWord(fingerprint, 1);
+        byte kind = (fingerprint == null) ? 0 : (byte) fingerprint.charAt(0);
+        long now = clock.getAsLong();
+        while (true) {
+            Segment segment = current;
+            if (segment == null) {
+                if (closed || now < retryAt || !rotate(null, now)) {
+                    dropped.increment();
+                    return;
+                }
+                continue;
+            }
+            int offset = segment.cursor.getAndAdd(RECORD_BYTES);
+            if (offset + RECORD_BYTES <= segmentBytes) {
+                MappedByteBuffer buffer = segment.buffer;
+                buffer.putLong(offset + 8, high);
+                buffer.putLong(offset + 16, low);
+                buffer.putInt(offset + 24, hostId);
+                buffer.put(offset + 28, (byte) decision.ordinal());
+                buffer.put(offset + 29, (byte) reason.ordinal());
+                buffer.put(offset + 30, kind);
+                TIMESTAMP.setRelease(buffer, offset, now);
+                return;
+            }
+            rotate(segment, now);
+        }
+    }
+
+    /**
+     * @return long The number of decisions not journaled because a segment could not be created.
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return Path The directory of the segments.
+     */
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Forces the current segment to disk.
+     */
+    void flush() {
+        Segment segment = current;
+        if (segment != null) {
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * Forces the current segment to disk and stops journaling, once the configuration that opened
+     * the journal is replaced, so only one journal writes to the directory. The mapping is released
+     * when the journal is collected.
+     */
+    synchronized void close() {
+        closed = true;
+        Segment segment = current;
+        current = null;
+        if (segment != null) {
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * Replaces a full segment, or the one that could not be created, unless another appender
+     * already did.
+     *
+     * @param full The full segment, or null to retry after a failed rotation.
+     * @param now The time of the append.
+     * @return boolean Whether there is a current segment.
+     */
+    private synchronized boolean rotate(Segment full, long now) {
+        if (current != full || closed) {
+            return current != null;
+        }
+        if (full != null) {
+            full.buffer.force();
+        } else if (now < retryAt) {
+            return false;
+        }
+        try {
+            current = createSegment();
+            deleteOldSegments();
+            return true;
+        } catch (IOException | RuntimeException error) {
+            // Drop decisions rather than fail the relayed calls, until a later append succeeds
+            current = null;
+            retryAt = now + RETRY_MILLIS;
+            events.emit(policy, RelayEvent.AUDIT_FAILED, directory.toString(), error.toString());
+            return false;
+        }
+    }
+
+    private Segment createSegment() throws IOException {
+        long sequence = lastSequence(directory) + 1;
+        while (true) {
+            Path file = directory.resolve(segmentName(sequence));
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                                                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                return new Segment(buffer);
+            } catch (FileAlreadyExistsException taken) {
+                // Another journal on the same directory, e.g. of the previous configuration
+                sequence++;
+            }
+        }
+    }
+
+    private void deleteOldSegments() throws IOException {
+        List<Path> segments = segments(directory);
+        for (int i = 0; i < segments.size() - maxSegments; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    /**
+     * Assigns the next id to a host and lists it in the hosts file, under a lock on the file so
+     * that journals of other configurations or processes on the directory take the ids they
+     * assigned into account.
+     */
+    private int nameHost(String host) {
+        synchronized (HOSTS_LOCK) {
+            Integer known = hostIds.get(host);
+            return (known != null) ? known : listHost(host);
+        }
+    }
+
+    private int listHost(String host) {
+        try (FileChannel channel = FileChannel.open(directory.resolve(HOSTS_FILE), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Released when the channel is closed
+            channel.lock();
+            Map<String, Integer> listed = parseHosts(channel);
+            hostIds.putAll(listed);
+            Integer known = listed.get(host);
+            if (known != null) {
+                return known;
+            }
+            if (listed.size() >= MAX_NAMED_HOSTS) {
+                return UNNAMED_HOST;
+            }
+            int id = listed.size() + 1;
+            channel.write(ByteBuffer.wrap((id + "\t" + host + "\n").getBytes(StandardCharsets.UTF_8)), channel.size());
+            hostIds.put(host, id);
+            return id;
+        } catch (IOException | RuntimeException error) {
+            events.emit(policy, RelayEvent.AUDIT_FAILED, directory.toString(), error.toString());
+            return UNNAMED_HOST;
+        }
+    }
+
+    /**
+     * @param directory The directory of a journal.
+     * @return Map The ids of the hosts listed in the journal, empty if there are none.
+     * @throws IOException If the hosts file cannot be read.
+     */
+    static Map<String, Integer> readHosts(Path directory) throws IOException {
+        Path file = directory.resolve(HOSTS_FILE);
+        if (!Files.exists(file)) {
+            return new HashMap<>();
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return parseHosts(channel);
+        }
+    }
+
+    private static Map<String, Integer> parseHosts(FileChannel channel) throws IOException {
+        ByteBuffer content = ByteBuffer.allocate((int) channel.size());
+        while (content.hasRemaining() && channel.read(content, content.position()) >= 0) {
+            // Read it whole
+        }
+        Map<String, Integer> hosts = new HashMap<>();
+        for (String line : new String(content.array(), 0, content.position(), StandardCharsets.UTF_8).split("\n")) {
+            int tab = line.indexOf('\t');
+            if (tab > 0) {
+                hosts.put(line.substring(tab + 1), Integer.parseInt(line.substring(0, tab)));
+            }
+        }
+        return hosts;
+    }
+
+    static String segmentName(long sequence) {
+        return String.format(Locale.ROOT, "%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX);
+    }
+
+    /**
+     * @param directory The directory of a journal.
+     * @return List The segment files of the journal, oldest first.
+     * @throws IOException If the directory cannot be listed.
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> isSegment(file.getFileName().toString())).sorted().forEach(segments::add);
+        }
+        return segments;
+    }
+
+    private static long lastSequence(Path directory) throws IOException {
+        List<Path> segments = segments(directory);
+        if (segments.isEmpty()) {
+            return 0L;
+        }
+        String name = segments.get(segments.size() - 1).getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static boolean isSegment(String name) {
+        return name.length() == SEGMENT_PREFIX.length() + 16 + SEGMENT_SUFFIX.length()
+               && name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+    }
+
+    private static final class Segment {
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger cursor = new AtomicInteger(HEADER_BYTES);
+
+        private Segment(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
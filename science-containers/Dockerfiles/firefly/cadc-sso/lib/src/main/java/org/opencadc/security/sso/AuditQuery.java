@@ -0,0 +1,414 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Reads the {@link AuditJournal} and prints the decisions that match a filter, one per line:
+ * time, credential fingerprint, host, decision and reason, separated by tabs.
+ *
+ * <p>Segments are mapped read-only and scanned in place, so only matching records are copied to
+ * the heap, and segments that lie wholly outside the time range are skipped without reading more
+ * than their first record. Run it with {@code gradle :lib:auditQuery --args="..."}:</p>
+ * <pre>
+ * --dir=PATH         The journal directory (default: $CADC_SSO_AUDIT_DIR).
+ * --user=NAME        Only the decisions for this CADC user.
+ * --token=TOKEN      Only the decisions for this token, made while its user was not known; "-"
+ *                    reads the token from standard input.
+ * --fingerprint=FP   Only the decisions for this credential fingerprint, as printed.
+ * --host=HOST        Only the decisions for calls to this host.
+ * --decision=NAME    Only relayed, withheld, denied or rejected decisions.
+ * --from=TIME        Only decisions at or after this ISO-8601 instant or epoch milliseconds.
+ * --to=TIME          Only decisions before this instant.
+ * </pre>
+ *
+ * <p>Fingerprints are keyed, so {@code --user} and {@code --token} need the
+ * {@code CADC_SSO_FINGERPRINT_KEY} the relay journaled with.</p>
+ */
+final class AuditQuery {
+
+    /**
+     * Records of consecutive segments may overlap by as much as appenders racing a rotation, far
+     * less than this.
+     */
+    static final long ROTATION_SLACK_MILLIS = 60_000L;
+
+    /**
+     * The decisions to select. Unset criteria match everything.
+     */
+    static final class Filter {
+        private String fingerprint;
+        private long high;
+        private long low;
+        private String host;
+        private AuditJournal.Decision decision;
+        private long from = Long.MIN_VALUE;
+        private long to = Long.MAX_VALUE;
+
+        Filter user(CredentialFingerprints fingerprints, String loginName) {
+            return fingerprint(fingerprints.forIdentity(loginName));
+        }
+
+        Filter token(CredentialFingerprints fingerprints, String token) {
+            return fingerprint(fingerprints.forToken(token));
+        }
+
+        /**
+         * @throws IllegalArgumentException If the fingerprint is malformed.
+         */
+        Filter fingerprint(String fingerprint) {
+            this.high = CredentialFingerprints.digestWord(fingerprint, 0);
+            this.low = CredentialFingerprints.digestWord(fingerprint, 1);
+            this.fingerprint = fingerprint;
+            return this;
+        }
+
+        Filter host(String host) {
+            this.host = host.toLowerCase(Locale.ROOT);
+            return this;
+        }
+
+        Filter decision(AuditJournal.Decision decision) {
+            this.decision = decision;
+            return this;
+        }
+
+        Filter from(long millis) {
+            this.from = millis;
+            return this;
+        }
+
+        Filter to(long millis) {
+            this.to = millis;
+            return this;
+        }
+
+        private boolean matches(MappedByteBuffer buffer, int offset, long timestamp, Integer hostId) {
+            return timestamp >= from && timestamp < to
+                   && (fingerprint == null || (buffer.getLong(offset + 8) == high && buffer.getLong(offset + 16) == low
+                                               && buffer.get(offset + 30) == fingerprint.charAt(0)))
+                   && (hostId == null || buffer.getInt(offset + 24) == hostId)
+                   && (decision == null || buffer.get(offset + 28) == decision.ordinal());
+        }
+    }
+
+    /**
+     * One journaled decision.
+     */
+    static final class Entry {
+        private final long timestamp;
+        private final String fingerprint;
+        private final String host;
+        private final AuditJournal.Decision decision;
+        private final AuditJournal.Reason reason;
+
+        Entry(long timestamp, String fingerprint, String host, AuditJournal.Decision decision, AuditJournal.Reason reason) {
+            this.timestamp = timestamp;
+            this.fingerprint = fingerprint;
+            this.host = host;
+            this.decision = decision;
+            this.reason = reason;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return String The credential fingerprint, or null if the decision was about no credential.
+         */
+        String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * @return String The host name, {@code #} and the id if it was not named in the journal, or
+         *         null if the decision was about no host.
+         */
+        String getHost() {
+            return host;
+        }
+
+        AuditJournal.Decision getDecision() {
+            return decision;
+        }
+
+        AuditJournal.Reason getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return Instant.ofEpochMilli(timestamp) + "\t" + ((fingerprint == null) ? "-" : fingerprint) + "\t"
+                   + ((host == null) ? "-" : host) + "\t" + ((decision == null) ? "unknown" : decision.getId()) + "\t"
+                   + ((reason == null) ? "unknown" : reason.getId());
+        }
+    }
+
+    private AuditQuery() {
+    }
+
+    /**
+     * Passes every journaled decision that matches the filter to the sink, oldest segment first.
+     *
+     * @param directory The journal directory.
+     * @param filter The decisions to select.
+     * @param sink The receiver of the matching decisions.
+     * @return long The number of matching decisions.
+     * @throws IOException If the directory or a segment cannot be read.
+     */
+    static long query(Path directory, Filter filter, Consumer<Entry> sink) throws IOException {
+        Map<String, Integer> hostIds = AuditJournal.readHosts(directory);
+        Map<Integer, String> hosts = new HashMap<>();
+        hostIds.forEach((host, id) -> hosts.put(id, host));
+        // A host that is not listed was never journaled under its name
+        Integer hostId = (filter.host == null) ? null : hostIds.getOrDefault(filter.host, 0);
+        if (hostId != null && hostId == 0) {
+            return 0L;
+        }
+        List<Path> segments = AuditJournal.segments(directory);
+        long matched = 0L;
+        for (int i = 0; i < segments.size(); i++) {
+            try (FileChannel channel = FileChannel.open(segments.get(i), StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = map(channel);
+                if (buffer == null) {
+                    continue;
+                }
+                long first = firstTimestamp(buffer);
+                if (first != 0L && first - ROTATION_SLACK_MILLIS >= filter.to) {
+                    break;
+                }
+                long nextFirst = (i + 1 < segments.size()) ? firstTimestamp(segments.get(i + 1)) : 0L;
+                if (nextFirst != 0L && nextFirst + ROTATION_SLACK_MILLIS < filter.from) {
+                    continue;
+                }
+                matched += scan(buffer, filter, hostId, hosts, sink);
+            } catch (NoSuchFileException deleted) {
+                // Rotated out while reading
+            }
+        }
+        return matched;
+    }
+
+    private static long scan(MappedByteBuffer buffer, Filter filter, Integer hostId, Map<Integer, String> hosts,
+                             Consumer<Entry> sink) {
+        long matched = 0L;
+        for (int offset = AuditJournal.HEADER_BYTES; offset + AuditJournal.RECORD_BYTES <= buffer.limit();
+             offset += AuditJournal.RECORD_BYTES) {
+            long timestamp = buffer.getLong(offset);
+            if (timestamp == 0L || !filter.matches(buffer, offset, timestamp, hostId)) {
+                continue;
+            }
+            int id = buffer.getInt(offset + 24);
+            String host = (id == 0) ? null : hosts.getOrDefault(id, "#" + id);
+            byte kind = buffer.get(offset + 30);
+            String fingerprint = (kind == 0)
+                    ? null : CredentialFingerprints.format((char) kind, buffer.getLong(offset + 8), buffer.getLong(offset + 16));
+            sink.accept(new Entry(timestamp, fingerprint, host, AuditJournal.Decision.of(buffer.get(offset + 28)),
+                                  AuditJournal.Reason.of(buffer.get(offset + 29))));
+            matched++;
+        }
+        return matched;
+    }
+
+    /**
+     * @return MappedByteBuffer The segment, or null if it is not a journal segment of a known version.
+     */
+    private static MappedByteBuffer map(FileChannel channel) throws IOException {
+        if (channel.size() < AuditJournal.HEADER_BYTES) {
+            return null;
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return (buffer.getInt(0) == AuditJournal.MAGIC && buffer.getInt(4) == AuditJournal.VERSION) ? buffer : null;
+    }
+
+    private static long firstTimestamp(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = map(channel);
+            return (buffer == null) ? 0L : firstTimestamp(buffer);
+        } catch (NoSuchFileException deleted) {
+            return 0L;
+        }
+    }
+
+    private static long firstTimestamp(MappedByteBuffer buffer) {
+        for (int offset = AuditJournal.HEADER_BYTES; offset + AuditJournal.RECORD_BYTES <= buffer.limit();
+             offset += AuditJournal.RECORD_BYTES) {
+            long timestamp = buffer.getLong(offset);
+            if (timestamp != 0L) {
+                return timestamp;
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * Prints the matching decisions to standard output.
+     *
+     * @param args The filter options, see the class documentation.
+     */
+    public static void main(String[] args) throws IOException {
+        System.exit(run(args, System.getenv(), System.out, System.err));
+    }
+
+    static int run(String[] args, Map<String, String> environment, PrintStream out, PrintStream err) throws IOException {
+        String dir = environment.get(RelayConfig.AUDIT_DIR);
+        Filter filter = new Filter();
+        try {
+            for (String arg : args) {
+                int equals = arg.indexOf('=');
+                String name = (equals < 0) ? arg : arg.substring(0, equals);
+                String value = (equals < 0) ? "" : arg.substring(equals + 1);
+                switch (name) {
+                    case "--dir":
+                        dir = value;
+                        break;
+                    case "--user":
+                        filter.user(fingerprints(environment), value);
+                        break;
+                    case "--token":
+                        filter.token(fingerprints(environment), value.equals("-") ? readLine() : value);
+                        break;
+                    case "--fingerprint":
+                        filter.fingerprint(value);
+                        break;
+                    case "--host":
+                        filter.host(value);
+                        break;
+                    case "--decision":
+                        filter.decision(AuditJournal.Decision.valueOf(value.toUpperCase(Locale.ROOT)));
+                        break;
+                    case "--from":
+                        filter.from(time(value));
+                        break;
+                    case "--to":
+                        filter.to(time(value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException | DateTimeParseException error) {
+            err.println(error.getMessage());
+            return 2;
+        }
+        if (dir == null || dir.isBlank()) {
+            err.println("No journal directory, set --dir or " + RelayConfig.AUDIT_DIR);
+            return 2;
+        }
+        long matched = query(Path.of(dir), filter, out::println);
+        err.println(matched + " decisions");
+        return 0;
+    }
+
+    /**
+     * @throws IllegalArgumentException If no fingerprint key is set.
+     */
+    private static CredentialFingerprints fingerprints(Map<String, String> environment) {
+        String key = environment.get(RelayConfig.FINGERPRINT_KEY);
+        if (key == null || key.isBlank()) {
+            throw new IllegalArgumentException("Set " + RelayConfig.FINGERPRINT_KEY + " to the key of the journaled fingerprints");
+        }
+        return RelayConfig.fingerprints(environment);
+    }
+
+    private static long time(String value) {
+        return value.chars().allMatch(Character::isDigit) ? Long.parseLong(value) : Instant.parse(value).toEpochMilli();
+    }
+
+    private static String readLine() {
+        try {
+            String line = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+            if (line == null || line.isBlank()) {
+                throw new IllegalArgumentException("No token on standard input");
+            }
+            return line.trim();
+        } catch (IOException error) {
+            throw new IllegalArgumentException("Unable to read the token: " + error.getMessage());
+        }
+    }
+}
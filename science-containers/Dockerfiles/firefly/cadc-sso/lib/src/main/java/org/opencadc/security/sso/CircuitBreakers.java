@@ -0,0 +1,442 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Tracks the health of each downstream host and short-circuits calls to hosts that are failing.
+ *
+ * <p>Every host has a circuit that starts closed. Outcomes of calls are counted in a rolling
+ * window of {@value #BUCKETS} buckets, and once the window holds at least the minimum number of
+ * calls and the share of failures reaches the threshold, the circuit opens: calls are refused
+ * straight away, without waiting for the host to time out, until the open time has passed. Then
+ * the circuit is half-open and lets {@value #PROBES} probe calls through; once {@value #PROBES}
+ * calls have succeeded it closes again, and if any fails it opens for another open time. Successes
+ * are counted until then even if the half-open circuit lets new probe calls through because the
+ * earlier ones never reported. An outcome reported while the circuit is open, e.g. by a health
+ * probe, is not wasted either: a success makes the circuit half-open at once, counting as its first
+ * probe call, and a failure starts the open time over. A call fails when it got no
+ * answer, e.g. it timed out, when the answer is a 5xx, or when it took at least the slow call
+ * time if one is set.</p>
+ *
+ * <p>The state of a circuit is a single {@code long} packing the mode, the probes issued and
+ * succeeded and the deadline of the mode, and the window is a set of {@link AtomicLongArray}s,
+ * so both deciding and recording are a few compare-and-sets with no lock and no allocation.
+ * Answers to calls made before the circuit opened may be taken for probe outcomes, and two
+ * threads rolling a bucket over at once may lose a count, which only moves a decision by one call.
+ * At most {@value RelayMetrics#MAX_HOSTS} hosts are tracked; calls to others are never refused.</p>
+ *
+ * <p>Firefly never reports how its calls ended, so outcomes come from the {@link HealthProbes} of
+ * the hosts it calls, and from callers of {@link TokenRelay#onDownstreamResponse(String, int, long)}.</p>
+ */
+final class CircuitBreakers {
+
+    static final int BUCKETS = 10;
+    static final int PROBES = 3;
+
+    /**
+     * The modes of a circuit.
+     */
+    enum State {
+        CLOSED, OPEN, HALF_OPEN;
+
+        private final String id = name().toLowerCase(Locale.ROOT);
+
+        /**
+         * @return String The lower-case name used in logs and metrics, e.g. {@code half_open}.
+         */
+        String getId() {
+            return id;
+        }
+    }
+
+    private static final State[] MODES = State.values();
+
+    private final int thresholdPercent;
+    private final int minCalls;
+    private final long bucketMillis;
+    private final long slowCallMillis;
+    private final long openMillis;
+    private final LongSupplier clock;
+    private final long origin;
+    private final ConcurrentHashMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    /**
+     * @param thresholdPercent The share of failed calls in the window, from 1 to 100, that opens a circuit.
+     * @param minCalls The number of calls the window must hold before the circuit may open, at least 1.
+     * @param windowMillis The length of the rolling window, in milliseconds.
+     * @param slowCallMillis How long a call may take before it counts as failed, or 0 to only
+     *                       count errors.
+     * @param openMillis How long an open circuit refuses calls before it lets probes through.
+     * @param clock The monotonic clock, in nanoseconds, e.g. {@code System::nanoTime}.
+     */
+    CircuitBreakers(int thresholdPercent, int minCalls, long windowMillis, long slowCallMillis, long openMillis,
+                    LongSupplier clock) {
+        if (thresholdPercent < 1 || thresholdPercent > 100 || minCalls < 1 || windowMillis < BUCKETS
+                || slowCallMillis < 0 || openMillis < 1) {
+            throw new IllegalArgumentException("Invalid circuit breaker: " + thresholdPercent + "% of " + minCalls
+                                               + " calls in " + windowMillis + " ms, open " + openMillis + " ms");
+        }
+        this.thresholdPercent = thresholdPercent;
+        this.minCalls = minCalls;
+        this.bucketMillis = windowMillis / BUCKETS;
+        this.slowCallMillis = slowCallMillis;
+        this.openMillis = openMillis;
+        this.clock = clock;
+        this.origin = clock.getAsLong();
+    }
+
+    /**
+     * Asks the circuit of a host whether a call may be made.
+     *
+     * @param host The destination host.
+     * @return 0 if the call may be made, or else the milliseconds until the circuit lets calls
+     *         through again.
+     */
+    long acquire(String host) {
+        Circuit circuit = circuit(host);
+        return (circuit == null) ? 0L : circuit.acquire(now());
+    }
+
+    /**
+     * Records the outcome of a call to a host.
+     *
+     * @param host The destination host.
+     * @param status The HTTP status code of the answer, or 0 or less if there was none.
+     * @param elapsedMillis How long the call took, or a negative value if unknown.
+     * @return State The mode the circuit changed to, or null if it did not change.
+     */
+    State record(String host, int status, long elapsedMillis) {
+        Circuit circuit = circuit(host);
+        if (circuit == null) {
+            return null;
+        }
+        boolean failed = status <= 0 || status >= 500 || (slowCallMillis > 0 && elapsedMillis >= slowCallMillis);
+        return circuit.record(now(), failed, elapsedMillis);
+    }
+
+    /**
+     * @param host The destination host.
+     * @return State The mode of the host's circuit, closed if it is not tracked.
+     */
+    State getState(String host) {
+        Circuit circuit = circuits.get(host);
+        return (circuit == null) ? State.CLOSED : circuit.state(now());
+    }
+
+    /**
+     * @return List The health of every tracked host, sorted by host.
+     */
+    List<Health> getHealth() {
+        long now = now();
+        List<Health> health = new ArrayList<>(circuits.size());
+        circuits.forEach((host, circuit) -> health.add(circuit.health(host, now)));
+        health.sort((a, b) -> a.getHost().compareTo(b.getHost()));
+        return health;
+    }
+
+    private long now() {
+        return (clock.getAsLong() - origin) / 1_000_000L;
+    }
+
+    private Circuit circuit(String host) {
+        if (host == null) {
+            return null;
+        }
+        Circuit circuit = circuits.get(host);
+        if (circuit == null && circuits.size() < RelayMetrics.MAX_HOSTS) {
+            circuit = circuits.computeIfAbsent(host, h -> new Circuit());
+        }
+        return circuit;
+    }
+
+    /**
+     * The health of one host, as seen by operators.
+     */
+    static final class Health {
+
+        private final String host;
+        private final State state;
+        private final long calls;
+        private final long failures;
+        private final long meanMillis;
+
+        Health(String host, State state, long calls, long failures, long meanMillis) {
+            this.host = host;
+            this.state = state;
+            this.calls = calls;
+            this.failures = failures;
+            this.meanMillis = meanMillis;
+        }
+
+        String getHost() {
+            return host;
+        }
+
+        State getState() {
+            return state;
+        }
+
+        /**
+         * @return long The number of calls in the window.
+         */
+        long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return long The number of failed calls in the window.
+         */
+        long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return long The mean time of the timed calls in the window, in milliseconds, or -1 if none was timed.
+         */
+        long getMeanMillis() {
+            return meanMillis;
+        }
+
+        @Override
+        public String toString() {
+            return state.getId() + ", " + failures + " of " + calls + " calls failed"
+                   + ((meanMillis < 0) ? "" : ", mean " + meanMillis + " ms");
+        }
+    }
+
+    /**
+     * The circuit of one host. The state packs, from the lowest bits, the mode in 2 bits, the
+     * probes issued and the probes succeeded in 8 bits each, and the deadline of the mode in
+     * milliseconds since construction: when an open circuit turns half-open, or when a half-open
+     * one whose probes never reported lets new ones through.
+     */
+    private final class Circuit {
+
+        private final AtomicLong state = new AtomicLong(pack(State.CLOSED, 0, 0, 0L));
+        private final AtomicLongArray epochs = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray calls = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray failures = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray timed = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray elapsed = new AtomicLongArray(BUCKETS);
+
+        Circuit() {
+            clear();
+        }
+
+        long acquire(long now) {
+            while (true) {
+                long current = state.get();
+                State mode = mode(current);
+                long deadline = deadline(current);
+                if (mode == State.CLOSED) {
+                    return 0L;
+                }
+                if (mode == State.OPEN && now < deadline) {
+                    return deadline - now;
+                }
+                if (mode == State.OPEN || now >= deadline) {
+                    // Successes of half-open probes that outlived the deadline still count
+                    int succeeded = (mode == State.OPEN) ? 0 : succeeded(current);
+                    if (state.compareAndSet(current, pack(State.HALF_OPEN, 1, succeeded, now + openMillis))) {
+                        return 0L;
+                    }
+                    continue;
+                }
+                int issued = issued(current);
+                if (issued >= PROBES) {
+                    return deadline - now;
+                }
+                if (state.compareAndSet(current, pack(State.HALF_OPEN, issued + 1, succeeded(current), deadline))) {
+                    return 0L;
+                }
+            }
+        }
+
+        State record(long now, boolean failed, long elapsedMillis) {
+            count(now, failed, elapsedMillis);
+            while (true) {
+                long current = state.get();
+                State mode = mode(current);
+                long next;
+                if (mode == State.OPEN) {
+                    next = failed ? pack(State.OPEN, 0, 0, now + openMillis) : pack(State.HALF_OPEN, 0, 1, now + openMillis);
+                } else if (mode == State.CLOSED) {
+                    if (!failed || !isFailing(now)) {
+                        return null;
+                    }
+                    next = pack(State.OPEN, 0, 0, now + openMillis);
+                } else if (failed) {
+                    next = pack(State.OPEN, 0, 0, now + openMillis);
+                } else if (succeeded(current) + 1 >= PROBES) {
+                    next = pack(State.CLOSED, 0, 0, 0L);
+                } else {
+                    next = pack(State.HALF_OPEN, issued(current), succeeded(current) + 1, deadline(current));
+                }
+                if (state.compareAndSet(current, next)) {
+                    State changed = mode(next);
+                    if (changed == mode) {
+                        return null;
+                    }
+                    // A new mode starts from a clean window, so past failures cannot reopen a closed circuit
+                    clear();
+                    return changed;
+                }
+            }
+        }
+
+        State state(long now) {
+            long current = state.get();
+            State mode = mode(current);
+            return (mode == State.OPEN && now >= deadline(current)) ? State.HALF_OPEN : mode;
+        }
+
+        Health health(String host, long now) {
+            long oldest = now / bucketMillis - BUCKETS;
+            long totalCalls = 0L;
+            long totalFailures = 0L;
+            long totalTimed = 0L;
+            long totalElapsed = 0L;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                if (epochs.get(bucket) > oldest) {
+                    totalCalls += calls.get(bucket);
+                    totalFailures += failures.get(bucket);
+                    totalTimed += timed.get(bucket);
+                    totalElapsed += elapsed.get(bucket);
+                }
+            }
+            return new Health(host, state(now), totalCalls, totalFailures,
+                              (totalTimed == 0L) ? -1L : totalElapsed / totalTimed);
+        }
+
+        private void count(long now, boolean failed, long elapsedMillis) {
+            long epoch = now / bucketMillis;
+            int bucket = (int) (epoch % BUCKETS);
+            long previous = epochs.get(bucket);
+            if (previous != epoch && epochs.compareAndSet(bucket, previous, epoch)) {
+                calls.set(bucket, 0L);
+                failures.set(bucket, 0L);
+                timed.set(bucket, 0L);
+                elapsed.set(bucket, 0L);
+            }
+            calls.incrementAndGet(bucket);
+            if (failed) {
+                failures.incrementAndGet(bucket);
+            }
+            if (elapsedMillis >= 0) {
+                timed.incrementAndGet(bucket);
+                elapsed.addAndGet(bucket, elapsedMillis);
+            }
+        }
+
+        private boolean isFailing(long now) {
+            long oldest = now / bucketMillis - BUCKETS;
+            long totalCalls = 0L;
+            long totalFailures = 0L;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                if (epochs.get(bucket) > oldest) {
+                    totalCalls += calls.get(bucket);
+                    totalFailures += failures.get(bucket);
+                }
+            }
+            return totalCalls >= minCalls && totalFailures * 100 >= thresholdPercent * totalCalls;
+        }
+
+        private void clear() {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                epochs.set(bucket, Long.MIN_VALUE);
+            }
+        }
+    }
+
+    private static long pack(State mode, int issued, int succeeded, long deadline) {
+        return (deadline << 18) | ((long) succeeded << 10) | ((long) issued << 2) | mode.ordinal();
+    }
+
+    private static State mode(long state) {
+        return MODES[(int) (state & 0x3L)];
+    }
+
+    private static int issued(long state) {
+        return (int) ((state >>> 2) & 0xFFL);
+    }
+
+    private static int succeeded(long state) {
+        return (int) ((state >>> 10) & 0xFFL);
+    }
+
+    private static long deadline(long state) {
+        return state >>> 18;
+    }
+}
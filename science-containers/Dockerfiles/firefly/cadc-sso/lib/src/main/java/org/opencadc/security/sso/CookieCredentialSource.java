@@ -0,0 +1,228 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.RequestAgent;
+
+import javax.servlet.http.Cookie;
+
+/**
+ * Reads the token from the SSO cookie, the source Firefly has always used.
+ *
+ * <p>The raw {@code Cookie} header is parsed with {@link CookieHeader} when the request agent
+ * exposes it, which avoids materializing the whole cookie jar and decides deterministically between
+ * repeated SSO cookies; otherwise the container's parsed cookie is used. A cookie with an empty
+ * value, or with the wrong domain when the domain is enforced, is counted and logged and yields no
+ * token. Browsers never send a cookie's domain, so on the raw path the domain check is made
+ * against the request's {@code Host} instead: a browser only sends a cookie scoped to
+ * {@code .canfar.net} to hosts in that domain.</p>
+ */
+final class CookieCredentialSource implements CredentialSource {
+
+    static final String ID = "cookie";
+
+    private static final RelayEventLog EVENTS = RelayEventLog.shared();
+
+    private final String cookieName;
+    private final String cookieDomain;
+    private final boolean enforceCookieDomain;
+    private final CookieHeader.Precedence precedence;
+    private final boolean debug;
+    private final RelayEventLog.Policy logPolicy;
+
+    /**
+     * @param cookieName The name of the SSO cookie.
+     * @param cookieDomain The domain the cookie must have when the domain is enforced.
+     * @param enforceCookieDomain Whether the cookie domain is checked.
+     * @param precedence Which cookie is used when the request carries several.
+     * @param debug Whether the details of every cookie read are logged.
+     * @param logPolicy The rate limits of the log.
+     */
+    CookieCredentialSource(String cookieName, String cookieDomain, boolean enforceCookieDomain,
+                           CookieHeader.Precedence precedence, boolean debug, RelayEventLog.Policy logPolicy) {
+        this.cookieName = cookieName;
+        this.cookieDomain = cookieDomain;
+        this.enforceCookieDomain = enforceCookieDomain;
+        this.precedence = precedence;
+        this.debug = debug;
+        this.logPolicy = logPolicy;
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return cookieName;
+    }
+
+    @Override
+    public String read(RequestAgent agent, RelayMetrics metrics) {
+        if (agent == null) {
+            return null;
+        }
+        String header = agent.getHeader(CookieHeader.HEADER);
+        return (header == null) ? readCookie(agent, metrics) : readHeader(agent, header, metrics);
+    }
+
+    private String readHeader(RequestAgent agent, String header, RelayMetrics metrics) {
+        String ssoToken = CookieHeader.find(header, cookieName, precedence);
+        if (ssoToken == null) {
+            return null;
+        }
+        String host = enforceCookieDomain || debug ? agent.getHeader("Host") : null;
+        if (debug && EVENTS.isEnabled(RelayEvent.COOKIE_DETAILS)) {
+            EVENTS.emit(logPolicy, RelayEvent.COOKIE_DETAILS, cookieName,
+                        "expectedName=" + cookieName + " expectedDomain=" + cookieDomain
+                        + " enforceDomain=" + enforceCookieDomain + " host=" + host
+                        + " count=" + CookieHeader.count(header, cookieName) + " precedence=" + precedence
+                        + " agent=" + agent.getClass().getName());
+        }
+        if (ssoToken == CookieHeader.AMBIGUOUS) {
+            metrics.tokenAmbiguous();
+            EVENTS.emit(logPolicy, RelayEvent.COOKIE_AMBIGUOUS, cookieName, null);
+            return REJECTED;
+        }
+        if (ssoToken.isEmpty()) {
+            metrics.tokenEmpty();
+            EVENTS.emit(logPolicy, RelayEvent.TOKEN_EMPTY, cookieName, null);
+            return REJECTED;
+        }
+        if (enforceCookieDomain && !isInCookieDomain(host)) {
+            metrics.tokenInvalidDomain();
+            EVENTS.emit(logPolicy, RelayEvent.COOKIE_DOMAIN_INVALID, cookieDomain, host);
+            return REJECTED;
+        }
+        return ssoToken;
+    }
+
+    /**
+     * @return Whether a browser would send a cookie of the SSO cookie domain to the host.
+     */
+    private boolean isInCookieDomain(String host) {
+        if (host == null || host.isEmpty()) {
+            return false;
+        }
+        int end = host.length();
+        if (host.charAt(0) != '[') {
+            int colon = host.lastIndexOf(':');
+            end = (colon < 0) ? end : colon;
+        }
+        String domain = cookieDomain.startsWith(".") ? cookieDomain.substring(1) : cookieDomain;
+        int start = end - domain.length();
+        return start >= 0 && host.regionMatches(true, start, domain, 0, domain.length())
+               && (start == 0 || host.charAt(start - 1) == '.');
+    }
+
+    private String readCookie(RequestAgent agent, RelayMetrics metrics) {
+        Cookie ssoCookie = agent.getCookie(cookieName);
+        if (ssoCookie == null) {
+            return null;
+        }
+        if (debug && EVENTS.isEnabled(RelayEvent.COOKIE_DETAILS)) {
+            cookieDetails(agent, ssoCookie);
+        }
+
+        String ssoToken = ssoCookie.getValue(); // Get the value of the cookie
+        String domain = ssoCookie.getDomain(); // Get the domain of the cookie
+
+        if (ssoToken == null || ssoToken.isEmpty()) {
+            metrics.tokenEmpty();
+            EVENTS.emit(logPolicy, RelayEvent.TOKEN_EMPTY, cookieName, null);
+            return REJECTED;
+        }
+
+        if (enforceCookieDomain && (domain == null || domain.isEmpty() || !domain.endsWith(cookieDomain))) {
+            metrics.tokenInvalidDomain();
+            EVENTS.emit(logPolicy, RelayEvent.COOKIE_DOMAIN_INVALID, cookieDomain, domain);
+            return REJECTED;
+        }
+        return ssoToken;
+    }
+
+    /**
+     * Logs detailed information about the provided SSO cookie and request agent as a single event.
+     *
+     * @param agent The request agent associated with the cookie.
+     * @param ssoCookie The SSO cookie whose details are to be logged.
+     */
+    private void cookieDetails(RequestAgent agent, Cookie ssoCookie) {
+        String value = ssoCookie.getValue();
+        String details = "expectedName=" + cookieName
+                + " expectedDomain=" + cookieDomain
+                + " enforceDomain=" + enforceCookieDomain
+                + " domain=" + ssoCookie.getDomain()
+                + " value=" + ((value == null) ? null : value.substring(0, Math.min(10, value.length())) + "...")
+                + " maxAge=" + ssoCookie.getMaxAge()
+                + " secure=" + ssoCookie.getSecure()
+                + " httpOnly=" + ssoCookie.isHttpOnly()
+                + " agent=" + agent.getClass().getName();
+        EVENTS.emit(logPolicy, RelayEvent.COOKIE_DETAILS, ssoCookie.getName(), details);
+    }
+}
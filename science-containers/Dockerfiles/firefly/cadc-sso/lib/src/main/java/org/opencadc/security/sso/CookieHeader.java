@@ -0,0 +1,204 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.util.Locale;
+
+/**
+ * Finds a cookie in a raw {@code Cookie} request header (RFC 6265, section 5.4).
+ *
+ * <p>The header is scanned once, in place: names are compared with
+ * {@link String#regionMatches(int, String, int, int)} and no other cookie is ever materialized,
+ * so a request carrying a large cookie jar costs one pass over the header and, when the cookie is
+ * found, the one string of its value. A servlet container instead builds a
+ * {@code javax.servlet.http.Cookie}, and its name and value strings, for every cookie in the jar.</p>
+ *
+ * <p>A browser holding cookies of the same name for several domains or paths, e.g. one for
+ * {@code .canfar.net} and one for {@code rc-uv.canfar.net/session}, sends all of them, and
+ * sends neither their domain nor their path. It orders them by path length, longest first, then
+ * by creation time, oldest first. The {@link Precedence} decides which one is used.</p>
+ */
+final class CookieHeader {
+
+    static final String HEADER = "Cookie";
+
+    /**
+     * Returned, and compared by identity, when the cookie repeats with different values and the
+     * precedence is {@link Precedence#REJECT}.
+     */
+    static final String AMBIGUOUS = new String("");
+
+    /**
+     * Which of several cookies with the same name is used.
+     */
+    enum Precedence {
+        /**
+         * The first sent, which is the one with the most specific path, as RFC 6265 servers do.
+         */
+        FIRST,
+        /**
+         * The last sent, the one with the least specific path, e.g. the domain-wide session cookie.
+         */
+        LAST,
+        /**
+         * None, if they differ: the request is treated as carrying an invalid cookie.
+         */
+        REJECT;
+
+        /**
+         * @param id The precedence name, in any case.
+         * @return The precedence.
+         * @throws IllegalArgumentException If there is no precedence with that name.
+         */
+        static Precedence forId(String id) {
+            return valueOf(id.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private CookieHeader() {
+    }
+
+    /**
+     * Finds the value of a cookie.
+     *
+     * @param header The {@code Cookie} header, or null.
+     * @param name The cookie name, compared case-sensitively.
+     * @param precedence Which cookie wins when the name repeats.
+     * @return The value, without surrounding double quotes, null if the header has no such cookie,
+     *         or {@link #AMBIGUOUS}.
+     */
+    static String find(String header, String name, Precedence precedence) {
+        if (header == null) {
+            return null;
+        }
+        int length = header.length();
+        int nameLength = name.length();
+        int foundStart = -1;
+        int foundEnd = -1;
+        int position = 0;
+        while (position < length) {
+            // Skip the separator and optional whitespace before the pair
+            char c = header.charAt(position);
+            if (c == ';' || c == ' ' || c == '\t') {
+                position++;
+                continue;
+            }
+            int pairEnd = header.indexOf(';', position);
+            if (pairEnd < 0) {
+                pairEnd = length;
+            }
+            int nameEnd = position + nameLength;
+            if (nameEnd < pairEnd && header.charAt(nameEnd) == '=' && header.regionMatches(position, name, 0, nameLength)) {
+                int valueStart = nameEnd + 1;
+                int valueEnd = pairEnd;
+                while (valueEnd > valueStart && isWhitespace(header.charAt(valueEnd - 1))) {
+                    valueEnd--;
+                }
+                if (valueEnd - valueStart >= 2 && header.charAt(valueStart) == '"' && header.charAt(valueEnd - 1) == '"') {
+                    valueStart++;
+                    valueEnd--;
+                }
+                if (precedence == Precedence.FIRST) {
+                    return header.substring(valueStart, valueEnd);
+                }
+                if (precedence == Precedence.REJECT && foundStart >= 0
+                        && (valueEnd - valueStart != foundEnd - foundStart
+                            || !header.regionMatches(valueStart, header, foundStart, foundEnd - foundStart))) {
+                    return AMBIGUOUS;
+                }
+                foundStart = valueStart;
+                foundEnd = valueEnd;
+            }
+            position = pairEnd + 1;
+        }
+        return (foundStart < 0) ? null : header.substring(foundStart, foundEnd);
+    }
+
+    /**
+     * Counts the cookies of a name, for diagnostics.
+     *
+     * @param header The {@code Cookie} header, or null.
+     * @param name The cookie name.
+     * @return The number of cookies with the name.
+     */
+    static int count(String header, String name) {
+        int count = 0;
+        if (header != null) {
+            for (String pair : header.split(";")) {
+                String trimmed = pair.trim();
+                if (trimmed.startsWith(name) && trimmed.length() > name.length() && trimmed.charAt(name.length()) == '=') {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t';
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keyed fingerprints of the credentials downstream calls are made with, so that caches of their
+ * results can share public results across users and partition only the private ones.
+ *
+ * <p>A fingerprint is the HMAC-SHA256 of the user's CADC login name when the identity is known,
+ * so that all of a user's tokens share one partition, otherwise of the token itself, or of the
+ * proxy certificate. It is truncated to 128 bits and Base64url encoded, after a prefix naming
+ * what was hashed, so it never equals {@link #PUBLIC} or a fingerprint of another kind. The key
+ * keeps anyone who can read cache keys, but not the key, from matching them against a token or a
+ * user name. Without a configured key each process draws a random one, so fingerprints only match
+ * within one pod; replicas sharing a cache need the same key.</p>
+ *
+ * <p>A token's fingerprint is kept with its stored session, see {@link RequestCredential}, so it
+ * is computed once per token. Identity and certificate fingerprints are interned, so every request
+ * of a user carries the same string. Certificates are interned by their SHA-256 digest, so the
+ * cache never holds the PEM, and with it the private key, after the certificate is rotated.</p>
+ */
+final class CredentialFingerprints {
+
+    /**
+     * The partition of results fetched without a user credential.
+     */
+    static final String PUBLIC = "public";
+
+    static final int MIN_KEY_LENGTH = 16;
+
+    private static final int INTERNED_CAPACITY = 10_000;
+
+    private final SecretKeySpec key;
+    private final ExpiringCache<String, String> interned = new ExpiringCache<>(INTERNED_CAPACITY);
+
+    /**
+     * @param key The HMAC key, at least {@link #MIN_KEY_LENGTH} bytes.
+     * @throws IllegalArgumentException If the key is too short.
+     */
+    CredentialFingerprints(byte[] key) {
+        if (key.length < MIN_KEY_LENGTH) {
+            throw new IllegalArgumentException("A fingerprint key needs at least " + MIN_KEY_LENGTH + " bytes");
+        }
+        this.key = new SecretKeySpec(key, "HmacSHA256");
+    }
+
+    /**
+     * @return CredentialFingerprints Fingerprints keyed by the random key of this process, which
+     *         is the same for every instance, so reloading the configuration keeps them stable.
+     */
+    static CredentialFingerprints withProcessKey() {
+        return new CredentialFingerprints(ProcessKey.KEY);
+    }
+
+    /**
+     * @param token The SSO token.
+     * @return String The fingerprint of the token.
+     */
+    String forToken(String token) {
+        return "t." + hmac("token", token);
+    }
+
+    /**
+     * @param loginName The CADC login name.
+     * @return String The interned fingerprint of the user.
+     */
+    String forIdentity(String loginName) {
+        return intern("u.", "user", loginName);
+    }
+
+    /**
+     * @param certificate The PEM proxy certificate, or the name of the file that should hold it.
+     * @return String The interned fingerprint of the certificate.
+     */
+    String forCertificate(String certificate) {
+        return intern("c.", "certificate", certificate, sha256(certificate));
+    }
+
+    private String intern(String prefix, String kind, String value) {
+        return intern(prefix, kind, value, value);
+    }
+
+    private String intern(String prefix, String kind, String value, String id) {
+        String key = prefix + id;
+        String fingerprint = interned.get(key, 0L);
+        if (fingerprint == null) {
+            fingerprint = prefix + hmac(kind, value);
+            interned.put(key, fingerprint, Long.MAX_VALUE, 0L);
+        }
+        return fingerprint;
+    }
+
+    private static String sha256(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (GeneralSecurityException error) {
+            throw new IllegalStateException("SHA-256 is not available", error);
+        }
+    }
+
+    /**
+     * Reads half of the 128-bit digest of a fingerprint, without allocating, so it can be stored
+     * in binary.
+     *
+     * @param fingerprint A fingerprint made by any instance.
+     * @param word 0 for the leading 64 bits of the digest, 1 for the trailing ones.
+     * @return long The bits.
+     * @throws IllegalArgumentException If the fingerprint is malformed.
+     */
+    static long digestWord(String fingerprint, int word) {
+        if (fingerprint.length() != 2 + 22 || fingerprint.charAt(1) != '.') {
+            throw new IllegalArgumentException("Not a credential fingerprint");
+        }
+        long high = 0L;
+        long low = 0L;
+        // 21 characters carry 126 bits, the 2 leading bits of the last one complete the digest
+        for (int i = 2; i < 2 + 21; i++) {
+            int digit = base64Digit(fingerprint.charAt(i));
+            high = (high << 6) | (low >>> 58);
+            low = (low << 6) | digit;
+        }
+        int last = base64Digit(fingerprint.charAt(2 + 21));
+        high = (high << 2) | (low >>> 62);
+        low = (low << 2) | (last >>> 4);
+        return (word == 0) ? high : low;
+    }
+
+    /**
+     * Rebuilds a fingerprint from its kind and digest, see {@link #digestWord}.
+     *
+     * @param kind The leading character of the fingerprint, e.g. {@code u} for a user.
+     * @param high The leading 64 bits of the digest.
+     * @param low The trailing 64 bits of the digest.
+     * @return String The fingerprint.
+     */
+    static String format(char kind, long high, long low) {
+        byte[] digest = ByteBuffer.allocate(16).putLong(high).putLong(low).array();
+        return kind + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+    }
+
+    private static int base64Digit(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        } else if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 26;
+        } else if (c >= '0' && c <= '9') {
+            return c - '0' + 52;
+        } else if (c == '-') {
+            return 62;
+        } else if (c == '_') {
+            return 63;
+        }
+        throw new IllegalArgumentException("Not a credential fingerprint");
+    }
+
+    /**
+     * Hashes the kind and the value, separated by a zero byte, so values of different kinds never
+     * collide.
+     */
+    private String hmac(String kind, String value) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            mac.update(kind.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            byte[] digest = mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 16));
+        } catch (GeneralSecurityException error) {
+            throw new IllegalStateException("HmacSHA256 is not available", error);
+        }
+    }
+
+    /**
+     * A fingerprint computed by one instance, kept with the credential it belongs to.
+     */
+    static final class Memo {
+        private final CredentialFingerprints owner;
+        private final String fingerprint;
+
+        Memo(CredentialFingerprints owner, String fingerprint) {
+            this.owner = owner;
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * @param fingerprints The fingerprints in use.
+         * @return String The fingerprint, or null if it was computed by other fingerprints.
+         */
+        String get(CredentialFingerprints fingerprints) {
+            return (owner == fingerprints) ? fingerprint : null;
+        }
+    }
+
+    private static final class ProcessKey {
+        private static final byte[] KEY = new byte[32];
+
+        static {
+            new SecureRandom().nextBytes(KEY);
+        }
+    }
+}
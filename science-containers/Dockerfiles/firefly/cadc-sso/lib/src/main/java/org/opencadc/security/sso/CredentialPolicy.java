@@ -0,0 +1,479 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decides, per downstream request, how the SSO credential is passed on.
+ *
+ * <p>A policy is a list of rules, one per line, each an action followed by a destination:</p>
+ * <pre>
+ * # action  host[:port][/path/prefix]
+ * bearer    ws-uv.canfar.net/youcat
+ * none      ws-uv.canfar.net/tap/public
+ * cookie    legacy.cadc-ccda.hia-iha.nrc-cnrc.gc.ca/data/pub
+ * bearer    .canfar.net
+ * </pre>
+ *
+ * <p>The host takes the same forms as in {@link AllowedDomains}: a leading dot for any subdomain,
+ * a leading {@code =} for that host alone, otherwise the host and any subdomain, optionally
+ * restricted to one port. A path prefix matches on segment
+ * boundaries, so {@code /youcat} covers {@code /youcat/sync} but not {@code /youcatalog}. Paths
+ * are compared literally and case-sensitively. When several rules match, the one with the longest
+ * path prefix wins, then the one with the most specific host, then the earliest in the file.
+ * Requests no rule matches get no credential. The actions are:</p>
+ * <ul>
+ *   <li>{@code bearer}: send the token as an {@code Authorization: Bearer} header.</li>
+ *   <li>{@code cookie}: send the token as the SSO cookie, for endpoints that predate bearer tokens.</li>
+ *   <li>{@code certificate}: send nothing in the request; the call authenticates with the proxy
+ *       certificate instead, see {@link TokenRelay#getSSLContext(String)}.</li>
+ *   <li>{@code none}: send nothing.</li>
+ * </ul>
+ *
+ * <p>The rules are compiled once. The first request to a host and port builds that host's table of
+ * applicable rules, ordered so the first matching prefix is the winner; the table is kept in a
+ * direct-mapped cache. Each table then memoizes its decisions by the request path cut to the depth
+ * of its deepest prefix, so every request to {@code /youcat/async/<job>} shares one cached decision
+ * and evaluating the policy costs two cache probes.</p>
+ */
+final class CredentialPolicy {
+
+    /**
+     * How a credential is passed to a downstream service.
+     */
+    enum Action {
+        BEARER, COOKIE, CERTIFICATE, NONE;
+
+        private final String id = name().toLowerCase(Locale.ROOT);
+
+        /**
+         * @return The lower-case name used in policy files and logs.
+         */
+        String getId() {
+            return id;
+        }
+    }
+
+    private static final int ANY_PORT = -1;
+    private static final int HOST_CACHE_SIZE = 1024;
+    private static final int PATH_CACHE_SIZE = 64;
+
+    private final Rule[] rules;
+    private final HostTable[] hosts = new HostTable[HOST_CACHE_SIZE];
+
+    private CredentialPolicy(List<Rule> rules) {
+        this.rules = rules.toArray(new Rule[0]);
+    }
+
+    /**
+     * Compiles a policy.
+     *
+     * @param text The policy, one rule per line. Blank lines and lines starting with {@code #} are ignored.
+     * @return CredentialPolicy The compiled policy.
+     * @throws IllegalArgumentException If a rule is invalid.
+     */
+    static CredentialPolicy compile(String text) {
+        List<Rule> rules = new ArrayList<>();
+        String[] lines = text.split("\\R");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length != 2) {
+                throw new IllegalArgumentException("Policy line " + (i + 1) + " is not '<action> <destination>': " + line);
+            }
+            Action action;
+            try {
+                action = Action.valueOf(fields[0].toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException error) {
+                throw new IllegalArgumentException("Unknown action on policy line " + (i + 1) + ": " + fields[0]);
+            }
+            rules.add(Rule.parse(action, fields[1], rules.size()));
+        }
+        return new CredentialPolicy(rules);
+    }
+
+    /**
+     * Reads and compiles a policy file.
+     *
+     * @param file The policy file.
+     * @return CredentialPolicy The compiled policy.
+     * @throws IllegalArgumentException If the file cannot be read or a rule is invalid.
+     */
+    static CredentialPolicy load(Path file) {
+        try {
+            return compile(Files.readString(file));
+        } catch (IOException error) {
+            throw new IllegalArgumentException("Unable to read policy file " + file, new UncheckedIOException(error));
+        }
+    }
+
+    /**
+     * Builds the policy equivalent to an {@link AllowedDomains} allow-list: a bearer token for the
+     * allowed hosts and nothing for any other.
+     *
+     * @param allowedDomains The comma-separated allow-list.
+     * @return CredentialPolicy The compiled policy.
+     * @throws IllegalArgumentException If a rule is not a valid host, domain or port.
+     */
+    static CredentialPolicy fromAllowedDomains(String allowedDomains) {
+        List<Rule> rules = new ArrayList<>();
+        if (allowedDomains != null) {
+            for (String rule : allowedDomains.split(",")) {
+                String trimmed = rule.trim();
+                if (!trimmed.isEmpty()) {
+                    rules.add(Rule.parse(Action.BEARER, trimmed, rules.size()));
+                }
+            }
+        }
+        return new CredentialPolicy(rules);
+    }
+
+    /**
+     * Decides how to pass the credential to the given downstream request.
+     *
+     * @param requestURL The absolute http or https URL of the downstream request.
+     * @return Decision The decision, or null if the URL cannot be parsed, in which case nothing
+     *         should be sent.
+     */
+    Decision decide(String requestURL) {
+        if (requestURL == null) {
+            return null;
+        }
+        int hostStart = AllowedDomains.hostStart(requestURL);
+        if (hostStart < 0) {
+            return null;
+        }
+        int hostEnd = AllowedDomains.hostEnd(requestURL, hostStart);
+        if (hostEnd < 0) {
+            return null;
+        }
+        int port = AllowedDomains.port(requestURL, hostStart, hostEnd);
+        if (port < 0) {
+            return null;
+        }
+        int pathStart = hostEnd;
+        while (pathStart < requestURL.length() && requestURL.charAt(pathStart) != '/'
+                && requestURL.charAt(pathStart) != '?' && requestURL.charAt(pathStart) != '#') {
+            pathStart++;
+        }
+        if (requestURL.charAt(hostEnd - 1) == '.') {
+            hostEnd--; // fully qualified form, e.g. ws-uv.canfar.net.
+        }
+        if (hostEnd == hostStart) {
+            return null;
+        }
+
+        int hash = hashIgnoreCase(requestURL, hostStart, hostEnd) * 31 + port;
+        int slot = (hash ^ (hash >>> 16)) & (HOST_CACHE_SIZE - 1);
+        HostTable table = hosts[slot];
+        if (table == null || !table.matches(requestURL, hostStart, hostEnd, port)) {
+            table = hostTable(requestURL.substring(hostStart, hostEnd).toLowerCase(Locale.ROOT), port);
+            hosts[slot] = table;
+        }
+        return table.decide(requestURL, pathStart);
+    }
+
+    /**
+     * Collects the rules that apply to a host and port, ordered so that the first rule whose
+     * prefix matches a path is the winner.
+     */
+    private HostTable hostTable(String host, int port) {
+        List<Rule> applicable = new ArrayList<>();
+        for (Rule rule : rules) {
+            if (rule.appliesTo(host, port)) {
+                applicable.add(rule);
+            }
+        }
+        applicable.sort(Comparator.comparingInt((Rule rule) -> -rule.pathDepth)
+                                .thenComparingInt(rule -> -rule.specificity)
+                                .thenComparingInt(rule -> rule.order));
+        return new HostTable(host, port, applicable.toArray(new Rule[0]));
+    }
+
+    private static int hashIgnoreCase(String s, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            hash = 31 * hash + ((c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c);
+        }
+        return hash;
+    }
+
+    /**
+     * The end of the path of a URL: the start of its query or fragment, or its length.
+     */
+    private static int pathEnd(String url, int pathStart) {
+        int length = url.length();
+        for (int i = pathStart; i < length; i++) {
+            char c = url.charAt(i);
+            if (c == '?' || c == '#') {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * The decision for one host, port and path prefix.
+     */
+    static final class Decision {
+        private final String host;
+        private final int port;
+        private final String prefix;
+        private final Action action;
+
+        private Decision(String host, int port, String prefix, Action action) {
+            this.host = host;
+            this.port = port;
+            this.prefix = prefix;
+            this.action = action;
+        }
+
+        /**
+         * @return The lower-case host, without a trailing dot.
+         */
+        String getHost() {
+            return host;
+        }
+
+        int getPort() {
+            return port;
+        }
+
+        Action getAction() {
+            return action;
+        }
+    }
+
+    /**
+     * The rules applying to one host and port, with decisions memoized by path prefix.
+     */
+    private static final class HostTable {
+        private final String host;
+        private final int port;
+        private final Rule[] rules;
+        private final int depth;
+        private final Decision[] decisions = new Decision[PATH_CACHE_SIZE];
+
+        private HostTable(String host, int port, Rule[] rules) {
+            this.host = host;
+            this.port = port;
+            this.rules = rules;
+            int deepest = 0;
+            for (Rule rule : rules) {
+                deepest = Math.max(deepest, rule.pathDepth);
+            }
+            this.depth = deepest;
+        }
+
+        private boolean matches(String url, int hostStart, int hostEnd, int port) {
+            return this.port == port
+                    && host.length() == hostEnd - hostStart
+                    && url.regionMatches(true, hostStart, host, 0, host.length());
+        }
+
+        private Decision decide(String url, int pathStart) {
+            // Only the first 'depth' segments of the path can affect the decision
+            int pathEnd = pathEnd(url, pathStart);
+            int keyEnd = pathStart;
+            for (int segments = 0; segments < depth && keyEnd < pathEnd; segments++) {
+                int next = url.indexOf('/', keyEnd + 1);
+                keyEnd = (next < 0 || next > pathEnd) ? pathEnd : next;
+            }
+            int hash = 0;
+            for (int i = pathStart; i < keyEnd; i++) {
+                hash = 31 * hash + url.charAt(i);
+            }
+            int slot = (hash ^ (hash >>> 16)) & (PATH_CACHE_SIZE - 1);
+            Decision cached = decisions[slot];
+            if (cached != null && cached.prefix.length() == keyEnd - pathStart
+                    && url.startsWith(cached.prefix, pathStart)) {
+                return cached;
+            }
+            Action action = Action.NONE;
+            for (Rule rule : rules) {
+                if (rule.matchesPath(url, pathStart, pathEnd)) {
+                    action = rule.action;
+                    break;
+                }
+            }
+            Decision decision = new Decision(host, port, url.substring(pathStart, keyEnd), action);
+            decisions[slot] = decision;
+            return decision;
+        }
+    }
+
+    /**
+     * One compiled policy rule.
+     */
+    private static final class Rule {
+        private final Action action;
+        private final String host;
+        private final boolean subdomains;
+        private final boolean exact;
+        private final int port;
+        private final String path;
+        private final int pathDepth;
+        private final int specificity;
+        private final int order;
+
+        private Rule(Action action, String host, boolean subdomains, boolean exact, int port, String path, int order) {
+            this.action = action;
+            this.host = host;
+            this.subdomains = subdomains;
+            this.exact = exact;
+            this.port = port;
+            this.path = path;
+            this.pathDepth = path.isEmpty() ? 0 : (int) path.chars().filter(c -> c == '/').count();
+            // Exact hosts beat domains, longer domains beat shorter ones, fixed ports beat any port
+            this.specificity = host.length() * 2 + ((port == ANY_PORT) ? 0 : 1);
+            this.order = order;
+        }
+
+        private static Rule parse(Action action, String destination, int order) {
+            int slash = destination.indexOf('/');
+            String hostPart = (slash < 0) ? destination : destination.substring(0, slash);
+            String path = (slash < 0) ? "" : destination.substring(slash);
+            while (path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            if (path.contains("?") || path.contains("#") || path.contains("//")) {
+                throw new IllegalArgumentException("Invalid path in policy destination: " + destination);
+            }
+
+            String text = hostPart.toLowerCase(Locale.ROOT);
+            int port = ANY_PORT;
+            int colon = text.lastIndexOf(':');
+            if (colon >= 0 && text.indexOf(']') < colon) {
+                try {
+                    port = Integer.parseInt(text.substring(colon + 1));
+                } catch (NumberFormatException error) {
+                    port = 0;
+                }
+                if (port <= 0 || port > 65535) {
+                    throw new IllegalArgumentException("Invalid port in policy destination: " + destination);
+                }
+                text = text.substring(0, colon);
+            }
+            boolean exact = text.startsWith("=");
+            if (exact) {
+                text = text.substring(1);
+            }
+            boolean subdomains = false;
+            if (!exact && text.startsWith("*.")) {
+                text = text.substring(1);
+            }
+            if (!exact && text.startsWith(".")) {
+                subdomains = true;
+                text = text.substring(1);
+            }
+            if (text.endsWith(".")) {
+                text = text.substring(0, text.length() - 1);
+            }
+            String probe = "https://" + text;
+            if (text.isEmpty() || AllowedDomains.hostEnd(probe, 8) != probe.length()) {
+                throw new IllegalArgumentException("Invalid host in policy destination: " + destination);
+            }
+            return new Rule(action, text, subdomains, exact, port, path, order);
+        }
+
+        private boolean appliesTo(String requestHost, int requestPort) {
+            if (port != ANY_PORT && port != requestPort) {
+                return false;
+            }
+            if (requestHost.length() == host.length()) {
+                return !subdomains && requestHost.equals(host);
+            }
+            return !exact
+                    && requestHost.length() > host.length()
+                    && requestHost.endsWith(host)
+                    && requestHost.charAt(requestHost.length() - host.length() - 1) == '.';
+        }
+
+        private boolean matchesPath(String url, int pathStart, int pathEnd) {
+            int length = path.length();
+            if (length == 0) {
+                return true;
+            }
+            if (pathEnd - pathStart < length || !url.startsWith(path, pathStart)) {
+                return false;
+            }
+            return pathEnd - pathStart == length || url.charAt(pathStart + length) == '/';
+        }
+    }
+}
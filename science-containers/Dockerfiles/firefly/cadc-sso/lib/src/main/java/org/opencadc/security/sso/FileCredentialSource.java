@@ -0,0 +1,202 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import edu.caltech.ipac.firefly.server.util.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Reads the token from a file mounted into the container, e.g. a Kubernetes Secret or the token a
+ * CANFAR session is started with. The same token serves every request that carries none of its own,
+ * so {@link RelayConfig} only allows this source when {@code CADC_SSO_SINGLE_USER} is set: in a
+ * shared deployment, anonymous users would be relayed the token of the pod's owner.
+ *
+ * <p>The file is read once and held in memory. Its modification time is checked at most every
+ * {@link #CHECK_MILLIS}, on a virtual thread, and the file is read again only when that changed,
+ * so request threads never touch the disk. A file holding a PEM proxy certificate rather than a
+ * token yields no bearer token; its content is kept for {@link #getProxyCertificate()}.</p>
+ */
+final class FileCredentialSource implements CredentialSource {
+
+    static final String ID = "file";
+    static final long CHECK_MILLIS = 2_000L;
+
+    private static final Logger.LoggerImpl LOGGER = Logger.getLogger();
+
+    private final Path file;
+    private final LongSupplier clock;
+    private final AtomicBoolean checking = new AtomicBoolean();
+    private volatile Content content = Content.EMPTY;
+    private volatile long nextCheck;
+
+    /**
+     * Creates the source and reads the file.
+     *
+     * @param file The token or proxy certificate file.
+     * @param clock The wall clock, in milliseconds.
+     */
+    FileCredentialSource(Path file, LongSupplier clock) {
+        this.file = file;
+        this.clock = clock;
+        reload();
+        this.nextCheck = clock.getAsLong() + CHECK_MILLIS;
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return file.toString();
+    }
+
+    @Override
+    public String read(RequestAgent agent, RelayMetrics metrics) {
+        checkForChange();
+        return content.token;
+    }
+
+    /**
+     * @return The PEM proxy certificate held in the file, or null if the file holds a token or nothing.
+     */
+    String getProxyCertificate() {
+        checkForChange();
+        return content.proxyCertificate;
+    }
+
+    private void checkForChange() {
+        long now = clock.getAsLong();
+        if (now >= nextCheck && checking.compareAndSet(false, true)) {
+            nextCheck = now + CHECK_MILLIS;
+            Thread.ofVirtual().name("cadc-sso-token-file").start(() -> {
+                try {
+                    reload();
+                } finally {
+                    checking.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the file again if its modification time changed.
+     *
+     * @return Whether the content was replaced.
+     */
+    synchronized boolean reload() {
+        Content current = content;
+        try {
+            FileTime modified = Files.getLastModifiedTime(file);
+            if (modified.equals(current.modified)) {
+                return false;
+            }
+            String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+            content = text.startsWith("-----BEGIN ")
+                    ? new Content(null, text, modified)
+                    : new Content(text.isEmpty() ? null : text, null, modified);
+            return true;
+        } catch (NoSuchFileException error) {
+            if (current == Content.EMPTY || current.modified != null) {
+                LOGGER.warn("Token file " + file + " not found");
+            }
+            content = Content.MISSING;
+            return current != Content.MISSING;
+        } catch (IOException error) {
+            LOGGER.warn("Unable to read token file " + file + ", keeping the current token: " + error.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * An immutable snapshot of the file, swapped in with one volatile write.
+     */
+    private static final class Content {
+        private static final Content EMPTY = new Content(null, null, null);
+        private static final Content MISSING = new Content(null, null, null);
+
+        private final String token;
+        private final String proxyCertificate;
+        private final FileTime modified;
+
+        private Content(String token, String proxyCertificate, FileTime modified) {
+            this.token = token;
+            this.proxyCertificate = proxyCertificate;
+            this.modified = modified;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Probes the health of the downstream hosts Firefly calls, in the background, so that their
+ * {@link CircuitBreakers} see outcomes although Firefly never reports how its calls ended.
+ *
+ * <p>When Firefly calls a host, whether or not its circuit lets the call through, and the host was
+ * last probed at least the probe interval ago, a {@code HEAD} request for the service of the call
+ * is sent on a virtual thread, without any credential, and its outcome is recorded as that of a
+ * call: no answer within {@link #TIMEOUT}, or a 5xx answer, is a failure, as is one slower than the
+ * slow call time. The service is the first segment of the path of the call, so on an ingress
+ * shared by several services, e.g. {@code /youcat} and {@code /argus}, the probe reaches the same
+ * service as the call, followed by the configured health path, e.g. {@code availability} for the
+ * VOSI endpoint. Probes go on while the circuit is open, as that is when only they can tell that
+ * the host recovered. Only hosts Firefly is calling are probed, at most one probe per host is in
+ * flight, and at most
+ * {@value RelayMetrics#MAX_HOSTS} hosts are tracked, so the load on a host is bounded whatever the
+ * traffic.</p>
+ */
+final class HealthProbes {
+
+    static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final long intervalNanos;
+    private final String path;
+    private final LongSupplier clock;
+    private final HttpClient client;
+    private final ConcurrentHashMap<String, AtomicLong> due = new ConcurrentHashMap<>();
+
+    /**
+     * @param intervalMillis The least time between two probes of a host, in milliseconds.
+     * @param path The path probed below the service of a call, empty for the service itself.
+     * @param clock The monotonic clock, in nanoseconds, e.g. {@code System::nanoTime}.
+     */
+    HealthProbes(long intervalMillis, String path, LongSupplier clock) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("Invalid probe interval: " + intervalMillis + " ms");
+        }
+        this.intervalNanos = intervalMillis * 1_000_000L;
+        this.path = (path.startsWith("/")) ? path.substring(1) : path;
+        this.clock = clock;
+        this.client = HttpClient.newBuilder().connectTimeout(TIMEOUT).build();
+    }
+
+    /**
+     * Starts a probe of the host of a relayed call, unless one is in flight or the host was probed
+     * within the interval. Returns at once.
+     *
+     * @param host The destination host.
+     * @param requestURL The URL of the relayed call.
+     * @param relay The relay the outcome is reported to.
+     * @return boolean Whether a probe was started.
+     */
+    boolean probe(String host, String requestURL, TokenRelay relay) {
+        long now = clock.getAsLong();
+        AtomicLong next = due.get(host);
+        if (next == null) {
+            if (due.size() >= RelayMetrics.MAX_HOSTS) {
+                return false;
+            }
+            next = due.computeIfAbsent(host, h -> new AtomicLong(now));
+        }
+        long at = next.get();
+        // A probe in flight holds the host until its timeout has passed
+        if (now - at < 0L || !next.compareAndSet(at, now + TIMEOUT.toNanos() + intervalNanos)) {
+            return false;
+        }
+        URI target = target(requestURL);
+        if (target == null) {
+            next.set(now);
+            return false;
+        }
+        AtomicLong slot = next;
+        Thread.ofVirtual().name("cadc-sso-probe").start(() -> run(host, target, slot, relay));
+        return true;
+    }
+
+    /**
+     * @return URI The probe of the service of a call, or null if the URL is not one.
+     */
+    URI target(String requestURL) {
+        try {
+            URI uri = URI.create(requestURL);
+            if (uri.getScheme() == null || uri.getRawAuthority() == null) {
+                return null;
+            }
+            String callPath = (uri.getRawPath() == null) ? "" : uri.getRawPath();
+            int end = callPath.indexOf('/', 1);
+            String service = (end < 0) ? "/" : callPath.substring(0, end + 1);
+            return URI.create(uri.getScheme() + "://" + uri.getRawAuthority() + service + path);
+        } catch (IllegalArgumentException error) {
+            return null;
+        }
+    }
+
+    /**
+     * Stops probing once the configuration that created this is replaced. Probes already sent run
+     * to completion.
+     */
+    void close() {
+        client.shutdown();
+    }
+
+    private void run(String host, URI root, AtomicLong slot, TokenRelay relay) {
+        HttpRequest request = HttpRequest.newBuilder(root).timeout(TIMEOUT)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody()).build();
+        long start = clock.getAsLong();
+        int status = 0;
+        try {
+            status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (IOException | RuntimeException error) {
+            // No answer, which is a failure
+        } finally {
+            slot.set(clock.getAsLong() + intervalNanos);
+        }
+        relay.onHealthProbe(host, status, (clock.getAsLong() - start) / 1_000_000L);
+    }
+}
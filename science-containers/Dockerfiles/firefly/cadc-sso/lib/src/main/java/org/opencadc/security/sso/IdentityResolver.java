@@ -0,0 +1,342 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.data.userdata.UserInfo;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+
+/**
+ * Resolves the CADC identity behind an SSO token by calling a whoami endpoint with the token.
+ *
+ * <p>Identities are cached by token hash. An entry is fresh for the configured TTL; after that it
+ * is still served for another TTL while a background call refreshes it. Concurrent lookups of the
+ * same token share a single call, so the endpoint sees at most one request per token at a time
+ * and a request thread waits for it only when nothing is cached yet.</p>
+ *
+ * <p>The endpoint is expected to answer with JSON, either CADC's BadgerFish encoding of a user
+ * ({@code {"user": {"identities": ..., "personalDetails": ...}}}) or a flat object with
+ * {@code username}, {@code email}, {@code firstName} and {@code lastName}. A 401 or 403 answer is
+ * cached as "no identity" for {@link #NEGATIVE_TTL_MILLIS} at most; other failures are not
+ * cached.</p>
+ */
+final class IdentityResolver {
+
+    static final long NEGATIVE_TTL_MILLIS = 60_000L;
+    static final int CACHE_CAPACITY = 10_000;
+
+    /**
+     * Marks a token the endpoint refused, so that refusals can be cached.
+     */
+    static final Identity ANONYMOUS = new Identity(null, null, null, null);
+
+    private final URI endpoint;
+    private final long ttlMillis;
+    private final Duration timeout;
+    private final LongSupplier clock;
+    private final RelayEventLog events;
+    private final RelayEventLog.Policy policy;
+    private final HttpClient client;
+    private final ExpiringCache<String, Entry> cache = new ExpiringCache<>(CACHE_CAPACITY);
+    private final ConcurrentHashMap<String, CompletableFuture<Identity>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * @param endpoint The whoami URL, called with the token as a bearer credential.
+     * @param ttlMillis How long an identity is used before it is refreshed.
+     * @param timeout The connect and request timeout of one call.
+     * @param clock The wall clock, in milliseconds.
+     * @param events The log that failed calls are reported to.
+     * @param policy The rate limits of the log.
+     */
+    IdentityResolver(URI endpoint, long ttlMillis, Duration timeout, LongSupplier clock,
+                     RelayEventLog events, RelayEventLog.Policy policy) {
+        this.endpoint = endpoint;
+        this.ttlMillis = ttlMillis;
+        this.timeout = timeout;
+        this.clock = clock;
+        this.events = events;
+        this.policy = policy;
+        this.client = HttpClient.newBuilder().connectTimeout(timeout).build();
+    }
+
+    /**
+     * Resolves the identity of a token.
+     *
+     * @param token The SSO token.
+     * @return Identity The identity, or null if the token has none or the lookup failed.
+     */
+    Identity resolve(String token) {
+        long now = clock.getAsLong();
+        String hash = JwtValidator.hash(token);
+        Entry entry = cache.get(hash, now);
+        if (entry != null) {
+            if (now >= entry.refreshAt) {
+                refreshInBackground(token, hash);
+            }
+            return (entry.identity == ANONYMOUS) ? null : entry.identity;
+        }
+
+        CompletableFuture<Identity> call = new CompletableFuture<>();
+        CompletableFuture<Identity> existing = inFlight.putIfAbsent(hash, call);
+        Identity identity;
+        if (existing == null) {
+            fetch(token, hash, call);
+            identity = call.getNow(null);
+        } else {
+            identity = await(existing);
+        }
+        return (identity == ANONYMOUS) ? null : identity;
+    }
+
+    /**
+     * @return The number of identities cached, including stale ones.
+     */
+    int size() {
+        return cache.size();
+    }
+
+    /**
+     * Stops accepting lookups once the configuration that created this is replaced. Calls already
+     * sent run to completion.
+     */
+    void close() {
+        client.shutdown();
+    }
+
+    private void refreshInBackground(String token, String hash) {
+        CompletableFuture<Identity> call = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(hash, call) == null) {
+            Thread.ofVirtual().name("cadc-sso-whoami").start(() -> fetch(token, hash, call));
+        }
+    }
+
+    private Identity await(CompletableFuture<Identity> call) {
+        try {
+            return call.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException error) {
+            return null;
+        }
+    }
+
+    /**
+     * Calls the endpoint, caches the answer and completes the in-flight call. Failures complete
+     * the call with null and leave any cached entry in place.
+     */
+    private void fetch(String token, String hash, CompletableFuture<Identity> call) {
+        Identity identity = null;
+        try {
+            HttpRequest request = HttpRequest.newBuilder(endpoint)
+                    .timeout(timeout)
+                    .header("Authorization", "Bearer " + token)
+                    .header("Accept", "application/json")
+                    .GET()
+                    .build();
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            long now = clock.getAsLong();
+            int status = response.statusCode();
+            if (status == 200) {
+                identity = parse(response.body());
+                cache.put(hash, new Entry(identity, now + ttlMillis), now + 2 * ttlMillis, now);
+            } else if (status == 401 || status == 403) {
+                identity = ANONYMOUS;
+                long ttl = Math.min(ttlMillis, NEGATIVE_TTL_MILLIS);
+                cache.put(hash, new Entry(identity, now + ttl), now + ttl, now);
+            } else {
+                events.emit(policy, RelayEvent.IDENTITY_LOOKUP_FAILED, endpoint.getHost(), "HTTP " + status);
+            }
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException error) {
+            events.emit(policy, RelayEvent.IDENTITY_LOOKUP_FAILED, endpoint.getHost(), error.toString());
+        } finally {
+            inFlight.remove(hash, call);
+            call.complete(identity);
+        }
+    }
+
+    /**
+     * Reads an identity from a whoami answer.
+     *
+     * @param json The JSON answer.
+     * @return Identity The identity, or {@link #ANONYMOUS} if the answer names no user.
+     * @throws IllegalArgumentException If the answer is not a JSON object.
+     */
+    static Identity parse(String json) {
+        Map<String, Object> document = Json.parseObject(json);
+        Object user = document.containsKey("user") ? document.get("user") : document;
+        String loginName = text(Json.path(user, "username"));
+        if (loginName == null) {
+            loginName = httpIdentity(Json.path(user, "identities"));
+        }
+        if (loginName == null) {
+            return ANONYMOUS;
+        }
+        Object details = Json.path(user, "personalDetails");
+        Object source = (details == null) ? user : details;
+        return new Identity(loginName, text(Json.path(source, "email")),
+                            text(Json.path(source, "firstName")), text(Json.path(source, "lastName")));
+    }
+
+    /**
+     * @return The user name of the HTTP identity in a BadgerFish identity list, or null if there is none.
+     */
+    private static String httpIdentity(Object identities) {
+        Object list = (identities instanceof Map) ? ((Map<?, ?>) identities).get("$") : identities;
+        if (!(list instanceof List)) {
+            return null;
+        }
+        for (Object item : (List<?>) list) {
+            Object identity = Json.path(item, "identity");
+            if ("HTTP".equals(Json.string(Json.path(identity, "@type")))) {
+                return text(identity);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The string value, unwrapping a BadgerFish {@code {"$": value}} object, or null.
+     */
+    private static String text(Object value) {
+        if (value instanceof Map) {
+            value = ((Map<?, ?>) value).get("$");
+        }
+        String text = Json.string(value);
+        return (text == null || text.isBlank()) ? null : text;
+    }
+
+    private static final class Entry {
+        private final Identity identity;
+        private final long refreshAt;
+
+        private Entry(Identity identity, long refreshAt) {
+            this.identity = identity;
+            this.refreshAt = refreshAt;
+        }
+    }
+
+    /**
+     * An immutable CADC identity.
+     */
+    static final class Identity {
+        private final String loginName;
+        private final String email;
+        private final String firstName;
+        private final String lastName;
+
+        Identity(String loginName, String email, String firstName, String lastName) {
+            this.loginName = loginName;
+            this.email = email;
+            this.firstName = firstName;
+            this.lastName = lastName;
+        }
+
+        String getLoginName() {
+            return loginName;
+        }
+
+        String getEmail() {
+            return email;
+        }
+
+        String getFirstName() {
+            return firstName;
+        }
+
+        String getLastName() {
+            return lastName;
+        }
+
+        /**
+         * @return UserInfo A new Firefly user record for this identity, which the caller may modify.
+         */
+        UserInfo toUserInfo() {
+            UserInfo userInfo = new UserInfo();
+            userInfo.setLoginName(loginName);
+            userInfo.setEmail(email);
+            userInfo.setFirstName(firstName);
+            userInfo.setLastName(lastName);
+            return userInfo;
+        }
+    }
+}
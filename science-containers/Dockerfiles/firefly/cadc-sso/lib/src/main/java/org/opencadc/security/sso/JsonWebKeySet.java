@@ -0,0 +1,351 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.util.Logger;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * A JSON Web Key Set, loaded from a file or a URL and kept in memory.
+ *
+ * <p>The set is loaded on first use. Once it is older than the refresh interval it is reloaded in
+ * the background while the current keys keep being served, so token validation never waits for a
+ * routine refresh. A token signed with a key that is not in the set triggers an immediate reload,
+ * at most once per {@link #MIN_RELOAD_MILLIS}, to pick up rotated keys.</p>
+ *
+ * <p>Every load runs on a virtual thread, and at most one is in flight: threads that need the keys
+ * now, for the first load or an unknown key, wait for it for at most {@link #RELOAD_WAIT_MILLIS}
+ * and then go on with the keys they have, so a slow key set endpoint delays tokens signed with a
+ * new key but never queues request threads behind each other.</p>
+ *
+ * <p>Only RSA and EC signing keys are read; other keys are ignored. A key that cannot be read,
+ * e.g. on an unsupported curve, is logged and skipped, and the rest of the set is used.</p>
+ */
+final class JsonWebKeySet {
+
+    static final long MIN_RELOAD_MILLIS = 30_000L;
+    static final long RELOAD_WAIT_MILLIS = 2_000L;
+
+    private static final Logger.LoggerImpl LOGGER = Logger.getLogger();
+    private static final Duration HTTP_TIMEOUT = Duration.ofSeconds(10);
+
+    private final String location;
+    private final long refreshAfterMillis;
+    private final LongSupplier clock;
+    private final AtomicReference<CompletableFuture<Keys>> loading = new AtomicReference<>();
+    private volatile Keys keys;
+    private volatile long lastAttempt = Long.MIN_VALUE / 2;
+
+    /**
+     * @param location A file path, a {@code file:} URI or an http(s) URL of the key set.
+     * @param refreshAfterMillis How long a loaded key set is used before it is refreshed.
+     * @param clock The wall clock, in milliseconds.
+     */
+    JsonWebKeySet(String location, long refreshAfterMillis, LongSupplier clock) {
+        this.location = location;
+        this.refreshAfterMillis = refreshAfterMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Finds the key that verifies a token.
+     *
+     * @param kid The key ID from the token header, or null if the header has none.
+     * @param keyType The JWK key type the token's algorithm needs, {@code RSA} or {@code EC}.
+     * @return The public key, or null if the set has no matching key.
+     */
+    PublicKey find(String kid, String keyType) {
+        long now = clock.getAsLong();
+        Keys current = keys;
+        if (current == null) {
+            current = reload(now);
+        } else if (now - current.loadedAt >= refreshAfterMillis && now - lastAttempt >= MIN_RELOAD_MILLIS) {
+            load(now);
+        }
+        PublicKey key = (current == null) ? null : current.find(kid, keyType);
+        if (key == null && current != null && now - lastAttempt >= MIN_RELOAD_MILLIS) {
+            current = reload(now);
+            key = (current == null) ? null : current.find(kid, keyType);
+        }
+        return key;
+    }
+
+    /**
+     * @return The number of keys currently loaded.
+     */
+    int size() {
+        Keys current = keys;
+        return (current == null) ? 0 : current.entries.size();
+    }
+
+    /**
+     * Loads the key set, or joins the load in flight, and waits a bounded time for it.
+     *
+     * @return Keys The keys loaded, or the current ones if the load takes too long or fails.
+     */
+    private Keys reload(long now) {
+        CompletableFuture<Keys> load = load(now);
+        if (load == null) {
+            return keys;
+        }
+        try {
+            return load.get(RELOAD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException error) {
+            // Go on with the current keys, the load completes in the background
+        }
+        return keys;
+    }
+
+    /**
+     * Starts loading the key set on a virtual thread, unless a load is in flight or one started
+     * within {@link #MIN_RELOAD_MILLIS} since keys were loaded.
+     *
+     * @return CompletableFuture The load in flight, or null if none is.
+     */
+    private CompletableFuture<Keys> load(long now) {
+        while (true) {
+            CompletableFuture<Keys> inFlight = loading.get();
+            if (inFlight != null) {
+                return inFlight;
+            }
+            if (keys != null && now - lastAttempt < MIN_RELOAD_MILLIS) {
+                return null; // another thread just reloaded
+            }
+            CompletableFuture<Keys> load = new CompletableFuture<>();
+            if (loading.compareAndSet(null, load)) {
+                lastAttempt = now;
+                Thread.ofVirtual().name("cadc-sso-jwks-load").start(() -> {
+                    try {
+                        keys = parse(read(), now);
+                    } catch (Exception error) {
+                        LOGGER.warn("Unable to load JSON Web Key Set from " + location + ": " + error.getMessage());
+                    } finally {
+                        loading.set(null);
+                        load.complete(keys);
+                    }
+                });
+                return load;
+            }
+        }
+    }
+
+    private String read() throws IOException, InterruptedException {
+        if (location.startsWith("http://") || location.startsWith("https://")) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(location))
+                    .timeout(HTTP_TIMEOUT)
+                    .header("Accept", "application/json")
+                    .GET()
+                    .build();
+            // A refresh is rare, so the client is not kept between them
+            try (HttpClient client = HttpClient.newBuilder().connectTimeout(HTTP_TIMEOUT).build()) {
+                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() != 200) {
+                    throw new IOException("HTTP " + response.statusCode());
+                }
+                return response.body();
+            }
+        }
+        Path path = location.startsWith("file:") ? Path.of(URI.create(location)) : Path.of(location);
+        return Files.readString(path);
+    }
+
+    static Keys parse(String json, long loadedAt) {
+        Object keyList = Json.path(Json.parseObject(json), "keys");
+        if (!(keyList instanceof List)) {
+            throw new IllegalArgumentException("No keys array");
+        }
+        List<KeyEntry> entries = new ArrayList<>();
+        for (Object item : (List<?>) keyList) {
+            if (!(item instanceof Map)) {
+                continue;
+            }
+            Map<?, ?> jwk = (Map<?, ?>) item;
+            String use = Json.string(jwk.get("use"));
+            if (use != null && !use.equals("sig")) {
+                continue;
+            }
+            String kty = Json.string(jwk.get("kty"));
+            PublicKey key;
+            try {
+                if ("RSA".equals(kty)) {
+                    key = KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(
+                            unsigned(jwk.get("n")), unsigned(jwk.get("e"))));
+                } else if ("EC".equals(kty)) {
+                    key = ecKey(Json.string(jwk.get("crv")), unsigned(jwk.get("x")), unsigned(jwk.get("y")));
+                } else {
+                    continue;
+                }
+            } catch (GeneralSecurityException | IllegalArgumentException error) {
+                // One odd key must not invalidate the tokens signed with the others
+                LOGGER.warn("Skipping JSON Web Key " + Json.string(jwk.get("kid")) + ": " + error.getMessage());
+                continue;
+            }
+            entries.add(new KeyEntry(Json.string(jwk.get("kid")), kty, key));
+        }
+        return new Keys(Collections.unmodifiableList(entries), loadedAt);
+    }
+
+    private static PublicKey ecKey(String curve, BigInteger x, BigInteger y) throws GeneralSecurityException {
+        String name;
+        if ("P-256".equals(curve)) {
+            name = "secp256r1";
+        } else if ("P-384".equals(curve)) {
+            name = "secp384r1";
+        } else if ("P-521".equals(curve)) {
+            name = "secp521r1";
+        } else {
+            throw new GeneralSecurityException("Unsupported curve " + curve);
+        }
+        AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+        parameters.init(new ECGenParameterSpec(name));
+        ECParameterSpec spec = parameters.getParameterSpec(ECParameterSpec.class);
+        return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(new ECPoint(x, y), spec));
+    }
+
+    private static BigInteger unsigned(Object value) {
+        String encoded = Json.string(value);
+        if (encoded == null) {
+            throw new IllegalArgumentException("Missing key parameter");
+        }
+        return new BigInteger(1, Base64.getUrlDecoder().decode(encoded));
+    }
+
+    /**
+     * An immutable snapshot of the loaded keys.
+     */
+    static final class Keys {
+        private final List<KeyEntry> entries;
+        private final long loadedAt;
+
+        private Keys(List<KeyEntry> entries, long loadedAt) {
+            this.entries = entries;
+            this.loadedAt = loadedAt;
+        }
+
+        private PublicKey find(String kid, String keyType) {
+            PublicKey match = null;
+            for (KeyEntry entry : entries) {
+                if (!entry.kty.equals(keyType)) {
+                    continue;
+                }
+                if (kid != null) {
+                    if (kid.equals(entry.kid)) {
+                        return entry.key;
+                    }
+                } else if (match == null) {
+                    match = entry.key;
+                } else {
+                    return null; // ambiguous without a key ID
+                }
+            }
+            return match;
+        }
+    }
+
+    private static final class KeyEntry {
+        private final String kid;
+        private final String kty;
+        private final PublicKey key;
+
+        private KeyEntry(String kid, String kty, PublicKey key) {
+            this.kid = kid;
+            this.kty = kty;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Verifies signed JSON Web Tokens locally, so that tokens a downstream service would reject are
+ * dropped before they are relayed.
+ *
+ * <p>A token is valid if it is signed with RS256, RS384, RS512, ES256, ES384 or ES512 by a key in
+ * the {@link JsonWebKeySet}, has an {@code exp} claim in the future, has no {@code nbf} claim in the
+ * future and, when configured, names the expected audience and issuer. Clock checks allow for a
+ * configurable leeway.</p>
+ *
+ * <p>Results are cached by the SHA-256 hash of the token: a valid result until the token expires
+ * and an invalid one for {@link #NEGATIVE_TTL_MILLIS}, so repeated requests carrying the same
+ * token cost one hash and one map lookup. Tokens signed with an unknown key are not cached, so
+ * they are accepted as soon as a reload of the key set publishes the key.</p>
+ */
+final class JwtValidator {
+
+    static final long NEGATIVE_TTL_MILLIS = 300_000L;
+    static final int CACHE_CAPACITY = 10_000;
+
+    private static final String UNKNOWN_KEY = "unknown_key";
+    private static final Base64.Decoder BASE64URL = Base64.getUrlDecoder();
+
+    private final JsonWebKeySet keySet;
+    private final String audience;
+    private final String issuer;
+    private final long leewayMillis;
+    private final LongSupplier clock;
+    private final ExpiringCache<String, Result> results = new ExpiringCache<>(CACHE_CAPACITY);
+
+    /**
+     * @param keySet The keys that sign valid tokens.
+     * @param audience The audience a token must name, or null to accept any audience.
+     * @param issuer The issuer a token must name, or null to accept any issuer.
+     * @param leewayMillis The allowed clock skew, in milliseconds.
+     * @param clock The wall clock, in milliseconds.
+     */
+    JwtValidator(JsonWebKeySet keySet, String audience, String issuer, long leewayMillis, LongSupplier clock) {
+        this.keySet = keySet;
+        this.audience = audience;
+        this.issuer = issuer;
+        this.leewayMillis = leewayMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Validates a token, using a cached result when there is one.
+     *
+     * @param token The compact serialized token.
+     * @return Result The outcome, never null.
+     */
+    Result validate(String token) {
+        long now = clock.getAsLong();
+        String hash = hash(token);
+        Result cached = results.get(hash, now);
+        if (cached != null) {
+            return cached;
+        }
+        Result result = verify(token, now);
+        long expiresAt;
+        if (UNKNOWN_KEY.equals(result.reason)) {
+            return result; // the key may be published by the next reload of the key set
+        } else if (result.isValid()) {
+            expiresAt = result.expiresAt + leewayMillis;
+        } else if (result.notBefore > now) {
+            expiresAt = Math.min(now + NEGATIVE_TTL_MILLIS, result.notBefore - leewayMillis);
+        } else {
+            expiresAt = now + NEGATIVE_TTL_MILLIS;
+        }
+        if (expiresAt > now) {
+            results.put(hash, result, expiresAt, now);
+        }
+        return result;
+    }
+
+    private Result verify(String token, long now) {
+        int first = token.indexOf('.');
+        int last = token.lastIndexOf('.');
+        if (first <= 0 || last == first || token.indexOf('.', first + 1) != last || last == token.length() - 1) {
+            return Result.invalid("malformed");
+        }
+        Map<String, Object> header;
+        Map<String, Object> claims;
+        byte[] signature;
+        try {
+            header = Json.parseObject(new String(BASE64URL.decode(token.substring(0, first)), StandardCharsets.UTF_8));
+            claims = Json.parseObject(new String(BASE64URL.decode(token.substring(first + 1, last)),
+                                                 StandardCharsets.UTF_8));
+            signature = BASE64URL.decode(token.substring(last + 1));
+        } catch (IllegalArgumentException error) {
+            return Result.invalid("malformed");
+        }
+
+        String alg = Json.string(header.get("alg"));
+        String javaAlgorithm = javaAlgorithm(alg);
+        if (javaAlgorithm == null) {
+            return Result.invalid("unsupported_alg");
+        }
+        PublicKey key = keySet.find(Json.string(header.get("kid")), alg.startsWith("RS") ? "RSA" : "EC");
+        if (key == null) {
+            return Result.invalid(UNKNOWN_KEY);
+        }
+        try {
+            Signature verifier = Signature.getInstance(javaAlgorithm);
+            verifier.initVerify(key);
+            verifier.update(token.substring(0, last).getBytes(StandardCharsets.US_ASCII));
+            if (!verifier.verify(signature)) {
+                return Result.invalid("bad_signature");
+            }
+        } catch (GeneralSecurityException error) {
+            return Result.invalid("bad_signature");
+        }
+
+        long expiresAt = seconds(claims.get("exp"));
+        long notBefore = seconds(claims.get("nbf"));
+        if (expiresAt == Long.MIN_VALUE) {
+            return Result.invalid("no_expiry");
+        }
+        if (expiresAt + leewayMillis <= now) {
+            return Result.invalid("expired");
+        }
+        if (notBefore != Long.MIN_VALUE && notBefore - leewayMillis > now) {
+            return new Result(false, "not_yet_valid", Collections.emptyMap(), expiresAt, notBefore);
+        }
+        if (audience != null && !hasAudience(claims.get("aud"))) {
+            return Result.invalid("wrong_audience");
+        }
+        if (issuer != null && !issuer.equals(Json.string(claims.get("iss")))) {
+            return Result.invalid("wrong_issuer");
+        }
+        return new Result(true, null, Collections.unmodifiableMap(claims), expiresAt, notBefore);
+    }
+
+    private boolean hasAudience(Object aud) {
+        if (aud instanceof List) {
+            return ((List<?>) aud).contains(audience);
+        }
+        return audience.equals(Json.string(aud));
+    }
+
+    private static String javaAlgorithm(String alg) {
+        if (alg == null) {
+            return null;
+        }
+        switch (alg) {
+            case "RS256":
+                return "SHA256withRSA";
+            case "RS384":
+                return "SHA384withRSA";
+            case "RS512":
+                return "SHA512withRSA";
+            case "ES256":
+                return "SHA256withECDSAinP1363Format";
+            case "ES384":
+                return "SHA384withECDSAinP1363Format";
+            case "ES512":
+                return "SHA512withECDSAinP1363Format";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return The NumericDate claim in milliseconds, or Long.MIN_VALUE if it is absent or not a number.
+     */
+    private static long seconds(Object value) {
+        if (value instanceof Number) {
+            return (long) (((Number) value).doubleValue() * 1000.0);
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Reads the {@code exp} claim of a token without verifying it. The result may only be used to
+     * stop using a token early, never to trust it.
+     *
+     * @param token The compact serialized token.
+     * @return long When the token expires, in milliseconds, or Long.MAX_VALUE if it is not a JWT
+     *         or has no expiry.
+     */
+    static long readExpiry(String token) {
+        int first = token.indexOf('.');
+        int last = token.lastIndexOf('.');
+        if (first <= 0 || last == first) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            long expiresAt = seconds(Json.parseObject(new String(
+                    BASE64URL.decode(token.substring(first + 1, last)), StandardCharsets.UTF_8)).get("exp"));
+            return (expiresAt == Long.MIN_VALUE) ? Long.MAX_VALUE : expiresAt;
+        } catch (IllegalArgumentException error) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * @param token The token.
+     * @return String The Base64url encoded SHA-256 hash of the token.
+     */
+    static String hash(String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(
+                    digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    /**
+     * The outcome of validating one token.
+     */
+    static final class Result {
+        private final boolean valid;
+        private final String reason;
+        private final Map<String, Object> claims;
+        private final long expiresAt;
+        private final long notBefore;
+
+        private Result(boolean valid, String reason, Map<String, Object> claims, long expiresAt, long notBefore) {
+            this.valid = valid;
+            this.reason = reason;
+            this.claims = claims;
+            this.expiresAt = expiresAt;
+            this.notBefore = notBefore;
+        }
+
+        private static Result invalid(String reason) {
+            return new Result(false, reason, Collections.emptyMap(), Long.MIN_VALUE, Long.MIN_VALUE);
+        }
+
+        boolean isValid() {
+            return valid;
+        }
+
+        /**
+         * @return String Why the token is invalid, e.g. {@code expired}, or null if it is valid.
+         */
+        String getReason() {
+            return reason;
+        }
+
+        /**
+         * @return Map The verified claims, empty if the token is invalid.
+         */
+        Map<String, Object> getClaims() {
+            return claims;
+        }
+
+        /**
+         * @return long When the token expires, in milliseconds, or Long.MIN_VALUE if unknown.
+         */
+        long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+}
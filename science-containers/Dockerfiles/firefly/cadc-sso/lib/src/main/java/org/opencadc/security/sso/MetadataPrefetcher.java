@@ -0,0 +1,348 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Fetches the VOSI metadata of the TAP services a user is likely to query, in the background,
+ * the first time the relay sees the user's token.
+ *
+ * <p>The first TAP query of a session otherwise waits for the service's capabilities and table
+ * metadata. Here each service's {@value #CAPABILITIES} and {@value #TABLES} documents are fetched
+ * on virtual threads bound to a {@link RelayContext} of the request, so they go through
+ * {@link TokenRelay#setAuthCredential} like any relayed call: with the credential the policy
+ * grants, within the user's rate limit and not to hosts whose circuit is open. Services the
+ * policy sends no token to are skipped, since their metadata is not per user. Redirects are not
+ * followed, since their targets were not authorized by the policy.</p>
+ *
+ * <p>Stock Firefly never asks for the documents, and fetching them for nobody would only load the
+ * services and spend the users' credentials. Nothing is fetched until code asks for a document
+ * through {@link TokenRelay#getPrefetched(String)}, which marks the prefetcher in use; the first
+ * lookup of a user then starts fetching for that user.</p>
+ *
+ * <p>The documents are kept per user, by credential fingerprint, for the TTL. A user whose fetches
+ * all failed keeps nothing and is tried again after a tenth of the TTL. At most
+ * {@value #MAX_USER_BYTES} bytes are kept for one user, larger documents are dropped, and the
+ * number of users is bounded, so the cache cannot grow with the number of sessions. At most
+ * {@value #MAX_CONCURRENT_FETCHES} documents are fetched at once across all users, so a burst of
+ * new sessions does not flood the services.</p>
+ */
+final class MetadataPrefetcher {
+
+    static final String CAPABILITIES = "capabilities";
+    static final String TABLES = "tables";
+    static final int MAX_USER_BYTES = 4 << 20;
+    static final int MAX_CONCURRENT_FETCHES = 16;
+
+    private final List<String> services;
+    private final long ttlMillis;
+    private final long retryMillis;
+    private final Duration timeout;
+    private final LongSupplier clock;
+    private final RelayEventLog events;
+    private final RelayEventLog.Policy policy;
+    private final HttpClient client;
+    private final ExpiringCache<Long, Boolean> sessions;
+    private final ExpiringCache<String, Metadata> users;
+    private final Semaphore fetches = new Semaphore(MAX_CONCURRENT_FETCHES);
+    private volatile boolean inUse;
+
+    /**
+     * @param services The base URLs of the TAP services.
+     * @param capacity The maximum number of users whose metadata is kept.
+     * @param ttlMillis How long fetched metadata is used.
+     * @param timeout The connect and request timeout of one fetch.
+     * @param clock The wall clock, in milliseconds.
+     * @param events The log that failed fetches are reported to.
+     * @param policy The rate limits of the log.
+     */
+    MetadataPrefetcher(List<String> services, int capacity, long ttlMillis, Duration timeout, LongSupplier clock,
+                       RelayEventLog events, RelayEventLog.Policy policy) {
+        if (capacity < 1 || ttlMillis < 1) {
+            throw new IllegalArgumentException("Invalid prefetch cache: " + capacity + " users for " + ttlMillis + " ms");
+        }
+        List<String> bases = new ArrayList<>(services.size());
+        for (String service : services) {
+            bases.add(service.endsWith("/") ? service.substring(0, service.length() - 1) : service);
+        }
+        this.services = Collections.unmodifiableList(bases);
+        this.ttlMillis = ttlMillis;
+        this.retryMillis = Math.max(1L, ttlMillis / 10L);
+        this.timeout = timeout;
+        this.clock = clock;
+        this.events = events;
+        this.policy = policy;
+        this.client = HttpClient.newBuilder().connectTimeout(timeout).followRedirects(HttpClient.Redirect.NEVER).build();
+        this.sessions = new ExpiringCache<>(capacity * 4);
+        this.users = new ExpiringCache<>(capacity);
+    }
+
+    /**
+     * Reads the TAP services Firefly offers from its {@code PROPS_FIREFLY_OPTIONS} JSON, the
+     * {@code value} of each entry of {@code tap.additional.services}.
+     *
+     * @param options The JSON options, or null.
+     * @return List The base URLs of the services, empty if there are none.
+     * @throws IllegalArgumentException If the options are not a JSON object.
+     */
+    static List<String> servicesFromOptions(String options) {
+        List<String> services = new ArrayList<>();
+        if (options == null || options.isBlank()) {
+            return services;
+        }
+        Object entries = Json.path(Json.parseObject(options), "tap", "additional", "services");
+        if (entries instanceof List) {
+            for (Object entry : (List<?>) entries) {
+                String url = Json.string(Json.path(entry, "value"));
+                if (url != null && (url.startsWith("https://") || url.startsWith("http://"))) {
+                    services.add(url.trim());
+                }
+            }
+        }
+        return services;
+    }
+
+    /**
+     * Starts fetching the metadata of every service for the user of a credential, unless nothing
+     * has asked for a document yet or it was started for the same token within the TTL. Returns
+     * at once.
+     *
+     * @param credential The credential of the current request, with a token.
+     * @param relay The relay that authorizes the fetches, as it would any downstream call.
+     * @return boolean Whether fetching was started.
+     */
+    boolean prefetch(RequestCredential credential, TokenRelay relay) {
+        long now = clock.getAsLong();
+        Long session = credential.getFingerprint();
+        if (!inUse || services.isEmpty() || sessions.get(session, now) != null) {
+            return false;
+        }
+        sessions.put(session, Boolean.TRUE, now + ttlMillis, now);
+        RelayContext context = RelayContext.capture(credential);
+        Thread.ofVirtual().name("cadc-sso-prefetch").start(context.wrap(() -> fetchAll(session, context, relay)));
+        return true;
+    }
+
+    /**
+     * Returns a document fetched for a user.
+     *
+     * @param partition The credential fingerprint of the user, see {@link TokenRelay#getCredentialFingerprint()}.
+     * @param requestURL The URL of the document.
+     * @return byte[] The document, shared and not to be modified, or null if it was not fetched.
+     */
+    byte[] get(String partition, String requestURL) {
+        Metadata metadata = users.get(partition, clock.getAsLong());
+        return (metadata == null) ? null : metadata.documents.get(requestURL);
+    }
+
+    /**
+     * Records that something asks for the fetched documents, so that fetching starts.
+     */
+    void markInUse() {
+        inUse = true;
+    }
+
+    /**
+     * @return boolean Whether anything asked for a fetched document.
+     */
+    boolean isInUse() {
+        return inUse;
+    }
+
+    /**
+     * @return List The base URLs of the services whose metadata is fetched.
+     */
+    List<String> getServices() {
+        return services;
+    }
+
+    /**
+     * Stops accepting fetches once the configuration that created this is replaced. Calls already
+     * sent run to completion.
+     */
+    void close() {
+        client.shutdown();
+    }
+
+    private void fetchAll(Long session, RelayContext context, TokenRelay relay) {
+        String partition = relay.getCredentialFingerprint();
+        long now = clock.getAsLong();
+        if (partition == null || users.get(partition, now) != null) {
+            // Another session of the same user already fetched it
+            return;
+        }
+        Metadata metadata = new Metadata();
+        users.put(partition, metadata, now + ttlMillis, now);
+        try (ExecutorService fetchers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String service : services) {
+                for (String resource : List.of(CAPABILITIES, TABLES)) {
+                    fetchers.execute(context.wrap(() -> fetch(relay, metadata, service + "/" + resource)));
+                }
+            }
+        }
+        if (metadata.documents.isEmpty()) {
+            // Nothing to serve, so let a later request of the session try again
+            users.remove(partition);
+            now = clock.getAsLong();
+            sessions.put(session, Boolean.TRUE, now + retryMillis, now);
+        }
+    }
+
+    private void fetch(TokenRelay relay, Metadata metadata, String url) {
+        HttpServiceInput inputs = new HttpServiceInput(url);
+        try {
+            relay.setAuthCredential(inputs);
+        } catch (RelayRejectedException rejected) {
+            return;
+        }
+        if (inputs.getHeaders() == null && inputs.getCookies() == null) {
+            return;
+        }
+        String host = URI.create(url).getHost();
+        try {
+            fetches.acquire();
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        long start = System.nanoTime();
+        int status = 0;
+        try {
+            HttpResponse<InputStream> response = client.send(request(inputs), HttpResponse.BodyHandlers.ofInputStream());
+            status = response.statusCode();
+            try (InputStream body = response.body()) {
+                if (status == 200) {
+                    byte[] document = body.readNBytes(MAX_USER_BYTES + 1);
+                    if (!metadata.add(url, document)) {
+                        events.emit(policy, RelayEvent.PREFETCH_FAILED, host, "too large");
+                    }
+                } else {
+                    events.emit(policy, RelayEvent.PREFETCH_FAILED, host, "HTTP " + status);
+                }
+            }
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException error) {
+            events.emit(policy, RelayEvent.PREFETCH_FAILED, host, error.toString());
+        } finally {
+            fetches.release();
+            relay.onDownstreamResponse(inputs, status, (System.nanoTime() - start) / 1_000_000L);
+        }
+    }
+
+    private HttpRequest request(HttpServiceInput inputs) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(inputs.getRequestUrl())).timeout(timeout).GET();
+        if (inputs.getHeaders() != null) {
+            inputs.getHeaders().forEach(request::header);
+        }
+        if (inputs.getCookies() != null) {
+            StringJoiner cookies = new StringJoiner("; ");
+            for (Map.Entry<String, String> cookie : inputs.getCookies().entrySet()) {
+                cookies.add(cookie.getKey() + "=" + cookie.getValue());
+            }
+            request.header("Cookie", cookies.toString());
+        }
+        return request.build();
+    }
+
+    /**
+     * The documents fetched for one user, within the per-user byte budget.
+     */
+    private static final class Metadata {
+        private final ConcurrentHashMap<String, byte[]> documents = new ConcurrentHashMap<>();
+        private final AtomicLong bytes = new AtomicLong();
+
+        private boolean add(String url, byte[] document) {
+            if (bytes.addAndGet(document.length) > MAX_USER_BYTES) {
+                bytes.addAndGet(-document.length);
+                return false;
+            }
+            documents.put(url, document);
+            return true;
+        }
+    }
+}
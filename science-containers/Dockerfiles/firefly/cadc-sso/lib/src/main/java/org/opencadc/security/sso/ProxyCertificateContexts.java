@@ -0,0 +1,317 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Builds and caches the {@link SSLContext}s that authenticate downstream calls with an X.509 proxy
+ * certificate, for the CADC services that still require client certificates.
+ *
+ * <p>A proxy certificate file, such as the {@code cadcproxy.pem} of a CANFAR session, holds the
+ * proxy certificate, its private key, in PKCS#1 ({@code RSA PRIVATE KEY}) or PKCS#8
+ * ({@code PRIVATE KEY}) form, and the rest of the chain. Turning it into an SSLContext means
+ * parsing the chain and the key, filling a key store and initializing a key manager, which takes
+ * around a millisecond; every TLS session made with the context afterwards can also be resumed
+ * from its session cache. Contexts are therefore cached by the SHA-256 fingerprint of the proxy
+ * certificate until the first certificate of the chain expires, and the content last seen is
+ * remembered so that repeated calls with the same file content skip the parsing too.</p>
+ */
+final class ProxyCertificateContexts {
+
+    static final int CACHE_CAPACITY = 1_024;
+
+    /**
+     * Contexts are dropped this long before the certificate expires, so a handshake never starts
+     * with a certificate on its way out.
+     */
+    static final long EXPIRY_MARGIN_MILLIS = 60_000L;
+
+    private static final char[] KEY_PASSWORD = new char[0];
+    private static final byte[] RSA_ALGORITHM = {
+        0x30, 0x0d, 0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01, 0x05, 0x00
+    };
+
+    private final LongSupplier clock;
+    private final ExpiringCache<String, Entry> cache = new ExpiringCache<>(CACHE_CAPACITY);
+    private volatile Entry last;
+
+    /**
+     * @param clock The wall clock, in milliseconds.
+     */
+    ProxyCertificateContexts(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the SSLContext for a proxy certificate, building it on first use.
+     *
+     * @param pem The PEM content of the proxy certificate file.
+     * @return SSLContext The context presenting the certificate.
+     * @throws IllegalArgumentException If the content holds no usable certificate and key, or
+     *                                  the certificate has expired.
+     */
+    SSLContext get(String pem) {
+        long now = clock.getAsLong();
+        Entry memo = last;
+        if (memo != null && memo.pem.equals(pem) && now < memo.expiresAt) {
+            return memo.context;
+        }
+        List<X509Certificate> chain = certificates(pem);
+        String fingerprint = fingerprint(chain.get(0));
+        Entry entry = cache.get(fingerprint, now);
+        if (entry == null || !entry.pem.equals(pem)) {
+            long expiresAt = Long.MAX_VALUE;
+            for (X509Certificate certificate : chain) {
+                expiresAt = Math.min(expiresAt, certificate.getNotAfter().getTime());
+            }
+            expiresAt -= EXPIRY_MARGIN_MILLIS;
+            if (expiresAt <= now) {
+                throw new IllegalArgumentException("Proxy certificate " + chain.get(0).getSubjectX500Principal()
+                                                   + " has expired");
+            }
+            entry = new Entry(pem, build(chain, privateKey(pem)), expiresAt);
+            cache.put(fingerprint, entry, expiresAt, now);
+        }
+        last = entry;
+        return entry.context;
+    }
+
+    /**
+     * @return The number of contexts cached.
+     */
+    int size() {
+        return cache.size();
+    }
+
+    /**
+     * @param certificate A certificate.
+     * @return The hex SHA-256 fingerprint of the certificate.
+     */
+    static String fingerprint(X509Certificate certificate) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (GeneralSecurityException error) {
+            throw new IllegalArgumentException("Unable to encode " + certificate.getSubjectX500Principal(), error);
+        }
+    }
+
+    /**
+     * Reads the certificates of a PEM file, the proxy certificate first.
+     *
+     * @param pem The PEM content.
+     * @return The chain, never empty.
+     * @throws IllegalArgumentException If there is no certificate or one cannot be parsed.
+     */
+    static List<X509Certificate> certificates(String pem) {
+        List<X509Certificate> chain = new ArrayList<>();
+        try {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            for (byte[] der : blocks(pem, "CERTIFICATE")) {
+                chain.add((X509Certificate) factory.generateCertificate(new ByteArrayInputStream(der)));
+            }
+        } catch (GeneralSecurityException error) {
+            throw new IllegalArgumentException("Invalid certificate in proxy certificate file", error);
+        }
+        if (chain.isEmpty()) {
+            throw new IllegalArgumentException("No certificate in proxy certificate file");
+        }
+        return chain;
+    }
+
+    /**
+     * Reads the private key of a PEM file.
+     *
+     * @param pem The PEM content.
+     * @return The key.
+     * @throws IllegalArgumentException If there is no RSA or EC key in PKCS#1 or PKCS#8 form.
+     */
+    static PrivateKey privateKey(String pem) {
+        List<byte[]> pkcs1 = blocks(pem, "RSA PRIVATE KEY");
+        List<byte[]> pkcs8 = blocks(pem, "PRIVATE KEY");
+        byte[] der;
+        if (!pkcs1.isEmpty()) {
+            der = wrapPkcs1(pkcs1.get(0));
+        } else if (!pkcs8.isEmpty()) {
+            der = pkcs8.get(0);
+        } else {
+            throw new IllegalArgumentException("No RSA PRIVATE KEY or PRIVATE KEY in proxy certificate file");
+        }
+        for (String algorithm : new String[] {"RSA", "EC"}) {
+            try {
+                return KeyFactory.getInstance(algorithm).generatePrivate(new PKCS8EncodedKeySpec(der));
+            } catch (GeneralSecurityException error) {
+                // try the next algorithm
+            }
+        }
+        throw new IllegalArgumentException("Unsupported private key in proxy certificate file");
+    }
+
+    private static SSLContext build(List<X509Certificate> chain, PrivateKey key) {
+        try {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(null, null);
+            keyStore.setKeyEntry("proxy", key, KEY_PASSWORD, chain.toArray(new X509Certificate[0]));
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, KEY_PASSWORD);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            return context;
+        } catch (GeneralSecurityException | IOException error) {
+            throw new IllegalArgumentException("Unable to build an SSLContext for " + chain.get(0).getSubjectX500Principal(),
+                                               error);
+        }
+    }
+
+    /**
+     * @return The DER content of every PEM block of the given type, e.g. {@code CERTIFICATE}.
+     */
+    private static List<byte[]> blocks(String pem, String type) {
+        String begin = "-----BEGIN " + type + "-----";
+        String end = "-----END " + type + "-----";
+        List<byte[]> blocks = new ArrayList<>();
+        int start = pem.indexOf(begin);
+        while (start >= 0) {
+            int stop = pem.indexOf(end, start);
+            if (stop < 0) {
+                throw new IllegalArgumentException("Unterminated " + type + " in proxy certificate file");
+            }
+            blocks.add(Base64.getMimeDecoder().decode(pem.substring(start + begin.length(), stop)));
+            start = pem.indexOf(begin, stop);
+        }
+        return blocks;
+    }
+
+    /**
+     * Wraps a PKCS#1 RSA key in the PKCS#8 structure the JDK key factories read.
+     */
+    private static byte[] wrapPkcs1(byte[] pkcs1) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(pkcs1.length + 32);
+        body.writeBytes(new byte[] {0x02, 0x01, 0x00}); // version
+        body.writeBytes(RSA_ALGORITHM);
+        body.write(0x04);
+        writeLength(body, pkcs1.length);
+        body.writeBytes(pkcs1);
+        ByteArrayOutputStream info = new ByteArrayOutputStream(body.size() + 4);
+        info.write(0x30);
+        writeLength(info, body.size());
+        info.writeBytes(body.toByteArray());
+        return info.toByteArray();
+    }
+
+    private static void writeLength(ByteArrayOutputStream out, int length) {
+        if (length < 0x80) {
+            out.write(length);
+        } else if (length < 0x100) {
+            out.write(0x81);
+            out.write(length);
+        } else if (length < 0x10000) {
+            out.write(0x82);
+            out.write(length >> 8);
+            out.write(length);
+        } else {
+            out.write(0x83);
+            out.write(length >> 16);
+            out.write(length >> 8);
+            out.write(length);
+        }
+    }
+
+    private static final class Entry {
+        private final String pem;
+        private final SSLContext context;
+        private final long expiresAt;
+
+        private Entry(String pem, SSLContext context, long expiresAt) {
+            this.pem = pem;
+            this.context = context;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the rate of relayed downstream calls per user and destination host with a token bucket.
+ *
+ * <p>Each bucket is a single {@code long}, the theoretical arrival time of the next call (the
+ * generic cell rate algorithm): a call is free while that time is no more than a burst ahead of
+ * the clock, and each call pushes it one interval further. Buckets live in a fixed-size
+ * open-addressed table keyed by a 64-bit fingerprint of the token and host, and are updated with
+ * a compare-and-set, so a call under its limit costs a short probe and one CAS, with no lock and
+ * no allocation. A bucket whose arrival time has passed is full, exactly like a new one, so its
+ * slot can be taken by another key without changing any decision; when every slot of a probe
+ * sequence is in use, the key takes the least limited one and starts with a full bucket, so a
+ * full table loosens the limit of its oldest users rather than holding back a new one. The table
+ * therefore never takes more than {@code 2 * 8 * capacity} bytes. Decisions are exact for a single caller and approximate
+ * only when two keys race for the same slot.</p>
+ */
+final class RateLimiter {
+
+    private static final long EMPTY = 0L;
+    private static final int MAX_PROBES = 16;
+
+    private final AtomicLongArray keys;
+    private final AtomicLongArray arrivals;
+    private final AtomicInteger size = new AtomicInteger();
+    private final int mask;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final long maxDelayNanos;
+    private final LongSupplier clock;
+    private final long origin;
+
+    /**
+     * @param capacity The number of buckets, rounded up to a power of two.
+     * @param ratePerSecond The sustained number of calls per second per key.
+     * @param burst The number of calls a key may make at once after being idle, at least 1.
+     * @param maxDelayNanos How long a call over the limit may be delayed before it is rejected
+     *                      instead, or 0 to reject every call over the limit.
+     * @param clock The monotonic clock, in nanoseconds, e.g. {@code System::nanoTime}.
+     */
+    RateLimiter(int capacity, double ratePerSecond, int burst, long maxDelayNanos, LongSupplier clock) {
+        if (!(ratePerSecond > 0.0) || burst < 1 || maxDelayNanos < 0) {
+            throw new IllegalArgumentException("Invalid rate limit: " + ratePerSecond + "/s, burst " + burst);
+        }
+        int slots = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        this.keys = new AtomicLongArray(slots);
+        this.arrivals = new AtomicLongArray(slots);
+        this.mask = slots - 1;
+        this.intervalNanos = Math.max(1L, (long) (1_000_000_000L / ratePerSecond));
+        this.toleranceNanos = (burst - 1) * intervalNanos;
+        this.maxDelayNanos = maxDelayNanos;
+        this.clock = clock;
+        // Arrival times are kept relative to construction, so an empty slot's 0 is always in the past
+        this.origin = clock.getAsLong() - 1L;
+    }
+
+    /**
+     * Takes one call from the bucket of a key.
+     *
+     * @param key The fingerprint of the user and destination, never zero.
+     * @return 0 if the call may proceed now, the nanoseconds it must wait first if it is over the
+     *         limit by no more than the maximum delay, or else the negated nanoseconds until it
+     *         would be under the limit. A delayed call has already been counted and must not
+     *         call again after waiting; a rejected one has not been counted.
+     */
+    long acquire(long key) {
+        long now = clock.getAsLong() - origin;
+        int slot = slot(key, now);
+        while (true) {
+            long arrival = arrivals.get(slot);
+            long start = Math.max(arrival, now);
+            long wait = start - now - toleranceNanos;
+            if (wait > maxDelayNanos) {
+                return -wait;
+            }
+            if (arrivals.compareAndSet(slot, arrival, start + intervalNanos)) {
+                return Math.max(wait, 0L);
+            }
+        }
+    }
+
+    /**
+     * @return The number of slots that have held a bucket.
+     */
+    int size() {
+        return size.get();
+    }
+
+    private int slot(long key, long now) {
+        int home = (int) (key ^ (key >>> 32)) & mask;
+        int free = -1;
+        int leastLimited = home;
+        long leastArrival = Long.MAX_VALUE;
+        for (int probe = 0, slot = home; probe < MAX_PROBES; probe++, slot = (slot + 1) & mask) {
+            long existing = keys.get(slot);
+            if (existing == key) {
+                return slot;
+            }
+            if (existing == EMPTY) {
+                if (free < 0) {
+                    free = slot;
+                }
+                break;
+            }
+            long arrival = arrivals.get(slot);
+            if (free < 0 && arrival <= now) {
+                free = slot;
+            }
+            if (arrival < leastArrival) {
+                leastArrival = arrival;
+                leastLimited = slot;
+            }
+        }
+        int slot = (free >= 0) ? free : leastLimited;
+        long existing = keys.get(slot);
+        long arrival = arrivals.get(slot);
+        if (existing != key && keys.compareAndSet(slot, existing, key)) {
+            if (existing == EMPTY) {
+                size.incrementAndGet();
+            } else if (arrival > now) {
+                arrivals.compareAndSet(slot, arrival, EMPTY);
+            }
+        }
+        return slot;
+    }
+}
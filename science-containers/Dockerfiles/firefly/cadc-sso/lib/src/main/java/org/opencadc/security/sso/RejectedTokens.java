@@ -0,0 +1,253 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers, for a bounded time, the tokens downstream services have refused, so they are not
+ * sent again only to be refused again.
+ *
+ * <p>Tokens are held as 64-bit fingerprints, the leading bytes of their SHA-256 digest, in two
+ * generations of a fixed-size open-addressed table. New fingerprints go into the current
+ * generation; when it is older than the TTL, or half full, it becomes the previous generation
+ * and the oldest one is dropped. A fingerprint is therefore remembered for between one and two
+ * TTLs, unless a flood of refusals rotates it out early, and the whole set never takes more than
+ * {@code 2 * 8 * capacity} bytes. Lookups are two lock-free probe sequences with no allocation;
+ * only rotation takes a lock.</p>
+ */
+final class RejectedTokens {
+
+    private static final long EMPTY = 0L;
+    private static final int MAX_PROBES = 16;
+
+    private final int capacity;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    /**
+     * @param capacity The slots per generation, rounded up to a power of two.
+     * @param ttlMillis How long a refused token is remembered at least.
+     * @param clock The wall clock, in milliseconds.
+     */
+    RejectedTokens(int capacity, long ttlMillis, LongSupplier clock) {
+        this.capacity = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        long now = clock.getAsLong();
+        this.current = new Generation(this.capacity, now);
+        this.previous = new Generation(this.capacity, now);
+    }
+
+    /**
+     * Computes the fingerprint a token is remembered by.
+     *
+     * @param token The token.
+     * @return The leading 64 bits of the token's SHA-256 digest, never zero.
+     */
+    static long fingerprint(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return nonZero(leadingLong(digest));
+        } catch (NoSuchAlgorithmException error) {
+            throw new IllegalStateException("SHA-256 is not available", error);
+        }
+    }
+
+    /**
+     * Derives the fingerprint of a token refused by one host only.
+     *
+     * @param fingerprint The token fingerprint.
+     * @param host The host, in lower case.
+     * @return The fingerprint of the token and host, never zero.
+     */
+    static long forHost(long fingerprint, String host) {
+        return nonZero(fingerprint ^ (host.hashCode() * 0x9E3779B97F4A7C15L + 0x632BE59BD9B4E019L));
+    }
+
+    static long leadingLong(byte[] bytes) {
+        long value = 0L;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFFL);
+        }
+        return value;
+    }
+
+    private static long nonZero(long fingerprint) {
+        return (fingerprint == EMPTY) ? 1L : fingerprint;
+    }
+
+    /**
+     * Remembers a refused token.
+     *
+     * @param fingerprint The fingerprint of the token.
+     */
+    void add(long fingerprint) {
+        Generation generation = currentGeneration(clock.getAsLong());
+        if (!generation.add(fingerprint)) {
+            synchronized (this) {
+                if (current == generation) {
+                    rotate(clock.getAsLong());
+                }
+            }
+            current.add(fingerprint);
+        }
+    }
+
+    /**
+     * @param fingerprint The fingerprint of a token.
+     * @return Whether the token was refused within the last TTL or two.
+     */
+    boolean contains(long fingerprint) {
+        return currentGeneration(clock.getAsLong()).contains(fingerprint) || previous.contains(fingerprint);
+    }
+
+    /**
+     * @return The number of fingerprints remembered, an upper bound if some were added twice concurrently.
+     */
+    int size() {
+        return current.size.get() + previous.size.get();
+    }
+
+    private Generation currentGeneration(long now) {
+        Generation generation = current;
+        if (now - generation.startedAt >= ttlMillis) {
+            synchronized (this) {
+                if (current == generation) {
+                    rotate(now);
+                }
+                generation = current;
+            }
+        }
+        return generation;
+    }
+
+    private void rotate(long now) {
+        previous = current;
+        current = new Generation(capacity, now);
+    }
+
+    private static final class Generation {
+        private final AtomicLongArray slots;
+        private final int mask;
+        private final long startedAt;
+        private final AtomicInteger size = new AtomicInteger();
+
+        private Generation(int capacity, long startedAt) {
+            this.slots = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+            this.startedAt = startedAt;
+        }
+
+        /**
+         * @return False if the generation is too full to take the fingerprint.
+         */
+        private boolean add(long fingerprint) {
+            if (size.get() > (mask + 1) / 2) {
+                return false;
+            }
+            int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+            for (int probe = 0; probe < MAX_PROBES; probe++, slot = (slot + 1) & mask) {
+                long existing = slots.get(slot);
+                if (existing == fingerprint) {
+                    return true;
+                }
+                if (existing == EMPTY) {
+                    if (slots.compareAndSet(slot, EMPTY, fingerprint)) {
+                        size.incrementAndGet();
+                        return true;
+                    }
+                    if (slots.get(slot) == fingerprint) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean contains(long fingerprint) {
+            int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+            for (int probe = 0; probe < MAX_PROBES; probe++, slot = (slot + 1) & mask) {
+                long existing = slots.get(slot);
+                if (existing == fingerprint) {
+                    return true;
+                }
+                if (existing == EMPTY) {
+                    return false;
+                }
+            }
+            return false;
+        }
+    }
+}
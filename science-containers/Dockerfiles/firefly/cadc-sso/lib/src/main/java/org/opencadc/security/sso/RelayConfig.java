@@ -0,0 +1,867 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the {@link TokenRelay} configuration.
+ *
+ * <p>Every setting is read once when the snapshot is built, so a snapshot can be shared freely
+ * between request threads. Snapshots are replaced, never changed, when the configuration file is
+ * reloaded, see {@link RelayConfigSource}. Settings are looked up by their environment variable
+ * names:</p>
+ * <ul>
+ *   <li>CADC_SSO_COOKIE_NAME: The name of the SSO cookie (default: "CADC_SSO").</li>
+ *   <li>CADC_SSO_COOKIE_DOMAIN: The domain of the SSO cookie (default: ".canfar.net").</li>
+ *   <li>CADC_SSO_ENFORCE_COOKIE_DOMAIN: Whether the SSO cookie domain is checked (default: "false").</li>
+ *   <li>CADC_SSO_COOKIE_PRECEDENCE: Which SSO cookie is used when a request carries several:
+ *       {@code first}, {@code last} or {@code reject}, see {@link CookieHeader} (default: "first").</li>
+ *   <li>CADC_ALLOWED_DOMAIN: Comma-separated hosts and domains of the downstream services that
+ *       may receive the token, see {@link AllowedDomains} (default: ".canfar.net"). Ignored when a
+ *       policy file is set.</li>
+ *   <li>CADC_SSO_POLICY_FILE: A file of rules deciding, by host and path, whether a downstream
+ *       request gets the token as a bearer header, as a cookie or not at all, see
+ *       {@link CredentialPolicy} (default: none).</li>
+ *   <li>CADC_SSO_CREDENTIAL_SOURCES: The comma-separated sources the SSO token is read from, in
+ *       the order they are tried: {@code cookie}, {@code header} and {@code file}, see
+ *       {@link CredentialSource} (default: "cookie").</li>
+ *   <li>CADC_SSO_TOKEN_HEADER: The request header the header source reads (default: "Authorization").</li>
+ *   <li>CADC_SSO_TOKEN_FILE: The mounted token or proxy certificate file the file source reads
+ *       (default: none).</li>
+ *   <li>CADC_SSO_SINGLE_USER: Whether every request the pod serves is its owner's, as in a CANFAR
+ *       session, so the file source may give the token file to requests without a token of their
+ *       own; the file source is refused otherwise, as it would relay the owner's token for
+ *       anonymous users of a shared deployment (default: "false").</li>
+ *   <li>CADC_SSO_PROXY_CERT_FILE: The X.509 proxy certificate, e.g. a session's
+ *       {@code cadcproxy.pem}, that authenticates calls the policy gives the {@code certificate}
+ *       action, see {@link ProxyCertificateContexts} (default: none).</li>
+ *   <li>DEBUG: Whether detailed cookie and request information is logged (default: "false").</li>
+ *   <li>CADC_SSO_LOG_RATE_LIMIT: The number of events of one type logged per host or cookie per
+ *       minute before the rest are summarized, or 0 for no limit (default: "10").</li>
+ *   <li>CADC_SSO_LOG_SAMPLING: Comma-separated {@code event=n} pairs logging one in n events of
+ *       a type, e.g. {@code header_set=100} (default: none).</li>
+ *   <li>CADC_SSO_JWKS: A file path or URL of the JSON Web Key Set that signs SSO tokens. When set,
+ *       tokens are verified locally and invalid ones are not relayed, see {@link JwtValidator}
+ *       (default: none).</li>
+ *   <li>CADC_SSO_JWT_AUDIENCE: The audience a token must name (default: any).</li>
+ *   <li>CADC_SSO_JWT_ISSUER: The issuer a token must name (default: any).</li>
+ *   <li>CADC_SSO_JWT_LEEWAY: The allowed clock skew in seconds (default: "30").</li>
+ *   <li>CADC_SSO_JWKS_REFRESH: How often the key set is refreshed, in seconds (default: "3600").</li>
+ *   <li>CADC_SSO_WHOAMI_URL: The endpoint that resolves the identity behind a token, see
+ *       {@link IdentityResolver}. When unset every user is a guest (default: none).</li>
+ *   <li>CADC_SSO_IDENTITY_TTL: How long a resolved identity is used before it is refreshed, in
+ *       seconds (default: "300").</li>
+ *   <li>CADC_SSO_EXCHANGE_URL: A token exchange endpoint (RFC 8693). When set, each downstream
+ *       service gets a short-lived token scoped to its host instead of the SSO token, see
+ *       {@link TokenExchanger} (default: none).</li>
+ *   <li>CADC_SSO_EXCHANGE_CLIENT_ID, CADC_SSO_EXCHANGE_CLIENT_SECRET: The client credentials
+ *       sent to the exchange endpoint with HTTP Basic authentication (default: none).</li>
+ *   <li>CADC_SSO_EXCHANGE_REFRESH_AHEAD: How long before expiry an exchanged token is replaced
+ *       in the background, in seconds (default: "60").</li>
+ *   <li>CADC_SSO_EXCHANGE_WAIT: How long a request waits for the first exchange of a user's token
+ *       for a host, in milliseconds, from 0 to 5000. With 0 the request is sent without a
+ *       credential while the exchange runs in the background (default: "2000").</li>
+ *   <li>CADC_SSO_REJECTED_TTL: How long a token that a downstream service refused with a 401 or
+ *       403 is withheld, in seconds, or 0 to keep relaying it, see {@link RejectedTokens}. Only
+ *       refusals reported through {@link TokenRelay#onDownstreamResponse(String, int)} count,
+ *       which Firefly itself does not call (default: "0").</li>
+ *   <li>CADC_SSO_REVOCATION_FILE: A file of SHA-256 digests of revoked tokens, which are never
+ *       relayed, see {@link RevocationList} (default: none).</li>
+ *   <li>CADC_SSO_RATE_LIMIT: The sustained number of relayed calls per second each user may make
+ *       to one host, or 0 for no limit, see {@link RateLimiter} (default: "0").</li>
+ *   <li>CADC_SSO_RATE_BURST: The number of calls a user may make to one host at once after being
+ *       idle (default: the rate limit, at least 1).</li>
+ *   <li>CADC_SSO_RATE_MAX_DELAY: How long a call over the limit is delayed, in milliseconds,
+ *       before it is rejected instead with a {@link RelayRejectedException}, or 0 to reject
+ *       every call over the limit. A delayed call sleeps on Firefly's request thread, so this is
+ *       only worth setting with enough request threads to spare (default: "0").</li>
+ *   <li>CADC_SSO_CIRCUIT_THRESHOLD: The share of failed calls to a host, in percent, that opens
+ *       its circuit so further calls fail fast with a {@link CircuitOpenException}, or 0 to never
+ *       short-circuit, see {@link CircuitBreakers} (default: "0").</li>
+ *   <li>CADC_SSO_CIRCUIT_MIN_CALLS: The number of calls to a host in the window before its
+ *       circuit may open (default: "20").</li>
+ *   <li>CADC_SSO_CIRCUIT_WINDOW: The length of the rolling window of call outcomes, in seconds
+ *       (default: "60").</li>
+ *   <li>CADC_SSO_CIRCUIT_SLOW_CALL: How long a call may take, in milliseconds, before it counts
+ *       as failed, or 0 to only count errors (default: "0").</li>
+ *   <li>CADC_SSO_CIRCUIT_OPEN: How long an open circuit refuses calls before it lets probe calls
+ *       through, in seconds (default: "30").</li>
+ *   <li>CADC_SSO_CIRCUIT_PROBE: The least time between two background health probes of a host
+ *       Firefly calls, in milliseconds, or 0 to only count outcomes reported through
+ *       {@link TokenRelay#onDownstreamResponse(String, int, long)}, see {@link HealthProbes}
+ *       (default: "1000").</li>
+ *   <li>CADC_SSO_CIRCUIT_PROBE_PATH: The path a health probe requests below the service of the
+ *       call that triggered it, e.g. {@code availability} for the VOSI endpoint of
+ *       {@code /youcat}, or empty for the service itself (default: "").</li>
+ *   <li>CADC_SSO_TRACING: Whether relayed calls get W3C {@code traceparent} and {@code tracestate}
+ *       headers continuing the trace of the incoming request, see {@link Tracer} (default: "false").</li>
+ *   <li>CADC_SSO_TRACE_EXPORT: A file, or the URL of an OTLP/HTTP collector's traces endpoint,
+ *       that the spans of relayed calls are exported to, see {@link SpanExporter} (default: none).</li>
+ *   <li>CADC_SSO_TRACE_SERVICE: The service name of the exported spans (default: "firefly").</li>
+ *   <li>CADC_SSO_SESSION_CAPACITY: The number of user sessions whose resolved credential is kept
+ *       between requests, see {@link SessionCredentialStore}, or 0 to resolve every request from
+ *       scratch (default: "4096").</li>
+ *   <li>CADC_SSO_SESSION_IDLE: How long an unused session is kept, in seconds (default: "1800").</li>
+ *   <li>CADC_SSO_FINGERPRINT_KEY: The secret, at least 16 characters, that keys the credential
+ *       fingerprints partitioning downstream result caches, see {@link CredentialFingerprints}.
+ *       Replicas sharing a cache need the same key (default: a random key per process).</li>
+ *   <li>CADC_SSO_PREFETCH: Whether the VOSI metadata of the TAP services is fetched in the
+ *       background with a user's token the first time the relay sees it, see
+ *       {@link MetadataPrefetcher} (default: "false").</li>
+ *   <li>CADC_SSO_PREFETCH_SERVICES: Comma-separated base URLs of the TAP services to prefetch
+ *       (default: the TAP services in Firefly's {@code PROPS_FIREFLY_OPTIONS}).</li>
+ *   <li>CADC_SSO_PREFETCH_TTL: How long prefetched metadata is used, in seconds (default: "600").</li>
+ *   <li>CADC_SSO_PREFETCH_CAPACITY: The number of users whose prefetched metadata is kept
+ *       (default: "128").</li>
+ *   <li>CADC_SSO_AUDIT_DIR: The directory of the binary journal of credential decisions, see
+ *       {@link AuditJournal} (default: none, nothing is journaled).</li>
+ *   <li>CADC_SSO_AUDIT_SEGMENT_SIZE: The size of one journal segment file, in MiB (default: "64").</li>
+ *   <li>CADC_SSO_AUDIT_SEGMENTS: The number of journal segments kept, the oldest are deleted
+ *       (default: "32").</li>
+ *   <li>CADC_SSO_CONFIG_FILE: A properties file, e.g. from a mounted ConfigMap, whose settings
+ *       override these and are reloaded when it changes. Only read from the environment
+ *       (default: none).</li>
+ * </ul>
+ */
+final class RelayConfig {
+
+    static final String COOKIE_NAME = "CADC_SSO_COOKIE_NAME";
+    static final String COOKIE_DOMAIN = "CADC_SSO_COOKIE_DOMAIN";
+    static final String ENFORCE_COOKIE_DOMAIN = "CADC_SSO_ENFORCE_COOKIE_DOMAIN";
+    static final String COOKIE_PRECEDENCE = "CADC_SSO_COOKIE_PRECEDENCE";
+    static final String ALLOWED_DOMAIN = "CADC_ALLOWED_DOMAIN";
+    static final String POLICY_FILE = "CADC_SSO_POLICY_FILE";
+    static final String CREDENTIAL_SOURCES = "CADC_SSO_CREDENTIAL_SOURCES";
+    static final String TOKEN_HEADER = "CADC_SSO_TOKEN_HEADER";
+    static final String TOKEN_FILE = "CADC_SSO_TOKEN_FILE";
+    static final String SINGLE_USER = "CADC_SSO_SINGLE_USER";
+    static final String PROXY_CERT_FILE = "CADC_SSO_PROXY_CERT_FILE";
+    static final String DEBUG = "DEBUG";
+    static final String LOG_RATE_LIMIT = "CADC_SSO_LOG_RATE_LIMIT";
+    static final String LOG_SAMPLING = "CADC_SSO_LOG_SAMPLING";
+    static final String JWKS = "CADC_SSO_JWKS";
+    static final String JWT_AUDIENCE = "CADC_SSO_JWT_AUDIENCE";
+    static final String JWT_ISSUER = "CADC_SSO_JWT_ISSUER";
+    static final String JWT_LEEWAY = "CADC_SSO_JWT_LEEWAY";
+    static final String JWKS_REFRESH = "CADC_SSO_JWKS_REFRESH";
+    static final String WHOAMI_URL = "CADC_SSO_WHOAMI_URL";
+    static final String IDENTITY_TTL = "CADC_SSO_IDENTITY_TTL";
+    static final String EXCHANGE_URL = "CADC_SSO_EXCHANGE_URL";
+    static final String EXCHANGE_CLIENT_ID = "CADC_SSO_EXCHANGE_CLIENT_ID";
+    static final String EXCHANGE_CLIENT_SECRET = "CADC_SSO_EXCHANGE_CLIENT_SECRET";
+    static final String EXCHANGE_REFRESH_AHEAD = "CADC_SSO_EXCHANGE_REFRESH_AHEAD";
+    static final String EXCHANGE_WAIT = "CADC_SSO_EXCHANGE_WAIT";
+    static final String REJECTED_TTL = "CADC_SSO_REJECTED_TTL";
+    static final String REVOCATION_FILE = "CADC_SSO_REVOCATION_FILE";
+    static final String RATE_LIMIT = "CADC_SSO_RATE_LIMIT";
+    static final String RATE_BURST = "CADC_SSO_RATE_BURST";
+    static final String RATE_MAX_DELAY = "CADC_SSO_RATE_MAX_DELAY";
+    static final String CIRCUIT_THRESHOLD = "CADC_SSO_CIRCUIT_THRESHOLD";
+    static final String CIRCUIT_MIN_CALLS = "CADC_SSO_CIRCUIT_MIN_CALLS";
+    static final String CIRCUIT_WINDOW = "CADC_SSO_CIRCUIT_WINDOW";
+    static final String CIRCUIT_SLOW_CALL = "CADC_SSO_CIRCUIT_SLOW_CALL";
+    static final String CIRCUIT_OPEN = "CADC_SSO_CIRCUIT_OPEN";
+    static final String CIRCUIT_PROBE = "CADC_SSO_CIRCUIT_PROBE";
+    static final String CIRCUIT_PROBE_PATH = "CADC_SSO_CIRCUIT_PROBE_PATH";
+    static final String TRACING = "CADC_SSO_TRACING";
+    static final String TRACE_EXPORT = "CADC_SSO_TRACE_EXPORT";
+    static final String TRACE_SERVICE = "CADC_SSO_TRACE_SERVICE";
+    static final String SESSION_CAPACITY = "CADC_SSO_SESSION_CAPACITY";
+    static final String SESSION_IDLE = "CADC_SSO_SESSION_IDLE";
+    static final String FINGERPRINT_KEY = "CADC_SSO_FINGERPRINT_KEY";
+    static final String PREFETCH = "CADC_SSO_PREFETCH";
+    static final String PREFETCH_SERVICES = "CADC_SSO_PREFETCH_SERVICES";
+    static final String PREFETCH_TTL = "CADC_SSO_PREFETCH_TTL";
+    static final String PREFETCH_CAPACITY = "CADC_SSO_PREFETCH_CAPACITY";
+    static final String FIREFLY_OPTIONS = "PROPS_FIREFLY_OPTIONS";
+    static final String AUDIT_DIR = "CADC_SSO_AUDIT_DIR";
+    static final String AUDIT_SEGMENT_SIZE = "CADC_SSO_AUDIT_SEGMENT_SIZE";
+    static final String AUDIT_SEGMENTS = "CADC_SSO_AUDIT_SEGMENTS";
+    static final String CONFIG_FILE = "CADC_SSO_CONFIG_FILE";
+
+    private final String cookieName;
+    private final String cookieDomain;
+    private final boolean enforceCookieDomain;
+    private final CookieHeader.Precedence cookiePrecedence;
+    private final String allowedDomain;
+    private final AllowedDomains allowedDomains;
+    private final CredentialPolicy policy;
+    private final List<CredentialSource> credentialSources;
+    private final FileCredentialSource proxyCertificateFile;
+    private final ProxyCertificateContexts proxyCertificateContexts;
+    private final boolean debug;
+    private final RelayEventLog.Policy logPolicy;
+    private final JwtValidator jwtValidator;
+    private final IdentityResolver identityResolver;
+    private final TokenExchanger tokenExchanger;
+    private final RejectedTokens rejectedTokens;
+    private final RevocationList revocationList;
+    private final RateLimiter rateLimiter;
+    private final CircuitBreakers circuitBreakers;
+    private final HealthProbes healthProbes;
+    private final Tracer tracer;
+    private final SessionCredentialStore sessions;
+    private final CredentialFingerprints fingerprints;
+    private final MetadataPrefetcher prefetcher;
+    private final AuditJournal auditJournal;
+
+    private final List<String> jwtSettings;
+    private final List<String> identitySettings;
+    private final List<String> exchangeSettings;
+    private final List<String> rejectedSettings;
+    private final List<String> revocationSettings;
+    private final List<String> rateSettings;
+    private final List<String> circuitSettings;
+    private final List<String> probeSettings;
+    private final List<String> traceSettings;
+    private final List<String> sessionSettings;
+    private final List<String> fingerprintSettings;
+    private final List<String> prefetchSettings;
+    private final List<String> auditSettings;
+
+    private RelayConfig(Map<String, String> settings, RelayConfig previous) {
+        this.cookieName = settings.getOrDefault(COOKIE_NAME, "CADC_SSO");
+        this.cookieDomain = settings.getOrDefault(COOKIE_DOMAIN, ".canfar.net");
+        this.enforceCookieDomain = Boolean.parseBoolean(settings.getOrDefault(ENFORCE_COOKIE_DOMAIN, "false"));
+        try {
+            this.cookiePrecedence = CookieHeader.Precedence.forId(settings.getOrDefault(COOKIE_PRECEDENCE, "first"));
+        } catch (IllegalArgumentException error) {
+            throw new IllegalArgumentException(COOKIE_PRECEDENCE + " must be first, last or reject", error);
+        }
+        this.allowedDomain = settings.getOrDefault(ALLOWED_DOMAIN, ".canfar.net");
+        this.allowedDomains = AllowedDomains.compile(allowedDomain);
+        String policyFile = blankToNull(settings.get(POLICY_FILE));
+        this.policy = (policyFile == null)
+                ? CredentialPolicy.fromAllowedDomains(allowedDomain) : CredentialPolicy.load(Path.of(policyFile));
+        this.debug = Boolean.parseBoolean(settings.getOrDefault(DEBUG, "false"));
+        this.logPolicy = RelayEventLog.Policy.parse(
+                Integer.parseInt(settings.getOrDefault(LOG_RATE_LIMIT, "10").trim()), settings.get(LOG_SAMPLING));
+        this.credentialSources = credentialSources(settings, previous);
+        String proxyCertFile = blankToNull(settings.get(PROXY_CERT_FILE));
+        if (proxyCertFile == null) {
+            this.proxyCertificateFile = null;
+        } else if (previous != null && previous.proxyCertificateFile != null
+                   && previous.proxyCertificateFile.getName().equals(Path.of(proxyCertFile).toString())) {
+            this.proxyCertificateFile = previous.proxyCertificateFile;
+        } else {
+            this.proxyCertificateFile = new FileCredentialSource(Path.of(proxyCertFile), System::currentTimeMillis);
+        }
+        // Contexts are keyed by certificate, so they stay valid whatever else changes
+        this.proxyCertificateContexts = (previous != null)
+                ? previous.proxyCertificateContexts : new ProxyCertificateContexts(System::currentTimeMillis);
+        this.jwtSettings = settings(settings, JWKS, JWT_AUDIENCE, JWT_ISSUER, JWT_LEEWAY, JWKS_REFRESH);
+        this.identitySettings = settings(settings, WHOAMI_URL, IDENTITY_TTL);
+        this.exchangeSettings = settings(settings, EXCHANGE_URL, EXCHANGE_CLIENT_ID, EXCHANGE_CLIENT_SECRET,
+                                         EXCHANGE_REFRESH_AHEAD, EXCHANGE_WAIT);
+        this.rejectedSettings = settings(settings, REJECTED_TTL);
+        this.revocationSettings = settings(settings, REVOCATION_FILE);
+        this.rateSettings = settings(settings, RATE_LIMIT, RATE_BURST, RATE_MAX_DELAY);
+        this.circuitSettings = settings(settings, CIRCUIT_THRESHOLD, CIRCUIT_MIN_CALLS, CIRCUIT_WINDOW,
+                                        CIRCUIT_SLOW_CALL, CIRCUIT_OPEN);
+        this.probeSettings = settings(settings, CIRCUIT_THRESHOLD, CIRCUIT_PROBE, CIRCUIT_PROBE_PATH);
+        this.traceSettings = settings(settings, TRACING, TRACE_EXPORT, TRACE_SERVICE);
+        this.sessionSettings = settings(settings, SESSION_CAPACITY, SESSION_IDLE);
+        this.fingerprintSettings = settings(settings, FINGERPRINT_KEY);
+        this.prefetchSettings = settings(settings, PREFETCH, PREFETCH_SERVICES, PREFETCH_TTL, PREFETCH_CAPACITY,
+                                         FIREFLY_OPTIONS);
+        this.auditSettings = settings(settings, AUDIT_DIR, AUDIT_SEGMENT_SIZE, AUDIT_SEGMENTS);
+        try {
+            // Keep the key set, identity and exchanged token caches across reloads that do not change them
+            this.jwtValidator = (previous != null && previous.jwtSettings.equals(jwtSettings))
+                    ? previous.jwtValidator : jwtValidator(settings);
+            this.identityResolver = (previous != null && previous.identitySettings.equals(identitySettings))
+                    ? previous.identityResolver : identityResolver(settings, logPolicy);
+            this.tokenExchanger = (previous != null && previous.exchangeSettings.equals(exchangeSettings))
+                    ? previous.tokenExchanger : tokenExchanger(settings, logPolicy);
+            this.rejectedTokens = (previous != null && previous.rejectedSettings.equals(rejectedSettings))
+                    ? previous.rejectedTokens : rejectedTokens(settings);
+            this.revocationList = (previous != null && previous.revocationSettings.equals(revocationSettings))
+                    ? previous.revocationList : revocationList(settings);
+            this.rateLimiter = (previous != null && previous.rateSettings.equals(rateSettings))
+                    ? previous.rateLimiter : rateLimiter(settings);
+            // Kept across reloads with unchanged settings, so open circuits stay open
+            this.circuitBreakers = (previous != null && previous.circuitSettings.equals(circuitSettings))
+                    ? previous.circuitBreakers : circuitBreakers(settings);
+            this.healthProbes = (previous != null && previous.probeSettings.equals(probeSettings))
+                    ? previous.healthProbes : healthProbes(settings, circuitBreakers);
+            this.tracer = (previous != null && previous.traceSettings.equals(traceSettings))
+                    ? previous.tracer : tracer(settings);
+            // Stored sessions were validated with the previous validator, so they go with it
+            this.sessions = (previous != null && previous.jwtValidator == jwtValidator
+                             && previous.sessionSettings.equals(sessionSettings))
+                    ? previous.sessions : sessions(settings);
+            // Stored sessions keep their fingerprints, which only stay valid with the same key
+            this.fingerprints = (previous != null && previous.fingerprintSettings.equals(fingerprintSettings))
+                    ? previous.fingerprints : fingerprints(settings);
+            this.prefetcher = (previous != null && previous.prefetchSettings.equals(prefetchSettings))
+                    ? previous.prefetcher : prefetcher(settings, logPolicy);
+            // Whatever asked the previous prefetcher for documents still does
+            if (prefetcher != null && previous != null && previous.prefetcher != null && previous.prefetcher.isInUse()) {
+                prefetcher.markInUse();
+            }
+            this.auditJournal = (previous != null && previous.auditSettings.equals(auditSettings))
+                    ? previous.auditJournal : auditJournal(settings, logPolicy);
+        } catch (RuntimeException error) {
+            // Release what was built for this snapshot before the failure, since nothing will retire it
+            release(previous);
+            throw error;
+        }
+    }
+
+    private List<CredentialSource> credentialSources(Map<String, String> settings, RelayConfig previous) {
+        List<CredentialSource> sources = new ArrayList<>();
+        for (String id : settings.getOrDefault(CREDENTIAL_SOURCES, CookieCredentialSource.ID).split(",")) {
+            switch (id.trim().toLowerCase(Locale.ROOT)) {
+                case CookieCredentialSource.ID:
+                    sources.add(new CookieCredentialSource(cookieName, cookieDomain, enforceCookieDomain, cookiePrecedence,
+                                                           debug, logPolicy));
+                    break;
+                case HeaderCredentialSource.ID:
+                    String header = blankToNull(settings.get(TOKEN_HEADER));
+                    sources.add(new HeaderCredentialSource((header == null) ? "Authorization" : header));
+                    break;
+                case FileCredentialSource.ID:
+                    String file = blankToNull(settings.get(TOKEN_FILE));
+                    if (file == null) {
+                        throw new IllegalArgumentException(CREDENTIAL_SOURCES + " names the file source but "
+                                                           + TOKEN_FILE + " is not set");
+                    }
+                    if (!Boolean.parseBoolean(settings.getOrDefault(SINGLE_USER, "false").trim())) {
+                        throw new IllegalArgumentException(CREDENTIAL_SOURCES + " names the file source, which relays "
+                                                           + TOKEN_FILE + " for every request without a token, but "
+                                                           + SINGLE_USER + " is not true");
+                    }
+                    // Keep the file in memory across reloads that do not move it
+                    FileCredentialSource previousFile = (previous == null) ? null : previous.getFileCredentialSource();
+                    sources.add((previousFile != null && previousFile.getName().equals(Path.of(file).toString()))
+                            ? previousFile : new FileCredentialSource(Path.of(file), System::currentTimeMillis));
+                    break;
+                case "":
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown credential source in " + CREDENTIAL_SOURCES + ": " + id);
+            }
+        }
+        return List.copyOf(sources);
+    }
+
+    private static SessionCredentialStore sessions(Map<String, String> settings) {
+        int capacity = Integer.parseInt(settings.getOrDefault(SESSION_CAPACITY, "4096").trim());
+        long idle = Long.parseLong(settings.getOrDefault(SESSION_IDLE, "1800").trim());
+        if (capacity < 0 || idle <= 0) {
+            throw new IllegalArgumentException(SESSION_CAPACITY + " and " + SESSION_IDLE + " must be positive");
+        }
+        return (capacity == 0) ? null : new SessionCredentialStore(capacity, idle * 1000L, System::currentTimeMillis);
+    }
+
+    /**
+     * @param settings The settings, of which only {@code CADC_SSO_FINGERPRINT_KEY} is read.
+     * @return CredentialFingerprints The fingerprints keyed by the setting, or by the process key if it is unset.
+     * @throws IllegalArgumentException If the key is too short.
+     */
+    static CredentialFingerprints fingerprints(Map<String, String> settings) {
+        String key = blankToNull(settings.get(FINGERPRINT_KEY));
+        if (key == null) {
+            return CredentialFingerprints.withProcessKey();
+        }
+        if (key.length() < CredentialFingerprints.MIN_KEY_LENGTH) {
+            throw new IllegalArgumentException(FINGERPRINT_KEY + " must have at least "
+                                               + CredentialFingerprints.MIN_KEY_LENGTH + " characters");
+        }
+        return new CredentialFingerprints(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> settings(Map<String, String> settings, String... names) {
+        List<String> values = new ArrayList<>(names.length);
+        for (String name : names) {
+            values.add(settings.get(name));
+        }
+        return values;
+    }
+
+    private static JwtValidator jwtValidator(Map<String, String> settings) {
+        String jwks = settings.get(JWKS);
+        if (jwks == null || jwks.isBlank()) {
+            return null;
+        }
+        long leeway = Long.parseLong(settings.getOrDefault(JWT_LEEWAY, "30").trim());
+        long refresh = Long.parseLong(settings.getOrDefault(JWKS_REFRESH, "3600").trim());
+        if (leeway < 0 || refresh <= 0) {
+            throw new IllegalArgumentException(JWT_LEEWAY + " and " + JWKS_REFRESH + " must be positive");
+        }
+        JsonWebKeySet keySet = new JsonWebKeySet(jwks.trim(), refresh * 1000L, System::currentTimeMillis);
+        return new JwtValidator(keySet, blankToNull(settings.get(JWT_AUDIENCE)), blankToNull(settings.get(JWT_ISSUER)),
+                                leeway * 1000L, System::currentTimeMillis);
+    }
+
+    private static IdentityResolver identityResolver(Map<String, String> settings, RelayEventLog.Policy logPolicy) {
+        String url = blankToNull(settings.get(WHOAMI_URL));
+        if (url == null) {
+            return null;
+        }
+        URI endpoint = URI.create(url);
+        if (!"http".equals(endpoint.getScheme()) && !"https".equals(endpoint.getScheme())) {
+            throw new IllegalArgumentException(WHOAMI_URL + " must be an http(s) URL: " + url);
+        }
+        long ttl = Long.parseLong(settings.getOrDefault(IDENTITY_TTL, "300").trim());
+        if (ttl <= 0) {
+            throw new IllegalArgumentException(IDENTITY_TTL + " must be positive");
+        }
+        return new IdentityResolver(endpoint, ttl * 1000L, Duration.ofSeconds(5), System::currentTimeMillis,
+                                    RelayEventLog.shared(), logPolicy);
+    }
+
+    private static TokenExchanger tokenExchanger(Map<String, String> settings, RelayEventLog.Policy logPolicy) {
+        String url = blankToNull(settings.get(EXCHANGE_URL));
+        if (url == null) {
+            return null;
+        }
+        URI endpoint = URI.create(url);
+        if (!"http".equals(endpoint.getScheme()) && !"https".equals(endpoint.getScheme())) {
+            throw new IllegalArgumentException(EXCHANGE_URL + " must be an http(s) URL: " + url);
+        }
+        long refreshAhead = Long.parseLong(settings.getOrDefault(EXCHANGE_REFRESH_AHEAD, "60").trim());
+        if (refreshAhead < 0) {
+            throw new IllegalArgumentException(EXCHANGE_REFRESH_AHEAD + " must not be negative");
+        }
+        Duration timeout = Duration.ofSeconds(5);
+        long wait = Long.parseLong(settings.getOrDefault(EXCHANGE_WAIT, "2000").trim());
+        if (wait < 0 || wait > timeout.toMillis()) {
+            throw new IllegalArgumentException(EXCHANGE_WAIT + " must be from 0 to " + timeout.toMillis() + " ms");
+        }
+        return new TokenExchanger(endpoint, blankToNull(settings.get(EXCHANGE_CLIENT_ID)),
+                                  settings.get(EXCHANGE_CLIENT_SECRET), refreshAhead * 1000L, timeout,
+                                  Duration.ofMillis(wait), System::currentTimeMillis, RelayEventLog.shared(), logPolicy);
+    }
+
+    private static RejectedTokens rejectedTokens(Map<String, String> settings) {
+        long ttl = Long.parseLong(settings.getOrDefault(REJECTED_TTL, "0").trim());
+        if (ttl < 0) {
+            throw new IllegalArgumentException(REJECTED_TTL + " must not be negative");
+        }
+        return (ttl == 0) ? null : new RejectedTokens(16_384, ttl * 1000L, System::currentTimeMillis);
+    }
+
+    private static RevocationList revocationList(Map<String, String> settings) {
+        String file = blankToNull(settings.get(REVOCATION_FILE));
+        return (file == null) ? null : new RevocationList(Path.of(file), System::currentTimeMillis);
+    }
+
+    private static RateLimiter rateLimiter(Map<String, String> settings) {
+        double rate = Double.parseDouble(settings.getOrDefault(RATE_LIMIT, "0").trim());
+        if (!(rate >= 0.0) || Double.isInfinite(rate)) {
+            throw new IllegalArgumentException(RATE_LIMIT + " must be a non-negative number");
+        }
+        if (rate == 0.0) {
+            return null;
+        }
+        String burst = blankToNull(settings.get(RATE_BURST));
+        long maxDelay = Long.parseLong(settings.getOrDefault(RATE_MAX_DELAY, "0").trim());
+        if (maxDelay < 0) {
+            throw new IllegalArgumentException(RATE_MAX_DELAY + " must not be negative");
+        }
+        return new RateLimiter(16_384, rate,
+                               (burst == null) ? Math.max(1, (int) rate) : Integer.parseInt(burst),
+                               maxDelay * 1_000_000L, System::nanoTime);
+    }
+
+    private static CircuitBreakers circuitBreakers(Map<String, String> settings) {
+        int threshold = Integer.parseInt(settings.getOrDefault(CIRCUIT_THRESHOLD, "0").trim());
+        if (threshold < 0 || threshold > 100) {
+            throw new IllegalArgumentException(CIRCUIT_THRESHOLD + " must be a percentage");
+        }
+        if (threshold == 0) {
+            return null;
+        }
+        return new CircuitBreakers(threshold,
+                                   Integer.parseInt(settings.getOrDefault(CIRCUIT_MIN_CALLS, "20").trim()),
+                                   Long.parseLong(settings.getOrDefault(CIRCUIT_WINDOW, "60").trim()) * 1000L,
+                                   Long.parseLong(settings.getOrDefault(CIRCUIT_SLOW_CALL, "0").trim()),
+                                   Long.parseLong(settings.getOrDefault(CIRCUIT_OPEN, "30").trim()) * 1000L,
+                                   System::nanoTime);
+    }
+
+    private static HealthProbes healthProbes(Map<String, String> settings, CircuitBreakers circuitBreakers) {
+        long interval = Long.parseLong(settings.getOrDefault(CIRCUIT_PROBE, "1000").trim());
+        if (interval < 0) {
+            throw new IllegalArgumentException(CIRCUIT_PROBE + " must not be negative");
+        }
+        if (circuitBreakers == null || interval == 0) {
+            return null;
+        }
+        return new HealthProbes(interval, settings.getOrDefault(CIRCUIT_PROBE_PATH, "").trim(), System::nanoTime);
+    }
+
+    private static MetadataPrefetcher prefetcher(Map<String, String> settings, RelayEventLog.Policy logPolicy) {
+        if (!Boolean.parseBoolean(settings.getOrDefault(PREFETCH, "false").trim())) {
+            return null;
+        }
+        String configured = blankToNull(settings.get(PREFETCH_SERVICES));
+        List<String> services = new ArrayList<>();
+        if (configured == null) {
+            services.addAll(MetadataPrefetcher.servicesFromOptions(settings.get(FIREFLY_OPTIONS)));
+        } else {
+            for (String service : configured.split(",")) {
+                URI url = URI.create(service.trim());
+                if (!"http".equals(url.getScheme()) && !"https".equals(url.getScheme())) {
+                    throw new IllegalArgumentException(PREFETCH_SERVICES + " must be http(s) URLs: " + service);
+                }
+                services.add(url.toString());
+            }
+        }
+        long ttl = Long.parseLong(settings.getOrDefault(PREFETCH_TTL, "600").trim());
+        int capacity = Integer.parseInt(settings.getOrDefault(PREFETCH_CAPACITY, "128").trim());
+        return new MetadataPrefetcher(services, capacity, ttl * 1000L, Duration.ofSeconds(10),
+                                      System::currentTimeMillis, RelayEventLog.shared(), logPolicy);
+    }
+
+    private static AuditJournal auditJournal(Map<String, String> settings, RelayEventLog.Policy logPolicy) {
+        String dir = blankToNull(settings.get(AUDIT_DIR));
+        if (dir == null) {
+            return null;
+        }
+        int segmentMiB = Integer.parseInt(settings.getOrDefault(AUDIT_SEGMENT_SIZE, "64").trim());
+        if (segmentMiB < 1 || segmentMiB > 1024) {
+            throw new IllegalArgumentException(AUDIT_SEGMENT_SIZE + " must be from 1 to 1024 MiB");
+        }
+        int segments = Integer.parseInt(settings.getOrDefault(AUDIT_SEGMENTS, "32").trim());
+        try {
+            return new AuditJournal(Path.of(dir), segmentMiB << 20, segments, System::currentTimeMillis,
+                                    RelayEventLog.shared(), logPolicy);
+        } catch (IOException error) {
+            throw new IllegalArgumentException(AUDIT_DIR + " cannot be written: " + error.getMessage(), error);
+        }
+    }
+
+    private static Tracer tracer(Map<String, String> settings) {
+        if (!Boolean.parseBoolean(settings.getOrDefault(TRACING, "false").trim())) {
+            return null;
+        }
+        String export = blankToNull(settings.get(TRACE_EXPORT));
+        String service = blankToNull(settings.get(TRACE_SERVICE));
+        return new Tracer((export == null) ? null : new SpanExporter(export, (service == null) ? "firefly" : service),
+                          System::currentTimeMillis);
+    }
+
+    private static String blankToNull(String value) {
+        return (value == null || value.isBlank()) ? null : value.trim();
+    }
+
+    /**
+     * Builds a snapshot from the process environment.
+     *
+     * @return RelayConfig The configuration read from the environment variables.
+     */
+    static RelayConfig fromEnvironment() {
+        return fromMap(System.getenv());
+    }
+
+    /**
+     * Builds a snapshot from the given settings, keyed by environment variable name. Missing
+     * settings take their default value.
+     *
+     * @param settings The settings to read.
+     * @return RelayConfig The configuration read from the settings.
+     * @throws IllegalArgumentException If the allowed domains, the log settings, the token
+     *                                  validation or the identity settings are invalid.
+     */
+    static RelayConfig fromMap(Map<String, String> settings) {
+        return new RelayConfig(settings, null);
+    }
+
+    /**
+     * Builds a snapshot that replaces a previous one. The token validator and the identity
+     * resolver and the token exchanger of the previous snapshot, with their caches, are kept if
+     * their settings are unchanged.
+     *
+     * @param settings The settings to read.
+     * @param previous The snapshot being replaced, or null.
+     * @return RelayConfig The configuration read from the settings.
+     * @throws IllegalArgumentException If any setting is invalid.
+     */
+    static RelayConfig fromMap(Map<String, String> settings, RelayConfig previous) {
+        return new RelayConfig(settings, previous);
+    }
+
+    /**
+     * Releases the resources of this snapshot that its replacement does not share: the HTTP
+     * clients of the identity resolver, the token exchanger, the health probes, the metadata
+     * prefetcher and the tracer, and the audit journal. Calls still running on this snapshot finish the requests
+     * they already sent; journal records they append afterwards are dropped.
+     *
+     * @param replacement The snapshot that replaced this one.
+     */
+    void retire(RelayConfig replacement) {
+        release(replacement);
+    }
+
+    /**
+     * Releases the resources of this snapshot that another one does not share. Also called on a
+     * snapshot whose construction failed, whose later components are still null.
+     *
+     * @param other The snapshot whose resources are kept, or null to release all of them.
+     */
+    private void release(RelayConfig other) {
+        if (identityResolver != null && (other == null || identityResolver != other.identityResolver)) {
+            identityResolver.close();
+        }
+        if (tokenExchanger != null && (other == null || tokenExchanger != other.tokenExchanger)) {
+            tokenExchanger.close();
+        }
+        if (healthProbes != null && (other == null || healthProbes != other.healthProbes)) {
+            healthProbes.close();
+        }
+        if (prefetcher != null && (other == null || prefetcher != other.prefetcher)) {
+            prefetcher.close();
+        }
+        if (tracer != null && (other == null || tracer != other.tracer)) {
+            tracer.close();
+        }
+        if (auditJournal != null && (other == null || auditJournal != other.auditJournal)) {
+            auditJournal.close();
+        }
+    }
+
+    String getCookieName() {
+        return cookieName;
+    }
+
+    String getCookieDomain() {
+        return cookieDomain;
+    }
+
+    boolean isEnforceCookieDomain() {
+        return enforceCookieDomain;
+    }
+
+    CookieHeader.Precedence getCookiePrecedence() {
+        return cookiePrecedence;
+    }
+
+    String getAllowedDomain() {
+        return allowedDomain;
+    }
+
+    AllowedDomains getAllowedDomains() {
+        return allowedDomains;
+    }
+
+    /**
+     * @return CredentialPolicy The policy read from the policy file, or the one equivalent to the
+     *         allowed domains if there is no policy file.
+     */
+    CredentialPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return The sources a request's token is read from, in the order they are tried.
+     */
+    List<CredentialSource> getCredentialSources() {
+        return credentialSources;
+    }
+
+    /**
+     * @return FileCredentialSource The mounted token file source, or null if it is not configured.
+     */
+    FileCredentialSource getFileCredentialSource() {
+        for (CredentialSource source : credentialSources) {
+            if (source instanceof FileCredentialSource) {
+                return (FileCredentialSource) source;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return FileCredentialSource The proxy certificate file, or null if calls are never
+     *         authenticated with a client certificate.
+     */
+    FileCredentialSource getProxyCertificateFile() {
+        return proxyCertificateFile;
+    }
+
+    /**
+     * @return ProxyCertificateContexts The cache of SSLContexts built from proxy certificates.
+     */
+    ProxyCertificateContexts getProxyCertificateContexts() {
+        return proxyCertificateContexts;
+    }
+
+    boolean isDebug() {
+        return debug;
+    }
+
+    RelayEventLog.Policy getLogPolicy() {
+        return logPolicy;
+    }
+
+    /**
+     * @return JwtValidator The local token validator, or null if tokens are relayed unchecked.
+     */
+    JwtValidator getJwtValidator() {
+        return jwtValidator;
+    }
+
+    /**
+     * @return IdentityResolver The identity lookup, or null if every user is a guest.
+     */
+    IdentityResolver getIdentityResolver() {
+        return identityResolver;
+    }
+
+    /**
+     * @return TokenExchanger The exchange of SSO tokens for audience-scoped ones, or null if the
+     *         SSO token itself is relayed.
+     */
+    TokenExchanger getTokenExchanger() {
+        return tokenExchanger;
+    }
+
+    /**
+     * @return RejectedTokens The tokens downstream services recently refused, or null if refusals
+     *         are not remembered.
+     */
+    RejectedTokens getRejectedTokens() {
+        return rejectedTokens;
+    }
+
+    /**
+     * @return RevocationList The revoked tokens read from the revocation list file, or null if
+     *         there is none.
+     */
+    RevocationList getRevocationList() {
+        return revocationList;
+    }
+
+    /**
+     * @return RateLimiter The per-user and host limit on relayed calls, or null if calls are not limited.
+     */
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * @return CircuitBreakers The health of the downstream hosts, or null if calls are never short-circuited.
+     */
+    CircuitBreakers getCircuitBreakers() {
+        return circuitBreakers;
+    }
+
+    /**
+     * @return HealthProbes The background probes of the downstream hosts, or null if hosts are not probed.
+     */
+    HealthProbes getHealthProbes() {
+        return healthProbes;
+    }
+
+    /**
+     * @return CredentialFingerprints The keyed fingerprints that partition downstream result caches.
+     */
+    CredentialFingerprints getFingerprints() {
+        return fingerprints;
+    }
+
+    /**
+     * @return MetadataPrefetcher The background fetcher of TAP service metadata, or null if
+     *         metadata is not prefetched.
+     */
+    MetadataPrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * @return AuditJournal The journal of credential decisions, or null if they are not journaled.
+     */
+    AuditJournal getAuditJournal() {
+        return auditJournal;
+    }
+
+    /**
+     * @return Tracer The trace propagation of relayed calls, or null if tracing is off.
+     */
+    Tracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * @return SessionCredentialStore The credentials of recent user sessions, or null if every
+     *         request is resolved from scratch.
+     */
+    SessionCredentialStore getSessions() {
+        return sessions;
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.util.Logger;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Supplies the current {@link RelayConfig}, reloading it when an optional configuration file
+ * changes, so settings can be changed without restarting Firefly.
+ *
+ * <p>The file, named by {@code CADC_SSO_CONFIG_FILE}, is a Java properties file keyed by the same
+ * names as the environment variables, e.g. {@code DEBUG=true}. Settings in the file override the
+ * environment; settings missing from it fall back to the environment. The file's directory is
+ * watched with a {@link WatchService}, which also catches the symbolic link swap Kubernetes uses
+ * to update a mounted ConfigMap, and the file is checked every {@link #POLL_SECONDS} seconds in
+ * case the file system does not report changes.</p>
+ *
+ * <p>Each reload builds a complete new snapshot and swaps it in with a single volatile write, so a
+ * request always sees one consistent configuration, then releases the clients, threads and
+ * journal of the replaced snapshot that the new one does not share. A file that cannot be read or
+ * holds invalid settings is logged and ignored, and the previous snapshot stays in use.</p>
+ */
+final class RelayConfigSource {
+
+    static final long POLL_SECONDS = 30L;
+
+    private static final Logger.LoggerImpl LOGGER = Logger.getLogger();
+
+    private final Map<String, String> defaults;
+    private final Path file;
+    private volatile RelayConfig current;
+    private String loadedContent;
+    private volatile WatchService watcher;
+    private volatile boolean closed;
+
+    /**
+     * @param defaults The settings used where the file has none, keyed by environment variable name.
+     * @param file The configuration file, or null to use the defaults only.
+     * @throws IllegalArgumentException If the defaults are invalid.
+     */
+    RelayConfigSource(Map<String, String> defaults, Path file) {
+        this.defaults = Map.copyOf(defaults);
+        this.file = file;
+        if (!reload()) {
+            this.current = RelayConfig.fromMap(this.defaults);
+        }
+    }
+
+    /**
+     * Creates a source that always supplies the given snapshot.
+     *
+     * @param config The snapshot.
+     * @return RelayConfigSource The source.
+     */
+    static RelayConfigSource fixed(RelayConfig config) {
+        return new RelayConfigSource(config);
+    }
+
+    private RelayConfigSource(RelayConfig config) {
+        this.defaults = Map.of();
+        this.file = null;
+        this.current = config;
+    }
+
+    /**
+     * Creates a source from the environment variables and, if {@code CADC_SSO_CONFIG_FILE} or
+     * {@code CADC_SSO_POLICY_FILE} is set, starts watching the files.
+     *
+     * @return RelayConfigSource The source.
+     */
+    static RelayConfigSource fromEnvironment() {
+        return fromEnvironment(System.getenv());
+    }
+
+    /**
+     * Creates a source from the given environment variables. Invalid settings fail the startup
+     * rather than leave the relay running without the allow-list, policy and limits they meant to
+     * set; the error is logged first, as Firefly loads the adapter from a static initializer and
+     * only reports that the class could not be initialized.
+     *
+     * @param environment The environment variables.
+     * @return RelayConfigSource The source.
+     * @throws IllegalArgumentException If a setting is invalid.
+     */
+    static RelayConfigSource fromEnvironment(Map<String, String> environment) {
+        RelayConfigSource source;
+        try {
+            String location = environment.get(RelayConfig.CONFIG_FILE);
+            source = new RelayConfigSource(environment,
+                    (location == null || location.isBlank()) ? null : Path.of(location.trim()));
+        } catch (RuntimeException error) {
+            LOGGER.error(error, "Invalid relay configuration in the environment: " + error.getMessage());
+            throw error;
+        }
+        source.watch();
+        return source;
+    }
+
+    /**
+     * @return RelayConfig The current snapshot.
+     */
+    RelayConfig current() {
+        return current;
+    }
+
+    /**
+     * Re-reads the configuration file, and the policy file it names, and swaps in a new snapshot
+     * if either changed.
+     *
+     * @return Whether a new snapshot was swapped in.
+     */
+    synchronized boolean reload() {
+        if (file == null && policyFile(defaults) == null) {
+            return false;
+        }
+        String content;
+        Map<String, String> settings = new HashMap<>(defaults);
+        try {
+            content = (file == null) ? "" : read(file);
+            Properties properties = new Properties();
+            properties.load(new StringReader(content));
+            for (String name : properties.stringPropertyNames()) {
+                settings.put(name, properties.getProperty(name).trim());
+            }
+        } catch (IOException | IllegalArgumentException error) {
+            LOGGER.warn("Unable to read " + file + ", keeping the current relay configuration: " + error.getMessage());
+            return false;
+        }
+        Path policy = policyFile(settings);
+        try {
+            content = content + '\0' + ((policy == null) ? "" : read(policy));
+        } catch (IOException error) {
+            LOGGER.warn("Unable to read " + policy + ", keeping the current relay configuration: " + error.getMessage());
+            return false;
+        }
+        if (content.equals(loadedContent)) {
+            return false;
+        }
+        loadedContent = content; // an invalid file is not retried until it changes again
+        RelayConfig previous = current;
+        try {
+            current = RelayConfig.fromMap(settings, previous);
+        } catch (IllegalArgumentException error) {
+            LOGGER.warn("Invalid relay configuration, keeping the current one: " + error.getMessage());
+            return false;
+        }
+        LOGGER.info("Loaded relay configuration from " + ((file == null) ? policy : file));
+        if (previous != null) {
+            previous.retire(current);
+        }
+        return true;
+    }
+
+    /**
+     * @return The content of a file, or an empty string if it does not exist.
+     */
+    private static String read(Path path) throws IOException {
+        try {
+            return Files.readString(path);
+        } catch (NoSuchFileException error) {
+            return "";
+        }
+    }
+
+    private static Path policyFile(Map<String, String> settings) {
+        String location = settings.get(RelayConfig.POLICY_FILE);
+        return (location == null || location.isBlank()) ? null : Path.of(location.trim());
+    }
+
+    /**
+     * Starts a daemon thread that reloads the configuration whenever the configuration file or the
+     * policy file changes.
+     */
+    synchronized void watch() {
+        Path policy = policyFile(defaults); // a policy file named only in the configuration file is polled
+        if ((file == null && policy == null) || watcher != null) {
+            return;
+        }
+        try {
+            WatchService service = FileSystems.getDefault().newWatchService();
+            Set<Path> directories = new HashSet<>();
+            for (Path path : new Path[] {file, policy}) {
+                if (path != null && directories.add(path.toAbsolutePath().getParent())) {
+                    path.toAbsolutePath().getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                }
+            }
+            watcher = service;
+        } catch (IOException error) {
+            LOGGER.warn("Unable to watch the relay configuration, polling it instead: " + error.getMessage());
+        }
+        Thread thread = new Thread(this::run, "cadc-sso-config-watch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching the files.
+     */
+    void close() {
+        closed = true;
+        WatchService service = watcher;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException error) {
+                LOGGER.warn("Unable to close the watch on " + file + ": " + error.getMessage());
+            }
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                WatchService service = watcher;
+                if (service == null) {
+                    TimeUnit.SECONDS.sleep(POLL_SECONDS);
+                } else {
+                    WatchKey key = service.poll(POLL_SECONDS, TimeUnit.SECONDS);
+                    if (key != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                }
+                if (!closed) {
+                    reload();
+                }
+            } catch (ClosedWatchServiceException | InterruptedException error) {
+                return;
+            } catch (RuntimeException error) {
+                // Keep watching, so that a corrected file is still picked up
+                LOGGER.error(error, "Unable to reload the relay configuration, keeping the current one: "
+                                    + error.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * The credential of a request, captured so that work continuing on other threads is authorized
+ * as that request.
+ *
+ * <p>Firefly only knows the current request on the servlet thread serving it, so a
+ * {@link TokenRelay} called from a background executor or a virtual thread finds no SSO cookie.
+ * Capture a context on the request thread with {@link TokenRelay#captureContext()} and run the
+ * background work through {@link #wrap(Runnable)}, {@link #wrap(Callable)} or
+ * {@link #executor(Executor)}: while a wrapped task runs, the relay uses the captured credential
+ * on that thread.</p>
+ *
+ * <pre>{@code
+ * RelayContext context = tokenRelay.captureContext();
+ * try (ExecutorService fetchers = Executors.newVirtualThreadPerTaskExecutor()) {
+ *     Executor authorized = context.executor(fetchers);
+ *     for (String url : urls) {
+ *         authorized.execute(() -> fetch(url));
+ *     }
+ * }
+ * }</pre>
+ *
+ * <p>Contexts are immutable and can be shared by any number of tasks. A context expires with its
+ * token: once the {@code exp} claim of a JWT has passed, tasks bound to the context run without a
+ * credential rather than relaying a token downstream services would reject. Opaque tokens never
+ * expire locally. When tracing is on, the context also carries the request's trace, so calls made
+ * by the tasks join it.</p>
+ */
+public final class RelayContext {
+
+    private static final ThreadLocal<RelayContext> BOUND = new ThreadLocal<>();
+
+    private final RequestCredential credential;
+    private final TraceContext trace;
+    private final long expiresAt;
+
+    private RelayContext(RequestCredential credential, TraceContext trace, long expiresAt) {
+        this.credential = credential;
+        this.trace = trace;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Creates a context carrying the given credential until its token expires.
+     *
+     * @param credential The credential of the current request.
+     * @return RelayContext The context.
+     */
+    static RelayContext capture(RequestCredential credential) {
+        return capture(credential, null);
+    }
+
+    /**
+     * Creates a context carrying the given credential until its token expires, and the trace of
+     * the request.
+     *
+     * @param credential The credential of the current request.
+     * @param trace The trace of the current request, or null if tracing is off.
+     * @return RelayContext The context.
+     */
+    static RelayContext capture(RequestCredential credential, TraceContext trace) {
+        String token = (credential.getToken() == null) ? null : credential.getToken().getId();
+        return new RelayContext(credential, trace, (token == null) ? Long.MAX_VALUE : JwtValidator.readExpiry(token));
+    }
+
+    /**
+     * @return RelayContext The context bound to the current thread, or null if none is.
+     */
+    static RelayContext bound() {
+        return BOUND.get();
+    }
+
+    /**
+     * @return RequestCredential The captured credential, or {@link RequestCredential#NONE} once it has expired.
+     */
+    RequestCredential getCredential() {
+        return isExpired() ? RequestCredential.NONE : credential;
+    }
+
+    /**
+     * @return TraceContext The trace of the captured request, or null if tracing was off. Unlike
+     *         the credential, it does not expire.
+     */
+    TraceContext getTrace() {
+        return trace;
+    }
+
+    /**
+     * @return Whether a token was captured, whether or not it has expired since.
+     */
+    public boolean hasToken() {
+        return credential.getToken() != null;
+    }
+
+    /**
+     * @return When the captured token expires, in milliseconds since the epoch, or
+     *         {@code Long.MAX_VALUE} if it does not expire locally.
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * @return Whether the captured token has expired.
+     */
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= expiresAt;
+    }
+
+    /**
+     * Wraps a task so that it runs with this context bound to its thread.
+     *
+     * @param task The task.
+     * @return Runnable The wrapped task.
+     */
+    public Runnable wrap(Runnable task) {
+        return () -> {
+            RelayContext previous = bind(this);
+            try {
+                task.run();
+            } finally {
+                bind(previous);
+            }
+        };
+    }
+
+    /**
+     * Wraps a task so that it runs with this context bound to its thread.
+     *
+     * @param task The task.
+     * @param <T> The result type.
+     * @return Callable The wrapped task.
+     */
+    public <T> Callable<T> wrap(Callable<T> task) {
+        return () -> {
+            RelayContext previous = bind(this);
+            try {
+                return task.call();
+            } finally {
+                bind(previous);
+            }
+        };
+    }
+
+    /**
+     * Returns an executor that runs every task with this context bound, on the given executor.
+     *
+     * @param executor The executor to run the tasks on, e.g. a virtual thread per task executor.
+     * @return Executor The propagating executor.
+     */
+    public Executor executor(Executor executor) {
+        return task -> executor.execute(wrap(task));
+    }
+
+    private static RelayContext bind(RelayContext context) {
+        RelayContext previous = BOUND.get();
+        if (context == null) {
+            BOUND.remove();
+        } else {
+            BOUND.set(context);
+        }
+        return previous;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.util.Locale;
+
+import org.apache.logging.log4j.Level;
+
+/**
+ * The events the {@link TokenRelay} logs, each with a fixed level, message and field names.
+ */
+enum RelayEvent {
+
+    TOKEN_RETRIEVED(Level.INFO, "Retrieved SSO Token", "source", null),
+    TOKEN_EMPTY(Level.ERROR, "Null or empty token value", "cookie", null),
+    COOKIE_DOMAIN_INVALID(Level.ERROR, "Invalid cookie domain", "expected", "actual"),
+    COOKIE_AMBIGUOUS(Level.WARN, "Several SSO cookies with different values", "cookie", null),
+    TOKEN_INVALID(Level.WARN, "SSO token failed local validation", "source", "reason"),
+    COOKIE_DETAILS(Level.INFO, "SSO cookie details", "cookie", "details"),
+    REQUEST_DETAILS(Level.INFO, "Downstream request", "url", "action"),
+    DOMAIN_REJECTED(Level.INFO, "Token not relayed, the credential policy grants none", "host", null),
+    HEADER_SET(Level.INFO, "Authorization Header Set", "host", null),
+    COOKIE_SET(Level.INFO, "SSO Cookie Set", "host", null),
+    IDENTITY_LOOKUP_FAILED(Level.WARN, "Identity lookup failed", "host", "error"),
+    TOKEN_EXCHANGE_FAILED(Level.WARN, "Token exchange failed", "audience", "error"),
+    TOKEN_WITHHELD(Level.INFO, "Token not relayed, it was refused or revoked", "host", null),
+    TOKEN_REFUSED(Level.INFO, "Downstream service refused the token", "host", "status"),
+    CERTIFICATE_SET(Level.INFO, "Proxy certificate selected", "host", null),
+    CERTIFICATE_UNAVAILABLE(Level.WARN, "No usable proxy certificate", "host", "error"),
+    RATE_LIMITED(Level.INFO, "Downstream call over the user's rate limit", "host", "outcome"),
+    CIRCUIT_OPENED(Level.WARN, "Downstream host failing, circuit opened", "host", null),
+    CIRCUIT_CLOSED(Level.INFO, "Downstream host recovered, circuit closed", "host", null),
+    CIRCUIT_REJECTED(Level.INFO, "Downstream call not made, the circuit of the host is open", "host", null),
+    PREFETCH_FAILED(Level.INFO, "TAP metadata prefetch failed", "host", "error"),
+    AUDIT_FAILED(Level.ERROR, "Audit journal write failed", "directory", "error"),
+    TOKEN_NOT_EXCHANGED(Level.INFO, "Token not relayed, no exchanged token for the audience", "host", null);
+
+    private final Level level;
+    private final String message;
+    private final String keyField;
+    private final String valueField;
+    private final String id;
+
+    RelayEvent(Level level, String message, String keyField, String valueField) {
+        this.level = level;
+        this.message = message;
+        this.keyField = keyField;
+        this.valueField = valueField;
+        this.id = name().toLowerCase(Locale.ROOT);
+    }
+
+    Level getLevel() {
+        return level;
+    }
+
+    String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return The name of the field holding the event key, which is also the rate-limiting key.
+     */
+    String getKeyField() {
+        return keyField;
+    }
+
+    /**
+     * @return The name of the field holding the event value, or null if the event has none.
+     */
+    String getValueField() {
+        return valueField;
+    }
+
+    /**
+     * @return The lower-case event name used in log output and configuration, e.g. {@code header_set}.
+     */
+    String getId() {
+        return id;
+    }
+
+    /**
+     * Looks up an event by its lower-case name.
+     *
+     * @param id The event name, e.g. {@code domain_rejected}.
+     * @return The event, or null if there is no event with that name.
+     */
+    static RelayEvent forId(String id) {
+        for (RelayEvent event : values()) {
+            if (event.id.equalsIgnoreCase(id)) {
+                return event;
+            }
+        }
+        return null;
+    }
+}
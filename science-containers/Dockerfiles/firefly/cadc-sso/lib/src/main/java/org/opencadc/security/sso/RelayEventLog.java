@@ -0,0 +1,478 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.StringMapMessage;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * An asynchronous, rate-limited log of {@link RelayEvent}s.
+ *
+ * <p>Request threads never format or write log output. {@link #emit} first checks whether the
+ * event's level is enabled, whether the event is sampled, and whether its key is still within its
+ * per-minute rate limit; only then does it copy the event's fields into a pre-allocated slot of a
+ * bounded ring buffer. A single daemon thread drains the buffer into log4j as structured
+ * {@link StringMapMessage}s. When the buffer is full, events are dropped and counted rather than
+ * blocking the request.</p>
+ *
+ * <p>Events beyond the rate limit of a key are counted, and one summary with the number of
+ * suppressed events is logged when the key's minute is over.</p>
+ */
+final class RelayEventLog {
+
+    static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Keys beyond this many per event are rate-limited together.
+     */
+    static final int MAX_KEYS = 1024;
+    static final String OTHER_KEYS = "other";
+
+    private static final long WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SWEEP_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static volatile RelayEventLog shared;
+
+    /**
+     * Where drained events are written.
+     */
+    interface Sink {
+        boolean isEnabled(Level level);
+
+        void log(Level level, StringMapMessage message);
+    }
+
+    /**
+     * Sampling and rate limits, taken from the {@link RelayConfig} of the emitting relay.
+     */
+    static final class Policy {
+        static final Policy DEFAULT = new Policy(10, Map.of());
+
+        private final int rateLimit;
+        private final int[] sampleEvery;
+
+        /**
+         * @param rateLimit The number of events logged per key per minute, or 0 for no limit.
+         * @param sampling One in how many events of each type is considered for logging.
+         */
+        Policy(int rateLimit, Map<RelayEvent, Integer> sampling) {
+            this.rateLimit = rateLimit;
+            this.sampleEvery = new int[RelayEvent.values().length];
+            Arrays.fill(sampleEvery, 1);
+            sampling.forEach((event, every) -> sampleEvery[event.ordinal()] = Math.max(1, every));
+        }
+
+        /**
+         * Parses a sampling specification such as {@code header_set=100,token_retrieved=10}.
+         *
+         * @param rateLimit The number of events logged per key per minute, or 0 for no limit.
+         * @param sampling The sampling specification, or null for none.
+         * @return Policy The parsed policy.
+         * @throws IllegalArgumentException If an entry names an unknown event or is not a number.
+         */
+        static Policy parse(int rateLimit, String sampling) {
+            Map<RelayEvent, Integer> rates = new EnumMap<>(RelayEvent.class);
+            if (sampling != null) {
+                for (String entry : sampling.split(",")) {
+                    if (entry.isBlank()) {
+                        continue;
+                    }
+                    int equals = entry.indexOf('=');
+                    RelayEvent event = (equals < 0) ? null : RelayEvent.forId(entry.substring(0, equals).trim());
+                    if (event == null) {
+                        throw new IllegalArgumentException("Invalid log sampling entry: " + entry);
+                    }
+                    rates.put(event, Integer.parseInt(entry.substring(equals + 1).trim()));
+                }
+            }
+            return new Policy(rateLimit, rates);
+        }
+
+        int getRateLimit() {
+            return rateLimit;
+        }
+
+        int getSampleEvery(RelayEvent event) {
+            return sampleEvery[event.ordinal()];
+        }
+    }
+
+    private final Sink sink;
+    private final LongSupplier clock;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final RelayEvent[] events;
+    private final String[] keys;
+    private final String[] values;
+    private final long[] times;
+    private final AtomicLong tail = new AtomicLong();
+    private long head; // drain thread only
+    private final LongAdder dropped = new LongAdder();
+    private final List<ConcurrentHashMap<String, Window>> windows;
+    private long lastSweep;
+
+    /**
+     * Creates an event log. The log does not drain itself until {@link #start()} is called.
+     *
+     * @param sink Where drained events are written.
+     * @param capacity The ring buffer size, rounded up to a power of two.
+     * @param clock The wall clock, in milliseconds.
+     */
+    RelayEventLog(Sink sink, int capacity, LongSupplier clock) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.sink = sink;
+        this.clock = clock;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.events = new RelayEvent[size];
+        this.keys = new String[size];
+        this.values = new String[size];
+        this.times = new long[size];
+        List<ConcurrentHashMap<String, Window>> perEvent = new ArrayList<>();
+        for (int i = 0; i < RelayEvent.values().length; i++) {
+            perEvent.add(new ConcurrentHashMap<>());
+        }
+        this.windows = List.copyOf(perEvent);
+    }
+
+    /**
+     * Returns the process-wide event log, writing to the log4j logger of {@link TokenRelay}.
+     *
+     * @return RelayEventLog The shared, started event log.
+     */
+    static RelayEventLog shared() {
+        RelayEventLog log = shared;
+        if (log == null) {
+            synchronized (RelayEventLog.class) {
+                log = shared;
+                if (log == null) {
+                    log = new RelayEventLog(new Log4jSink(LogManager.getLogger(TokenRelay.class)),
+                            DEFAULT_CAPACITY, System::currentTimeMillis);
+                    log.start();
+                    shared = log;
+                }
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Starts the daemon thread that drains the buffer.
+     */
+    void start() {
+        Thread drainer = new Thread(this::drainForever, "cadc-sso-event-log");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Checks whether an event would be logged at all, so callers can skip building its fields.
+     *
+     * @param event The event.
+     * @return true if the event's level is enabled.
+     */
+    boolean isEnabled(RelayEvent event) {
+        return sink.isEnabled(event.getLevel());
+    }
+
+    /**
+     * Logs an event, subject to the level, sampling and rate limit.
+     *
+     * @param policy The sampling and rate limits to apply.
+     * @param event The event.
+     * @param key The event key, also used as the rate-limiting key; may be null.
+     * @param value The event value, or null.
+     */
+    void emit(Policy policy, RelayEvent event, String key, String value) {
+        if (!sink.isEnabled(event.getLevel())) {
+            return;
+        }
+        int every = policy.getSampleEvery(event);
+        if (every > 1 && ThreadLocalRandom.current().nextInt(every) != 0) {
+            return;
+        }
+        long now = clock.getAsLong();
+        if (policy.getRateLimit() > 0 && !admit(event, key, policy.getRateLimit(), now)) {
+            return;
+        }
+        offer(event, key, value, now);
+    }
+
+    /**
+     * @return The number of events dropped because the buffer was full.
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    private boolean admit(RelayEvent event, String key, int limit, long now) {
+        ConcurrentHashMap<String, Window> perKey = windows.get(event.ordinal());
+        String windowKey = (key == null) ? OTHER_KEYS : key;
+        Window window = perKey.get(windowKey);
+        if (window == null) {
+            if (perKey.size() >= MAX_KEYS) {
+                windowKey = OTHER_KEYS;
+            }
+            window = perKey.computeIfAbsent(windowKey, k -> new Window());
+        }
+        window.limit = limit;
+        long minute = now / WINDOW_MILLIS;
+        while (true) {
+            long state = window.state.get();
+            long stateMinute = state >>> 32;
+            int count = (int) state;
+            if (stateMinute != minute) {
+                if (window.state.compareAndSet(state, (minute << 32) | 1)) {
+                    summarize(event, windowKey, count - window.limit, now);
+                    return true;
+                }
+            } else if (count == Integer.MAX_VALUE || window.state.compareAndSet(state, state + 1)) {
+                return count < window.limit;
+            }
+        }
+    }
+
+    private void summarize(RelayEvent event, String key, int suppressed, long now) {
+        if (suppressed > 0) {
+            offer(event, key, "suppressed " + suppressed + " in the last minute", now);
+        }
+    }
+
+    /**
+     * Claims a slot and publishes the event to it, or drops the event if the buffer is full.
+     */
+    private void offer(RelayEvent event, String key, String value, long now) {
+        long position;
+        int slot;
+        while (true) {
+            position = tail.get();
+            slot = (int) (position & mask);
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                dropped.increment();
+                return;
+            }
+        }
+        events[slot] = event;
+        keys[slot] = key;
+        values[slot] = value;
+        times[slot] = now;
+        sequences.set(slot, position + 1);
+    }
+
+    /**
+     * Writes every published event to the sink. Only the drain thread, or a test standing in for it,
+     * may call this.
+     *
+     * @return The number of events written.
+     */
+    int drain() {
+        int written = 0;
+        while (true) {
+            int slot = (int) (head & mask);
+            if (sequences.get(slot) != head + 1) {
+                break;
+            }
+            RelayEvent event = events[slot];
+            String key = keys[slot];
+            String value = values[slot];
+            long time = times[slot];
+            events[slot] = null;
+            keys[slot] = null;
+            values[slot] = null;
+            sequences.set(slot, head + mask + 1);
+            head++;
+            write(event, key, value, time);
+            written++;
+        }
+        long now = clock.getAsLong();
+        if (now - lastSweep >= SWEEP_MILLIS) {
+            lastSweep = now;
+            sweep(now);
+        }
+        return written;
+    }
+
+    /**
+     * Logs the summaries of keys that went quiet after exceeding their limit, and forgets keys
+     * with no events in the current window.
+     */
+    private void sweep(long now) {
+        long minute = now / WINDOW_MILLIS;
+        for (RelayEvent event : RelayEvent.values()) {
+            Iterator<Map.Entry<String, Window>> entries = windows.get(event.ordinal()).entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, Window> entry = entries.next();
+                Window window = entry.getValue();
+                long state = window.state.get();
+                long stateMinute = state >>> 32;
+                if (stateMinute == minute) {
+                    continue;
+                }
+                if (window.state.compareAndSet(state, stateMinute << 32)) {
+                    int suppressed = (int) state - window.limit;
+                    if (suppressed > 0) {
+                        write(event, entry.getKey(), "suppressed " + suppressed + " in the last minute", now);
+                    }
+                    if ((int) state == 0) {
+                        entries.remove();
+                    }
+                }
+            }
+        }
+        long lost = dropped.sumThenReset();
+        if (lost > 0) {
+            StringMapMessage message = new StringMapMessage()
+                    .with("event", "events_dropped")
+                    .with("message", "Relay events dropped, the event log buffer was full")
+                    .with("count", Long.toString(lost));
+            sink.log(Level.WARN, message);
+        }
+    }
+
+    private void write(RelayEvent event, String key, String value, long time) {
+        StringMapMessage message = new StringMapMessage()
+                .with("event", event.getId())
+                .with("message", event.getMessage())
+                .with("time", Long.toString(time));
+        if (key != null) {
+            message.with(event.getKeyField(), key);
+        }
+        if (value != null) {
+            message.with(event.getValueField() == null ? "detail" : event.getValueField(), value);
+        }
+        sink.log(event.getLevel(), message);
+    }
+
+    private void drainForever() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (drain() == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            } catch (RuntimeException error) {
+                // Never let a logging failure stop the drain thread. Report it through log4j's own
+                // status logger, since the failing sink may be the regular log.
+                StatusLogger.getLogger().error("Unable to write relay events", error);
+            }
+        }
+    }
+
+    /**
+     * The per-minute count of one key, packed as {@code minute << 32 | count}.
+     */
+    private static final class Window {
+        private final AtomicLong state = new AtomicLong();
+        private volatile int limit;
+    }
+
+    /**
+     * Writes events to a log4j logger.
+     */
+    static final class Log4jSink implements Sink {
+        private final Logger logger;
+
+        Log4jSink(Logger logger) {
+            this.logger = logger;
+        }
+
+        @Override
+        public boolean isEnabled(Level level) {
+            return logger.isEnabled(level);
+        }
+
+        @Override
+        public void log(Level level, StringMapMessage message) {
+            logger.log(level, message);
+        }
+    }
+}
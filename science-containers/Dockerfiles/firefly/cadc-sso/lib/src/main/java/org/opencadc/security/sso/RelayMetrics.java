@@ -0,0 +1,489 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.util.Logger;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency of the {@link TokenRelay} decisions.
+ *
+ * <p>All counters are {@link LongAdder}s, so recording on the request path is a striped,
+ * uncontended increment with no allocation. The process-wide instance returned by
+ * {@link #shared()} is registered with the platform MBean server as {@value #OBJECT_NAME} and can
+ * also be scraped in the Prometheus text format, see {@link RelayMetricsServlet}.</p>
+ */
+final class RelayMetrics implements RelayMetricsMXBean {
+
+    static final String OBJECT_NAME = "org.opencadc.security.sso:type=TokenRelay,name=metrics";
+
+    /**
+     * Hosts beyond this many are counted together, so a stream of distinct hosts cannot grow the
+     * per-host counters without bound.
+     */
+    static final int MAX_HOSTS = 256;
+    static final String OTHER_HOSTS = "other";
+
+    private static final Logger.LoggerImpl LOGGER = Logger.getLogger();
+    private static volatile RelayMetrics shared;
+
+    private final LongAdder tokensFound = new LongAdder();
+    private final LongAdder tokensMissing = new LongAdder();
+    private final LongAdder tokensEmpty = new LongAdder();
+    private final LongAdder tokensInvalidDomain = new LongAdder();
+    private final LongAdder tokensAmbiguous = new LongAdder();
+    private final LongAdder tokensInvalid = new LongAdder();
+    private final LongAdder cookiesRelayed = new LongAdder();
+    private final LongAdder certificatesRelayed = new LongAdder();
+    private final LongAdder domainRejections = new LongAdder();
+    private final LongAdder tokensWithheld = new LongAdder();
+    private final LongAdder exchangeFailures = new LongAdder();
+    private final LongAdder downstreamRefusals = new LongAdder();
+    private final LongAdder rateLimitDelays = new LongAdder();
+    private final LongAdder rateLimitDelayNanos = new LongAdder();
+    private final LongAdder rateLimitRejections = new LongAdder();
+    private final LongAdder circuitRejections = new LongAdder();
+    private final LongAdder prefetchHits = new LongAdder();
+    private final LongAdder prefetchMisses = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> headersInjected = new ConcurrentHashMap<>();
+    private final LatencyHistogram setAuthCredentialLatency = new LatencyHistogram();
+    private volatile CircuitBreakers circuitBreakers;
+
+    /**
+     * Returns the process-wide metrics, registering them with JMX the first time.
+     *
+     * @return RelayMetrics The shared metrics.
+     */
+    static RelayMetrics shared() {
+        RelayMetrics metrics = shared;
+        if (metrics == null) {
+            synchronized (RelayMetrics.class) {
+                metrics = shared;
+                if (metrics == null) {
+                    metrics = new RelayMetrics();
+                    register(metrics);
+                    shared = metrics;
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, replacing any instance left behind by
+     * a previous deployment of the webapp.
+     */
+    private static void register(RelayMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (Exception error) {
+            LOGGER.warn("Unable to register " + OBJECT_NAME + ": " + error.getMessage());
+        }
+    }
+
+    void tokenFound() {
+        tokensFound.increment();
+    }
+
+    void tokenMissing() {
+        tokensMissing.increment();
+    }
+
+    void tokenEmpty() {
+        tokensEmpty.increment();
+    }
+
+    void tokenInvalidDomain() {
+        tokensInvalidDomain.increment();
+    }
+
+    void tokenAmbiguous() {
+        tokensAmbiguous.increment();
+    }
+
+    void tokenInvalid() {
+        tokensInvalid.increment();
+    }
+
+    void cookieRelayed() {
+        cookiesRelayed.increment();
+    }
+
+    void certificateRelayed() {
+        certificatesRelayed.increment();
+    }
+
+    void domainRejected() {
+        domainRejections.increment();
+    }
+
+    void tokenWithheld() {
+        tokensWithheld.increment();
+    }
+
+    void exchangeFailed() {
+        exchangeFailures.increment();
+    }
+
+    void downstreamRefused() {
+        downstreamRefusals.increment();
+    }
+
+    /**
+     * Counts a call delayed by the rate limiter.
+     *
+     * @param nanos How long the call was delayed.
+     */
+    void rateLimitDelayed(long nanos) {
+        rateLimitDelays.increment();
+        rateLimitDelayNanos.add(nanos);
+    }
+
+    void rateLimitRejected() {
+        rateLimitRejections.increment();
+    }
+
+    void circuitRejected() {
+        circuitRejections.increment();
+    }
+
+    void prefetchHit() {
+        prefetchHits.increment();
+    }
+
+    void prefetchMissed() {
+        prefetchMisses.increment();
+    }
+
+    /**
+     * Reports the circuits of the current configuration, whose state is then exposed with the
+     * counters. Cheap enough to call on every relayed call.
+     *
+     * @param circuits The circuit breakers of the configuration in use.
+     */
+    void watchCircuits(CircuitBreakers circuits) {
+        if (circuitBreakers != circuits) {
+            circuitBreakers = circuits;
+        }
+    }
+
+    /**
+     * Counts an Authorization header set for a call to the given host.
+     *
+     * @param host The destination host, or null if unknown.
+     */
+    void headerInjected(String host) {
+        String key = (host == null) ? OTHER_HOSTS : host;
+        LongAdder counter = headersInjected.get(key);
+        if (counter == null) {
+            if (headersInjected.size() >= MAX_HOSTS) {
+                key = OTHER_HOSTS;
+            }
+            counter = headersInjected.computeIfAbsent(key, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /**
+     * Records the time spent in one setAuthCredential call.
+     *
+     * @param nanos The elapsed time in nanoseconds.
+     */
+    void setAuthCredentialTime(long nanos) {
+        setAuthCredentialLatency.record(nanos);
+    }
+
+    @Override
+    public long getTokensFound() {
+        return tokensFound.sum();
+    }
+
+    @Override
+    public long getTokensMissing() {
+        return tokensMissing.sum();
+    }
+
+    @Override
+    public long getTokensEmpty() {
+        return tokensEmpty.sum();
+    }
+
+    @Override
+    public long getTokensInvalidDomain() {
+        return tokensInvalidDomain.sum();
+    }
+
+    @Override
+    public long getTokensAmbiguous() {
+        return tokensAmbiguous.sum();
+    }
+
+    @Override
+    public long getTokensInvalid() {
+        return tokensInvalid.sum();
+    }
+
+    @Override
+    public long getDomainRejections() {
+        return domainRejections.sum();
+    }
+
+    @Override
+    public long getTokensWithheld() {
+        return tokensWithheld.sum();
+    }
+
+    @Override
+    public long getExchangeFailures() {
+        return exchangeFailures.sum();
+    }
+
+    @Override
+    public long getDownstreamRefusals() {
+        return downstreamRefusals.sum();
+    }
+
+    @Override
+    public long getRateLimitDelays() {
+        return rateLimitDelays.sum();
+    }
+
+    @Override
+    public long getRateLimitDelayMillis() {
+        return rateLimitDelayNanos.sum() / 1_000_000L;
+    }
+
+    @Override
+    public long getRateLimitRejections() {
+        return rateLimitRejections.sum();
+    }
+
+    @Override
+    public long getCircuitRejections() {
+        return circuitRejections.sum();
+    }
+
+    @Override
+    public Map<String, String> getCircuitStates() {
+        Map<String, String> states = new TreeMap<>();
+        CircuitBreakers circuits = circuitBreakers;
+        if (circuits != null) {
+            for (CircuitBreakers.Health health : circuits.getHealth()) {
+                states.put(health.getHost(), health.toString());
+            }
+        }
+        return states;
+    }
+
+    @Override
+    public long getPrefetchHits() {
+        return prefetchHits.sum();
+    }
+
+    @Override
+    public long getPrefetchMisses() {
+        return prefetchMisses.sum();
+    }
+
+    @Override
+    public long getCookiesRelayed() {
+        return cookiesRelayed.sum();
+    }
+
+    @Override
+    public long getCertificatesRelayed() {
+        return certificatesRelayed.sum();
+    }
+
+    @Override
+    public Map<String, Long> getHeadersInjected() {
+        Map<String, Long> counts = new TreeMap<>();
+        headersInjected.forEach((host, counter) -> counts.put(host, counter.sum()));
+        return counts;
+    }
+
+    @Override
+    public long getSetAuthCredentialCount() {
+        return setAuthCredentialLatency.getCount();
+    }
+
+    @Override
+    public long getSetAuthCredentialMeanNanos() {
+        return setAuthCredentialLatency.getMeanNanos();
+    }
+
+    @Override
+    public long getSetAuthCredentialP99Nanos() {
+        return setAuthCredentialLatency.getQuantileNanos(0.99);
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format (version 0.0.4).
+     *
+     * @param out The writer to append to.
+     */
+    void writePrometheus(PrintWriter out) {
+        out.println("# HELP cadc_sso_tokens_total Requests by outcome of the SSO token lookup.");
+        out.println("# TYPE cadc_sso_tokens_total counter");
+        out.println("cadc_sso_tokens_total{outcome=\"found\"} " + getTokensFound());
+        out.println("cadc_sso_tokens_total{outcome=\"missing\"} " + getTokensMissing());
+        out.println("cadc_sso_tokens_total{outcome=\"empty\"} " + getTokensEmpty());
+        out.println("cadc_sso_tokens_total{outcome=\"invalid_domain\"} " + getTokensInvalidDomain());
+        out.println("cadc_sso_tokens_total{outcome=\"ambiguous\"} " + getTokensAmbiguous());
+        out.println("cadc_sso_tokens_total{outcome=\"invalid\"} " + getTokensInvalid());
+        out.println("# HELP cadc_sso_domain_rejections_total Downstream calls denied the token by the credential policy.");
+        out.println("# TYPE cadc_sso_domain_rejections_total counter");
+        out.println("cadc_sso_domain_rejections_total " + getDomainRejections());
+        out.println("# HELP cadc_sso_tokens_withheld_total Downstream calls not sent a token that was refused or revoked.");
+        out.println("# TYPE cadc_sso_tokens_withheld_total counter");
+        out.println("cadc_sso_tokens_withheld_total " + getTokensWithheld());
+        out.println("# HELP cadc_sso_exchange_failures_total Downstream calls not sent a token because it could not be exchanged.");
+        out.println("# TYPE cadc_sso_exchange_failures_total counter");
+        out.println("cadc_sso_exchange_failures_total " + getExchangeFailures());
+        out.println("# HELP cadc_sso_downstream_refusals_total Downstream 401 and 403 answers to a relayed token.");
+        out.println("# TYPE cadc_sso_downstream_refusals_total counter");
+        out.println("cadc_sso_downstream_refusals_total " + getDownstreamRefusals());
+        out.println("# HELP cadc_sso_rate_limited_total Relayed calls over the user's rate limit, by outcome.");
+        out.println("# TYPE cadc_sso_rate_limited_total counter");
+        out.println("cadc_sso_rate_limited_total{outcome=\"delayed\"} " + getRateLimitDelays());
+        out.println("cadc_sso_rate_limited_total{outcome=\"rejected\"} " + getRateLimitRejections());
+        out.println("# HELP cadc_sso_rate_limit_delay_seconds_total Time relayed calls were delayed by the rate limit.");
+        out.println("# TYPE cadc_sso_rate_limit_delay_seconds_total counter");
+        out.println("cadc_sso_rate_limit_delay_seconds_total " + (rateLimitDelayNanos.sum() / 1e9));
+        out.println("# HELP cadc_sso_circuit_rejections_total Downstream calls refused because the circuit of their host was open.");
+        out.println("# TYPE cadc_sso_circuit_rejections_total counter");
+        out.println("cadc_sso_circuit_rejections_total " + getCircuitRejections());
+        CircuitBreakers circuits = circuitBreakers;
+        if (circuits != null) {
+            writeCircuits(out, circuits.getHealth());
+        }
+        out.println("# HELP cadc_sso_prefetch_lookups_total Lookups of prefetched TAP service metadata, by outcome.");
+        out.println("# TYPE cadc_sso_prefetch_lookups_total counter");
+        out.println("cadc_sso_prefetch_lookups_total{outcome=\"hit\"} " + getPrefetchHits());
+        out.println("cadc_sso_prefetch_lookups_total{outcome=\"miss\"} " + getPrefetchMisses());
+        out.println("# HELP cadc_sso_cookies_relayed_total Downstream calls sent the token as the SSO cookie.");
+        out.println("# TYPE cadc_sso_cookies_relayed_total counter");
+        out.println("cadc_sso_cookies_relayed_total " + getCookiesRelayed());
+        out.println("# HELP cadc_sso_certificates_relayed_total Downstream calls given the proxy certificate SSLContext.");
+        out.println("# TYPE cadc_sso_certificates_relayed_total counter");
+        out.println("cadc_sso_certificates_relayed_total " + getCertificatesRelayed());
+        out.println("# HELP cadc_sso_headers_injected_total Authorization headers set, by destination host.");
+        out.println("# TYPE cadc_sso_headers_injected_total counter");
+        for (Map.Entry<String, Long> entry : getHeadersInjected().entrySet()) {
+            out.println("cadc_sso_headers_injected_total{host=\"" + escapeLabel(entry.getKey()) + "\"} " + entry.getValue());
+        }
+        out.println("# HELP cadc_sso_set_auth_credential_seconds Time spent in setAuthCredential.");
+        out.println("# TYPE cadc_sso_set_auth_credential_seconds histogram");
+        setAuthCredentialLatency.writePrometheus(out, "cadc_sso_set_auth_credential_seconds");
+    }
+
+    private static void writeCircuits(PrintWriter out, List<CircuitBreakers.Health> hosts) {
+        out.println("# HELP cadc_sso_circuit_state State of the circuit of each downstream host, 1 for the current one.");
+        out.println("# TYPE cadc_sso_circuit_state gauge");
+        for (CircuitBreakers.Health health : hosts) {
+            for (CircuitBreakers.State state : CircuitBreakers.State.values()) {
+                out.println("cadc_sso_circuit_state{host=\"" + escapeLabel(health.getHost()) + "\",state=\""
+                            + state.getId() + "\"} " + ((health.getState() == state) ? 1 : 0));
+            }
+        }
+        out.println("# HELP cadc_sso_circuit_window_calls Calls to each downstream host in the circuit window, by outcome.");
+        out.println("# TYPE cadc_sso_circuit_window_calls gauge");
+        for (CircuitBreakers.Health health : hosts) {
+            String host = escapeLabel(health.getHost());
+            out.println("cadc_sso_circuit_window_calls{host=\"" + host + "\",outcome=\"success\"} "
+                        + (health.getCalls() - health.getFailures()));
+            out.println("cadc_sso_circuit_window_calls{host=\"" + host + "\",outcome=\"failure\"} " + health.getFailures());
+        }
+        out.println("# HELP cadc_sso_circuit_window_mean_seconds Mean time of the timed calls to each downstream host in the circuit window.");
+        out.println("# TYPE cadc_sso_circuit_window_mean_seconds gauge");
+        for (CircuitBreakers.Health health : hosts) {
+            if (health.getMeanMillis() >= 0) {
+                out.println("cadc_sso_circuit_window_mean_seconds{host=\"" + escapeLabel(health.getHost()) + "\"} "
+                            + (health.getMeanMillis() / 1e3));
+            }
+        }
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
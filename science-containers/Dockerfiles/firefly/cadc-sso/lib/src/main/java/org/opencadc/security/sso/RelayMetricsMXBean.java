@@ -0,0 +1,193 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the {@link RelayMetrics}, registered as
+ * {@value RelayMetrics#OBJECT_NAME}.
+ */
+public interface RelayMetricsMXBean {
+
+    /**
+     * @return The number of requests that carried a usable SSO token.
+     */
+    long getTokensFound();
+
+    /**
+     * @return The number of requests without an SSO cookie.
+     */
+    long getTokensMissing();
+
+    /**
+     * @return The number of requests whose SSO cookie had a null or empty value.
+     */
+    long getTokensEmpty();
+
+    /**
+     * @return The number of requests whose SSO cookie was rejected for its domain.
+     */
+    long getTokensInvalidDomain();
+
+    /**
+     * @return The number of requests rejected for carrying several SSO cookies with different values.
+     */
+    long getTokensAmbiguous();
+
+    /**
+     * @return The number of requests whose SSO token failed local validation.
+     */
+    long getTokensInvalid();
+
+    /**
+     * @return The number of downstream calls denied the token because their host is not allowed.
+     */
+    long getDomainRejections();
+
+    /**
+     * @return The number of downstream calls not sent the token because it was refused or revoked.
+     */
+    long getTokensWithheld();
+
+    /**
+     * @return The number of downstream calls not sent a token because the exchange was refused or failed.
+     */
+    long getExchangeFailures();
+
+    /**
+     * @return The number of 401 and 403 answers downstream services gave to a relayed token.
+     */
+    long getDownstreamRefusals();
+
+    /**
+     * @return The number of relayed calls delayed because the user was over the rate limit for the host.
+     */
+    long getRateLimitDelays();
+
+    /**
+     * @return The total time relayed calls were delayed by the rate limit, in milliseconds.
+     */
+    long getRateLimitDelayMillis();
+
+    /**
+     * @return The number of relayed calls rejected because the user was too far over the rate limit.
+     */
+    long getRateLimitRejections();
+
+    /**
+     * @return The number of downstream calls refused because the circuit of their host was open.
+     */
+    long getCircuitRejections();
+
+    /**
+     * @return The state of the circuit and the recent calls of each tracked host, e.g.
+     *     {@code open, 18 of 20 calls failed, mean 9500 ms}.
+     */
+    Map<String, String> getCircuitStates();
+
+    /**
+     * @return The number of lookups that found prefetched TAP service metadata.
+     */
+    long getPrefetchHits();
+
+    /**
+     * @return The number of lookups of TAP service metadata that had not been prefetched.
+     */
+    long getPrefetchMisses();
+
+    /**
+     * @return The number of downstream calls sent the token as the SSO cookie.
+     */
+    long getCookiesRelayed();
+
+    /**
+     * @return The number of downstream calls given the proxy certificate SSLContext.
+     */
+    long getCertificatesRelayed();
+
+    /**
+     * @return The number of Authorization headers set, by destination host.
+     */
+    Map<String, Long> getHeadersInjected();
+
+    /**
+     * @return The number of setAuthCredential calls timed.
+     */
+    long getSetAuthCredentialCount();
+
+    /**
+     * @return The mean time spent in setAuthCredential, in nanoseconds.
+     */
+    long getSetAuthCredentialMeanNanos();
+
+    /**
+     * @return The 99th percentile of the time spent in setAuthCredential, in nanoseconds, rounded
+     *     up to a power of two.
+     */
+    long getSetAuthCredentialP99Nanos();
+}
@@ -0,0 +1,170 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.security.SsoAdapter.Token;
+
+/**
+ * The credential resolved for a single request: the SSO {@link Token} together with the
+ * ready-built {@code Authorization} header value that is relayed to downstream services.
+ *
+ * <p>The token and header value never change, so an instance can be handed out repeatedly for the
+ * lifetime of a request without copying. Instances are also shared between threads, by the
+ * {@link SessionCredentialStore} and {@link RelayContext}, so the fingerprints computed on first use
+ * are kept in volatile fields; two threads racing to compute one store the same value.</p>
+ */
+final class RequestCredential {
+
+    /**
+     * Shared instance for requests that carry no usable SSO token.
+     */
+    static final RequestCredential NONE = new RequestCredential(null);
+
+    private final Token token;
+    private final String authorization;
+    private volatile long fingerprint;
+    private volatile CredentialFingerprints.Memo cacheFingerprint;
+    private volatile CredentialFingerprints.Memo tokenFingerprint;
+
+    /**
+     * Creates a credential for the given token.
+     *
+     * @param token The resolved SSO token, or null if the request has none.
+     */
+    RequestCredential(Token token) {
+        this.token = token;
+        this.authorization = (token == null || token.getId() == null) ? null : "Bearer " + token.getId();
+    }
+
+    /**
+     * @return The resolved SSO token, or null if the request has none.
+     */
+    Token getToken() {
+        return token;
+    }
+
+    /**
+     * @return The {@code Authorization} header value, or null if the request has no token.
+     */
+    String getAuthorization() {
+        return authorization;
+    }
+
+    /**
+     * Computes the token fingerprint on first use, so only requests that need it pay for the digest.
+     *
+     * @return The {@link RejectedTokens#fingerprint(String)} of the token, or 0 if the request has none.
+     */
+    long getFingerprint() {
+        long value = fingerprint;
+        if (value == 0L && authorization != null) {
+            value = RejectedTokens.fingerprint(token.getId());
+            fingerprint = value;
+        }
+        return value;
+    }
+
+    /**
+     * @param fingerprints The fingerprints in use.
+     * @return The cache fingerprint kept by {@link #setCacheFingerprint}, or null if there is none
+     *         from these fingerprints.
+     */
+    String getCacheFingerprint(CredentialFingerprints fingerprints) {
+        CredentialFingerprints.Memo memo = cacheFingerprint;
+        return (memo == null) ? null : memo.get(fingerprints);
+    }
+
+    /**
+     * Keeps the cache fingerprint of the credential, which lives as long as its stored session.
+     *
+     * @param fingerprints The fingerprints that computed it.
+     * @param fingerprint The fingerprint.
+     */
+    void setCacheFingerprint(CredentialFingerprints fingerprints, String fingerprint) {
+        cacheFingerprint = new CredentialFingerprints.Memo(fingerprints, fingerprint);
+    }
+
+    /**
+     * Computes the keyed fingerprint of the token on first use with the given fingerprints.
+     *
+     * @param fingerprints The fingerprints in use.
+     * @return String The {@link CredentialFingerprints#forToken(String)} fingerprint, or null if
+     *         the request has no token.
+     */
+    String getTokenFingerprint(CredentialFingerprints fingerprints) {
+        if (authorization == null) {
+            return null;
+        }
+        CredentialFingerprints.Memo memo = tokenFingerprint;
+        String value = (memo == null) ? null : memo.get(fingerprints);
+        if (value == null) {
+            value = fingerprints.forToken(token.getId());
+            tokenFingerprint = new CredentialFingerprints.Memo(fingerprints, value);
+        }
+        return value;
+    }
+}
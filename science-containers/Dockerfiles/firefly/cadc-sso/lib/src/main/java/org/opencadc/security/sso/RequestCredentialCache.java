@@ -0,0 +1,144 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.RequestAgent;
+
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+
+/**
+ * Memoizes the {@link RequestCredential} resolved for the request currently being served on a thread.
+ *
+ * <p>Firefly serves a request on a single thread and hands every downstream call the same
+ * {@link RequestAgent}, so the agent identity is used as the request key. An entry is only returned
+ * while the thread is still serving the same agent; once the request ends and the thread picks up a
+ * new one, the stale entry is ignored and replaced. The agent is held weakly so a finished request
+ * is never kept alive by the cache, and the credential is dropped from the entry once the agent is
+ * collected, so a pooled thread left idle after a request does not keep its user's token.</p>
+ *
+ * <p>Entries also remember the {@link RelayConfig} they were resolved with, so adapters with a
+ * different configuration never see each other's results.</p>
+ */
+final class RequestCredentialCache {
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final ThreadLocal<Entry> current = new ThreadLocal<>();
+
+    /**
+     * Returns the credential memoized for the given request agent.
+     *
+     * @param agent The request agent of the current request.
+     * @param config The configuration the credential must have been resolved with.
+     * @return The memoized credential, or null if none was resolved for this request yet.
+     */
+    RequestCredential get(RequestAgent agent, RelayConfig config) {
+        if (agent == null) {
+            return null;
+        }
+        Entry entry = current.get();
+        if (entry == null || entry.config != config || entry.agent.get() != agent) {
+            return null;
+        }
+        return entry.credential;
+    }
+
+    /**
+     * Memoizes the credential for the given request agent, replacing any entry of a previous request.
+     *
+     * @param agent The request agent of the current request.
+     * @param config The configuration the credential was resolved with.
+     * @param credential The credential resolved for the request.
+     */
+    void put(RequestAgent agent, RelayConfig config, RequestCredential credential) {
+        if (agent != null && credential != null) {
+            Entry entry = new Entry(agent, config, credential);
+            current.set(entry);
+            CLEANER.register(agent, entry::clear);
+        }
+    }
+
+    private static final class Entry {
+        private final WeakReference<RequestAgent> agent;
+        private final RelayConfig config;
+        private volatile RequestCredential credential;
+
+        private Entry(RequestAgent agent, RelayConfig config, RequestCredential credential) {
+            this.agent = new WeakReference<>(agent);
+            this.config = config;
+            this.credential = credential;
+        }
+
+        /**
+         * Runs once the request agent is collected. Must not reach the agent, or it never would be.
+         */
+        private void clear() {
+            credential = null;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * A list of revoked tokens read from a file, e.g. one published by the identity provider.
+ *
+ * <p>The file holds one SHA-256 digest of a revoked token per line, in hexadecimal or unpadded
+ * base64url; blank lines and lines starting with {@code #} are ignored. It is memory-mapped and
+ * scanned in place, so even a list of millions of tokens is read without copying it onto the heap
+ * or creating a string per line; only the leading 64 bits of each digest are kept, in a sorted
+ * array that is searched with no allocation. The file's modification time is checked at most
+ * every {@link #CHECK_MILLIS} and the list is reloaded on a virtual thread when it changed, so
+ * request threads never wait for the file.</p>
+ */
+final class RevocationList {
+
+    static final long CHECK_MILLIS = 30_000L;
+
+    private static final Logger.LoggerImpl LOGGER = Logger.getLogger();
+    private static final long[] NONE = new long[0];
+    private static final byte[] BASE64URL = new byte[128];
+
+    static {
+        Arrays.fill(BASE64URL, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64URL[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private final Path file;
+    private final LongSupplier clock;
+    private final AtomicBoolean checking = new AtomicBoolean();
+    private volatile long[] fingerprints = NONE;
+    private volatile long nextCheck;
+    private FileTime loadedModified;
+    private boolean missing;
+
+    /**
+     * Creates the list and loads the file.
+     *
+     * @param file The revocation list file.
+     * @param clock The wall clock, in milliseconds.
+     */
+    RevocationList(Path file, LongSupplier clock) {
+        this.file = file;
+        this.clock = clock;
+        reload();
+        this.nextCheck = clock.getAsLong() + CHECK_MILLIS;
+    }
+
+    /**
+     * @param fingerprint The fingerprint of a token, see {@link RejectedTokens#fingerprint(String)}.
+     * @return Whether the token is revoked.
+     */
+    boolean contains(long fingerprint) {
+        long now = clock.getAsLong();
+        if (now >= nextCheck && checking.compareAndSet(false, true)) {
+            nextCheck = now + CHECK_MILLIS;
+            Thread.ofVirtual().name("cadc-sso-revocation-list").start(() -> {
+                try {
+                    reload();
+                } finally {
+                    checking.set(false);
+                }
+            });
+        }
+        return Arrays.binarySearch(fingerprints, fingerprint) >= 0;
+    }
+
+    /**
+     * @return The number of revoked tokens.
+     */
+    int size() {
+        return fingerprints.length;
+    }
+
+    /**
+     * Reads the file again if its modification time changed.
+     *
+     * @return Whether the list was replaced.
+     */
+    synchronized boolean reload() {
+        try {
+            FileTime modified = Files.getLastModifiedTime(file);
+            if (modified.equals(loadedModified)) {
+                return false;
+            }
+            long[] loaded;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                loaded = parse(channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()));
+            }
+            fingerprints = loaded;
+            loadedModified = modified;
+            missing = false;
+            LOGGER.info("Loaded " + loaded.length + " revoked tokens from " + file);
+            return true;
+        } catch (NoSuchFileException error) {
+            if (missing) {
+                return false;
+            }
+            LOGGER.warn("Revocation list " + file + " not found, no tokens are revoked");
+            fingerprints = NONE;
+            loadedModified = null;
+            missing = true;
+            return true;
+        } catch (IOException | IllegalArgumentException error) {
+            LOGGER.warn("Unable to read revocation list " + file + ", keeping the current one: " + error.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Reads the leading 64 bits of every digest in a file.
+     *
+     * @param buffer The file content, usually mapped.
+     * @return The sorted fingerprints.
+     */
+    static long[] parse(ByteBuffer buffer) {
+        long[] parsed = new long[64];
+        int count = 0;
+        int skipped = 0;
+        int limit = buffer.limit();
+        int position = 0;
+        while (position < limit) {
+            int end = position;
+            while (end < limit && buffer.get(end) != '\n') {
+                end++;
+            }
+            int start = position;
+            int stop = end;
+            while (start < stop && isSpace(buffer.get(start))) {
+                start++;
+            }
+            while (stop > start && isSpace(buffer.get(stop - 1))) {
+                stop--;
+            }
+            position = end + 1;
+            if (start == stop || buffer.get(start) == '#') {
+                continue;
+            }
+            long fingerprint;
+            int length = stop - start;
+            if (length == 64) {
+                fingerprint = hex(buffer, start);
+            } else if (length == 43 || (length == 44 && buffer.get(stop - 1) == '=')) {
+                fingerprint = base64url(buffer, start);
+            } else {
+                fingerprint = 0L;
+            }
+            if (fingerprint == 0L) {
+                skipped++;
+                continue;
+            }
+            if (count == parsed.length) {
+                parsed = Arrays.copyOf(parsed, count * 2);
+            }
+            parsed[count++] = fingerprint;
+        }
+        if (skipped > 0) {
+            LOGGER.warn("Skipped " + skipped + " revocation list lines that are not SHA-256 digests");
+        }
+        long[] sorted = Arrays.copyOf(parsed, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * @return The first 16 hex digits at the offset, or 0 if they are not hex digits.
+     */
+    private static long hex(ByteBuffer buffer, int offset) {
+        long value = 0L;
+        for (int i = 0; i < 16; i++) {
+            int digit = Character.digit(buffer.get(offset + i), 16);
+            if (digit < 0) {
+                return 0L;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * @return The first 64 bits of the base64url text at the offset, or 0 if it is not base64url.
+     */
+    private static long base64url(ByteBuffer buffer, int offset) {
+        long value = 0L;
+        for (int i = 0; i < 11; i++) {
+            byte b = buffer.get(offset + i);
+            int sextet = (b < 0) ? -1 : BASE64URL[b];
+            if (sextet < 0) {
+                return 0L;
+            }
+            // 11 characters carry 66 bits, of which the last character's low two are dropped
+            value = (i < 10) ? (value << 6) | sextet : (value << 4) | (sextet >>> 2);
+        }
+        return value;
+    }
+}
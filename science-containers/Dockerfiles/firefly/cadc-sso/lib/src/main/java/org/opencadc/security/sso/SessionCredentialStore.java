@@ -0,0 +1,269 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * The credentials of the user sessions a shared Firefly deployment is serving, keyed by session
+ * token.
+ *
+ * <p>When one Firefly instance serves many users, every request resolves its own user's token.
+ * This store lets a user's later requests reuse the credential resolved, and validated, by the
+ * first one. Entries are looked up by the exact token string, so a request can only ever get
+ * back the credential for the token it presented.</p>
+ *
+ * <p>The store is split into independently locked shards so that concurrent users rarely contend.
+ * Each shard holds at most its share of the capacity and drops its least recently used sessions
+ * when full. Sessions idle for longer than the idle timeout, and sessions whose token has expired,
+ * are dropped when they are next looked up or swept.</p>
+ */
+final class SessionCredentialStore {
+
+    /**
+     * Sweep a shard for idle sessions once every this many insertions.
+     */
+    private static final int SWEEP_INTERVAL = 64;
+
+    private final Shard[] shards;
+    private final int mask;
+    private final long idleMillis;
+    private final LongSupplier clock;
+
+    /**
+     * @param capacity The maximum number of sessions.
+     * @param idleMillis How long a session is kept without being used.
+     * @param clock The wall clock, in milliseconds.
+     */
+    SessionCredentialStore(int capacity, long idleMillis, LongSupplier clock) {
+        // About four shards per core, but never more shards than sessions
+        int count = Integer.highestOneBit(Math.min(64, Runtime.getRuntime().availableProcessors() * 4));
+        count = Math.max(1, Math.min(count, Integer.highestOneBit(capacity)));
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(capacity / count + ((i < capacity % count) ? 1 : 0));
+        }
+        this.mask = count - 1;
+        this.idleMillis = idleMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the credential stored for a session token.
+     *
+     * @param token The session token presented by the request.
+     * @return RequestCredential The credential, or null if the session is unknown, idle or expired.
+     */
+    RequestCredential get(String token) {
+        long now = clock.getAsLong();
+        return shardFor(token).get(token, now, idleMillis);
+    }
+
+    /**
+     * Stores the credential of a session token, evicting the least recently used session of the
+     * shard if it is full.
+     *
+     * @param token The session token.
+     * @param credential The credential resolved for the token.
+     * @param expiresAt When the token expires, in milliseconds, or Long.MAX_VALUE.
+     */
+    void put(String token, RequestCredential credential, long expiresAt) {
+        long now = clock.getAsLong();
+        shardFor(token).put(token, new Entry(credential, expiresAt, now), now, idleMillis);
+    }
+
+    /**
+     * Drops a session.
+     *
+     * @param token The session token.
+     */
+    void remove(String token) {
+        shardFor(token).remove(token);
+    }
+
+    /**
+     * Drops the idle and expired sessions of every shard.
+     *
+     * @return int The number of sessions dropped.
+     */
+    int sweep() {
+        long now = clock.getAsLong();
+        int dropped = 0;
+        for (Shard shard : shards) {
+            dropped += shard.sweep(now, idleMillis);
+        }
+        return dropped;
+    }
+
+    /**
+     * @return int The number of sessions stored, including idle ones not swept yet.
+     */
+    int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return int The number of shards.
+     */
+    int shardCount() {
+        return shards.length;
+    }
+
+    private Shard shardFor(String token) {
+        int hash = token.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & mask];
+    }
+
+    private static final class Entry {
+        private final RequestCredential credential;
+        private final long expiresAt;
+        private long lastUsed;
+
+        private Entry(RequestCredential credential, long expiresAt, long lastUsed) {
+            this.credential = credential;
+            this.expiresAt = expiresAt;
+            this.lastUsed = lastUsed;
+        }
+
+        private boolean isLive(long now, long idleMillis) {
+            return now < expiresAt && now - lastUsed < idleMillis;
+        }
+    }
+
+    /**
+     * A bounded, access-ordered map guarded by its own lock.
+     */
+    private static final class Shard {
+        private final int capacity;
+        private final LinkedHashMap<String, Entry> entries;
+        private int insertions;
+
+        private Shard(int capacity) {
+            this.capacity = capacity;
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > Shard.this.capacity;
+                }
+            };
+        }
+
+        private synchronized RequestCredential get(String token, long now, long idleMillis) {
+            Entry entry = entries.get(token);
+            if (entry == null) {
+                return null;
+            }
+            if (!entry.isLive(now, idleMillis)) {
+                entries.remove(token);
+                return null;
+            }
+            entry.lastUsed = now;
+            return entry.credential;
+        }
+
+        private synchronized void put(String token, Entry entry, long now, long idleMillis) {
+            if (capacity == 0) {
+                return;
+            }
+            entries.put(token, entry);
+            if (++insertions % SWEEP_INTERVAL == 0) {
+                sweep(now, idleMillis);
+            }
+        }
+
+        private synchronized void remove(String token) {
+            entries.remove(token);
+        }
+
+        /**
+         * Drops the idle and expired sessions.
+         */
+        private synchronized int sweep(long now, long idleMillis) {
+            int dropped = 0;
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (!entry.isLive(now, idleMillis)) {
+                    iterator.remove();
+                    dropped++;
+                }
+            }
+            return dropped;
+        }
+
+        private synchronized int size() {
+            return entries.size();
+        }
+    }
+}
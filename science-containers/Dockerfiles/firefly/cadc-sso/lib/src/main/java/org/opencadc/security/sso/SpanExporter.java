@@ -0,0 +1,355 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.util.Logger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Exports the spans of relayed calls in the OTLP/JSON format, either appended to a local file, one
+ * export request per line as the OpenTelemetry file exporter writes them, or posted to an OTLP/HTTP
+ * collector such as {@code http://otel-collector:4318/v1/traces}.
+ *
+ * <p>Finished spans go into a bounded queue, which the request thread only ever offers to; when it
+ * is full the span is dropped and counted. The first span queued after a flush starts a virtual
+ * thread that waits {@link #FLUSH_MILLIS}, so spans are batched, and then writes everything
+ * queued. No thread is left running while there is nothing to export.</p>
+ */
+final class SpanExporter {
+
+    static final long FLUSH_MILLIS = 1_000L;
+    static final int QUEUE_CAPACITY = 8192;
+
+    private static final Logger.LoggerImpl LOGGER = Logger.getLogger();
+    private static final Duration HTTP_TIMEOUT = Duration.ofSeconds(5);
+
+    private final String target;
+    private final Path file;
+    private final URI endpoint;
+    private final String serviceName;
+    private final HttpClient client;
+    private final ArrayBlockingQueue<Span> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicBoolean flushing = new AtomicBoolean();
+    private final LongAdder exported = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private boolean failing;
+
+    /**
+     * @param target A file path, or an {@code http} or {@code https} URL of an OTLP/HTTP traces endpoint.
+     * @param serviceName The {@code service.name} resource attribute of the spans.
+     */
+    SpanExporter(String target, String serviceName) {
+        this.target = target;
+        this.serviceName = serviceName;
+        if (target.startsWith("http://") || target.startsWith("https://")) {
+            this.endpoint = URI.create(target);
+            this.file = null;
+            this.client = HttpClient.newBuilder().connectTimeout(HTTP_TIMEOUT).build();
+        } else {
+            this.endpoint = null;
+            this.file = Path.of(target.startsWith("file:") ? URI.create(target).getPath() : target);
+            this.client = null;
+        }
+    }
+
+    /**
+     * Queues a finished span for export.
+     *
+     * @param span The span.
+     */
+    void export(Span span) {
+        if (!queue.offer(span)) {
+            dropped.increment();
+            return;
+        }
+        if (flushing.compareAndSet(false, true)) {
+            Thread.ofVirtual().name("cadc-sso-span-export").start(() -> {
+                try {
+                    Thread.sleep(FLUSH_MILLIS);
+                } catch (InterruptedException error) {
+                    Thread.currentThread().interrupt();
+                }
+                flushing.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * Writes every queued span now.
+     */
+    synchronized void flush() {
+        List<Span> batch = new ArrayList<>();
+        while (queue.drainTo(batch, 512) > 0) {
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes the queued spans and releases the HTTP client, once the configuration that created
+     * this is replaced.
+     */
+    void close() {
+        flush();
+        if (client != null) {
+            client.shutdown();
+        }
+    }
+
+    /**
+     * @return The number of spans written.
+     */
+    long getExported() {
+        return exported.sum();
+    }
+
+    /**
+     * @return The number of spans dropped because the queue was full or the export failed.
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    private void write(List<Span> batch) {
+        String json = toJson(batch);
+        try {
+            if (file != null) {
+                Files.writeString(file, json + "\n", StandardCharsets.UTF_8,
+                                  StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+            } else {
+                HttpResponse<Void> response = client.send(
+                        HttpRequest.newBuilder(endpoint).timeout(HTTP_TIMEOUT).header("Content-Type", "application/json")
+                                   .POST(HttpRequest.BodyPublishers.ofString(json)).build(),
+                        HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() / 100 != 2) {
+                    throw new IOException("HTTP " + response.statusCode());
+                }
+            }
+            exported.add(batch.size());
+            if (failing) {
+                failing = false;
+                LOGGER.info("Exporting spans to " + target + " again");
+            }
+        } catch (IOException error) {
+            fail(batch, error.getMessage());
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            fail(batch, "interrupted");
+        }
+    }
+
+    private void fail(List<Span> batch, String reason) {
+        dropped.add(batch.size());
+        // Warn once per outage rather than once per batch
+        if (!failing) {
+            failing = true;
+            LOGGER.warn("Unable to export spans to " + target + ", dropping them: " + reason);
+        }
+    }
+
+    /**
+     * @return The OTLP/JSON export request of the spans.
+     */
+    String toJson(List<Span> batch) {
+        StringBuilder json = new StringBuilder(256 + 384 * batch.size());
+        json.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+        attribute(json, "service.name", serviceName).append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"cadc-sso\"},\"spans\":[");
+        for (int i = 0; i < batch.size(); i++) {
+            Span span = batch.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"traceId\":\"").append(span.traceId)
+                .append("\",\"spanId\":\"").append(TraceContext.hex(span.spanId)).append('"');
+            if (span.parentSpanId != 0L) {
+                json.append(",\"parentSpanId\":\"").append(TraceContext.hex(span.parentSpanId)).append('"');
+            }
+            json.append(",\"name\":");
+            string(json, span.host);
+            json.append(",\"kind\":3,\"startTimeUnixNano\":\"").append(span.startEpochNanos)
+                .append("\",\"endTimeUnixNano\":\"").append(span.endEpochNanos).append("\",\"attributes\":[");
+            attribute(json, "server.address", span.host).append(',');
+            attribute(json, "url.full", span.url).append(',');
+            attribute(json, "cadc.sso.action", span.action);
+            if (span.status > 0) {
+                json.append(",{\"key\":\"http.response.status_code\",\"value\":{\"intValue\":\"")
+                    .append(span.status).append("\"}}");
+            }
+            json.append("],\"status\":{\"code\":").append(span.failed ? 2 : 0).append("}}");
+        }
+        return json.append("]}]}]}").toString();
+    }
+
+    private static StringBuilder attribute(StringBuilder json, String key, String value) {
+        json.append("{\"key\":\"").append(key).append("\",\"value\":{\"stringValue\":");
+        return string(json, value).append("}}");
+    }
+
+    private static StringBuilder string(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"');
+    }
+
+    /**
+     * One downstream call, from the start of {@code setAuthCredential} to the response, or to the
+     * relay decision if the response is not reported.
+     */
+    static final class Span {
+        final String traceId;
+        final long spanId;
+        final long parentSpanId;
+        final String host;
+        final String url;
+        final String action;
+        final long startEpochNanos;
+        final long startNanos;
+        volatile long decidedNanos;
+        volatile long endEpochNanos;
+        volatile int status;
+        volatile boolean failed;
+
+        /**
+         * @param trace The trace the call belongs to.
+         * @param spanId The span ID sent in the call's traceparent.
+         * @param host The destination host.
+         * @param url The request URL without its query.
+         * @param action The credential policy action of the call.
+         * @param startEpochMillis The wall clock time the call started.
+         * @param startNanos The monotonic time the call started.
+         */
+        Span(TraceContext trace, long spanId, String host, String url, String action,
+             long startEpochMillis, long startNanos) {
+            this.traceId = trace.getTraceId();
+            this.spanId = spanId;
+            this.parentSpanId = trace.getParentSpanId();
+            this.host = host;
+            this.url = url;
+            this.action = action;
+            this.startEpochNanos = startEpochMillis * 1_000_000L;
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * Ends the span.
+         *
+         * @param endNanos The monotonic time the call ended.
+         * @param failed Whether the call failed.
+         */
+        void end(long endNanos, boolean failed) {
+            this.failed = failed;
+            this.endEpochNanos = startEpochNanos + Math.max(0L, endNanos - startNanos);
+        }
+
+        /**
+         * Records the relay decision of a call that is made, which ends the span unless the
+         * response is reported.
+         *
+         * @param decidedNanos The monotonic time the relay decision was made.
+         */
+        void decide(long decidedNanos) {
+            this.decidedNanos = decidedNanos;
+            end(decidedNanos, false);
+        }
+
+        /**
+         * Ends the span with the response of the call.
+         *
+         * @param status The HTTP status code of the answer, or 0 if there was none.
+         * @param endNanos The monotonic time the response arrived.
+         */
+        void respond(int status, long endNanos) {
+            this.status = status;
+            end(endNanos, status == 0 || status >= 400);
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+
+/**
+ * Exchanges the user's SSO token for a short-lived token scoped to one downstream service, using
+ * the OAuth 2.0 token exchange grant (RFC 8693).
+ *
+ * <p>The exchange endpoint is called with a form-encoded POST naming the SSO token as the subject
+ * token and the downstream host as the audience, and is expected to answer with
+ * {@code access_token} and {@code expires_in}. Exchanged tokens are cached per user token and
+ * audience until they expire, and never beyond the expiry of the SSO token itself. Once an entry
+ * is within the refresh window of its expiry, it is still served while a background call on a
+ * virtual thread replaces it, so a user that keeps working never waits for an exchange. Only the
+ * first request of a user to an audience has no token to serve: the call runs on a virtual thread
+ * and the request waits for it for at most the configured wait, which is shorter than the call
+ * timeout. With a wait of zero the request never blocks and is sent without a credential while the
+ * call warms the cache for the next one. Concurrent requests for the same user and audience share
+ * one call.</p>
+ *
+ * <p>A 400, 401 or 403 answer means the SSO token cannot be exchanged and is cached for
+ * {@link #NEGATIVE_TTL_MILLIS} at most; other failures are not cached. In both cases no token is
+ * returned and the downstream request is sent without a credential.</p>
+ */
+final class TokenExchanger {
+
+    static final String GRANT_TYPE = "urn:ietf:params:oauth:grant-type:token-exchange";
+    static final String ACCESS_TOKEN_TYPE = "urn:ietf:params:oauth:token-type:access_token";
+    static final long NEGATIVE_TTL_MILLIS = 60_000L;
+    static final long DEFAULT_LIFETIME_MILLIS = 300_000L;
+    static final int CACHE_CAPACITY = 10_000;
+
+    /**
+     * Tokens are dropped this long before they expire, so one is never sent on its way out.
+     */
+    static final long EXPIRY_MARGIN_MILLIS = 5_000L;
+
+    private static final Entry REFUSED = new Entry(null, Long.MAX_VALUE, Long.MAX_VALUE);
+
+    private final URI endpoint;
+    private final String clientAuthorization;
+    private final long refreshAheadMillis;
+    private final Duration timeout;
+    private final long waitMillis;
+    private final LongSupplier clock;
+    private final RelayEventLog events;
+    private final RelayEventLog.Policy policy;
+    private final HttpClient client;
+    private final ExpiringCache<String, Entry> cache = new ExpiringCache<>(CACHE_CAPACITY);
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * @param endpoint The token exchange URL.
+     * @param clientId The client ID the relay authenticates to the endpoint with, or null to send none.
+     * @param clientSecret The client secret, used with the client ID.
+     * @param refreshAheadMillis How long before expiry an exchanged token is replaced in the background.
+     * @param timeout The connect and request timeout of one call.
+     * @param wait How long a request without a cached token waits for the call, zero to never wait.
+     * @param clock The wall clock, in milliseconds.
+     * @param events The log that failed calls are reported to.
+     * @param policy The rate limits of the log.
+     */
+    TokenExchanger(URI endpoint, String clientId, String clientSecret, long refreshAheadMillis, Duration timeout,
+                   Duration wait, LongSupplier clock, RelayEventLog events, RelayEventLog.Policy policy) {
+        this.endpoint = endpoint;
+        this.clientAuthorization = (clientId == null) ? null : "Basic " + Base64.getEncoder().encodeToString(
+                (form(clientId) + ":" + form(clientSecret == null ? "" : clientSecret)).getBytes(StandardCharsets.UTF_8));
+        this.refreshAheadMillis = refreshAheadMillis;
+        this.timeout = timeout;
+        this.waitMillis = Math.min(wait.toMillis(), timeout.toMillis());
+        this.clock = clock;
+        this.events = events;
+        this.policy = policy;
+        this.client = HttpClient.newBuilder().connectTimeout(timeout).build();
+    }
+
+    /**
+     * Returns a token for the given audience in exchange for the user's SSO token.
+     *
+     * @param token The SSO token.
+     * @param audience The downstream service, e.g. {@code ws-uv.canfar.net}.
+     * @return The exchanged token, or null if the exchange was refused, failed or did not finish
+     *         within the wait.
+     */
+    String exchange(String token, String audience) {
+        long now = clock.getAsLong();
+        String key = JwtValidator.hash(token) + ' ' + audience;
+        Entry entry = cache.get(key, now);
+        if (entry == null) {
+            entry = await(fetchInBackground(token, audience, key));
+        } else if (now >= entry.refreshAt) {
+            fetchInBackground(token, audience, key);
+        }
+        return (entry == null) ? null : entry.token;
+    }
+
+    /**
+     * @return The number of exchanged tokens and refusals cached.
+     */
+    int size() {
+        return cache.size();
+    }
+
+    /**
+     * Stops accepting exchanges once the configuration that created this is replaced. Calls already
+     * sent run to completion.
+     */
+    void close() {
+        client.shutdown();
+    }
+
+    /**
+     * Starts a call on a virtual thread unless one is already in flight for the key.
+     *
+     * @return CompletableFuture The call in flight.
+     */
+    private CompletableFuture<Entry> fetchInBackground(String token, String audience, String key) {
+        CompletableFuture<Entry> call = new CompletableFuture<>();
+        CompletableFuture<Entry> existing = inFlight.putIfAbsent(key, call);
+        if (existing != null) {
+            return existing;
+        }
+        Thread.ofVirtual().name("cadc-sso-token-exchange").start(() -> fetch(token, audience, key, call));
+        return call;
+    }
+
+    private Entry await(CompletableFuture<Entry> call) {
+        if (waitMillis <= 0L) {
+            return call.getNow(null);
+        }
+        try {
+            return call.get(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException error) {
+            return null;
+        }
+    }
+
+    /**
+     * Calls the endpoint, caches the answer and completes the in-flight call. Failures complete
+     * the call with null and leave any cached entry in place until it expires.
+     */
+    private void fetch(String token, String audience, String key, CompletableFuture<Entry> call) {
+        Entry entry = null;
+        try {
+            HttpRequest.Builder request = HttpRequest.newBuilder(endpoint)
+                    .timeout(timeout)
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .header("Accept", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString("grant_type=" + form(GRANT_TYPE)
+                            + "&subject_token=" + form(token)
+                            + "&subject_token_type=" + form(ACCESS_TOKEN_TYPE)
+                            + "&requested_token_type=" + form(ACCESS_TOKEN_TYPE)
+                            + "&audience=" + form(audience)));
+            if (clientAuthorization != null) {
+                request.header("Authorization", clientAuthorization);
+            }
+            HttpResponse<String> response = client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+            long now = clock.getAsLong();
+            int status = response.statusCode();
+            if (status == 200) {
+                entry = parse(response.body(), now, JwtValidator.readExpiry(token));
+                if (entry.expiresAt - EXPIRY_MARGIN_MILLIS > now) {
+                    cache.put(key, entry, entry.expiresAt - EXPIRY_MARGIN_MILLIS, now);
+                } else {
+                    entry = null;
+                }
+            } else if (status == 400 || status == 401 || status == 403) {
+                cache.put(key, REFUSED, now + NEGATIVE_TTL_MILLIS, now);
+                entry = REFUSED;
+            } else {
+                events.emit(policy, RelayEvent.TOKEN_EXCHANGE_FAILED, audience, "HTTP " + status);
+            }
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException error) {
+            events.emit(policy, RelayEvent.TOKEN_EXCHANGE_FAILED, audience, error.toString());
+        } finally {
+            inFlight.remove(key, call);
+            call.complete(entry);
+        }
+    }
+
+    /**
+     * Reads an exchanged token from a token endpoint answer.
+     *
+     * @param json The JSON answer.
+     * @param now The current time, in milliseconds.
+     * @param subjectExpiresAt When the SSO token expires, in milliseconds; the exchanged token is not used beyond it.
+     * @return Entry The token, due for refresh ahead of its expiry.
+     * @throws IllegalArgumentException If the answer holds no access token.
+     */
+    Entry parse(String json, long now, long subjectExpiresAt) {
+        Map<String, Object> document = Json.parseObject(json);
+        String accessToken = Json.string(document.get("access_token"));
+        if (accessToken == null || accessToken.isEmpty()) {
+            throw new IllegalArgumentException("No access_token in the token exchange response");
+        }
+        Object expiresIn = document.get("expires_in");
+        long expiresAt;
+        if (expiresIn instanceof Number) {
+            expiresAt = now + ((Number) expiresIn).longValue() * 1000L;
+        } else {
+            expiresAt = JwtValidator.readExpiry(accessToken);
+            if (expiresAt == Long.MAX_VALUE) {
+                expiresAt = now + DEFAULT_LIFETIME_MILLIS;
+            }
+        }
+        expiresAt = Math.min(expiresAt, subjectExpiresAt);
+        // Refresh before the cache drops the token, and halfway through the usable life of
+        // short-lived tokens rather than not at all
+        long usableUntil = expiresAt - EXPIRY_MARGIN_MILLIS;
+        long lifetime = Math.max(0L, usableUntil - now);
+        return new Entry(accessToken, usableUntil - Math.min(refreshAheadMillis, lifetime / 2), expiresAt);
+    }
+
+    private static String form(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An exchanged token and when it is due for refresh.
+     */
+    static final class Entry {
+        private final String token;
+        private final long refreshAt;
+        private final long expiresAt;
+
+        private Entry(String token, long refreshAt, long expiresAt) {
+            this.token = token;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+        }
+
+        String getToken() {
+            return token;
+        }
+
+        long getRefreshAt() {
+            return refreshAt;
+        }
+
+        long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+}
@@ -73,12 +73,12 @@ import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
 import edu.caltech.ipac.firefly.server.security.SsoAdapter;
 import edu.caltech.ipac.firefly.server.util.Logger;
 
-import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URL;
-import java.net.URISyntaxException;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.time.Duration;
+
+import javax.net.ssl.SSLContext;
 
-import javax.servlet.http.Cookie;
 
 /**
  * The {@code TokenRelay} class implements the {@link SsoAdapter} interface to handle
@@ -100,135 +100,779 @@ import javax.servlet.http.Cookie;
  * <ul>
  *   <li>CADC_SSO_COOKIE_NAME: The name of the SSO cookie (default: "CADC_SSO").</li>
  *   <li>CADC_SSO_COOKIE_DOMAIN: The domain of the SSO cookie (default: ".canfar.net").</li>
- *   <li>CADC_ALLOWED_DOMAIN: The domain of the downstream service (default: ".canfar.net").</li>
+ *   <li>CADC_ALLOWED_DOMAIN: Comma-separated hosts and domains of the downstream services (default: ".canfar.net").</li>
+ *   <li>CADC_SSO_CREDENTIAL_SOURCES: The sources the token is read from, in order: cookie, header, file (default: "cookie").</li>
+ *   <li>CADC_SSO_WHOAMI_URL: The endpoint that resolves the identity behind a token (default: none).</li>
+ *   <li>CADC_SSO_EXCHANGE_URL: The endpoint that exchanges the token for one scoped to each downstream host (default: none).</li>
+ *   <li>CADC_SSO_TRACING: Whether relayed calls continue the W3C trace of the incoming request (default: "false").</li>
+ *   <li>CADC_SSO_RATE_LIMIT: The relayed calls per second each user may make to one host (default: no limit).</li>
+ *   <li>CADC_SSO_CIRCUIT_THRESHOLD: The percentage of failed calls that short-circuits a host (default: never).</li>
  * </ul>
  * 
+ * <p>The adapter holds no mutable state: each call works on one immutable {@link RelayConfig}
+ * snapshot, swapped atomically when the configuration file is reloaded, and every resolved
+ * credential is confined to the request it belongs to, so a single instance can safely be
+ * shared by all of Firefly's request threads.</p>
+ * 
  * <p>Methods:</p>
  * <ul>
  *   <li>{@link #getAuthToken()}: Retrieves the authentication token from the SSO cookie.</li>
  *   <li>{@link #setAuthCredential(HttpServiceInput)}: Sets the authorization credential for the given HTTP service input.</li>
+ *   <li>{@link #onDownstreamResponse(String, int)}: Withholds the token from services that refused it.</li>
+ *   <li>{@link #onDownstreamResponse(String, int, long)}: Also tracks the health of the host.</li>
+ *   <li>{@link #onDownstreamResponse(HttpServiceInput, int)}: The same, for the input the call was made with.</li>
+ *   <li>{@link #getSSLContext(String)}: Returns the proxy certificate SSLContext for services that require client certificates.</li>
  *   <li>{@link #getUserInfo()}: Retrieves the user information associated with the current session.</li>
+ *   <li>{@link #getCredentialFingerprint()}: Returns a keyed fingerprint of the current request's credential.</li>
+ *   <li>{@link #getCachePartition(String)}: Returns the cache partition of a downstream call's result.</li>
+ *   <li>{@link #isCredentialed(String)}: Tells whether a downstream call's result is private.</li>
+ *   <li>{@link #getPrefetched(String)}: Returns TAP service metadata fetched in the background for the current user.</li>
  *   <li>{@link #getRequestAgent()}: Retrieves the request agent from the server context.</li>
+ *   <li>{@link #captureContext()}: Captures the credential of the current request for use on other threads.</li>
  * </ul>
  */
 public class TokenRelay implements SsoAdapter {
 
     private static final Logger.LoggerImpl LOGGER = Logger.getLogger();
-    private Token token = null;
 
     /**
-     * SSO Cookie Properties
-     * SSO_COOKIE_NAME: The name of the SSO cookie.
-     * SSO_COOKIE_DOMAIN: The domain of the SSO cookie.
+     * Configuration read from the environment variables, and the configuration file if one is
+     * set, once per process. The file is watched and reloaded when it changes.
+     */
+    private static final RelayConfigSource ENVIRONMENT_CONFIG = RelayConfigSource.fromEnvironment();
+
+    /**
+     * Structured, rate-limited log of the relay decisions made on the request path.
+     */
+    private static final RelayEventLog EVENTS = RelayEventLog.shared();
+
+    /**
+     * Per-request memo of the resolved credential. Shared by all adapter instances, since the
+     * request agent, not the adapter, identifies the request.
+     */
+    private static final RequestCredentialCache REQUEST_CACHE = new RequestCredentialCache();
+
+    /**
+     * The cache partition of results fetched without a user credential, shared by all users.
+     */
+    public static final String PUBLIC_PARTITION = CredentialFingerprints.PUBLIC;
+
+    /**
+     * The allow-list last compiled by {@link #isRequestToAllowedDomain(String, String)}.
+     */
+    private static volatile AllowedDomains lastAllowedDomains;
+
+    private final RelayConfigSource configSource;
+    private final RelayMetrics metrics;
+
+    /**
+     * Creates an adapter configured from the environment variables. This is the constructor
+     * Firefly uses when it loads the adapter named by {@code sso.framework.adapter}.
+     */
+    public TokenRelay() {
+        this(ENVIRONMENT_CONFIG, RelayMetrics.shared());
+    }
+
+    /**
+     * Creates an adapter with the given configuration. This constructor is package-private
+     * to allow for testing with a custom configuration.
+     *
+     * @param config The configuration snapshot to use.
+     */
+    TokenRelay(RelayConfig config) {
+        this(config, RelayMetrics.shared());
+    }
+
+    /**
+     * Creates an adapter with the given configuration, recording into the given metrics. This
+     * constructor is package-private to allow for testing with isolated metrics.
+     *
+     * @param config The configuration snapshot to use.
+     * @param metrics The metrics to record the relay decisions into.
      */
-    private static final String SSO_COOKIE_NAME = System.getenv().getOrDefault("CADC_SSO_COOKIE_NAME", "CADC_SSO");
-    private static final String SSO_COOKIE_DOMAIN = System.getenv().getOrDefault("CADC_SSO_COOKIE_DOMAIN", ".canfar.net");
-    private static boolean ENFORCE_DOMAIN = Boolean.parseBoolean(System.getenv().getOrDefault("CADC_SSO_ENFORCE_COOKIE_DOMAIN", "false"));
-    private static boolean DEBUG = Boolean.parseBoolean(System.getenv().getOrDefault("DEBUG", "false"));
-    
+    TokenRelay(RelayConfig config, RelayMetrics metrics) {
+        this(RelayConfigSource.fixed(config), metrics);
+    }
+
     /**
-     * Downstream Service Properties
-     * ALLOWED_DOMAIN: The domain of the downstream service.
+     * Creates an adapter that reads the current configuration from the given source at the start
+     * of every call. This constructor is package-private to allow for testing with a reloadable
+     * configuration.
+     *
+     * @param configSource The source of the configuration snapshots.
+     * @param metrics The metrics to record the relay decisions into.
      */
-    private static final String ALLOWED_DOMAIN = System.getenv().getOrDefault("CADC_ALLOWED_DOMAIN", ".canfar.net");
+    TokenRelay(RelayConfigSource configSource, RelayMetrics metrics) {
+        this.configSource = configSource;
+        this.metrics = metrics;
+    }
+
     /**
      * Retrieves the authentication token from the SSO cookie.
      * 
-     * This method retrieves the SSO cookie from the request agent and, if the cookie is not null,
-     * extracts the token value and domain. If the domain matches the expected SSO cookie domain,
-     * a new {@link Token} object is created with the token value.
+     * This method tries the configured {@link CredentialSource}s in order, by default only the
+     * SSO cookie, and creates a new {@link Token} from the first token found. For the cookie, the
+     * domain must match the expected SSO cookie domain when that is enforced.
+     * 
+     * The result is memoized for the current request, so the sources are only read once no
+     * matter how many downstream calls the request fans out into.
      * 
      * @return Token The authentication token retrieved from the SSO cookie.
      */
     @Override
     public Token getAuthToken() {
-        token = null;
-        try {
-            RequestAgent agent = getRequestAgent();
-            Cookie ssoCookie = agent.getCookie(SSO_COOKIE_NAME);
-            if (ssoCookie != null) {
-                if (DEBUG){
-                    cookieDetails(agent, ssoCookie);
-                }
-                
-                String ssoToken = ssoCookie.getValue(); // Get the value of the cookie
-                String cookieDomain = ssoCookie.getDomain(); // Get the domain of the cookie
+        return resolveRequestCredential(configSource.current()).getToken();
+    }
 
-                if (ssoToken == null || ssoToken.isEmpty()) {
-                    LOGGER.error("Null or empty token value");
-                    return null;
-                }
+    /**
+     * Captures the credential of the current request so that work continuing on other threads
+     * is authorized as this request, see {@link RelayContext}.
+     *
+     * @return RelayContext The context of the current request, never null. It carries no token
+     *         if the request has none.
+     */
+    public RelayContext captureContext() {
+        RelayConfig config = configSource.current();
+        Tracer tracer = config.getTracer();
+        return RelayContext.capture(resolveRequestCredential(config), (tracer == null) ? null : resolveTrace(tracer));
+    }
 
-                if (ENFORCE_DOMAIN) {
-                    if (cookieDomain == null || cookieDomain.isEmpty() || !cookieDomain.endsWith(SSO_COOKIE_DOMAIN)) {
-                        LOGGER.error("Invalid cookie domain. Expected: " + SSO_COOKIE_DOMAIN + ", Actual: " + cookieDomain);
-                        return null;
-                    }
+    /**
+     * Resolves the credential of the current request, reading the SSO cookie only the first time
+     * it is called for a given request. On a thread running a task bound to a
+     * {@link RelayContext}, the captured credential is used instead.
+     *
+     * @param config The configuration snapshot of the current call.
+     * @return RequestCredential The credential of the current request, never null.
+     */
+    private RequestCredential resolveRequestCredential(RelayConfig config) {
+        RelayContext context = RelayContext.bound();
+        if (context != null) {
+            return context.getCredential();
+        }
+        try {
+            RequestAgent agent = getRequestAgent();
+            RequestCredential credential = REQUEST_CACHE.get(agent, config);
+            if (credential == null) {
+                credential = readCredential(config, agent);
+                REQUEST_CACHE.put(agent, config, credential);
+                MetadataPrefetcher prefetcher = config.getPrefetcher();
+                if (prefetcher != null && credential.getAuthorization() != null) {
+                    prefetcher.prefetch(credential, this);
                 }
-                // Create a new Token object with the token value from the cookie
-                token = new Token(ssoToken);
-                LOGGER.info("Retrieved SSO Token");
             }
+            return credential;
         }
         catch (Exception error){
-            error.printStackTrace();
+            LOGGER.error(error, "Unable to resolve the SSO credential of the request");
         }
-        return token;
+        return RequestCredential.NONE;
     }
 
+    /**
+     * Resolves the trace of the current request, or the one captured by the {@link RelayContext}
+     * bound to this thread.
+     *
+     * @param tracer The tracer of the current configuration.
+     * @return TraceContext The trace the request's downstream calls join, never null.
+     */
+    private TraceContext resolveTrace(Tracer tracer) {
+        RelayContext context = RelayContext.bound();
+        if (context != null) {
+            return (context.getTrace() == null) ? TraceContext.generate() : context.getTrace();
+        }
+        try {
+            return tracer.current(getRequestAgent());
+        } catch (Exception error) {
+            return TraceContext.generate();
+        }
+    }
 
     /**
-     * Logs detailed information about the provided SSO cookie and request agent.
+     * Reads the SSO token of the given request agent from the configured credential sources,
+     * stopping at the first that has one, and validates it. A token already resolved for an
+     * earlier request of the same user session is taken from the session store.
      *
-     * @param agent The request agent associated with the cookie.
-     * @param ssoCookie The SSO cookie whose details are to be logged.
-     */
-    private void cookieDetails(RequestAgent agent, Cookie ssoCookie) {
-        LOGGER.info("==================================="); // Log the cookie properties
-        LOGGER.info("COOKIE_NAME    : " + SSO_COOKIE_NAME);
-        LOGGER.info("COOKIE_DOMAIN  : " + SSO_COOKIE_DOMAIN);
-        LOGGER.info("ENFORCE_DOMAIN : " + ENFORCE_DOMAIN);
-        LOGGER.info("==================================="); // Log the cookie properties
-        LOGGER.info("Cookie Name    : " + ssoCookie.getName());
-        LOGGER.info("Cookie Domain  : " + ssoCookie.getDomain());
-        LOGGER.info("Cookie Value   : " + ssoCookie.getValue().substring(0, 10) + "...");
-        LOGGER.info("Cookie MaxAge  : " + ssoCookie.getMaxAge());
-        LOGGER.info("Cookie Secure  : " + ssoCookie.getSecure());
-        LOGGER.info("Cookie HttpOnly: " + ssoCookie.isHttpOnly());
-        LOGGER.info("Cookie Agent   : " + agent.getClass().getName());
-        LOGGER.info("==================================="); // Log the cookie properties
-    }
-    
-    
+     * @param config The configuration snapshot of the current call.
+     * @param agent The request agent of the current request.
+     * @return RequestCredential The credential carried by the request, or
+     *         {@link RequestCredential#NONE} if it carries no valid token.
+     */
+    private RequestCredential readCredential(RelayConfig config, RequestAgent agent) {
+        boolean rejected = false;
+        for (CredentialSource source : config.getCredentialSources()) {
+            String token = source.read(agent, metrics);
+            if (token == CredentialSource.REJECTED) {
+                rejected = true;
+            } else if (token != null) {
+                return validate(config, source, token);
+            }
+        }
+        if (!rejected) {
+            metrics.tokenMissing();
+        }
+        return RequestCredential.NONE;
+    }
+
+    private RequestCredential validate(RelayConfig config, CredentialSource source, String ssoToken) {
+        SessionCredentialStore sessions = config.getSessions();
+        RequestCredential credential = (sessions == null) ? null : sessions.get(ssoToken);
+        if (credential == null) {
+            long expiresAt;
+            JwtValidator validator = config.getJwtValidator();
+            if (validator != null) {
+                JwtValidator.Result result = validator.validate(ssoToken);
+                if (!result.isValid()) {
+                    metrics.tokenInvalid();
+                    EVENTS.emit(config.getLogPolicy(), RelayEvent.TOKEN_INVALID, source.getName(), result.getReason());
+                    return RequestCredential.NONE;
+                }
+                expiresAt = result.getExpiresAt();
+            } else {
+                expiresAt = (sessions == null) ? Long.MAX_VALUE : JwtValidator.readExpiry(ssoToken);
+            }
+            // Create a new Token object with the token value from the source
+            credential = new RequestCredential(new Token(ssoToken));
+            if (sessions != null) {
+                sessions.put(ssoToken, credential, expiresAt);
+            }
+        }
+        metrics.tokenFound();
+        EVENTS.emit(config.getLogPolicy(), RelayEvent.TOKEN_RETRIEVED, source.getName(), null);
+        return credential;
+    }
+
     /**
      * Sets the authorization credential for the given HTTP service input.
      * 
-     * This method retrieves an authentication token and, if the token is not null
-     * and the request URL requires an authorization credential, sets the "Authorization"
-     * header of the HTTP service input to "Bearer " followed by the token ID.
+     * This method retrieves an authentication token and, if the token is not null, passes it on
+     * as the {@link CredentialPolicy} decides for the request URL: as an "Authorization" header
+     * of "Bearer " followed by the token ID, as the SSO cookie, or not at all. The header value is
+     * built once per request and reused for every downstream call the request makes. When
+     * {@code CADC_SSO_EXCHANGE_URL} is set, the bearer token is instead one exchanged for the
+     * destination host by the {@link TokenExchanger}, and nothing is sent if the exchange fails.
+     * 
+     * When {@code CADC_SSO_RATE_LIMIT} is set, a call that would take the user over the limit for
+     * the destination host is rejected. Only when {@code CADC_SSO_RATE_MAX_DELAY} is set is it
+     * instead held back on the calling thread until it is within the limit again, for at most
+     * that long.
+     * 
+     * When {@code CADC_SSO_CIRCUIT_THRESHOLD} is set, a call to a host the policy knows, with or
+     * without a token, is refused while the circuit of the host is open, and the host's health
+     * is probed in the background, see {@link HealthProbes}.
+     * 
+     * When {@code CADC_SSO_TRACING} is on, every call to a host the policy knows, with or without
+     * a token, also gets a {@code traceparent} header for a new span in the request's trace. With
+     * {@code CADC_SSO_TRACE_EXPORT} set, the span of a sampled call is exported once this method
+     * has made its decision.
      * 
      * @param inputs The HTTP service input for which the authorization credential is to be set.
+     * @throws RelayRejectedException If the call is over the user's rate limit for the host and
+     *                                must not be made.
+     * @throws CircuitOpenException If the host is failing and the call must not be made.
      */
     @Override
     public void setAuthCredential(HttpServiceInput inputs) {
-        Token token = getAuthToken();
+        long start = System.nanoTime();
+        try {
+            relayCredential(configSource.current(), inputs);
+        } finally {
+            metrics.setAuthCredentialTime(System.nanoTime() - start);
+        }
+    }
+
+    private void relayCredential(RelayConfig config, HttpServiceInput inputs) {
+        RequestCredential credential = resolveRequestCredential(config);
+        String authorization = credential.getAuthorization();
+        Tracer tracer = config.getTracer();
+        CircuitBreakers circuits = config.getCircuitBreakers();
+        if (authorization == null && tracer == null && circuits == null) {
+            return;
+        }
         String requestURL = inputs.getRequestUrl();
-        Boolean allowed = isRequestToAllowedDomain(requestURL, ALLOWED_DOMAIN);
-        if (token != null && token.getId() != null && allowed) {
-            inputs.setHeader("Authorization", "Bearer " + token.getId());
-            LOGGER.info("Authorization Header Set");
+        CredentialPolicy.Decision decision = config.getPolicy().decide(requestURL);
+        CredentialPolicy.Action action = (decision == null) ? CredentialPolicy.Action.NONE : decision.getAction();
+        if (circuits != null && action != CredentialPolicy.Action.NONE) {
+            // Probe first, an open circuit refuses the call but needs the probes to close again
+            HealthProbes probes = config.getHealthProbes();
+            if (probes != null) {
+                probes.probe(decision.getHost(), requestURL, this);
+            }
+            checkCircuit(config, credential, circuits, decision.getHost());
+        }
+        SpanExporter.Span span = null;
+        if (tracer != null && action != CredentialPolicy.Action.NONE) {
+            span = tracer.inject(inputs, resolveTrace(tracer), decision.getHost(), action);
+        }
+        if (authorization == null) {
+            if (span != null) {
+                tracer.decided(span);
+            }
+            return;
+        }
+        if (span == null) {
+            relayToken(config, inputs, credential, decision, action);
+            return;
+        }
+        boolean refused = true;
+        try {
+            relayToken(config, inputs, credential, decision, action);
+            refused = false;
+        } finally {
+            if (refused) {
+                tracer.end(span, true);
+            } else {
+                tracer.decided(span);
+            }
+        }
+    }
+
+    private void relayToken(RelayConfig config, HttpServiceInput inputs, RequestCredential credential,
+                            CredentialPolicy.Decision decision, CredentialPolicy.Action action) {
+        String requestURL = inputs.getRequestUrl();
+        String authorization = credential.getAuthorization();
+        if (config.isDebug() && EVENTS.isEnabled(RelayEvent.REQUEST_DETAILS)) {
+            EVENTS.emit(config.getLogPolicy(), RelayEvent.REQUEST_DETAILS, requestURL, action.getId());
+        }
+        if ((action == CredentialPolicy.Action.BEARER || action == CredentialPolicy.Action.COOKIE)
+                && isRefused(config, credential, decision.getHost())) {
+            metrics.tokenWithheld();
+            EVENTS.emit(config.getLogPolicy(), RelayEvent.TOKEN_WITHHELD, decision.getHost(), null);
+            if (config.getAuditJournal() != null) {
+                RevocationList revoked = config.getRevocationList();
+                audit(config, credential, decision.getHost(), AuditJournal.Decision.WITHHELD,
+                      (revoked != null && revoked.contains(credential.getFingerprint()))
+                              ? AuditJournal.Reason.REVOKED : AuditJournal.Reason.REFUSED);
+            }
+            return;
+        }
+        if ((action == CredentialPolicy.Action.BEARER || action == CredentialPolicy.Action.COOKIE)
+                && config.getRateLimiter() != null) {
+            awaitRateLimit(config, credential, decision.getHost());
+        }
+        switch (action) {
+            case BEARER:
+                TokenExchanger exchanger = config.getTokenExchanger();
+                if (exchanger != null) {
+                    String exchanged = exchanger.exchange(credential.getToken().getId(), decision.getHost());
+                    if (exchanged == null) {
+                        metrics.exchangeFailed();
+                        EVENTS.emit(config.getLogPolicy(), RelayEvent.TOKEN_NOT_EXCHANGED, decision.getHost(), null);
+                        audit(config, credential, decision.getHost(), AuditJournal.Decision.DENIED,
+                              AuditJournal.Reason.NOT_EXCHANGED);
+                        break;
+                    }
+                    authorization = "Bearer " + exchanged;
+                }
+                inputs.setHeader("Authorization", authorization);
+                metrics.headerInjected(decision.getHost());
+                EVENTS.emit(config.getLogPolicy(), RelayEvent.HEADER_SET, decision.getHost(), null);
+                audit(config, credential, decision.getHost(), AuditJournal.Decision.RELAYED,
+                      (exchanger == null) ? AuditJournal.Reason.BEARER : AuditJournal.Reason.EXCHANGED);
+                break;
+            case COOKIE:
+                inputs.setCookie(config.getCookieName(), credential.getToken().getId());
+                metrics.cookieRelayed();
+                EVENTS.emit(config.getLogPolicy(), RelayEvent.COOKIE_SET, decision.getHost(), null);
+                audit(config, credential, decision.getHost(), AuditJournal.Decision.RELAYED, AuditJournal.Reason.COOKIE);
+                break;
+            case CERTIFICATE:
+                // Authenticated by the SSLContext from getSSLContext, nothing goes into the request
+                break;
+            default:
+                metrics.domainRejected();
+                EVENTS.emit(config.getLogPolicy(), RelayEvent.DOMAIN_REJECTED, (decision == null) ? null : decision.getHost(), null);
+                audit(config, credential, (decision == null) ? null : decision.getHost(), AuditJournal.Decision.DENIED,
+                      AuditJournal.Reason.POLICY);
+        }
+    }
+
+    /**
+     * Journals a decision about the credential of the current request, if the journal is on, under
+     * the fingerprint of its user if one was already computed, see {@link #getCachePartition(String)},
+     * or else of its token. The identity is never resolved for the journal.
+     */
+    private static void audit(RelayConfig config, RequestCredential credential, String host,
+                              AuditJournal.Decision decision, AuditJournal.Reason reason) {
+        AuditJournal journal = config.getAuditJournal();
+        if (journal != null) {
+            CredentialFingerprints fingerprints = config.getFingerprints();
+            String fingerprint = credential.getCacheFingerprint(fingerprints);
+            journal.append((fingerprint == null) ? credential.getTokenFingerprint(fingerprints) : fingerprint,
+                           host, decision, reason);
+        }
+    }
+
+    /**
+     * @throws CircuitOpenException If the circuit of the host is open.
+     */
+    private void checkCircuit(RelayConfig config, RequestCredential credential, CircuitBreakers circuits, String host) {
+        metrics.watchCircuits(circuits);
+        long wait = circuits.acquire(host);
+        if (wait > 0L) {
+            metrics.circuitRejected();
+            EVENTS.emit(config.getLogPolicy(), RelayEvent.CIRCUIT_REJECTED, host, null);
+            audit(config, credential, host, AuditJournal.Decision.REJECTED, AuditJournal.Reason.CIRCUIT_OPEN);
+            throw new CircuitOpenException(host, wait);
+        }
+    }
+
+    /**
+     * Takes the call from the user's bucket for the host, waiting if it is over the limit.
+     *
+     * @throws RelayRejectedException If the call is over the limit by more than the maximum delay,
+     *                                or the thread is interrupted while it waits.
+     */
+    private void awaitRateLimit(RelayConfig config, RequestCredential credential, String host) {
+        long wait = config.getRateLimiter().acquire(RejectedTokens.forHost(credential.getFingerprint(), host));
+        if (wait == 0L) {
+            return;
+        }
+        if (wait < 0L) {
+            metrics.rateLimitRejected();
+            EVENTS.emit(config.getLogPolicy(), RelayEvent.RATE_LIMITED, host, "rejected");
+            audit(config, credential, host, AuditJournal.Decision.REJECTED, AuditJournal.Reason.RATE_LIMIT);
+            throw new RelayRejectedException(host, Math.max(1L, -wait / 1_000_000L));
+        }
+        metrics.rateLimitDelayed(wait);
+        EVENTS.emit(config.getLogPolicy(), RelayEvent.RATE_LIMITED, host, "delayed");
+        try {
+            Thread.sleep(Duration.ofNanos(wait));
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            throw new RelayRejectedException(host, Math.max(1L, wait / 1_000_000L));
+        }
+    }
+
+    /**
+     * @return Whether the token is revoked, or was recently refused by every service or by this host.
+     */
+    private static boolean isRefused(RelayConfig config, RequestCredential credential, String host) {
+        RevocationList revoked = config.getRevocationList();
+        RejectedTokens rejected = config.getRejectedTokens();
+        if (revoked == null && (rejected == null || rejected.size() == 0)) {
+            return false;
+        }
+        long fingerprint = credential.getFingerprint();
+        return (revoked != null && revoked.contains(fingerprint))
+               || (rejected != null && (rejected.contains(fingerprint)
+                                        || rejected.contains(RejectedTokens.forHost(fingerprint, host))));
+    }
+
+    /**
+     * Reports the status of a downstream call made with the current request's credential, as
+     * {@link #onDownstreamResponse(String, int, long)} does for a call that was not timed.
+     *
+     * @param requestURL The URL of the downstream call.
+     * @param status The HTTP status code of the answer, or 0 if there was none.
+     */
+    public void onDownstreamResponse(String requestURL, int status) {
+        onDownstreamResponse(requestURL, status, -1L);
+    }
+
+    /**
+     * Reports the outcome of a downstream call made with the current request's credential, so that
+     * a token the service refused is not sent again and a failing host is no longer called.
+     *
+     * A 401 means the token itself is no longer accepted, and it is withheld from every service
+     * for {@code CADC_SSO_REJECTED_TTL}; a 403 only withholds it from the host that answered, as
+     * do both codes when the relay sends exchanged tokens, which are scoped to one host anyway.
+     *
+     * When {@code CADC_SSO_CIRCUIT_THRESHOLD} is set, every outcome also counts towards the health
+     * of the host, see {@link CircuitBreakers}: a call with no answer, e.g. one that timed out, a
+     * 5xx answer, or one slower than {@code CADC_SSO_CIRCUIT_SLOW_CALL}, is a failure. Calls to
+     * hosts the policy does not know are ignored.
+     *
+     * @param requestURL The URL of the downstream call.
+     * @param status The HTTP status code of the answer, or 0 if there was none.
+     * @param elapsedMillis How long the call took, in milliseconds, or -1 if it was not timed.
+     */
+    public void onDownstreamResponse(String requestURL, int status, long elapsedMillis) {
+        RelayConfig config = configSource.current();
+        CircuitBreakers circuits = config.getCircuitBreakers();
+        RejectedTokens rejected = (status == 401 || status == 403) ? config.getRejectedTokens() : null;
+        if (circuits == null && rejected == null) {
+            return;
+        }
+        CredentialPolicy.Decision decision = config.getPolicy().decide(requestURL);
+        if (decision == null || decision.getAction() == CredentialPolicy.Action.NONE) {
+            return;
+        }
+        if (circuits != null) {
+            recordOutcome(config, circuits, decision.getHost(), status, elapsedMillis);
+        }
+        RequestCredential credential = (rejected == null) ? RequestCredential.NONE : resolveRequestCredential(config);
+        if (credential.getAuthorization() == null) {
+            return;
+        }
+        long fingerprint = credential.getFingerprint();
+        boolean everywhere = status == 401 && config.getTokenExchanger() == null;
+        rejected.add(everywhere ? fingerprint : RejectedTokens.forHost(fingerprint, decision.getHost()));
+        metrics.downstreamRefused();
+        EVENTS.emit(config.getLogPolicy(), RelayEvent.TOKEN_REFUSED, decision.getHost(), Integer.toString(status));
+    }
+
+    /**
+     * Records the outcome of a health probe of a host, see {@link HealthProbes}.
+     *
+     * @param host The probed host.
+     * @param status The HTTP status code of the answer, or 0 if there was none.
+     * @param elapsedMillis How long the probe took, in milliseconds.
+     */
+    void onHealthProbe(String host, int status, long elapsedMillis) {
+        RelayConfig config = configSource.current();
+        CircuitBreakers circuits = config.getCircuitBreakers();
+        if (circuits != null) {
+            recordOutcome(config, circuits, host, status, elapsedMillis);
+        }
+    }
+
+    private static void recordOutcome(RelayConfig config, CircuitBreakers circuits, String host, int status,
+                                      long elapsedMillis) {
+        CircuitBreakers.State changed = circuits.record(host, status, elapsedMillis);
+        if (changed == CircuitBreakers.State.OPEN) {
+            EVENTS.emit(config.getLogPolicy(), RelayEvent.CIRCUIT_OPENED, host, null);
+        } else if (changed == CircuitBreakers.State.CLOSED) {
+            EVENTS.emit(config.getLogPolicy(), RelayEvent.CIRCUIT_CLOSED, host, null);
         }
     }
 
+    /**
+     * Reports the response of a downstream call made with the given input, as
+     * {@link #onDownstreamResponse(String, int)} does.
+     *
+     * @param inputs The HTTP service input the call was made with, after
+     *               {@link #setAuthCredential(HttpServiceInput)}.
+     * @param status The HTTP status code of the answer, or 0 if there was none.
+     */
+    public void onDownstreamResponse(HttpServiceInput inputs, int status) {
+        onDownstreamResponse(inputs, status, -1L);
+    }
+
+    /**
+     * Reports the response of a downstream call made with the given input, as
+     * {@link #onDownstreamResponse(String, int, long)} does. With {@code CADC_SSO_TRACE_EXPORT} set,
+     * this also ends the call's span, found by its {@code traceparent}, with the status and duration.
+     *
+     * @param inputs The HTTP service input the call was made with, after
+     *               {@link #setAuthCredential(HttpServiceInput)}.
+     * @param status The HTTP status code of the answer, or 0 if there was none.
+     * @param elapsedMillis How long the call took, in milliseconds, or -1 if it was not timed.
+     */
+    public void onDownstreamResponse(HttpServiceInput inputs, int status, long elapsedMillis) {
+        Tracer tracer = configSource.current().getTracer();
+        if (tracer != null) {
+            tracer.respond(inputs, status, elapsedMillis);
+        }
+        onDownstreamResponse(inputs.getRequestUrl(), status, elapsedMillis);
+    }
+
+    /**
+     * Returns the SSLContext that authenticates a downstream call with the proxy certificate, for
+     * services the {@link CredentialPolicy} gives the {@code certificate} action.
+     *
+     * Firefly's {@link HttpServiceInput} has no way to carry a client certificate, so code that
+     * opens the connection asks for the context with this method and applies it itself, e.g.
+     * with {@code HttpsURLConnection.setSSLSocketFactory(context.getSocketFactory())}. Contexts
+     * are built once per certificate and cached until it expires, so repeated calls also reuse
+     * the context's TLS session cache.
+     *
+     * @param requestURL The URL of the downstream call.
+     * @return SSLContext The context to connect with, or null if the call is not authenticated
+     *         with a certificate or none is available.
+     */
+    public SSLContext getSSLContext(String requestURL) {
+        RelayConfig config = configSource.current();
+        FileCredentialSource file = config.getProxyCertificateFile();
+        if (file == null) {
+            return null;
+        }
+        CredentialPolicy.Decision decision = config.getPolicy().decide(requestURL);
+        if (decision == null || decision.getAction() != CredentialPolicy.Action.CERTIFICATE) {
+            return null;
+        }
+        String pem = file.getProxyCertificate();
+        if (pem == null) {
+            EVENTS.emit(config.getLogPolicy(), RelayEvent.CERTIFICATE_UNAVAILABLE, decision.getHost(),
+                        file.getName() + " holds no proxy certificate");
+            return null;
+        }
+        try {
+            SSLContext context = config.getProxyCertificateContexts().get(pem);
+            metrics.certificateRelayed();
+            EVENTS.emit(config.getLogPolicy(), RelayEvent.CERTIFICATE_SET, decision.getHost(), null);
+            AuditJournal journal = config.getAuditJournal();
+            if (journal != null) {
+                journal.append(config.getFingerprints().forCertificate(pem), decision.getHost(),
+                               AuditJournal.Decision.RELAYED, AuditJournal.Reason.CERTIFICATE);
+            }
+            return context;
+        } catch (IllegalArgumentException error) {
+            EVENTS.emit(config.getLogPolicy(), RelayEvent.CERTIFICATE_UNAVAILABLE, decision.getHost(), error.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns a stable fingerprint of the credential of the current request, for keying results
+     * that only its user may see.
+     *
+     * The fingerprint is a keyed hash, see {@link CredentialFingerprints}: of the user's login name
+     * when {@code CADC_SSO_WHOAMI_URL} is set and the identity resolves, so every token of a user
+     * maps to the same fingerprint, and of the token otherwise. It is computed once per token and
+     * reveals neither the token nor the user.
+     *
+     * @return String The fingerprint, or null if the request has no token.
+     */
+    public String getCredentialFingerprint() {
+        RelayConfig config = configSource.current();
+        RequestCredential credential = resolveRequestCredential(config);
+        return (credential.getAuthorization() == null) ? null : fingerprint(config, credential);
+    }
+
+    /**
+     * Returns the VOSI metadata document fetched in the background for the user of the current
+     * request, so that the first TAP query of a session need not wait for it.
+     *
+     * When {@code CADC_SSO_PREFETCH} is on, the first request that carries a user's token starts
+     * fetching the {@code capabilities} and {@code tables} documents of each TAP service with
+     * that token, see {@link MetadataPrefetcher}. Code about to fetch one of these documents asks
+     * for it here first and only calls the service if it gets null, e.g. because the prefetch
+     * has not finished, failed, or the document is too large to keep. Stock Firefly never calls
+     * this, so nothing is fetched until the first call, which starts fetching for its user.
+     *
+     * @param requestURL The URL of the document, e.g. {@code https://ws-uv.canfar.net/youcat/tables}.
+     * @return InputStream The document, or null if none was prefetched for the user.
+     */
+    public InputStream getPrefetched(String requestURL) {
+        RelayConfig config = configSource.current();
+        MetadataPrefetcher prefetcher = config.getPrefetcher();
+        if (prefetcher == null) {
+            return null;
+        }
+        prefetcher.markInUse();
+        RequestCredential credential = resolveRequestCredential(config);
+        byte[] document = (credential.getAuthorization() == null)
+                ? null : prefetcher.get(fingerprint(config, credential), requestURL);
+        if (document == null) {
+            metrics.prefetchMissed();
+            if (credential.getAuthorization() != null) {
+                prefetcher.prefetch(credential, this);
+            }
+            return null;
+        }
+        metrics.prefetchHit();
+        return new ByteArrayInputStream(document);
+    }
+
+    /**
+     * Returns the partition a cache should keep the result of a downstream call in, so that
+     * public results are shared across users and private ones are not.
+     *
+     * The call is credentialed if the {@link CredentialPolicy} sends the request's token to the
+     * destination and the request has one, or authenticates it with the proxy certificate. The
+     * classification follows the policy, not the transient state of the token: a token withheld
+     * after a refusal still gets its own partition, since the next call may carry it again. A
+     * result is therefore never shared unless it was fetched without a credential.
+     *
+     * Firefly's own caches do not ask for a partition, so this is for code that caches downstream
+     * results, such as a Firefly extension. Nothing is computed unless it is called.
+     *
+     * @param requestURL The URL of the downstream call.
+     * @return String {@link #PUBLIC_PARTITION} if the call carries no credential, otherwise the
+     *         fingerprint of the credential, see {@link #getCredentialFingerprint()}.
+     */
+    public String getCachePartition(String requestURL) {
+        RelayConfig config = configSource.current();
+        CredentialPolicy.Decision decision = config.getPolicy().decide(requestURL);
+        CredentialPolicy.Action action = (decision == null) ? CredentialPolicy.Action.NONE : decision.getAction();
+        switch (action) {
+            case BEARER:
+            case COOKIE:
+                RequestCredential credential = resolveRequestCredential(config);
+                return (credential.getAuthorization() == null) ? PUBLIC_PARTITION : fingerprint(config, credential);
+            case CERTIFICATE:
+                FileCredentialSource file = config.getProxyCertificateFile();
+                if (file == null) {
+                    return PUBLIC_PARTITION;
+                }
+                // An unreadable certificate may be fixed before the next call, so it is still private
+                String pem = file.getProxyCertificate();
+                return config.getFingerprints().forCertificate((pem == null) ? file.getName() : pem);
+            default:
+                return PUBLIC_PARTITION;
+        }
+    }
+
+    /**
+     * Classifies a downstream call as {@link #getCachePartition(String)} does, without computing
+     * the fingerprint.
+     *
+     * @param requestURL The URL of the downstream call.
+     * @return boolean Whether the call carries a credential and its result is private.
+     */
+    public boolean isCredentialed(String requestURL) {
+        RelayConfig config = configSource.current();
+        CredentialPolicy.Decision decision = config.getPolicy().decide(requestURL);
+        CredentialPolicy.Action action = (decision == null) ? CredentialPolicy.Action.NONE : decision.getAction();
+        switch (action) {
+            case BEARER:
+            case COOKIE:
+                return resolveRequestCredential(config).getAuthorization() != null;
+            case CERTIFICATE:
+                return config.getProxyCertificateFile() != null;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Computes the fingerprint of a credential, or takes the one kept with it. A fingerprint of the
+     * token taken while the identity could not be resolved is not kept, so the credential moves to
+     * its user's partition once the lookup succeeds.
+     */
+    private static String fingerprint(RelayConfig config, RequestCredential credential) {
+        CredentialFingerprints fingerprints = config.getFingerprints();
+        String fingerprint = credential.getCacheFingerprint(fingerprints);
+        if (fingerprint != null) {
+            return fingerprint;
+        }
+        String token = credential.getToken().getId();
+        IdentityResolver resolver = config.getIdentityResolver();
+        IdentityResolver.Identity identity = (resolver == null) ? null : resolver.resolve(token);
+        if (identity != null) {
+            fingerprint = fingerprints.forIdentity(identity.getLoginName());
+        } else {
+            fingerprint = credential.getTokenFingerprint(fingerprints);
+        }
+        if (identity != null || resolver == null) {
+            credential.setCacheFingerprint(fingerprints, fingerprint);
+        }
+        return fingerprint;
+    }
+
     /**
      * Retrieves the user information associated with the current session.
      *
-     * @return Default implementation returns an empty {@link UserInfo} object.
+     * When {@code CADC_SSO_WHOAMI_URL} is set, the CADC identity of the current token is looked
+     * up through the cached {@link IdentityResolver}. Otherwise, or when the request has no token
+     * or the lookup fails, a guest {@link UserInfo} is returned.
+     *
+     * @return UserInfo A new user record the caller may modify, never null.
      */
     @Override
     public UserInfo getUserInfo() {
-        // Return default UserInfo with no user-specific data
-        return new UserInfo();
+        RelayConfig config = configSource.current();
+        IdentityResolver resolver = config.getIdentityResolver();
+        if (resolver == null) {
+            return new UserInfo();
+        }
+        Token token = resolveRequestCredential(config).getToken();
+        if (token == null) {
+            return new UserInfo();
+        }
+        IdentityResolver.Identity identity = resolver.resolve(token.getId());
+        return (identity == null) ? new UserInfo() : identity.toUserInfo();
     }
 
     /**
@@ -244,31 +888,31 @@ public class TokenRelay implements SsoAdapter {
     /**
      * Checks if the given request URL belongs to the allowed domain.
      *
+     * <p>The allow-list compiled for the last allowed domain is reused while callers pass the same
+     * one; the adapter itself uses the allow-list compiled once into its {@link RelayConfig}.</p>
+     *
      * @param requestURL The URL of the request to be checked.
-     * @param allowedDomain The domain that is allowed.
-     * @return true if the request URL's host ends with the allowed domain, false otherwise.
+     * @param allowedDomain The allowed domain, or a comma-separated list of allowed hosts and domains.
+     * @return true if the request URL's host matches the allowed domain on a label boundary, false otherwise.
+     * @see AllowedDomains
      */
     public static boolean isRequestToAllowedDomain(String requestURL, String allowedDomain){
-        if (DEBUG){
-            LOGGER.info("Request URL    : " + requestURL);
-            LOGGER.info("Allowed Domain : " + allowedDomain);
-        }
-        URL url;
-        boolean isAllowed = false;
         if (requestURL == null || allowedDomain == null || requestURL.isEmpty() || allowedDomain.isEmpty()) {
             LOGGER.error("Invalid request or allowed URL");
             return false;
         }
+        boolean isAllowed = false;
         try {
-            url = new URI(requestURL).toURL();
-            String host = url.getHost();
-            isAllowed = host.endsWith(allowedDomain);
-        } catch (URISyntaxException err) {
-            err.printStackTrace();
-        } catch (MalformedURLException err) {
-            err.printStackTrace();
-        }
-        LOGGER.info("Valid Token Domain : " + isAllowed);
+            AllowedDomains domains = lastAllowedDomains;
+            if (domains == null || !domains.getSpec().equals(allowedDomain)) {
+                domains = AllowedDomains.compile(allowedDomain);
+                lastAllowedDomains = domains;
+            }
+            isAllowed = domains.isAllowed(requestURL);
+        } catch (IllegalArgumentException err) {
+            LOGGER.error("Invalid allowed domain: " + allowedDomain);
+        }
+        LOGGER.debug("Valid Token Domain : " + isAllowed);
         return isAllowed;
     }
-}
+}
\ No newline at end of file
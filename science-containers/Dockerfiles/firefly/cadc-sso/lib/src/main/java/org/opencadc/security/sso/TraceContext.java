@@ -0,0 +1,261 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A W3C Trace Context ({@code traceparent} and {@code tracestate}) that downstream calls join.
+ *
+ * <p>The context is either read from the incoming browser request, so the relayed calls become
+ * children of the caller's span, or started here as a new sampled trace. IDs come from
+ * {@link ThreadLocalRandom}, which is uncontended and needs no seeding per call; trace IDs are only
+ * required to be unique, not unpredictable. A child {@code traceparent} is written into one
+ * 55-character array, so injecting it costs a single string.</p>
+ */
+final class TraceContext {
+
+    static final String TRACEPARENT = "traceparent";
+    static final String TRACESTATE = "tracestate";
+
+    private static final int HEADER_LENGTH = 55;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long traceIdHigh;
+    private final long traceIdLow;
+    private final long parentSpanId;
+    private final int flags;
+    private final String traceState;
+
+    private TraceContext(long traceIdHigh, long traceIdLow, long parentSpanId, int flags, String traceState) {
+        this.traceIdHigh = traceIdHigh;
+        this.traceIdLow = traceIdLow;
+        this.parentSpanId = parentSpanId;
+        this.flags = flags;
+        this.traceState = traceState;
+    }
+
+    /**
+     * Starts a new sampled trace with no parent span.
+     *
+     * @return TraceContext The new trace.
+     */
+    static TraceContext generate() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long high = random.nextLong();
+        long low = random.nextLong();
+        return new TraceContext(high, (high == 0L && low == 0L) ? 1L : low, 0L, 1, null);
+    }
+
+    /**
+     * Reads the context of an incoming request. Version {@code 00} headers are read exactly; later
+     * versions are read by their version 00 prefix, as the specification asks.
+     *
+     * @param traceparent The {@code traceparent} header, or null.
+     * @param tracestate The {@code tracestate} header, or null.
+     * @return TraceContext The context, or null if the header is missing or invalid.
+     */
+    static TraceContext parse(String traceparent, String tracestate) {
+        if (traceparent == null || traceparent.length() < HEADER_LENGTH) {
+            return null;
+        }
+        String header = traceparent.trim();
+        if (header.length() < HEADER_LENGTH || header.charAt(2) != '-' || header.charAt(35) != '-'
+                || header.charAt(52) != '-') {
+            return null;
+        }
+        if (!isHex(header, 0, 2) || !isHex(header, 3, 35) || !isHex(header, 36, 52) || !isHex(header, 53, 55)) {
+            return null;
+        }
+        int version = (int) hex(header, 0, 2);
+        if (version == 0xff || (version == 0 && header.length() != HEADER_LENGTH)
+                || (header.length() > HEADER_LENGTH && header.charAt(HEADER_LENGTH) != '-')) {
+            return null;
+        }
+        long high = hex(header, 3, 19);
+        long low = hex(header, 19, 35);
+        long parent = hex(header, 36, 52);
+        if ((high == 0L && low == 0L) || parent == 0L) {
+            return null;
+        }
+        int flags = (int) hex(header, 53, 55);
+        String state = (tracestate == null || tracestate.isBlank()) ? null : tracestate.trim();
+        return new TraceContext(high, low, parent, flags, state);
+    }
+
+    /**
+     * Reads the span ID of a {@code traceparent} header.
+     *
+     * @param traceparent The header.
+     * @return The span ID, or 0 if the header is not a valid traceparent.
+     */
+    static long spanId(String traceparent) {
+        if (traceparent == null || traceparent.length() < HEADER_LENGTH || traceparent.charAt(52) != '-'
+                || !isHex(traceparent, 36, 52)) {
+            return 0L;
+        }
+        return hex(traceparent, 36, 52);
+    }
+
+    /**
+     * @return A new random span ID, never zero.
+     */
+    static long newSpanId() {
+        long spanId = ThreadLocalRandom.current().nextLong();
+        return (spanId == 0L) ? 1L : spanId;
+    }
+
+    /**
+     * Builds the {@code traceparent} header of a call made as a child span of this context.
+     *
+     * @param spanId The span ID of the call.
+     * @return The header value.
+     */
+    String childHeader(long spanId) {
+        char[] header = new char[HEADER_LENGTH];
+        header[0] = '0';
+        header[1] = '0';
+        header[2] = '-';
+        writeHex(header, 3, traceIdHigh);
+        writeHex(header, 19, traceIdLow);
+        header[35] = '-';
+        writeHex(header, 36, spanId);
+        header[52] = '-';
+        header[53] = HEX[(flags >>> 4) & 0xf];
+        header[54] = HEX[flags & 0xf];
+        return new String(header);
+    }
+
+    /**
+     * @return The 32 hex digits of the trace ID.
+     */
+    String getTraceId() {
+        char[] id = new char[32];
+        writeHex(id, 0, traceIdHigh);
+        writeHex(id, 16, traceIdLow);
+        return new String(id);
+    }
+
+    /**
+     * @return The span ID of the caller, or 0 if the trace was started here.
+     */
+    long getParentSpanId() {
+        return parentSpanId;
+    }
+
+    /**
+     * @return Whether the caller asked for the trace to be recorded.
+     */
+    boolean isSampled() {
+        return (flags & 1) != 0;
+    }
+
+    /**
+     * @return The incoming {@code tracestate}, passed on unchanged, or null if there was none.
+     */
+    String getTraceState() {
+        return traceState;
+    }
+
+    static String hex(long value) {
+        char[] digits = new char[16];
+        writeHex(digits, 0, value);
+        return new String(digits);
+    }
+
+    private static void writeHex(char[] target, int offset, long value) {
+        for (int i = 15; i >= 0; i--) {
+            target[offset + i] = HEX[(int) value & 0xf];
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * @return Whether the characters are all lower-case hex digits, as traceparent requires.
+     */
+    private static boolean isHex(String text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The value of up to 16 hex digits already checked with {@link #isHex}.
+     */
+    private static long hex(String text, int start, int end) {
+        long value = 0L;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            value = (value << 4) | ((c <= '9') ? c - '0' : c - 'a' + 10);
+        }
+        return value;
+    }
+}
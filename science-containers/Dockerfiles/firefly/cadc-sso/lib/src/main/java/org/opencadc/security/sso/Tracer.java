@@ -0,0 +1,271 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Propagates W3C trace context to relayed calls and records a client span for each of them.
+ *
+ * <p>The trace of a request is read from its {@code traceparent} and {@code tracestate} headers,
+ * or started here if it has none, once per request: like the {@link RequestCredentialCache}, the
+ * result is memoized on the serving thread for as long as it serves the same
+ * {@link RequestAgent}. Every relayed call then gets its own span ID in a child
+ * {@code traceparent}. When a {@link SpanExporter} is configured, sampled calls are also recorded
+ * as client spans, from the start of {@code setAuthCredential} to the response.</p>
+ *
+ * <p>A span stays open after the relay decision until the caller reports the response through
+ * {@link TokenRelay#onDownstreamResponse(HttpServiceInput, int, long)}, which finds it by the span
+ * ID of the call's {@code traceparent} and ends it with the measured duration and status. Stock
+ * Firefly reports nothing, so a span still open after {@value #OPEN_MILLIS} ms is exported as it
+ * was at the relay decision, without a status. At most {@value #OPEN_CAPACITY} spans are open;
+ * beyond that a span is exported at its decision right away. A virtual thread sweeps the open
+ * spans every {@link SpanExporter#FLUSH_MILLIS} while there are any.</p>
+ */
+final class Tracer {
+
+    static final long OPEN_MILLIS = 60_000L;
+    static final int OPEN_CAPACITY = 4096;
+
+    private final SpanExporter exporter;
+    private final LongSupplier clock;
+    private final ThreadLocal<Entry> current = new ThreadLocal<>();
+    private final ConcurrentHashMap<Long, SpanExporter.Span> open = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    /**
+     * @param exporter The exporter of finished spans, or null to only propagate the context.
+     * @param clock The wall clock, in milliseconds.
+     */
+    Tracer(SpanExporter exporter, LongSupplier clock) {
+        this.exporter = exporter;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the trace of the current request, reading its headers the first time.
+     *
+     * @param agent The request agent of the current request, or null if there is none.
+     * @return TraceContext The incoming trace, or a new one if the request carries none.
+     */
+    TraceContext current(RequestAgent agent) {
+        if (agent == null) {
+            return TraceContext.generate();
+        }
+        Entry entry = current.get();
+        if (entry != null && entry.agent.get() == agent) {
+            return entry.trace;
+        }
+        TraceContext trace = TraceContext.parse(agent.getHeader(TraceContext.TRACEPARENT),
+                                                agent.getHeader(TraceContext.TRACESTATE));
+        if (trace == null) {
+            trace = TraceContext.generate();
+        }
+        current.set(new Entry(agent, trace));
+        return trace;
+    }
+
+    /**
+     * Sets the trace headers of a relayed call and starts its span.
+     *
+     * @param inputs The downstream call.
+     * @param trace The trace of the request making the call.
+     * @param host The destination host.
+     * @param action The credential policy action of the call.
+     * @return SpanExporter.Span The span to pass to {@link #decided} or {@link #end} once the relay
+     *         decision is made, or null if the call is not recorded.
+     */
+    SpanExporter.Span inject(HttpServiceInput inputs, TraceContext trace, String host, CredentialPolicy.Action action) {
+        long spanId = TraceContext.newSpanId();
+        inputs.setHeader(TraceContext.TRACEPARENT, trace.childHeader(spanId));
+        if (trace.getTraceState() != null) {
+            inputs.setHeader(TraceContext.TRACESTATE, trace.getTraceState());
+        }
+        if (exporter == null || !trace.isSampled()) {
+            return null;
+        }
+        String url = inputs.getRequestUrl();
+        int query = url.indexOf('?');
+        return new SpanExporter.Span(trace, spanId, host, (query < 0) ? url : url.substring(0, query),
+                                     action.getId(), clock.getAsLong(), System.nanoTime());
+    }
+
+    /**
+     * Ends the span of a call the relay refused to make and queues it for export.
+     *
+     * @param span The span started by {@link #inject}.
+     * @param failed Whether the relay refused to make the call.
+     */
+    void end(SpanExporter.Span span, boolean failed) {
+        span.end(System.nanoTime(), failed);
+        exporter.export(span);
+    }
+
+    /**
+     * Records the relay decision of a call that is made, and keeps its span open until the
+     * response is reported.
+     *
+     * @param span The span started by {@link #inject}.
+     */
+    void decided(SpanExporter.Span span) {
+        span.decide(System.nanoTime());
+        if (open.size() >= OPEN_CAPACITY || open.putIfAbsent(span.spanId, span) != null) {
+            exporter.export(span);
+            return;
+        }
+        if (sweeping.compareAndSet(false, true)) {
+            Thread.ofVirtual().name("cadc-sso-span-sweep").start(this::sweep);
+        }
+    }
+
+    /**
+     * Ends the open span of a call once its response is known and queues it for export.
+     *
+     * @param inputs The downstream call, with the {@code traceparent} the relay set.
+     * @param status The HTTP status code of the answer, or 0 if there was none.
+     * @param elapsedMillis How long the call took after the relay decision, in milliseconds, or -1
+     *                      if it was not timed.
+     * @return boolean Whether a span of the call was open.
+     */
+    boolean respond(HttpServiceInput inputs, int status, long elapsedMillis) {
+        if (exporter == null || inputs.getHeaders() == null) {
+            return false;
+        }
+        long spanId = TraceContext.spanId(inputs.getHeaders().get(TraceContext.TRACEPARENT));
+        SpanExporter.Span span = (spanId == 0L) ? null : open.remove(spanId);
+        if (span == null) {
+            return false;
+        }
+        span.respond(status, (elapsedMillis < 0L) ? System.nanoTime() : span.decidedNanos + elapsedMillis * 1_000_000L);
+        exporter.export(span);
+        return true;
+    }
+
+    /**
+     * Exports the spans still open, as they were at their relay decision, and releases the
+     * exporter, once the configuration that created this is replaced.
+     */
+    void close() {
+        if (exporter == null) {
+            return;
+        }
+        expire(0L);
+        exporter.close();
+    }
+
+    /**
+     * @return SpanExporter The exporter, or null if spans are not recorded.
+     */
+    SpanExporter getExporter() {
+        return exporter;
+    }
+
+    private void sweep() {
+        while (true) {
+            try {
+                Thread.sleep(SpanExporter.FLUSH_MILLIS);
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+            }
+            expire(OPEN_MILLIS * 1_000_000L);
+            if (open.isEmpty()) {
+                sweeping.set(false);
+                // A span opened after the check restarts the sweep unless this thread keeps it
+                if (open.isEmpty() || !sweeping.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void expire(long ageNanos) {
+        long now = System.nanoTime();
+        for (Map.Entry<Long, SpanExporter.Span> entry : open.entrySet()) {
+            SpanExporter.Span span = entry.getValue();
+            if (now - span.decidedNanos >= ageNanos && open.remove(entry.getKey(), span)) {
+                exporter.export(span);
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final WeakReference<RequestAgent> agent;
+        private final TraceContext trace;
+
+        private Entry(RequestAgent agent, TraceContext trace) {
+            this.agent = new WeakReference<>(agent);
+            this.trace = trace;
+        }
+    }
+}
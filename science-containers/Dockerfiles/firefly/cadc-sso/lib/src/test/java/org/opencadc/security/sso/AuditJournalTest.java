@@ -0,0 +1,390 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuditJournalTest {
+
+    private static final String KEY = "audit-journal-test-key";
+    private static final CredentialFingerprints FINGERPRINTS = new CredentialFingerprints(KEY.getBytes(StandardCharsets.UTF_8));
+    private static final String USER_A = FINGERPRINTS.forIdentity("alice");
+    private static final String TOKEN_B = FINGERPRINTS.forToken("token-b");
+
+    @TempDir
+    Path tempDir;
+
+    private AtomicLong clock;
+
+    @BeforeEach
+    void setUp() {
+        clock = new AtomicLong(1_790_000_000_000L);
+    }
+
+    private AuditJournal journal(int segmentBytes, int maxSegments) throws IOException {
+        return new AuditJournal(tempDir, segmentBytes, maxSegments, clock::get,
+                                RelayEventLog.shared(), RelayEventLog.Policy.DEFAULT);
+    }
+
+    private List<AuditQuery.Entry> query(AuditQuery.Filter filter) throws IOException {
+        List<AuditQuery.Entry> entries = new ArrayList<>();
+        AuditQuery.query(tempDir, filter, entries::add);
+        return entries;
+    }
+
+    @Test
+    void testQueryByUserHostDecisionAndTime() throws IOException {
+        AuditJournal journal = journal(1 << 20, 4);
+        journal.append(USER_A, "ws-uv.canfar.net", AuditJournal.Decision.RELAYED, AuditJournal.Reason.BEARER);
+        clock.addAndGet(1_000L);
+        journal.append(TOKEN_B, "ws-uv.canfar.net", AuditJournal.Decision.WITHHELD, AuditJournal.Reason.REFUSED);
+        clock.addAndGet(1_000L);
+        journal.append(USER_A, "irsa.ipac.caltech.edu", AuditJournal.Decision.DENIED, AuditJournal.Reason.POLICY);
+        journal.append(null, null, AuditJournal.Decision.REJECTED, AuditJournal.Reason.CIRCUIT_OPEN);
+
+        assertEquals(4, query(new AuditQuery.Filter()).size());
+        List<AuditQuery.Entry> userA = query(new AuditQuery.Filter().user(FINGERPRINTS, "alice"));
+        assertEquals(2, userA.size());
+        assertEquals("ws-uv.canfar.net", userA.get(0).getHost());
+        assertEquals(AuditJournal.Decision.RELAYED, userA.get(0).getDecision());
+        assertEquals(AuditJournal.Reason.BEARER, userA.get(0).getReason());
+        assertEquals(1_790_000_000_000L, userA.get(0).getTimestamp());
+        assertEquals(AuditJournal.Reason.POLICY, userA.get(1).getReason());
+        assertEquals(USER_A, userA.get(0).getFingerprint());
+
+        List<AuditQuery.Entry> youcat = query(new AuditQuery.Filter().host("WS-UV.canfar.net"));
+        assertEquals(2, youcat.size());
+        assertEquals(TOKEN_B, youcat.get(1).getFingerprint());
+        assertEquals(1, query(new AuditQuery.Filter().decision(AuditJournal.Decision.WITHHELD)).size());
+        assertEquals(1, query(new AuditQuery.Filter().from(1_790_000_000_500L).to(1_790_000_001_500L)).size());
+        assertEquals(0, query(new AuditQuery.Filter().user(FINGERPRINTS, "alice").decision(AuditJournal.Decision.WITHHELD)).size());
+        assertEquals(0, query(new AuditQuery.Filter().user(FINGERPRINTS, "bob")).size());
+        assertEquals(0, query(new AuditQuery.Filter().host("irsa.ipac.caltech.edu.example.org")).size());
+        assertEquals("2026-09-21T14:13:21Z\t" + TOKEN_B + "\tws-uv.canfar.net\twithheld\trefused",
+                     query(new AuditQuery.Filter().token(FINGERPRINTS, "token-b")).get(0).toString());
+        assertEquals("2026-09-21T14:13:22Z\t-\t-\trejected\tcircuit_open",
+                     query(new AuditQuery.Filter().decision(AuditJournal.Decision.REJECTED)).get(0).toString());
+    }
+
+    @Test
+    void testSegmentsRotateAndOldOnesAreDeleted() throws IOException {
+        // Room for 4 records per segment, 3 segments kept
+        AuditJournal journal = journal(AuditJournal.HEADER_BYTES + 4 * AuditJournal.RECORD_BYTES + 7, 3);
+        for (int i = 0; i < 20; i++) {
+            clock.incrementAndGet();
+            journal.append(USER_A, "ws-uv.canfar.net", AuditJournal.Decision.RELAYED, AuditJournal.Reason.BEARER);
+        }
+
+        List<Path> segments = AuditJournal.segments(tempDir);
+        assertEquals(3, segments.size());
+        assertEquals(AuditJournal.segmentName(5), segments.get(2).getFileName().toString());
+        assertEquals(AuditJournal.HEADER_BYTES + 4 * AuditJournal.RECORD_BYTES, Files.size(segments.get(0)));
+        List<AuditQuery.Entry> kept = query(new AuditQuery.Filter());
+        assertEquals(12, kept.size());
+        assertEquals(clock.get(), kept.get(kept.size() - 1).getTimestamp());
+        // Segments before the range are skipped, the rest filtered
+        assertEquals(2, query(new AuditQuery.Filter().from(clock.get() - 1)).size());
+    }
+
+    @Test
+    void testReopenedJournalContinues() throws IOException {
+        journal(1 << 16, 4).append(USER_A, "ws-uv.canfar.net", AuditJournal.Decision.RELAYED, AuditJournal.Reason.COOKIE);
+        journal(1 << 16, 4).append(USER_A, "ws-cadc.canfar.net", AuditJournal.Decision.RELAYED, AuditJournal.Reason.BEARER);
+
+        assertEquals(2, AuditJournal.segments(tempDir).size());
+        List<AuditQuery.Entry> entries = query(new AuditQuery.Filter().fingerprint(USER_A));
+        assertEquals(List.of("ws-uv.canfar.net", "ws-cadc.canfar.net"),
+                     List.of(entries.get(0).getHost(), entries.get(1).getHost()));
+        assertEquals("1\tws-uv.canfar.net\n2\tws-cadc.canfar.net\n",
+                     Files.readString(tempDir.resolve(AuditJournal.HOSTS_FILE)));
+    }
+
+    @Test
+    void testHostsWithCollidingHashesKeepTheirNames() throws IOException {
+        // Same String.hashCode
+        assertEquals("aan.canfar.net".hashCode(), "ac0.canfar.net".hashCode());
+        AuditJournal journal = journal(1 << 16, 4);
+        journal.append(USER_A, "aan.canfar.net", AuditJournal.Decision.RELAYED, AuditJournal.Reason.BEARER);
+        journal.append(USER_A, "ac0.canfar.net", AuditJournal.Decision.DENIED, AuditJournal.Reason.POLICY);
+        journal.append(USER_A, "aan.canfar.net", AuditJournal.Decision.RELAYED, AuditJournal.Reason.BEARER);
+        // A second journal on the directory, e.g. of the next configuration, reuses the listed ids
+        journal(1 << 16, 4).append(USER_A, "ac0.canfar.net", AuditJournal.Decision.DENIED, AuditJournal.Reason.POLICY);
+
+        assertEquals(List.of("aan.canfar.net", "ac0.canfar.net", "aan.canfar.net", "ac0.canfar.net"),
+                     query(new AuditQuery.Filter()).stream().map(AuditQuery.Entry::getHost).collect(Collectors.toList()));
+        assertEquals(2, query(new AuditQuery.Filter().host("AC0.canfar.net")).size());
+        assertEquals(2, Files.readAllLines(tempDir.resolve(AuditJournal.HOSTS_FILE)).size());
+    }
+
+    @Test
+    void testFailedRotationIsRetried() throws IOException {
+        AuditJournal journal = journal(AuditJournal.HEADER_BYTES + AuditJournal.RECORD_BYTES, 100);
+        journal.append(USER_A, null, AuditJournal.Decision.RELAYED, AuditJournal.Reason.BEARER);
+        // The next segment cannot be created while the directory is gone, e.g. an unmounted volume
+        for (Path segment : AuditJournal.segments(tempDir)) {
+            Files.delete(segment);
+        }
+        Files.delete(tempDir);
+        journal.append(USER_A, null, AuditJournal.Decision.RELAYED, AuditJournal.Reason.BEARER);
+        Files.createDirectory(tempDir);
+        clock.addAndGet(AuditJournal.RETRY_MILLIS - 1);
+        journal.append(USER_A, null, AuditJournal.Decision.RELAYED, AuditJournal.Reason.BEARER);
+        assertEquals(2L, journal.getDropped());
+
+        clock.incrementAndGet();
+        journal.append(USER_A, null, AuditJournal.Decision.DENIED, AuditJournal.Reason.POLICY);
+        journal.append(USER_A, null, AuditJournal.Decision.RELAYED, AuditJournal.Reason.BEARER);
+        assertEquals(2L, journal.getDropped());
+        List<AuditQuery.Entry> entries = query(new AuditQuery.Filter());
+        assertEquals(2, entries.size());
+        assertEquals(AuditJournal.Decision.DENIED, entries.get(0).getDecision());
+    }
+
+    @Test
+    void testConcurrentAppendsAreAllJournaled() throws Exception {
+        AuditJournal journal = journal(AuditJournal.HEADER_BYTES + 1_000 * AuditJournal.RECORD_BYTES, 100);
+        int threads = 8;
+        int appends = 5_000;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            String fingerprint = FINGERPRINTS.forIdentity("user" + t);
+            pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < appends; i++) {
+                    journal.append(fingerprint, "host" + (i % 3) + ".canfar.net", AuditJournal.Decision.RELAYED,
+                                   AuditJournal.Reason.BEARER);
+                }
+                return null;
+            });
+        }
+        start.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+        List<AuditQuery.Entry> entries = query(new AuditQuery.Filter());
+        assertEquals(threads * appends, entries.size());
+        Set<String> users = new HashSet<>();
+        for (AuditQuery.Entry entry : entries) {
+            users.add(entry.getFingerprint());
+            assertTrue(entry.getHost().endsWith(".canfar.net"), entry.getHost());
+            assertEquals(AuditJournal.Decision.RELAYED, entry.getDecision());
+        }
+        assertEquals(threads, users.size());
+        assertEquals(appends, query(new AuditQuery.Filter().user(FINGERPRINTS, "user3")).size());
+        assertEquals(0L, journal.getDropped());
+    }
+
+    @Test
+    void testAppendDoesNotAllocate() throws IOException {
+        AuditJournal journal = journal(64 << 20, 2);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < 20_000; i++) {
+            journal.append(USER_A, "ws-uv.canfar.net", AuditJournal.Decision.RELAYED, AuditJournal.Reason.BEARER);
+        }
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 100_000; i++) {
+            journal.append(USER_A, "ws-uv.canfar.net", AuditJournal.Decision.RELAYED, AuditJournal.Reason.BEARER);
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        assertTrue(allocated < 100_000L, allocated + " bytes for 100000 appends");
+    }
+
+    @Test
+    void testRelayJournalsDecisions() throws IOException {
+        TokenRelay relay = RejectedTokensTest.relay(Map.of(RelayConfig.AUDIT_DIR, tempDir.toString(),
+                                                           RelayConfig.FINGERPRINT_KEY, KEY), "token-a",
+                                                    new RelayMetrics());
+
+        assertEquals("Bearer token-a", RejectedTokensTest.authorization(relay, "https://ws-uv.canfar.net/youcat/sync"));
+        assertNull(RejectedTokensTest.authorization(relay, "https://irsa.ipac.caltech.edu/TAP/sync"));
+        relay.onDownstreamResponse("https://ws-uv.canfar.net/youcat/sync", 401);
+        assertNull(RejectedTokensTest.authorization(relay, "https://ws-uv.canfar.net/youcat/sync"));
+
+        List<AuditQuery.Entry> entries = query(new AuditQuery.Filter().token(FINGERPRINTS, "token-a"));
+        assertEquals(3, entries.size());
+        assertEquals("ws-uv.canfar.net relayed bearer", describe(entries.get(0)));
+        assertEquals("irsa.ipac.caltech.edu denied policy", describe(entries.get(1)));
+        assertEquals("ws-uv.canfar.net withheld refused", describe(entries.get(2)));
+    }
+
+    @Test
+    void testRelayNeverResolvesIdentityForTheJournal() throws IOException {
+        AtomicInteger lookups = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ac/whoami", exchange -> {
+            lookups.incrementAndGet();
+            byte[] body = "{\"username\":\"jdoe\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        try {
+            TokenRelay relay = RejectedTokensTest.relay(Map.of(RelayConfig.AUDIT_DIR, tempDir.toString(),
+                                                               RelayConfig.FINGERPRINT_KEY, KEY,
+                                                               RelayConfig.WHOAMI_URL, "http://127.0.0.1:"
+                                                               + server.getAddress().getPort() + "/ac/whoami"),
+                                                        "token-j", new RelayMetrics());
+
+            assertEquals("Bearer token-j", RejectedTokensTest.authorization(relay, "https://ws-uv.canfar.net/youcat/sync"));
+            assertEquals(0, lookups.get());
+            // Once something asked for the user's fingerprint, the journal uses it
+            assertEquals(FINGERPRINTS.forIdentity("jdoe"), relay.getCredentialFingerprint());
+            assertEquals("Bearer token-j", RejectedTokensTest.authorization(relay, "https://ws-uv.canfar.net/youcat/sync"));
+            assertEquals(1, lookups.get());
+        } finally {
+            server.stop(0);
+        }
+
+        List<AuditQuery.Entry> entries = query(new AuditQuery.Filter());
+        assertEquals(2, entries.size());
+        assertEquals(FINGERPRINTS.forToken("token-j"), entries.get(0).getFingerprint());
+        assertEquals(FINGERPRINTS.forIdentity("jdoe"), entries.get(1).getFingerprint());
+    }
+
+    @Test
+    void testSettings() {
+        assertNull(RelayConfig.fromMap(Map.of()).getAuditJournal());
+        RelayConfig config = RelayConfig.fromMap(Map.of(RelayConfig.AUDIT_DIR, tempDir.toString(),
+                                                        RelayConfig.AUDIT_SEGMENT_SIZE, "1"));
+        assertEquals(tempDir, config.getAuditJournal().getDirectory());
+        assertSame(config.getAuditJournal(), RelayConfig.fromMap(Map.of(RelayConfig.AUDIT_DIR, tempDir.toString(),
+                                                                        RelayConfig.AUDIT_SEGMENT_SIZE, "1"),
+                                                                 config).getAuditJournal());
+
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(Map.of(RelayConfig.AUDIT_DIR, tempDir.toString(),
+                                                                                      RelayConfig.AUDIT_SEGMENT_SIZE, "0")));
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(Map.of(RelayConfig.AUDIT_DIR, tempDir.toString(),
+                                                                                      RelayConfig.AUDIT_SEGMENTS, "0")));
+    }
+
+    @Test
+    void testCommandLine() throws IOException {
+        AuditJournal journal = journal(1 << 16, 4);
+        journal.append(USER_A, "ws-uv.canfar.net", AuditJournal.Decision.RELAYED, AuditJournal.Reason.BEARER);
+        journal.append(TOKEN_B, "ws-uv.canfar.net", AuditJournal.Decision.RELAYED, AuditJournal.Reason.BEARER);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+        PrintStream printOut = new PrintStream(out, true, StandardCharsets.UTF_8);
+        PrintStream printErr = new PrintStream(err, true, StandardCharsets.UTF_8);
+
+        assertEquals(0, AuditQuery.run(new String[] {"--dir=" + tempDir, "--host=ws-uv.canfar.net",
+                                                     "--fingerprint=" + TOKEN_B,
+                                                     "--from=2026-01-01T00:00:00Z", "--decision=relayed"},
+                                       Map.of(), printOut, printErr));
+        String lines = out.toString(StandardCharsets.UTF_8);
+        assertEquals(1, lines.lines().count());
+        assertTrue(lines.contains(TOKEN_B));
+        assertEquals("1 decisions", err.toString(StandardCharsets.UTF_8).trim());
+
+        out.reset();
+        assertEquals(0, AuditQuery.run(new String[] {"--user=alice"},
+                                       Map.of(RelayConfig.AUDIT_DIR, tempDir.toString(), RelayConfig.FINGERPRINT_KEY, KEY),
+                                       printOut, printErr));
+        assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("2026-09-21T14:13:20Z\t" + USER_A + "\t"));
+
+        // Without the key the fingerprints cannot be computed
+        assertEquals(2, AuditQuery.run(new String[] {"--dir=" + tempDir, "--user=alice"}, Map.of(), printOut, printErr));
+        assertEquals(2, AuditQuery.run(new String[] {"--dir=" + tempDir, "--fingerprint=0123456789abcdef"},
+                                       Map.of(), printOut, printErr));
+        assertEquals(2, AuditQuery.run(new String[] {"--dir=" + tempDir, "--decision=maybe"}, Map.of(), printOut, printErr));
+        assertEquals(2, AuditQuery.run(new String[] {"--dir=" + tempDir, "--from=yesterday"}, Map.of(), printOut, printErr));
+    }
+
+    private static String describe(AuditQuery.Entry entry) {
+        return entry.getHost() + " " + entry.getDecision().getId() + " " + entry.getReason().getId();
+    }
+}
@@ -0,0 +1,551 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakersTest {
+
+    private static final long MILLI = 1_000_000L;
+    private static final String HOST = "ws-uv.canfar.net";
+
+    private AtomicLong clock;
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private volatile int status;
+    private volatile long delayMillis;
+    private final AtomicInteger served = new AtomicInteger();
+    private final Set<String> paths = ConcurrentHashMap.newKeySet();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        clock = new AtomicLong(-5_000 * MILLI);
+        status = 200;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.createContext("/youcat/sync", this::flaky);
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    /**
+     * A TAP service that answers with the current status, after the current delay.
+     */
+    private void flaky(HttpExchange exchange) throws IOException {
+        served.incrementAndGet();
+        paths.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath());
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    /**
+     * 50% of at least 4 calls in 10 s opens a circuit for 1 s.
+     */
+    private CircuitBreakers breakers(long slowCallMillis) {
+        return new CircuitBreakers(50, 4, 10_000L, slowCallMillis, 1_000L, clock::get);
+    }
+
+    @Test
+    void testOpensOnFailureRate() {
+        CircuitBreakers breakers = breakers(0L);
+
+        assertNull(breakers.record(HOST, 200, 10L));
+        assertNull(breakers.record(HOST, 503, 10L));
+        assertNull(breakers.record(HOST, 404, 10L));
+        assertEquals(0L, breakers.acquire(HOST));
+        // The fourth call reaches the minimum, and 2 of 4 failed
+        assertEquals(CircuitBreakers.State.OPEN, breakers.record(HOST, 0, -1L));
+
+        assertEquals(CircuitBreakers.State.OPEN, breakers.getState(HOST));
+        assertEquals(1_000L, breakers.acquire(HOST));
+        clock.addAndGet(400 * MILLI);
+        assertEquals(600L, breakers.acquire(HOST));
+        // Other hosts are unaffected
+        assertEquals(0L, breakers.acquire("ws-cadc.canfar.net"));
+        assertEquals(CircuitBreakers.State.CLOSED, breakers.getState("ws-cadc.canfar.net"));
+    }
+
+    @Test
+    void testStaysClosedBelowThresholdOrMinimum() {
+        CircuitBreakers breakers = breakers(0L);
+
+        for (int i = 0; i < 3; i++) {
+            assertNull(breakers.record(HOST, 500, 10L));
+        }
+        assertEquals(CircuitBreakers.State.CLOSED, breakers.getState(HOST));
+        for (int i = 0; i < 5; i++) {
+            assertNull(breakers.record(HOST, 200, 10L));
+        }
+        // 4 of 9 failed
+        assertNull(breakers.record(HOST, 502, 10L));
+        assertEquals(0L, breakers.acquire(HOST));
+
+        CircuitBreakers.Health health = breakers.getHealth().get(0);
+        assertEquals(HOST, health.getHost());
+        assertEquals(9L, health.getCalls());
+        assertEquals(4L, health.getFailures());
+        assertEquals(10L, health.getMeanMillis());
+        assertEquals("closed, 4 of 9 calls failed, mean 10 ms", health.toString());
+    }
+
+    @Test
+    void testOldFailuresLeaveTheWindow() {
+        CircuitBreakers breakers = breakers(0L);
+
+        for (int i = 0; i < 3; i++) {
+            breakers.record(HOST, 503, -1L);
+        }
+        clock.addAndGet(10_500 * MILLI);
+        assertNull(breakers.record(HOST, 503, -1L));
+        assertEquals(1L, breakers.getHealth().get(0).getCalls());
+        assertEquals(-1L, breakers.getHealth().get(0).getMeanMillis());
+        assertEquals(CircuitBreakers.State.CLOSED, breakers.getState(HOST));
+    }
+
+    @Test
+    void testSlowCallsFail() {
+        CircuitBreakers breakers = breakers(2_000L);
+
+        assertNull(breakers.record(HOST, 200, 1_000L));
+        for (int i = 0; i < 2; i++) {
+            assertNull(breakers.record(HOST, 200, 2_500L));
+        }
+        assertEquals(CircuitBreakers.State.OPEN, breakers.record(HOST, 200, 2_000L));
+        assertEquals(1_000L, breakers.acquire(HOST));
+    }
+
+    @Test
+    void testHalfOpenProbesCloseOrReopen() {
+        CircuitBreakers breakers = breakers(0L);
+        open(breakers);
+
+        clock.addAndGet(1_000 * MILLI);
+        assertEquals(CircuitBreakers.State.HALF_OPEN, breakers.getState(HOST));
+        for (int i = 0; i < CircuitBreakers.PROBES; i++) {
+            assertEquals(0L, breakers.acquire(HOST));
+        }
+        // Only the probes go through until they report
+        assertEquals(1_000L, breakers.acquire(HOST));
+        assertNull(breakers.record(HOST, 200, 5L));
+        assertEquals(CircuitBreakers.State.OPEN, breakers.record(HOST, 504, 5L));
+        assertEquals(1_000L, breakers.acquire(HOST));
+
+        clock.addAndGet(1_000 * MILLI);
+        for (int i = 0; i < CircuitBreakers.PROBES; i++) {
+            assertEquals(0L, breakers.acquire(HOST));
+        }
+        assertNull(breakers.record(HOST, 200, 5L));
+        assertNull(breakers.record(HOST, 204, 5L));
+        assertEquals(CircuitBreakers.State.CLOSED, breakers.record(HOST, 200, 5L));
+        assertEquals(0L, breakers.acquire(HOST));
+        // The failures that opened the circuit are forgotten
+        assertNull(breakers.record(HOST, 503, 5L));
+        assertEquals(CircuitBreakers.State.CLOSED, breakers.getState(HOST));
+    }
+
+    @Test
+    void testHalfOpenSuccessesOutliveTheDeadline() {
+        CircuitBreakers breakers = breakers(0L);
+        open(breakers);
+
+        // One probe call per open time, as under a trickle of calls, still closes the circuit
+        for (int i = 0; i < CircuitBreakers.PROBES - 1; i++) {
+            clock.addAndGet(1_000 * MILLI);
+            assertEquals(0L, breakers.acquire(HOST));
+            assertNull(breakers.record(HOST, 200, 5L));
+            assertEquals(CircuitBreakers.State.HALF_OPEN, breakers.getState(HOST));
+        }
+        clock.addAndGet(1_000 * MILLI);
+        assertEquals(0L, breakers.acquire(HOST));
+        assertEquals(CircuitBreakers.State.CLOSED, breakers.record(HOST, 200, 5L));
+    }
+
+    @Test
+    void testOutcomesWhileOpenCount() {
+        CircuitBreakers breakers = breakers(0L);
+        open(breakers);
+
+        // A failure starts the open time over
+        clock.addAndGet(600 * MILLI);
+        assertNull(breakers.record(HOST, 503, 5L));
+        assertEquals(1_000L, breakers.acquire(HOST));
+        // A success makes the circuit half-open, and is the first of its probes
+        assertEquals(CircuitBreakers.State.HALF_OPEN, breakers.record(HOST, 200, 5L));
+        assertEquals(0L, breakers.acquire(HOST));
+        assertNull(breakers.record(HOST, 200, 5L));
+        assertEquals(CircuitBreakers.State.CLOSED, breakers.record(HOST, 200, 5L));
+    }
+
+    @Test
+    void testProbesThatNeverReportAreReissued() {
+        CircuitBreakers breakers = breakers(0L);
+        open(breakers);
+
+        clock.addAndGet(1_000 * MILLI);
+        for (int i = 0; i < CircuitBreakers.PROBES; i++) {
+            assertEquals(0L, breakers.acquire(HOST));
+        }
+        assertTrue(breakers.acquire(HOST) > 0L);
+        clock.addAndGet(1_000 * MILLI);
+        assertEquals(0L, breakers.acquire(HOST));
+    }
+
+    @Test
+    void testConcurrentFailuresOpenOnce() throws Exception {
+        CircuitBreakers breakers = new CircuitBreakers(50, 100, 10_000L, 0L, 60_000L, clock::get);
+        AtomicInteger opened = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            for (int t = 0; t < 8; t++) {
+                threads.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 1_000; i++) {
+                        if (breakers.record(HOST, 503, 1L) == CircuitBreakers.State.OPEN) {
+                            opened.incrementAndGet();
+                        }
+                    }
+                    return null;
+                });
+            }
+            start.countDown();
+        } finally {
+            threads.shutdown();
+            assertTrue(threads.awaitTermination(10, java.util.concurrent.TimeUnit.SECONDS));
+        }
+
+        assertEquals(1, opened.get());
+        assertEquals(CircuitBreakers.State.OPEN, breakers.getState(HOST));
+    }
+
+    @Test
+    void testHostsBeyondCapAreNotTracked() {
+        CircuitBreakers breakers = breakers(0L);
+        for (int i = 0; i < RelayMetrics.MAX_HOSTS; i++) {
+            breakers.record("host" + i + ".canfar.net", 200, 1L);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertNull(breakers.record("extra.canfar.net", 503, 1L));
+        }
+
+        assertEquals(0L, breakers.acquire("extra.canfar.net"));
+        assertEquals(RelayMetrics.MAX_HOSTS, breakers.getHealth().size());
+    }
+
+    @Test
+    void testSettings() {
+        assertNull(RelayConfig.fromMap(Map.of()).getCircuitBreakers());
+        RelayConfig config = RelayConfig.fromMap(Map.of(RelayConfig.CIRCUIT_THRESHOLD, "50"));
+        assertNotNull(config.getCircuitBreakers());
+        assertSame(config.getCircuitBreakers(),
+                   RelayConfig.fromMap(Map.of(RelayConfig.CIRCUIT_THRESHOLD, "50"), config).getCircuitBreakers());
+        assertNotSame(config.getCircuitBreakers(),
+                      RelayConfig.fromMap(Map.of(RelayConfig.CIRCUIT_THRESHOLD, "50", RelayConfig.CIRCUIT_OPEN, "5"),
+                                          config).getCircuitBreakers());
+
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(Map.of(RelayConfig.CIRCUIT_THRESHOLD, "101")));
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(Map.of(RelayConfig.CIRCUIT_THRESHOLD, "-1")));
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(Map.of(RelayConfig.CIRCUIT_THRESHOLD, "50",
+                                                                                      RelayConfig.CIRCUIT_MIN_CALLS, "0")));
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(Map.of(RelayConfig.CIRCUIT_THRESHOLD, "50",
+                                                                                      RelayConfig.CIRCUIT_OPEN, "0")));
+
+        // Hosts are probed whenever calls are short-circuited, unless probing is off
+        assertNull(RelayConfig.fromMap(Map.of(RelayConfig.CIRCUIT_PROBE, "10")).getHealthProbes());
+        assertNotNull(config.getHealthProbes());
+        assertSame(config.getHealthProbes(),
+                   RelayConfig.fromMap(Map.of(RelayConfig.CIRCUIT_THRESHOLD, "50", RelayConfig.CIRCUIT_OPEN, "5"),
+                                       config).getHealthProbes());
+        assertNull(RelayConfig.fromMap(Map.of(RelayConfig.CIRCUIT_THRESHOLD, "50", RelayConfig.CIRCUIT_PROBE, "0"))
+                           .getHealthProbes());
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(Map.of(RelayConfig.CIRCUIT_THRESHOLD, "50",
+                                                                                      RelayConfig.CIRCUIT_PROBE, "-1")));
+    }
+
+    @Test
+    void testProbesOpenCircuitOfFailingHost() throws Exception {
+        server.createContext("/", this::flaky);
+        RelayMetrics metrics = new RelayMetrics();
+        TokenRelay relay = RejectedTokensTest.relay(Map.of(RelayConfig.ALLOWED_DOMAIN, "127.0.0.1",
+                                                           RelayConfig.CIRCUIT_THRESHOLD, "50",
+                                                           RelayConfig.CIRCUIT_MIN_CALLS, "3",
+                                                           RelayConfig.CIRCUIT_PROBE, "20"), "token-a", metrics);
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/youcat/sync";
+
+        // Nothing reports the outcome of the calls, only the probes see the host fail
+        status = 503;
+        long deadline = System.nanoTime() + 5_000 * MILLI;
+        CircuitOpenException open = null;
+        while (open == null && System.nanoTime() < deadline) {
+            try {
+                relay.setAuthCredential(new HttpServiceInput(url));
+                Thread.sleep(10L);
+            } catch (CircuitOpenException error) {
+                open = error;
+            }
+        }
+        assertNotNull(open);
+        assertEquals("127.0.0.1", open.getHost());
+        assertTrue(served.get() >= 3);
+        assertTrue(metrics.getCircuitStates().get("127.0.0.1").startsWith("open, "));
+    }
+
+    @Test
+    void testProbesCloseCircuitOfRecoveredHost() throws Exception {
+        server.createContext("/", this::flaky);
+        RelayMetrics metrics = new RelayMetrics();
+        TokenRelay relay = RejectedTokensTest.relay(Map.of(RelayConfig.ALLOWED_DOMAIN, "127.0.0.1",
+                                                           RelayConfig.CIRCUIT_THRESHOLD, "50",
+                                                           RelayConfig.CIRCUIT_MIN_CALLS, "3",
+                                                           RelayConfig.CIRCUIT_OPEN, "1",
+                                                           RelayConfig.CIRCUIT_PROBE, "20",
+                                                           RelayConfig.CIRCUIT_PROBE_PATH, "availability"),
+                                                    "token-a", metrics);
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/youcat/sync";
+
+        status = 503;
+        assertTrue(relayUntil(relay, metrics, url, "open"));
+        // Only the probes report, and they go on while the circuit refuses the calls
+        status = 200;
+        assertTrue(relayUntil(relay, metrics, url, "closed"), metrics.getCircuitStates().toString());
+        assertEquals(Set.of("HEAD /youcat/availability"), paths);
+    }
+
+    /**
+     * Relays calls, as Firefly does without reporting their outcomes, until the circuit of the
+     * host is in a state.
+     *
+     * @return Whether that happened within 5 s.
+     */
+    private static boolean relayUntil(TokenRelay relay, RelayMetrics metrics, String url, String state)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000 * MILLI;
+        while (System.nanoTime() < deadline) {
+            try {
+                relay.setAuthCredential(new HttpServiceInput(url));
+            } catch (CircuitOpenException error) {
+                // Refused until the probes close the circuit
+            }
+            String states = metrics.getCircuitStates().getOrDefault("127.0.0.1", "");
+            if (states.startsWith(state + ",")) {
+                return true;
+            }
+            Thread.sleep(10L);
+        }
+        return false;
+    }
+
+    @Test
+    void testOneProbePerHostInFlight() throws Exception {
+        server.createContext("/", this::flaky);
+        HealthProbes probes = new HealthProbes(1L, "", System::nanoTime);
+        TokenRelay relay = RejectedTokensTest.relay(Map.of(RelayConfig.ALLOWED_DOMAIN, "127.0.0.1"), "token-a",
+                                                    new RelayMetrics());
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/youcat/sync";
+
+        delayMillis = 300L;
+        assertTrue(probes.probe("127.0.0.1", url, relay));
+        assertFalse(probes.probe("127.0.0.1", url, relay));
+        Thread.sleep(500L);
+        assertEquals(1, served.get());
+        assertTrue(probes.probe("127.0.0.1", url, relay));
+        assertFalse(probes.probe("bad.example", "not a url", relay));
+        probes.close();
+        assertEquals(Set.of("HEAD /youcat/"), paths);
+
+        assertEquals(URI.create("https://ws-uv.canfar.net/youcat/availability"),
+                     new HealthProbes(1L, "/availability", System::nanoTime).target("https://ws-uv.canfar.net/youcat/sync?LANG=ADQL"));
+        assertEquals(URI.create("https://ws-uv.canfar.net/"),
+                     new HealthProbes(1L, "", System::nanoTime).target("https://ws-uv.canfar.net/index.html"));
+    }
+
+    @Test
+    void testRelayShortCircuitsFlakyService() throws Exception {
+        RelayMetrics metrics = new RelayMetrics();
+        TokenRelay relay = RejectedTokensTest.relay(Map.of(RelayConfig.ALLOWED_DOMAIN, "127.0.0.1",
+                                                           RelayConfig.CIRCUIT_THRESHOLD, "50",
+                                                           RelayConfig.CIRCUIT_MIN_CALLS, "4",
+                                                           RelayConfig.CIRCUIT_OPEN, "1",
+                                                           RelayConfig.CIRCUIT_PROBE, "0"), "token-a", metrics);
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/youcat/sync";
+
+        status = 503;
+        for (int i = 0; i < 4; i++) {
+            assertEquals(503, call(relay, url, 2_000));
+        }
+        CircuitOpenException open = assertThrows(CircuitOpenException.class, () -> call(relay, url, 2_000));
+        assertEquals("127.0.0.1", open.getHost());
+        assertTrue(open.getRetryAfterMillis() > 0L && open.getRetryAfterMillis() <= 1_000L);
+        assertEquals(4, served.get());
+        assertEquals(1L, metrics.getCircuitRejections());
+        assertTrue(metrics.getCircuitStates().get("127.0.0.1").startsWith("open, "));
+
+        // Once the service recovers, the probes after the open time close the circuit
+        status = 200;
+        Thread.sleep(1_100L);
+        for (int i = 0; i < CircuitBreakers.PROBES; i++) {
+            assertEquals(200, call(relay, url, 2_000));
+        }
+        assertEquals(200, call(relay, url, 2_000));
+        assertTrue(metrics.getCircuitStates().get("127.0.0.1").startsWith("closed, 0 of 1 calls"),
+                   metrics.getCircuitStates().toString());
+
+        StringWriter text = new StringWriter();
+        metrics.writePrometheus(new PrintWriter(text));
+        assertTrue(text.toString().contains("cadc_sso_circuit_rejections_total 1\n"));
+        assertTrue(text.toString().contains("cadc_sso_circuit_state{host=\"127.0.0.1\",state=\"closed\"} 1\n"));
+        assertTrue(text.toString().contains("cadc_sso_circuit_state{host=\"127.0.0.1\",state=\"open\"} 0\n"));
+    }
+
+    @Test
+    void testRelayShortCircuitsTimeouts() throws Exception {
+        RelayMetrics metrics = new RelayMetrics();
+        TokenRelay relay = RejectedTokensTest.relay(Map.of(RelayConfig.ALLOWED_DOMAIN, "127.0.0.1",
+                                                           RelayConfig.CIRCUIT_THRESHOLD, "100",
+                                                           RelayConfig.CIRCUIT_MIN_CALLS, "2",
+                                                           RelayConfig.CIRCUIT_OPEN, "60",
+                                                           RelayConfig.CIRCUIT_PROBE, "0"), "token-a", metrics);
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/youcat/sync";
+
+        delayMillis = 500L;
+        assertEquals(0, call(relay, url, 100));
+        assertEquals(0, call(relay, url, 100));
+        long start = System.nanoTime();
+        assertThrows(CircuitOpenException.class, () -> call(relay, url, 100));
+        // Failing fast instead of waiting for the timeout
+        assertTrue(System.nanoTime() - start < 50 * MILLI);
+        // Calls that relay nothing to a host the policy does not know are never refused
+        relay.setAuthCredential(new HttpServiceInput("https://irsa.ipac.caltech.edu/TAP/sync"));
+    }
+
+    private void open(CircuitBreakers breakers) {
+        for (int i = 0; i < 4; i++) {
+            breakers.record(HOST, 500, 1L);
+        }
+        assertEquals(CircuitBreakers.State.OPEN, breakers.getState(HOST));
+    }
+
+    /**
+     * Makes a downstream call the way Firefly does, reporting its outcome to the relay.
+     *
+     * @return The status of the answer, or 0 if there was none.
+     */
+    private static int call(TokenRelay relay, String url, int timeoutMillis) throws IOException {
+        HttpServiceInput inputs = new HttpServiceInput(url);
+        relay.setAuthCredential(inputs);
+        long start = System.nanoTime();
+        int status;
+        HttpURLConnection connection = (HttpURLConnection) URI.create(url).toURL().openConnection();
+        try {
+            connection.setReadTimeout(timeoutMillis);
+            if (inputs.getHeaders() != null) {
+                inputs.getHeaders().forEach(connection::setRequestProperty);
+            }
+            status = connection.getResponseCode();
+        } catch (IOException error) {
+            status = 0;
+        } finally {
+            connection.disconnect();
+        }
+        relay.onDownstreamResponse(inputs, status, (System.nanoTime() - start) / MILLI);
+        return status;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+import static org.opencadc.security.sso.CookieHeader.Precedence.*;
+
+class CookieHeaderTest {
+
+    private static final String JAR = "_ga=GA1.2.3; CADC_SSO_OLD=stale; XCADC_SSO=other; CADC_SSO=token-a; theme=dark";
+
+    @Test
+    void testFind() {
+        assertEquals("token-a", CookieHeader.find(JAR, "CADC_SSO", FIRST));
+        assertEquals("token-a", CookieHeader.find("CADC_SSO=token-a", "CADC_SSO", FIRST));
+        assertEquals("dark", CookieHeader.find(JAR, "theme", FIRST));
+        assertNull(CookieHeader.find(JAR, "CADC", FIRST));
+        assertNull(CookieHeader.find(JAR, "cadc_sso", FIRST));
+        assertNull(CookieHeader.find(null, "CADC_SSO", FIRST));
+        assertNull(CookieHeader.find("", "CADC_SSO", FIRST));
+        assertNull(CookieHeader.find("CADC_SSO", "CADC_SSO", FIRST));
+    }
+
+    @Test
+    void testValues() {
+        assertEquals("a.b.c==", CookieHeader.find("x=1;CADC_SSO=a.b.c==;y=2", "CADC_SSO", FIRST));
+        assertEquals("token-a", CookieHeader.find("CADC_SSO=\"token-a\"", "CADC_SSO", FIRST));
+        assertEquals("token-a", CookieHeader.find(";  CADC_SSO=token-a  ;", "CADC_SSO", FIRST));
+        assertEquals("", CookieHeader.find("CADC_SSO=; theme=dark", "CADC_SSO", FIRST));
+        assertEquals("\"", CookieHeader.find("CADC_SSO=\"", "CADC_SSO", FIRST));
+    }
+
+    @Test
+    void testPrecedence() {
+        // Browsers send the cookie with the longest path first
+        String header = "CADC_SSO=session-path; theme=dark; CADC_SSO=domain-wide";
+
+        assertEquals("session-path", CookieHeader.find(header, "CADC_SSO", FIRST));
+        assertEquals("domain-wide", CookieHeader.find(header, "CADC_SSO", LAST));
+        assertSame(CookieHeader.AMBIGUOUS, CookieHeader.find(header, "CADC_SSO", REJECT));
+        assertEquals("same", CookieHeader.find("CADC_SSO=same; CADC_SSO=same", "CADC_SSO", REJECT));
+        assertSame(CookieHeader.AMBIGUOUS, CookieHeader.find("CADC_SSO=same; CADC_SSO=sam", "CADC_SSO", REJECT));
+        assertEquals("token-a", CookieHeader.find(JAR, "CADC_SSO", REJECT));
+        assertEquals(2, CookieHeader.count(header, "CADC_SSO"));
+        assertEquals(REJECT, CookieHeader.Precedence.forId(" Reject "));
+        assertThrows(IllegalArgumentException.class, () -> CookieHeader.Precedence.forId("newest"));
+    }
+
+    @Test
+    void testLargeJar() {
+        StringBuilder header = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            header.append("cookie").append(i).append("=").append("v".repeat(40)).append("; ");
+        }
+        header.append("CADC_SSO=token-a");
+
+        assertEquals("token-a", CookieHeader.find(header.toString(), "CADC_SSO", FIRST));
+        assertEquals("token-a", CookieHeader.find(header.toString(), "CADC_SSO", LAST));
+    }
+
+    @Test
+    void testCredentialSourceReadsRawHeader() {
+        RelayMetrics metrics = new RelayMetrics();
+        CredentialSource source = source(Map.of(RelayConfig.COOKIE_PRECEDENCE, "reject"));
+
+        assertEquals("token-a", source.read(agent(JAR, "ws-uv.canfar.net"), metrics));
+        assertSame(CredentialSource.REJECTED,
+                   source.read(agent("CADC_SSO=a; CADC_SSO=b", "ws-uv.canfar.net"), metrics));
+        assertSame(CredentialSource.REJECTED, source.read(agent("CADC_SSO=", "ws-uv.canfar.net"), metrics));
+        assertNull(source.read(agent("theme=dark", "ws-uv.canfar.net"), metrics));
+        assertEquals(1L, metrics.getTokensAmbiguous());
+        assertEquals(1L, metrics.getTokensEmpty());
+        assertEquals("b", source(Map.of(RelayConfig.COOKIE_PRECEDENCE, "last"))
+                .read(agent("CADC_SSO=a; CADC_SSO=b", "ws-uv.canfar.net"), metrics));
+        assertThrows(IllegalArgumentException.class,
+                     () -> RelayConfig.fromMap(Map.of(RelayConfig.COOKIE_PRECEDENCE, "newest")));
+    }
+
+    @Test
+    void testDomainEnforcedAgainstHost() {
+        RelayMetrics metrics = new RelayMetrics();
+        CredentialSource source = source(Map.of(RelayConfig.ENFORCE_COOKIE_DOMAIN, "true"));
+
+        assertEquals("token-a", source.read(agent(JAR, "rc-uv.canfar.net"), metrics));
+        assertEquals("token-a", source.read(agent(JAR, "RC-UV.CANFAR.NET:443"), metrics));
+        assertEquals("token-a", source.read(agent(JAR, "canfar.net"), metrics));
+        assertSame(CredentialSource.REJECTED, source.read(agent(JAR, "evilcanfar.net"), metrics));
+        assertSame(CredentialSource.REJECTED, source.read(agent(JAR, "canfar.net.evil.com"), metrics));
+        assertSame(CredentialSource.REJECTED, source.read(agent(JAR, "firefly.svc.cluster.local"), metrics));
+        assertSame(CredentialSource.REJECTED, source.read(agent(JAR, null), metrics));
+        assertEquals(4L, metrics.getTokensInvalidDomain());
+    }
+
+    private static CredentialSource source(Map<String, String> settings) {
+        return RelayConfig.fromMap(settings).getCredentialSources().get(0);
+    }
+
+    private static RequestAgent agent(String cookieHeader, String host) {
+        RequestAgent agent = mock(RequestAgent.class);
+        when(agent.getHeader("Cookie")).thenReturn(cookieHeader);
+        when(agent.getHeader("Host")).thenReturn(host);
+        return agent;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import javax.servlet.http.Cookie;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class CredentialFingerprintsTest {
+
+    private static final String KEY = "0123456789abcdef-shared";
+    private static final String CADC_URL = "https://ws-uv.canfar.net/youcat/sync?QUERY=x";
+    private static final String PUBLIC_URL = "https://irsa.ipac.caltech.edu/TAP/sync?QUERY=x";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testFingerprintsAreKeyed() {
+        CredentialFingerprints fingerprints = new CredentialFingerprints(KEY.getBytes(StandardCharsets.UTF_8));
+        CredentialFingerprints sameKey = new CredentialFingerprints(KEY.getBytes(StandardCharsets.UTF_8));
+        CredentialFingerprints otherKey = new CredentialFingerprints("fedcba9876543210".getBytes(StandardCharsets.UTF_8));
+
+        String token = fingerprints.forToken("eyJhbGciOiJSUzI1NiJ9.payload.signature");
+        assertEquals(token, sameKey.forToken("eyJhbGciOiJSUzI1NiJ9.payload.signature"));
+        assertNotEquals(token, otherKey.forToken("eyJhbGciOiJSUzI1NiJ9.payload.signature"));
+        assertNotEquals(token, fingerprints.forToken("eyJhbGciOiJSUzI1NiJ9.payload.signaturf"));
+        assertTrue(token.startsWith("t."));
+        assertEquals(2 + 22, token.length());
+        assertFalse(token.contains("payload"));
+
+        // The same value hashes differently as a token, a user and a certificate
+        String user = fingerprints.forIdentity("jdoe");
+        assertTrue(user.startsWith("u."));
+        assertNotEquals(token.substring(2), fingerprints.forToken("jdoe").substring(2));
+        assertNotEquals(user.substring(2), fingerprints.forToken("jdoe").substring(2));
+        assertNotEquals(user.substring(2), fingerprints.forCertificate("jdoe").substring(2));
+        assertNotEquals(CredentialFingerprints.PUBLIC, user);
+    }
+
+    @Test
+    void testIdentityFingerprintsAreInterned() {
+        CredentialFingerprints fingerprints = new CredentialFingerprints(KEY.getBytes(StandardCharsets.UTF_8));
+
+        assertSame(fingerprints.forIdentity("jdoe"), fingerprints.forIdentity(new String("jdoe")));
+        assertNotEquals(fingerprints.forIdentity("jdoe"), fingerprints.forIdentity("jsmith"));
+    }
+
+    @Test
+    void testCertificateFingerprintsAreInterned() {
+        CredentialFingerprints fingerprints = new CredentialFingerprints(KEY.getBytes(StandardCharsets.UTF_8));
+        String pem = "-----BEGIN CERTIFICATE-----\nMIIB\n-----END CERTIFICATE-----\n";
+
+        String certificate = fingerprints.forCertificate(pem);
+        assertSame(certificate, fingerprints.forCertificate(new String(pem)));
+        assertEquals(certificate, new CredentialFingerprints(KEY.getBytes(StandardCharsets.UTF_8)).forCertificate(pem));
+        assertNotEquals(certificate, fingerprints.forCertificate(pem.replace("MIIB", "MIIC")));
+        assertFalse(certificate.contains("MIIB"));
+    }
+
+    @Test
+    void testProcessKeyIsSharedAndKeysAreChecked() {
+        assertEquals(CredentialFingerprints.withProcessKey().forToken("token"),
+                     CredentialFingerprints.withProcessKey().forToken("token"));
+        assertThrows(IllegalArgumentException.class, () -> new CredentialFingerprints(new byte[15]));
+        assertThrows(IllegalArgumentException.class,
+                     () -> RelayConfig.fromMap(Map.of(RelayConfig.FINGERPRINT_KEY, "too-short")));
+    }
+
+    @Test
+    void testPublicAndCredentialedDestinations() {
+        TokenRelay relay = RejectedTokensTest.relay(Map.of(), "token-a", new RelayMetrics());
+
+        String partition = relay.getCachePartition(CADC_URL);
+        assertNotEquals(TokenRelay.PUBLIC_PARTITION, partition);
+        assertEquals(relay.getCredentialFingerprint(), partition);
+        assertTrue(relay.isCredentialed(CADC_URL));
+        assertEquals(TokenRelay.PUBLIC_PARTITION, relay.getCachePartition(PUBLIC_URL));
+        assertFalse(relay.isCredentialed(PUBLIC_URL));
+        assertEquals(TokenRelay.PUBLIC_PARTITION, relay.getCachePartition("not a url"));
+
+        TokenRelay anonymous = RejectedTokensTest.relay(Map.of(), null, new RelayMetrics());
+        assertNull(anonymous.getCredentialFingerprint());
+        assertEquals(TokenRelay.PUBLIC_PARTITION, anonymous.getCachePartition(CADC_URL));
+        assertFalse(anonymous.isCredentialed(CADC_URL));
+    }
+
+    @Test
+    void testUsersArePartitionedAndReplicasAgree() {
+        Map<String, String> settings = Map.of(RelayConfig.FINGERPRINT_KEY, KEY);
+        String a = RejectedTokensTest.relay(settings, "token-a", new RelayMetrics()).getCachePartition(CADC_URL);
+        String b = RejectedTokensTest.relay(settings, "token-b", new RelayMetrics()).getCachePartition(CADC_URL);
+        String replica = RejectedTokensTest.relay(settings, "token-a", new RelayMetrics()).getCachePartition(CADC_URL);
+        String otherKey = RejectedTokensTest.relay(Map.of(), "token-a", new RelayMetrics()).getCachePartition(CADC_URL);
+
+        assertNotEquals(a, b);
+        assertEquals(a, replica);
+        assertNotEquals(a, otherKey);
+    }
+
+    @Test
+    void testFingerprintIsKeptWithTheSession() {
+        TokenRelay relay = Mockito.spy(new TokenRelay(RelayConfig.fromMap(Map.of()), new RelayMetrics()));
+        doReturn(agent("token-a")).when(relay).getRequestAgent();
+        String first = relay.getCredentialFingerprint();
+
+        // A new request of the same session takes the stored credential and its fingerprint
+        doReturn(agent("token-a")).when(relay).getRequestAgent();
+        assertSame(first, relay.getCredentialFingerprint());
+        assertSame(first, relay.getCachePartition(CADC_URL));
+        doReturn(agent("token-b")).when(relay).getRequestAgent();
+        assertNotEquals(first, relay.getCredentialFingerprint());
+    }
+
+    private static RequestAgent agent(String token) {
+        RequestAgent agent = mock(RequestAgent.class);
+        when(agent.getCookie("CADC_SSO")).thenReturn(new Cookie("CADC_SSO", token));
+        return agent;
+    }
+
+    @Test
+    void testWithheldTokenStaysCredentialed() {
+        TokenRelay relay = RejectedTokensTest.relay(Map.of(), "token-a", new RelayMetrics());
+        String partition = relay.getCachePartition(CADC_URL);
+
+        relay.onDownstreamResponse(CADC_URL, 401);
+
+        assertNull(RejectedTokensTest.authorization(relay, CADC_URL));
+        assertEquals(partition, relay.getCachePartition(CADC_URL));
+        assertTrue(relay.isCredentialed(CADC_URL));
+    }
+
+    @Test
+    void testTokensOfOneUserShareAPartition() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ac/whoami", CredentialFingerprintsTest::whoami);
+        server.start();
+        try {
+            Map<String, String> settings = Map.of(
+                    RelayConfig.WHOAMI_URL, "http://127.0.0.1:" + server.getAddress().getPort() + "/ac/whoami");
+            String first = RejectedTokensTest.relay(settings, "jdoe-login-1", new RelayMetrics()).getCachePartition(CADC_URL);
+            String second = RejectedTokensTest.relay(settings, "jdoe-login-2", new RelayMetrics()).getCachePartition(CADC_URL);
+            String other = RejectedTokensTest.relay(settings, "jsmith-login-1", new RelayMetrics()).getCachePartition(CADC_URL);
+            String guest = RejectedTokensTest.relay(settings, "unknown", new RelayMetrics()).getCachePartition(CADC_URL);
+
+            assertTrue(first.startsWith("u."));
+            assertEquals(first, second);
+            assertNotEquals(first, other);
+            assertTrue(guest.startsWith("t."));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testCertificateDestinations() throws IOException {
+        Path policy = tempDir.resolve("policy.txt");
+        Files.writeString(policy, "certificate ws-cadc.canfar.net/data\nbearer .canfar.net\n");
+        Path certificate = tempDir.resolve("cadcproxy.pem");
+        Files.writeString(certificate, "not a certificate yet");
+        String dataUrl = "https://ws-cadc.canfar.net/data/pub/CFHT/1";
+
+        TokenRelay withoutCertificate = RejectedTokensTest.relay(
+                Map.of(RelayConfig.POLICY_FILE, policy.toString()), null, new RelayMetrics());
+        assertEquals(TokenRelay.PUBLIC_PARTITION, withoutCertificate.getCachePartition(dataUrl));
+
+        TokenRelay relay = RejectedTokensTest.relay(Map.of(RelayConfig.POLICY_FILE, policy.toString(),
+                                                           RelayConfig.PROXY_CERT_FILE, certificate.toString()),
+                                                    null, new RelayMetrics());
+        assertTrue(relay.getCachePartition(dataUrl).startsWith("c."));
+        assertTrue(relay.isCredentialed(dataUrl));
+        assertEquals(TokenRelay.PUBLIC_PARTITION, relay.getCachePartition(CADC_URL));
+    }
+
+    /**
+     * Answers with the user named by the token's prefix, and 401 for other tokens.
+     */
+    private static void whoami(HttpExchange exchange) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        int dash = authorization.indexOf('-');
+        byte[] body = (dash < 0) ? new byte[0]
+                : ("{\"username\":\"" + authorization.substring("Bearer ".length(), dash) + "\"}")
+                        .getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders((dash < 0) ? 401 : 200, (body.length == 0) ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
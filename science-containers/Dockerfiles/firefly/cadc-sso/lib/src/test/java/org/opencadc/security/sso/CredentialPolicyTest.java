@@ -0,0 +1,224 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import javax.servlet.http.Cookie;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class CredentialPolicyTest {
+
+    private static final String POLICY = String.join("\n",
+            "# CANFAR services",
+            "bearer  ws-uv.canfar.net/youcat",
+            "none    ws-uv.canfar.net/youcat/public",
+            "cookie  legacy.canfar.net/data/pub",
+            "",
+            "bearer  .canfar.net",
+            "none    mirror.example.org:8443",
+            "bearer  mirror.example.org");
+
+    @TempDir
+    Path tempDir;
+
+    private static CredentialPolicy.Action action(CredentialPolicy policy, String url) {
+        CredentialPolicy.Decision decision = policy.decide(url);
+        return (decision == null) ? null : decision.getAction();
+    }
+
+    @Test
+    void testActions() {
+        CredentialPolicy policy = CredentialPolicy.compile(POLICY);
+
+        assertEquals(CredentialPolicy.Action.BEARER, action(policy, "https://ws-uv.canfar.net/youcat/sync"));
+        assertEquals(CredentialPolicy.Action.NONE, action(policy, "https://ws-uv.canfar.net/youcat/public/tables"));
+        assertEquals(CredentialPolicy.Action.COOKIE, action(policy, "https://legacy.canfar.net/data/pub/CFHT/1"));
+        assertEquals(CredentialPolicy.Action.BEARER, action(policy, "https://legacy.canfar.net/data/auth/CFHT/1"));
+        assertEquals(CredentialPolicy.Action.NONE, action(policy, "https://tap.example.com/tables"));
+    }
+
+    @Test
+    void testLongestPrefixOnSegmentBoundaries() {
+        CredentialPolicy policy = CredentialPolicy.compile("none .canfar.net\nbearer ws-uv.canfar.net/youcat");
+
+        assertEquals(CredentialPolicy.Action.BEARER, action(policy, "https://ws-uv.canfar.net/youcat"));
+        assertEquals(CredentialPolicy.Action.BEARER, action(policy, "https://ws-uv.canfar.net/youcat/"));
+        assertEquals(CredentialPolicy.Action.BEARER, action(policy, "https://ws-uv.canfar.net/youcat?QUERY=x"));
+        assertEquals(CredentialPolicy.Action.NONE, action(policy, "https://ws-uv.canfar.net/youcatalog"));
+        assertEquals(CredentialPolicy.Action.NONE, action(policy, "https://ws-uv.canfar.net/YOUCAT"));
+        assertEquals(CredentialPolicy.Action.NONE, action(policy, "https://ws-uv.canfar.net/"));
+    }
+
+    @Test
+    void testHostAndPortRules() {
+        CredentialPolicy policy = CredentialPolicy.compile(POLICY);
+
+        assertEquals(CredentialPolicy.Action.NONE, action(policy, "https://mirror.example.org:8443/tap"));
+        assertEquals(CredentialPolicy.Action.BEARER, action(policy, "https://mirror.example.org/tap"));
+        assertEquals(CredentialPolicy.Action.BEARER, action(policy, "https://tap.mirror.example.org/tap"));
+        assertEquals(CredentialPolicy.Action.NONE, action(policy, "https://tap.mirror.example.org:8443/tap"));
+        assertEquals(CredentialPolicy.Action.BEARER, action(policy, "HTTPS://WS-UV.CANFAR.NET./youcat"));
+        assertEquals(CredentialPolicy.Action.NONE, action(policy, "https://evilcanfar.net/youcat"));
+        assertEquals(CredentialPolicy.Action.NONE, action(policy, "https://ws-uv.canfar.net@evil.com/youcat"));
+
+        CredentialPolicy exact = CredentialPolicy.compile("bearer =ws-uv.canfar.net/youcat");
+        assertEquals(CredentialPolicy.Action.BEARER, action(exact, "https://ws-uv.canfar.net/youcat/sync"));
+        assertEquals(CredentialPolicy.Action.NONE, action(exact, "https://sub.ws-uv.canfar.net/youcat/sync"));
+
+        CredentialPolicy.Decision decision = policy.decide("https://ws-uv.canfar.net/youcat");
+        assertEquals("ws-uv.canfar.net", decision.getHost());
+        assertEquals(443, decision.getPort());
+    }
+
+    @Test
+    void testUnparseableUrls() {
+        CredentialPolicy policy = CredentialPolicy.compile(POLICY);
+
+        assertNull(policy.decide(null));
+        assertNull(policy.decide("ws-uv.canfar.net/youcat"));
+        assertNull(policy.decide("ftp://ws-uv.canfar.net/youcat"));
+        assertNull(policy.decide("https://ws-uv.canfar.net:port/youcat"));
+    }
+
+    @Test
+    void testDecisionsAreMemoizedByPathPrefix() {
+        CredentialPolicy policy = CredentialPolicy.compile(POLICY);
+
+        CredentialPolicy.Decision first = policy.decide("https://ws-uv.canfar.net/youcat/async/1");
+        assertSame(first, policy.decide("https://ws-uv.canfar.net/youcat/async/2"));
+        assertSame(first, policy.decide("https://ws-uv.canfar.net/youcat/async/1"));
+        assertNotSame(first, policy.decide("https://ws-uv.canfar.net/youcat/public/tables"));
+        for (int i = 0; i < 10000; i++) {
+            assertEquals((i % 2 == 0) ? CredentialPolicy.Action.BEARER : CredentialPolicy.Action.NONE,
+                    action(policy, (i % 2 == 0) ? "https://h" + i + ".canfar.net/" + i : "https://h" + i + ".example.com/"));
+        }
+    }
+
+    @Test
+    void testMatchesAllowedDomains() {
+        String spec = ".canfar.net, cadc-ccda.hia-iha.nrc-cnrc.gc.ca, mirror.example.org:8443, =irsa.ipac.caltech.edu";
+        AllowedDomains domains = AllowedDomains.compile(spec);
+        CredentialPolicy policy = CredentialPolicy.fromAllowedDomains(spec);
+
+        for (String url : new String[] {
+                "https://ws-uv.canfar.net/youcat", "https://canfar.net/", "https://evilcanfar.net/",
+                "https://cadc-ccda.hia-iha.nrc-cnrc.gc.ca/argus", "https://www.cadc-ccda.hia-iha.nrc-cnrc.gc.ca/",
+                "https://mirror.example.org:8443/tap",
+                "https://mirror.example.org/tap", "https://tap.example.com/",
+                "https://irsa.ipac.caltech.edu/TAP", "https://sub.irsa.ipac.caltech.edu/TAP"}) {
+            assertEquals(domains.isAllowed(url), action(policy, url) == CredentialPolicy.Action.BEARER, url);
+        }
+        assertEquals(CredentialPolicy.Action.NONE, action(CredentialPolicy.fromAllowedDomains(null), "https://canfar.net/"));
+    }
+
+    @Test
+    void testInvalidPolicies() {
+        assertThrows(IllegalArgumentException.class, () -> CredentialPolicy.compile("bearer"));
+        assertThrows(IllegalArgumentException.class, () -> CredentialPolicy.compile("send .canfar.net"));
+        assertThrows(IllegalArgumentException.class, () -> CredentialPolicy.compile("bearer .canfar.net extra"));
+        assertThrows(IllegalArgumentException.class, () -> CredentialPolicy.compile("bearer https://canfar.net"));
+        assertThrows(IllegalArgumentException.class, () -> CredentialPolicy.compile("bearer =.canfar.net"));
+        assertThrows(IllegalArgumentException.class, () -> CredentialPolicy.load(tempDir.resolve("missing")));
+    }
+
+    @Test
+    void testCookieActionRelaysCookie() throws Exception {
+        Path file = tempDir.resolve("policy.txt");
+        Files.writeString(file, POLICY);
+        RelayMetrics metrics = new RelayMetrics();
+        TokenRelay relay = Mockito.spy(new TokenRelay(RelayConfig.fromMap(Map.of(
+                RelayConfig.COOKIE_NAME, "CADC_SSO",
+                RelayConfig.POLICY_FILE, file.toString())), metrics));
+        RequestAgent agent = mock(RequestAgent.class);
+        when(agent.getCookie("CADC_SSO")).thenReturn(new Cookie("CADC_SSO", "token"));
+        doReturn(agent).when(relay).getRequestAgent();
+
+        HttpServiceInput legacy = mock(HttpServiceInput.class);
+        when(legacy.getRequestUrl()).thenReturn("https://legacy.canfar.net/data/pub/CFHT/1");
+        relay.setAuthCredential(legacy);
+        verify(legacy).setCookie("CADC_SSO", "token");
+        verify(legacy, never()).setHeader(anyString(), anyString());
+
+        HttpServiceInput open = mock(HttpServiceInput.class);
+        when(open.getRequestUrl()).thenReturn("https://ws-uv.canfar.net/youcat/public/tables");
+        relay.setAuthCredential(open);
+        verify(open, never()).setCookie(anyString(), anyString());
+        verify(open, never()).setHeader(anyString(), anyString());
+
+        assertEquals(1L, metrics.getCookiesRelayed());
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import javax.servlet.http.Cookie;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class CredentialSourceTest {
+
+    private static final String PROXY_CERTIFICATE = "-----BEGIN CERTIFICATE-----\nMIIB\n-----END CERTIFICATE-----\n";
+
+    @TempDir
+    Path tempDir;
+
+    private Path tokenFile;
+    private AtomicLong clock;
+    private RelayMetrics metrics;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        tokenFile = tempDir.resolve("token");
+        Files.writeString(tokenFile, "file-token\n");
+        clock = new AtomicLong(1_000_000L);
+        metrics = new RelayMetrics();
+    }
+
+    private static RequestAgent agent(String cookie, String authorization) {
+        RequestAgent agent = mock(RequestAgent.class);
+        when(agent.getCookie("CADC_SSO")).thenReturn((cookie == null) ? null : new Cookie("CADC_SSO", cookie));
+        when(agent.getHeader("Authorization")).thenReturn(authorization);
+        return agent;
+    }
+
+    private TokenRelay relay(Map<String, String> settings, RequestAgent agent) {
+        TokenRelay relay = Mockito.spy(new TokenRelay(RelayConfig.fromMap(settings), metrics));
+        doReturn(agent).when(relay).getRequestAgent();
+        return relay;
+    }
+
+    private static String token(TokenRelay relay) {
+        return (relay.getAuthToken() == null) ? null : relay.getAuthToken().getId();
+    }
+
+    @Test
+    void testCookieOnlyByDefault() {
+        assertEquals("cookie-token", token(relay(Map.of(), agent("cookie-token", "Bearer header-token"))));
+        assertNull(token(relay(Map.of(), agent(null, "Bearer header-token"))));
+    }
+
+    @Test
+    void testFirstSourceWins() {
+        Map<String, String> settings = Map.of(RelayConfig.CREDENTIAL_SOURCES, "cookie, header, file",
+                                              RelayConfig.TOKEN_FILE, tokenFile.toString(),
+                                              RelayConfig.SINGLE_USER, "true");
+
+        assertEquals("cookie-token", token(relay(settings, agent("cookie-token", "Bearer header-token"))));
+        assertEquals("header-token", token(relay(settings, agent(null, "Bearer header-token"))));
+        assertEquals("file-token", token(relay(settings, agent(null, null))));
+        assertEquals(0L, metrics.getTokensMissing());
+
+        Map<String, String> headerFirst = Map.of(RelayConfig.CREDENTIAL_SOURCES, "header,cookie");
+        assertEquals("header-token", token(relay(headerFirst, agent("cookie-token", "Bearer header-token"))));
+    }
+
+    @Test
+    void testRejectedCookieFallsThrough() {
+        Map<String, String> settings = Map.of(RelayConfig.CREDENTIAL_SOURCES, "cookie,header");
+
+        assertEquals("header-token", token(relay(settings, agent("", "Bearer header-token"))));
+        assertNull(token(relay(settings, agent("", null))));
+        assertEquals(2L, metrics.getTokensEmpty());
+        assertEquals(0L, metrics.getTokensMissing());
+        assertNull(token(relay(settings, agent(null, null))));
+        assertEquals(1L, metrics.getTokensMissing());
+    }
+
+    @Test
+    void testAuthorizationHeader() {
+        HeaderCredentialSource source = new HeaderCredentialSource("Authorization");
+
+        assertEquals("abc", source.read(agent(null, "Bearer abc"), metrics));
+        assertEquals("abc", source.read(agent(null, "bearer  abc "), metrics));
+        assertNull(source.read(agent(null, "Basic dXNlcjpwYXNz"), metrics));
+        assertNull(source.read(agent(null, "Bear"), metrics));
+        assertSame(CredentialSource.REJECTED, source.read(agent(null, "Bearer "), metrics));
+        assertNull(source.read(null, metrics));
+
+        RequestAgent agent = mock(RequestAgent.class);
+        when(agent.getHeader("X-Auth-Token")).thenReturn("raw-token");
+        assertEquals("raw-token", new HeaderCredentialSource("X-Auth-Token").read(agent, metrics));
+    }
+
+    @Test
+    void testFileReadOnlyWhenModified() throws Exception {
+        FileCredentialSource source = new FileCredentialSource(tokenFile, clock::get);
+        assertEquals("file-token", source.read(null, metrics));
+
+        Files.writeString(tokenFile, "rotated-token\n");
+        Files.setLastModifiedTime(tokenFile, FileTime.fromMillis(System.currentTimeMillis() + 10_000L));
+        // Held in memory until the next check
+        assertEquals("file-token", source.read(null, metrics));
+
+        clock.addAndGet(FileCredentialSource.CHECK_MILLIS);
+        assertTrue(eventually(() -> "rotated-token".equals(source.read(null, metrics))));
+        assertFalse(source.reload());
+    }
+
+    @Test
+    void testFileRemoved() throws Exception {
+        FileCredentialSource source = new FileCredentialSource(tokenFile, clock::get);
+        Files.delete(tokenFile);
+
+        assertTrue(source.reload());
+        assertNull(source.read(null, metrics));
+        assertFalse(source.reload());
+
+        Files.writeString(tokenFile, "new-token");
+        assertTrue(source.reload());
+        assertEquals("new-token", source.read(null, metrics));
+    }
+
+    @Test
+    void testProxyCertificateFile() throws Exception {
+        Files.writeString(tokenFile, PROXY_CERTIFICATE);
+        FileCredentialSource source = new FileCredentialSource(tokenFile, clock::get);
+
+        assertNull(source.read(null, metrics));
+        assertEquals(PROXY_CERTIFICATE.trim(), source.getProxyCertificate());
+    }
+
+    @Test
+    void testFileSourceKeptAcrossReloads() {
+        Map<String, String> settings = Map.of(RelayConfig.CREDENTIAL_SOURCES, "file",
+                                              RelayConfig.TOKEN_FILE, tokenFile.toString(),
+                                              RelayConfig.SINGLE_USER, "true");
+        RelayConfig first = RelayConfig.fromMap(settings);
+        RelayConfig second = RelayConfig.fromMap(Map.of(RelayConfig.CREDENTIAL_SOURCES, "cookie,file",
+                                                        RelayConfig.TOKEN_FILE, tokenFile.toString(),
+                                                        RelayConfig.SINGLE_USER, "true"), first);
+
+        assertNotNull(first.getFileCredentialSource());
+        assertSame(first.getFileCredentialSource(), second.getFileCredentialSource());
+        assertNull(RelayConfig.fromMap(Map.of()).getFileCredentialSource());
+    }
+
+    @Test
+    void testFileTokenRelayed() {
+        Map<String, String> settings = Map.of(RelayConfig.CREDENTIAL_SOURCES, "cookie,file",
+                                              RelayConfig.TOKEN_FILE, tokenFile.toString(),
+                                              RelayConfig.SINGLE_USER, "true");
+        TokenRelay relay = relay(settings, agent(null, null));
+        HttpServiceInput inputs = mock(HttpServiceInput.class);
+        when(inputs.getRequestUrl()).thenReturn("https://ws-uv.canfar.net/youcat/sync");
+
+        relay.setAuthCredential(inputs);
+        verify(inputs).setHeader("Authorization", "Bearer file-token");
+    }
+
+    @Test
+    void testInvalidSources() {
+        assertThrows(IllegalArgumentException.class,
+                     () -> RelayConfig.fromMap(Map.of(RelayConfig.CREDENTIAL_SOURCES, "cookie,ldap")));
+        assertThrows(IllegalArgumentException.class,
+                     () -> RelayConfig.fromMap(Map.of(RelayConfig.CREDENTIAL_SOURCES, "file")));
+        // A shared deployment would relay the file's token to anonymous users
+        assertThrows(IllegalArgumentException.class,
+                     () -> RelayConfig.fromMap(Map.of(RelayConfig.CREDENTIAL_SOURCES, "cookie,file",
+                                                      RelayConfig.TOKEN_FILE, tokenFile.toString())));
+    }
+
+    private static boolean eventually(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5L);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import edu.caltech.ipac.firefly.data.userdata.UserInfo;
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
+import edu.caltech.ipac.firefly.server.security.SsoAdapter;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.Cookie;
+
+import org.mockito.Answers;
+import org.mockito.invocation.InvocationOnMock;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Serves Firefly's command endpoint the way Firefly does, with a real {@link TokenRelay} on the
+ * request path: each request resolves its session's token and identity, then makes a fan-out of
+ * TAP calls whose credentials the relay sets, and reports each call's status back to the relay.
+ *
+ * <p>Firefly's {@link RequestAgent} wraps the servlet request. Here each request gets its own
+ * agent, a stub-only mock that answers {@code getHeader} and {@code getCookie} from the
+ * exchange's headers, so the relay reads the raw {@code Cookie} and {@code Host} headers just as
+ * it does in Firefly. The relay asks the agent for its credential once per request, so the mock's
+ * dispatch adds little to the recorded times. Each exchange runs on a new virtual thread, so no
+ * per-thread state of the relay outlives the request.</p>
+ *
+ * <p>The time spent inside the relay, its entry points only and not the downstream calls, is
+ * recorded per request and per {@code setAuthCredential} call.</p>
+ */
+final class FireflyIngress implements HttpHandler {
+
+    static final String PATH = "/firefly/sticky/CmdSrv";
+
+    private static final ThreadLocal<Headers> CURRENT_HEADERS = new ThreadLocal<>();
+
+    private final TokenRelay relay;
+    private final String[] downstreamUrls;
+    private final int fanOut;
+    private final HttpClient client;
+    private volatile LatencySample requestLatency = new LatencySample(1);
+    private volatile LatencySample callLatency = new LatencySample(1);
+    private final LongAdder mismatches = new LongAdder();
+    private final LongAdder guests = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile String lastFailure;
+
+    /**
+     * @param relay The relay under test.
+     * @param services The downstream services.
+     * @param fanOut The TAP calls each request makes.
+     */
+    FireflyIngress(TokenRelay relay, MockServices services, int fanOut) {
+        this.relay = relay;
+        this.fanOut = fanOut;
+        this.downstreamUrls = new String[MockServices.TAP_PATHS.length];
+        for (int i = 0; i < downstreamUrls.length; i++) {
+            downstreamUrls[i] = services.getBaseUrl() + MockServices.TAP_PATHS[i]
+                    + "?LANG=ADQL&REQUEST=doQuery&QUERY=SELECT+*+FROM+tap_schema.tables";
+        }
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        Headers headers = exchange.getRequestHeaders();
+        CURRENT_HEADERS.set(headers);
+        IngressRelay.CURRENT_AGENT.set(mock(RequestAgent.class,
+                                            withSettings().stubOnly().defaultAnswer(FireflyIngress::answer)));
+        int status = 200;
+        String user = null;
+        try {
+            long relayNanos = 0;
+            long start = System.nanoTime();
+            SsoAdapter.Token token = relay.getAuthToken();
+            UserInfo info = relay.getUserInfo();
+            relayNanos += System.nanoTime() - start;
+            user = info.getLoginName();
+            String expected = CookieHeader.find(headers.getFirst(CookieHeader.HEADER), "CADC_SSO",
+                                                CookieHeader.Precedence.FIRST);
+            if (expected == null || token == null || !token.getId().equals(expected)
+                    || (user != null && !MockServices.userOf(expected).equals(user))) {
+                mismatches.increment();
+            } else if (user == null) {
+                guests.increment();
+            }
+            for (int i = 0; i < fanOut; i++) {
+                relayNanos += call(downstreamUrls[i % downstreamUrls.length]);
+            }
+            requestLatency.record(relayNanos);
+        } catch (RelayRejectedException e) {
+            rejected.increment();
+            status = 429;
+        } catch (IOException | RuntimeException e) {
+            failures.increment();
+            lastFailure = e.toString();
+            status = 502;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = 503;
+        } finally {
+            IngressRelay.CURRENT_AGENT.remove();
+            CURRENT_HEADERS.remove();
+        }
+        String body = "{\"status\":" + status + ",\"user\":\"" + user + "\"}";
+        MockServices.respond(exchange, status, "application/json", body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Makes one downstream call as Firefly's {@code URLDownload} does.
+     *
+     * @return long The nanoseconds spent in the relay.
+     */
+    private long call(String url) throws IOException, InterruptedException {
+        HttpServiceInput inputs = new HttpServiceInput(url);
+        long start = System.nanoTime();
+        relay.setAuthCredential(inputs);
+        long nanos = System.nanoTime() - start;
+        callLatency.record(nanos);
+
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url)).GET();
+        if (inputs.getHeaders() != null) {
+            for (Map.Entry<String, String> header : inputs.getHeaders().entrySet()) {
+                request.header(header.getKey(), header.getValue());
+            }
+        }
+        if (inputs.getCookies() != null && !inputs.getCookies().isEmpty()) {
+            StringBuilder cookies = new StringBuilder();
+            for (Map.Entry<String, String> cookie : inputs.getCookies().entrySet()) {
+                if (cookies.length() > 0) {
+                    cookies.append("; ");
+                }
+                cookies.append(cookie.getKey()).append('=').append(cookie.getValue());
+            }
+            request.header(CookieHeader.HEADER, cookies.toString());
+        }
+        HttpResponse<Void> response = client.send(request.build(), HttpResponse.BodyHandlers.discarding());
+
+        start = System.nanoTime();
+        relay.onDownstreamResponse(inputs, response.statusCode());
+        return nanos + System.nanoTime() - start;
+    }
+
+    /**
+     * Starts recording relay times into new samples. Until this is first called they are discarded.
+     *
+     * @param requestLatency Receives the relay time of each request.
+     * @param callLatency Receives the time of each {@code setAuthCredential} call.
+     */
+    void record(LatencySample requestLatency, LatencySample callLatency) {
+        this.requestLatency = requestLatency;
+        this.callLatency = callLatency;
+    }
+
+    /**
+     * @return long The requests whose relay token, or identity, was not that of their own session.
+     */
+    long getMismatches() {
+        return mismatches.sum();
+    }
+
+    /**
+     * @return long The requests served as a guest because the identity lookup failed or timed out.
+     */
+    long getGuests() {
+        return guests.sum();
+    }
+
+    /**
+     * @return long The requests failed by the relay's rate limit.
+     */
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return long The requests failed by a downstream error.
+     */
+    long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return String The most recent downstream error, or null.
+     */
+    String getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Answers the calls of the agents from the headers of the current exchange.
+     */
+    private static Object answer(InvocationOnMock invocation) throws Throwable {
+        String method = invocation.getMethod().getName();
+        if (!method.equals("getHeader") && !method.equals("getCookie")) {
+            return Answers.RETURNS_DEFAULTS.answer(invocation);
+        }
+        Headers headers = CURRENT_HEADERS.get();
+        Object[] arguments = invocation.getArguments();
+        String name = (String) arguments[0];
+        if (method.equals("getCookie")) {
+            String header = (headers == null) ? null : headers.getFirst(CookieHeader.HEADER);
+            String value = CookieHeader.find(header, name, CookieHeader.Precedence.FIRST);
+            return (value == null) ? null : new Cookie(name, value);
+        }
+        String value = (headers == null) ? null : headers.getFirst(name);
+        return (value == null && arguments.length > 1) ? arguments[1] : value;
+    }
+
+    /**
+     * A relay that serves the request agent of the exchange being handled, as Firefly's
+     * ServerContext does for servlet threads.
+     */
+    static final class IngressRelay extends TokenRelay {
+        static final ThreadLocal<RequestAgent> CURRENT_AGENT = new ThreadLocal<>();
+
+        IngressRelay(RelayConfig config, RelayMetrics metrics) {
+            super(config, metrics);
+        }
+
+        @Override
+        RequestAgent getRequestAgent() {
+            return CURRENT_AGENT.get();
+        }
+    }
+}
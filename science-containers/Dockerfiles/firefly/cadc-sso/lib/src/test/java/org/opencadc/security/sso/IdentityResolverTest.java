@@ -0,0 +1,346 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.caltech.ipac.firefly.data.userdata.UserInfo;
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.message.StringMapMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.servlet.http.Cookie;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class IdentityResolverTest {
+
+    private static final String BADGERFISH_USER = "{\"user\": {"
+            + "\"internalID\": {\"uri\": {\"$\": \"ivo://cadc.nrc.ca/gms?1234\"}},"
+            + "\"identities\": {\"$\": ["
+            + "  {\"identity\": {\"@type\": \"X500\", \"$\": \"CN=jdoe_abc,OU=cadc,O=hia,C=ca\"}},"
+            + "  {\"identity\": {\"@type\": \"HTTP\", \"$\": \"jdoe\"}}]},"
+            + "\"personalDetails\": {\"firstName\": {\"$\": \"Jane\"}, \"lastName\": {\"$\": \"Doe\"},"
+            + "  \"email\": {\"$\": \"jane.doe@example.org\"}}}}";
+
+    private static final long TTL = 300_000L;
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile int status = 200;
+    private volatile String body = BADGERFISH_USER;
+    private volatile CountDownLatch gate;
+    private final List<String> authorizations = new ArrayList<>();
+    private AtomicLong clock;
+    private RecordingSink sink;
+    private RelayEventLog events;
+    private IdentityResolver resolver;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.createContext("/ac/whoami", this::whoami);
+        server.start();
+        clock = new AtomicLong(1_000_000L);
+        sink = new RecordingSink();
+        events = new RelayEventLog(sink, 64, clock::get);
+        resolver = newResolver();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    private IdentityResolver newResolver() {
+        URI endpoint = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/ac/whoami");
+        return new IdentityResolver(endpoint, TTL, Duration.ofSeconds(5), clock::get,
+                                    events, RelayEventLog.Policy.DEFAULT);
+    }
+
+    private void whoami(HttpExchange exchange) throws IOException {
+        calls.incrementAndGet();
+        synchronized (authorizations) {
+            authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+        }
+        CountDownLatch waitFor = gate;
+        if (waitFor != null) {
+            try {
+                waitFor.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Test
+    void testParseBadgerFishUser() {
+        IdentityResolver.Identity identity = IdentityResolver.parse(BADGERFISH_USER);
+
+        assertEquals("jdoe", identity.getLoginName());
+        assertEquals("Jane", identity.getFirstName());
+        assertEquals("Doe", identity.getLastName());
+        assertEquals("jane.doe@example.org", identity.getEmail());
+    }
+
+    @Test
+    void testParseFlatUser() {
+        IdentityResolver.Identity identity = IdentityResolver.parse(
+                "{\"username\": \"jdoe\", \"email\": \"jane.doe@example.org\"}");
+
+        assertEquals("jdoe", identity.getLoginName());
+        assertEquals("jane.doe@example.org", identity.getEmail());
+        assertNull(identity.getFirstName());
+        assertSame(IdentityResolver.ANONYMOUS, IdentityResolver.parse("{\"user\": {}}"));
+        assertThrows(IllegalArgumentException.class, () -> IdentityResolver.parse("<user/>"));
+    }
+
+    @Test
+    void testIdentityCachedPerToken() {
+        IdentityResolver.Identity first = resolver.resolve("token-a");
+        IdentityResolver.Identity again = resolver.resolve("token-a");
+
+        assertEquals("jdoe", first.getLoginName());
+        assertSame(first, again);
+        assertEquals(1, calls.get());
+        assertEquals(List.of("Bearer token-a"), authorizations);
+
+        body = "{\"username\": \"other\"}";
+        assertEquals("other", resolver.resolve("token-b").getLoginName());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void testConcurrentLookupsShareOneCall() throws Exception {
+        gate = new CountDownLatch(1);
+        ExecutorService requests = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<IdentityResolver.Identity>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(requests.submit(() -> resolver.resolve("token-a")));
+            }
+            long deadline = System.currentTimeMillis() + 5000L;
+            while (calls.get() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5L);
+            }
+            Thread.sleep(50L);
+            gate.countDown();
+            for (Future<IdentityResolver.Identity> result : results) {
+                assertEquals("jdoe", result.get(5, TimeUnit.SECONDS).getLoginName());
+            }
+        } finally {
+            requests.shutdownNow();
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void testStaleIdentityServedWhileRefreshing() throws Exception {
+        IdentityResolver.Identity first = resolver.resolve("token-a");
+        body = "{\"username\": \"jdoe\", \"email\": \"new@example.org\"}";
+        gate = new CountDownLatch(1);
+        clock.addAndGet(TTL);
+
+        // Served from the cache while the refresh is held up at the server
+        assertSame(first, resolver.resolve("token-a"));
+        assertSame(first, resolver.resolve("token-a"));
+        gate.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (resolver.resolve("token-a") == first && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5L);
+        }
+        assertEquals("new@example.org", resolver.resolve("token-a").getEmail());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void testExpiredIdentityLookedUpAgain() {
+        resolver.resolve("token-a");
+        clock.addAndGet(2 * TTL);
+        body = "{\"username\": \"renamed\"}";
+
+        assertEquals("renamed", resolver.resolve("token-a").getLoginName());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void testRefusedTokenCachedBriefly() {
+        status = 401;
+        body = "{}";
+
+        assertNull(resolver.resolve("expired-token"));
+        assertNull(resolver.resolve("expired-token"));
+        assertEquals(1, calls.get());
+
+        clock.addAndGet(IdentityResolver.NEGATIVE_TTL_MILLIS);
+        assertNull(resolver.resolve("expired-token"));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void testServerErrorNotCached() {
+        status = 503;
+        body = "unavailable";
+
+        assertNull(resolver.resolve("token-a"));
+        status = 200;
+        body = BADGERFISH_USER;
+        assertEquals("jdoe", resolver.resolve("token-a").getLoginName());
+        assertEquals(2, calls.get());
+
+        events.drain();
+        assertEquals("identity_lookup_failed", sink.messages.get(0).get("event"));
+        assertEquals("HTTP 503", sink.messages.get(0).get("error"));
+    }
+
+    @Test
+    void testUnreachableEndpoint() {
+        server.stop(0);
+
+        assertNull(resolver.resolve("token-a"));
+        events.drain();
+        assertEquals(1, sink.messages.size());
+    }
+
+    @Test
+    void testTokenRelayUserInfo() {
+        RelayConfig config = RelayConfig.fromMap(Map.of(
+                RelayConfig.WHOAMI_URL, "http://127.0.0.1:" + server.getAddress().getPort() + "/ac/whoami"));
+        RequestAgent agent = mock(RequestAgent.class);
+        when(agent.getCookie("CADC_SSO")).thenReturn(new Cookie("CADC_SSO", "token-a"));
+        TokenRelay relay = Mockito.spy(new TokenRelay(config, new RelayMetrics()));
+        doReturn(agent).when(relay).getRequestAgent();
+
+        UserInfo userInfo = relay.getUserInfo();
+        userInfo.setEmail("changed@example.org");
+
+        assertEquals("jdoe", userInfo.getLoginName());
+        assertFalse(userInfo.isGuestUser());
+        assertEquals("Jane", relay.getUserInfo().getFirstName());
+        assertEquals("jane.doe@example.org", relay.getUserInfo().getEmail());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void testTokenRelayGuestWithoutToken() {
+        RelayConfig config = RelayConfig.fromMap(Map.of(
+                RelayConfig.WHOAMI_URL, "http://127.0.0.1:" + server.getAddress().getPort() + "/ac/whoami"));
+        TokenRelay relay = Mockito.spy(new TokenRelay(config, new RelayMetrics()));
+        doReturn(mock(RequestAgent.class)).when(relay).getRequestAgent();
+
+        assertTrue(relay.getUserInfo().isGuestUser());
+        assertEquals(0, calls.get());
+        assertThrows(IllegalArgumentException.class,
+                     () -> RelayConfig.fromMap(Map.of(RelayConfig.WHOAMI_URL, "file:/etc/passwd")));
+    }
+
+    private static class RecordingSink implements RelayEventLog.Sink {
+        private final List<StringMapMessage> messages = new ArrayList<>();
+
+        @Override
+        public boolean isEnabled(Level level) {
+            return true;
+        }
+
+        @Override
+        public void log(Level level, StringMapMessage message) {
+            messages.add(message);
+        }
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import com.sun.net.httpserver.HttpServer;
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import javax.servlet.http.Cookie;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class JwtValidatorTest {
+
+    private static final long NOW = 1_800_000_000_000L;
+    private static final String AUDIENCE = "https://ws-uv.canfar.net";
+
+    private static KeyPair rsaKeys;
+    private static KeyPair ecKeys;
+    private static KeyPair otherRsaKeys;
+
+    @TempDir
+    Path tempDir;
+
+    private Path jwksFile;
+    private AtomicLong clock;
+    private JwtValidator validator;
+
+    @BeforeAll
+    static void generateKeys() throws Exception {
+        KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+        rsa.initialize(2048);
+        rsaKeys = rsa.generateKeyPair();
+        otherRsaKeys = rsa.generateKeyPair();
+        KeyPairGenerator ec = KeyPairGenerator.getInstance("EC");
+        ec.initialize(new ECGenParameterSpec("secp256r1"));
+        ecKeys = ec.generateKeyPair();
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        jwksFile = tempDir.resolve("jwks.json");
+        Files.writeString(jwksFile, jwks(rsaJwk("rsa-1", rsaKeys), ecJwk("ec-1", ecKeys)));
+        clock = new AtomicLong(NOW);
+        validator = new JwtValidator(new JsonWebKeySet(jwksFile.toString(), 3_600_000L, clock::get),
+                                     AUDIENCE, "https://cadc.example.org", 30_000L, clock::get);
+    }
+
+    @Test
+    void testValidRsaToken() {
+        String token = sign("RS256", "rsa-1", rsaKeys.getPrivate(), claims(NOW + 60_000L));
+
+        JwtValidator.Result result = validator.validate(token);
+
+        assertTrue(result.isValid(), result.getReason());
+        assertEquals("alice", result.getClaims().get("sub"));
+        assertEquals(NOW + 60_000L, result.getExpiresAt());
+    }
+
+    @Test
+    void testValidEcToken() {
+        String token = sign("ES256", "ec-1", ecKeys.getPrivate(), claims(NOW + 60_000L));
+
+        assertTrue(validator.validate(token).isValid());
+    }
+
+    @Test
+    void testExpiredToken() {
+        assertEquals("expired", validator.validate(
+                sign("RS256", "rsa-1", rsaKeys.getPrivate(), claims(NOW - 60_000L))).getReason());
+        // Within the leeway
+        assertTrue(validator.validate(
+                sign("RS256", "rsa-1", rsaKeys.getPrivate(), claims(NOW - 10_000L))).isValid());
+    }
+
+    @Test
+    void testNotBefore() {
+        String token = sign("RS256", "rsa-1", rsaKeys.getPrivate(),
+                            "{\"sub\":\"alice\",\"aud\":\"" + AUDIENCE + "\",\"iss\":\"https://cadc.example.org\","
+                            + "\"exp\":" + (NOW + 600_000L) / 1000 + ",\"nbf\":" + (NOW + 120_000L) / 1000 + "}");
+
+        assertEquals("not_yet_valid", validator.validate(token).getReason());
+
+        clock.set(NOW + 120_000L);
+        assertTrue(validator.validate(token).isValid());
+    }
+
+    @Test
+    void testAudienceAndIssuer() {
+        String audienceList = "{\"sub\":\"alice\",\"aud\":[\"other\",\"" + AUDIENCE + "\"],"
+                + "\"iss\":\"https://cadc.example.org\",\"exp\":" + (NOW + 60_000L) / 1000 + "}";
+        String wrongAudience = "{\"sub\":\"alice\",\"aud\":\"other\","
+                + "\"iss\":\"https://cadc.example.org\",\"exp\":" + (NOW + 60_000L) / 1000 + "}";
+        String wrongIssuer = "{\"sub\":\"alice\",\"aud\":\"" + AUDIENCE + "\","
+                + "\"iss\":\"https://evil.example.org\",\"exp\":" + (NOW + 60_000L) / 1000 + "}";
+
+        assertTrue(validator.validate(sign("RS256", "rsa-1", rsaKeys.getPrivate(), audienceList)).isValid());
+        assertEquals("wrong_audience",
+                     validator.validate(sign("RS256", "rsa-1", rsaKeys.getPrivate(), wrongAudience)).getReason());
+        assertEquals("wrong_issuer",
+                     validator.validate(sign("RS256", "rsa-1", rsaKeys.getPrivate(), wrongIssuer)).getReason());
+    }
+
+    @Test
+    void testMissingExpiry() {
+        String token = sign("RS256", "rsa-1", rsaKeys.getPrivate(), "{\"sub\":\"alice\",\"aud\":\"" + AUDIENCE + "\"}");
+
+        assertEquals("no_expiry", validator.validate(token).getReason());
+    }
+
+    @Test
+    void testBadSignature() {
+        String token = sign("RS256", "rsa-1", otherRsaKeys.getPrivate(), claims(NOW + 60_000L));
+        String tampered = sign("RS256", "rsa-1", rsaKeys.getPrivate(), claims(NOW + 60_000L));
+        int payloadStart = tampered.indexOf('.') + 1;
+        tampered = tampered.substring(0, payloadStart)
+                + base64(claims(NOW + 86_400_000L)) + tampered.substring(tampered.lastIndexOf('.'));
+
+        assertEquals("bad_signature", validator.validate(token).getReason());
+        assertEquals("bad_signature", validator.validate(tampered).getReason());
+    }
+
+    @Test
+    void testUnsupportedAlgorithms() {
+        String unsigned = base64("{\"alg\":\"none\"}") + "." + base64(claims(NOW + 60_000L)) + ".";
+        String hmac = base64("{\"alg\":\"HS256\",\"kid\":\"rsa-1\"}") + "." + base64(claims(NOW + 60_000L)) + ".c2ln";
+
+        assertEquals("malformed", validator.validate(unsigned).getReason());
+        assertEquals("unsupported_alg", validator.validate(hmac).getReason());
+    }
+
+    @Test
+    void testMalformedTokens() {
+        assertEquals("malformed", validator.validate("opaque-session-id").getReason());
+        assertEquals("malformed", validator.validate("a.b").getReason());
+        assertEquals("malformed", validator.validate("a.b.c.d").getReason());
+        assertEquals("malformed", validator.validate("!!!.###.$$$").getReason());
+        assertEquals("malformed", validator.validate(base64("[]") + "." + base64("{}") + ".c2ln").getReason());
+    }
+
+    @Test
+    void testUnknownKeyReloadsKeySet() throws Exception {
+        KeyPair rotated = otherRsaKeys;
+        String token = sign("RS256", "rsa-2", rotated.getPrivate(), claims(NOW + 600_000L));
+
+        assertEquals("unknown_key", validator.validate(token).getReason());
+
+        // The key set is reloaded at most once per MIN_RELOAD_MILLIS
+        Files.writeString(jwksFile, jwks(rsaJwk("rsa-1", rsaKeys), rsaJwk("rsa-2", rotated)));
+        assertEquals("unknown_key", validator.validate(token).getReason());
+
+        clock.addAndGet(JsonWebKeySet.MIN_RELOAD_MILLIS);
+        assertTrue(validator.validate(token).isValid());
+    }
+
+    @Test
+    void testKeySetRefreshedInBackground() throws Exception {
+        JsonWebKeySet keySet = new JsonWebKeySet(jwksFile.toUri().toString(), 60_000L, clock::get);
+        assertNotNull(keySet.find("rsa-1", "RSA"));
+        assertEquals(2, keySet.size());
+
+        Files.writeString(jwksFile, jwks(rsaJwk("rsa-1", rsaKeys)));
+        clock.addAndGet(60_000L);
+        // The stale keys are still served while the refresh runs
+        assertNotNull(keySet.find("ec-1", "EC"));
+
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (keySet.size() != 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(1, keySet.size());
+    }
+
+    @Test
+    void testKeySelection() throws Exception {
+        JsonWebKeySet.Keys keys = JsonWebKeySet.parse(
+                jwks(rsaJwk(null, rsaKeys), ecJwk("ec-1", ecKeys), "{\"kty\":\"oct\",\"k\":\"c2VjcmV0\"}",
+                     "{\"kty\":\"RSA\",\"use\":\"enc\",\"n\":\"AQAB\",\"e\":\"AQAB\"}"), NOW);
+        Files.writeString(jwksFile, jwks(rsaJwk(null, rsaKeys), rsaJwk(null, otherRsaKeys)));
+        JsonWebKeySet ambiguous = new JsonWebKeySet(jwksFile.toString(), 60_000L, clock::get);
+
+        assertNotNull(keys);
+        assertEquals(rsaKeys.getPublic(), new JsonWebKeySet(writeJwks(rsaJwk(null, rsaKeys)), 60_000L, clock::get)
+                .find(null, "RSA"));
+        assertNull(ambiguous.find(null, "RSA"));
+        assertNull(ambiguous.find(null, "EC"));
+    }
+
+    @Test
+    void testUnreadableKeysAreSkipped() throws Exception {
+        JsonWebKeySet.Keys keys = JsonWebKeySet.parse(
+                jwks("{\"kty\":\"EC\",\"crv\":\"secp256k1\",\"kid\":\"k1\",\"x\":\"AQAB\",\"y\":\"AQAB\"}",
+                     "{\"kty\":\"RSA\",\"kid\":\"bad\",\"n\":\"not base64!\",\"e\":\"AQAB\"}",
+                     "{\"kty\":\"RSA\",\"kid\":\"missing\",\"e\":\"AQAB\"}",
+                     rsaJwk("rsa-1", rsaKeys)), NOW);
+        assertNotNull(keys);
+
+        JsonWebKeySet keySet = new JsonWebKeySet(writeJwks(
+                "{\"kty\":\"EC\",\"crv\":\"secp256k1\",\"kid\":\"k1\",\"x\":\"AQAB\",\"y\":\"AQAB\"}",
+                rsaJwk("rsa-1", rsaKeys), ecJwk("ec-1", ecKeys)), 60_000L, clock::get);
+        assertEquals(rsaKeys.getPublic(), keySet.find("rsa-1", "RSA"));
+        assertEquals(ecKeys.getPublic(), keySet.find("ec-1", "EC"));
+        assertEquals(2, keySet.size());
+    }
+
+    @Test
+    void testSlowKeySetIsLoadedOnceWithBoundedWait() throws Exception {
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/jwks", exchange -> {
+            fetches.incrementAndGet();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = jwks(rsaJwk("rsa-1", rsaKeys)).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            JsonWebKeySet keySet = new JsonWebKeySet("http://127.0.0.1:" + server.getAddress().getPort() + "/jwks",
+                                                     60_000L, clock::get);
+            long start = System.nanoTime();
+            Future<?>[] finds = new Future<?>[8];
+            for (int i = 0; i < finds.length; i++) {
+                finds[i] = threads.submit(() -> keySet.find("rsa-1", "RSA"));
+            }
+            // Every thread gives up after the bounded wait, together rather than one after another
+            for (Future<?> find : finds) {
+                assertNull(find.get(10, TimeUnit.SECONDS));
+            }
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000L;
+            assertTrue(elapsedMillis < 2 * JsonWebKeySet.RELOAD_WAIT_MILLIS, elapsedMillis + " ms");
+            assertEquals(1, fetches.get());
+
+            release.countDown();
+            long deadline = System.currentTimeMillis() + 5_000L;
+            while (keySet.size() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertEquals(rsaKeys.getPublic(), keySet.find("rsa-1", "RSA"));
+            assertEquals(1, fetches.get());
+        } finally {
+            release.countDown();
+            threads.shutdownNow();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testUnreadableKeySet() {
+        JwtValidator missing = new JwtValidator(
+                new JsonWebKeySet(tempDir.resolve("missing.json").toString(), 60_000L, clock::get),
+                null, null, 0L, clock::get);
+
+        assertEquals("unknown_key", missing.validate(
+                sign("RS256", "rsa-1", rsaKeys.getPrivate(), claims(NOW + 60_000L))).getReason());
+    }
+
+    @Test
+    void testResultsCachedPerToken() throws Exception {
+        String token = sign("RS256", "rsa-1", rsaKeys.getPrivate(), claims(NOW + 60_000L));
+        JwtValidator.Result first = validator.validate(token);
+
+        // Remove the keys: the cached result is still used until the token expires
+        Files.writeString(jwksFile, jwks());
+        clock.addAndGet(JsonWebKeySet.MIN_RELOAD_MILLIS);
+        assertSame(first, validator.validate(token));
+
+        clock.set(NOW + 60_000L + 30_000L);
+        assertEquals("expired", validator.validate(token).getReason());
+    }
+
+    @Test
+    void testConfigFromSettings() {
+        assertNull(RelayConfig.fromMap(Map.of()).getJwtValidator());
+        assertNotNull(RelayConfig.fromMap(Map.of(RelayConfig.JWKS, jwksFile.toString())).getJwtValidator());
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(
+                Map.of(RelayConfig.JWKS, jwksFile.toString(), RelayConfig.JWT_LEEWAY, "-1")));
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(
+                Map.of(RelayConfig.JWKS, jwksFile.toString(), RelayConfig.JWKS_REFRESH, "soon")));
+    }
+
+    @Test
+    void testRelayDropsInvalidTokens() {
+        RelayConfig config = RelayConfig.fromMap(Map.of(RelayConfig.JWKS, jwksFile.toString(),
+                                                        RelayConfig.JWT_AUDIENCE, AUDIENCE));
+        RelayMetrics metrics = new RelayMetrics();
+        long exp = System.currentTimeMillis() + 600_000L;
+
+        assertNull(relayToken(config, metrics, sign("RS256", "rsa-1", otherRsaKeys.getPrivate(), claims(exp))));
+        assertNull(relayToken(config, metrics, "not-a-jwt"));
+        String valid = sign("RS256", "rsa-1", rsaKeys.getPrivate(), claims(exp));
+        assertEquals(valid, relayToken(config, metrics, valid));
+
+        assertEquals(2, metrics.getTokensInvalid());
+        assertEquals(1, metrics.getTokensFound());
+    }
+
+    private static String relayToken(RelayConfig config, RelayMetrics metrics, String value) {
+        RequestAgent agent = mock(RequestAgent.class);
+        when(agent.getCookie("CADC_SSO")).thenReturn(new Cookie("CADC_SSO", value));
+        TokenRelay relay = Mockito.spy(new TokenRelay(config, metrics));
+        doReturn(agent).when(relay).getRequestAgent();
+        return (relay.getAuthToken() == null) ? null : relay.getAuthToken().getId();
+    }
+
+    private String writeJwks(String... keys) throws Exception {
+        Path file = Files.createTempFile(tempDir, "jwks", ".json");
+        Files.writeString(file, jwks(keys));
+        return file.toString();
+    }
+
+    private static String claims(long expiresAt) {
+        return "{\"sub\":\"alice\",\"aud\":\"" + AUDIENCE + "\",\"iss\":\"https://cadc.example.org\","
+                + "\"exp\":" + expiresAt / 1000 + "}";
+    }
+
+    private static String sign(String alg, String kid, PrivateKey key, String claims) {
+        try {
+            String signingInput = base64("{\"alg\":\"" + alg + "\",\"kid\":\"" + kid + "\",\"typ\":\"JWT\"}")
+                    + "." + base64(claims);
+            Signature signer = Signature.getInstance(
+                    alg.startsWith("RS") ? "SHA256withRSA" : "SHA256withECDSAinP1363Format");
+            signer.initSign(key);
+            signer.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+            return signingInput + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(signer.sign());
+        } catch (Exception error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    private static String jwks(String... keys) {
+        return "{\"keys\":[" + String.join(",", keys) + "]}";
+    }
+
+    private static String rsaJwk(String kid, KeyPair keys) {
+        RSAPublicKey key = (RSAPublicKey) keys.getPublic();
+        return "{\"kty\":\"RSA\",\"use\":\"sig\"," + ((kid == null) ? "" : "\"kid\":\"" + kid + "\",")
+                + "\"n\":\"" + unsigned(key.getModulus(), 0) + "\",\"e\":\"" + unsigned(key.getPublicExponent(), 0) + "\"}";
+    }
+
+    private static String ecJwk(String kid, KeyPair keys) {
+        ECPublicKey key = (ECPublicKey) keys.getPublic();
+        return "{\"kty\":\"EC\",\"crv\":\"P-256\",\"kid\":\"" + kid + "\",\"x\":\"" + unsigned(key.getW().getAffineX(), 32)
+                + "\",\"y\":\"" + unsigned(key.getW().getAffineY(), 32) + "\"}";
+    }
+
+    private static String unsigned(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        if (bytes.length < length) {
+            byte[] padded = new byte[length];
+            System.arraycopy(bytes, 0, padded, length - bytes.length, bytes.length);
+            bytes = padded;
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static String base64(String json) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
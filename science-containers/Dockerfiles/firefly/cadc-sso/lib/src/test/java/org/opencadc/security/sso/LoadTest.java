@@ -0,0 +1,442 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives simulated Firefly sessions through a real {@link TokenRelay} and reports what the relay
+ * adds to each request.
+ *
+ * <p>Everything runs in this JVM on the loopback interface: the {@link MockServices} stand in for
+ * the CADC whoami and TAP services, the {@link FireflyIngress} for Firefly's command endpoint,
+ * and every session is a virtual thread with its own token that loops over the ingress, with a
+ * random think time, until the run ends. Nothing is fetched from the network, so a run needs only
+ * the built classes.</p>
+ *
+ * <p>Arguments are {@code --name=value} options, see {@link Options}, and {@code NAME=value} relay
+ * settings, which override the load test's own, e.g. {@code CADC_SSO_RATE_LIMIT=50} or
+ * {@code CADC_SSO_TRACING=true}. The exit status is 1 if any session saw a foreign or missing
+ * credential, an unexpected downstream refusal or a failed request.</p>
+ */
+public final class LoadTest {
+
+    private LoadTest() {
+    }
+
+    /**
+     * Runs a load test and prints its report.
+     *
+     * @param args Options and relay settings.
+     * @throws Exception If the mock services cannot be started.
+     */
+    public static void main(String[] args) throws Exception {
+        Report report = run(Options.parse(args));
+        report.print(System.out);
+        System.exit(report.isClean() ? 0 : 1);
+    }
+
+    /**
+     * Runs one load test.
+     *
+     * @param options The load.
+     * @return Report What was measured.
+     * @throws Exception If the mock services cannot be started.
+     */
+    static Report run(Options options) throws Exception {
+        RelayMetrics metrics = new RelayMetrics();
+        try (MockServices services = new MockServices(options.serviceMillis)) {
+            Map<String, String> settings = new HashMap<>();
+            settings.put(RelayConfig.ALLOWED_DOMAIN, services.getAuthority());
+            settings.put(RelayConfig.WHOAMI_URL, services.getBaseUrl() + MockServices.WHOAMI_PATH);
+            settings.putAll(options.settings);
+            TokenRelay relay = new FireflyIngress.IngressRelay(RelayConfig.fromMap(settings), metrics);
+            FireflyIngress ingress = new FireflyIngress(relay, services, options.fanOut);
+            services.mount(FireflyIngress.PATH, ingress);
+
+            HttpClient client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofSeconds(10))
+                    .build();
+            URI uri = URI.create(services.getBaseUrl() + FireflyIngress.PATH + "?cmd=tableSearch");
+            long start = System.nanoTime();
+            long measureStart = start + options.warmup.toNanos();
+            long end = measureStart + options.duration.toNanos();
+            Sessions sessions = new Sessions(measureStart, end, options.sampleSize);
+
+            List<Thread> threads = new ArrayList<>(options.sessions);
+            for (int i = 0; i < options.sessions; i++) {
+                int session = i;
+                threads.add(Thread.ofVirtual().name("cadc-sso-load-" + i)
+                        .start(() -> sessions.run(client, uri, session, options)));
+            }
+
+            Thread.sleep(options.warmup);
+            LatencySample requestLatency = new LatencySample(options.sampleSize);
+            LatencySample callLatency = new LatencySample(options.sampleSize);
+            ingress.record(requestLatency, callLatency);
+            Heap heap = Heap.snapshot();
+            Thread.sleep(options.duration);
+            Heap churn = Heap.snapshot().minus(heap);
+            ingress.record(new LatencySample(1), new LatencySample(1));
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            return new Report(options, options.duration.toNanos(), sessions, requestLatency,
+                              callLatency, churn, ingress, services, metrics);
+        }
+    }
+
+    /**
+     * The load to apply. Every option has a default:
+     * <ul>
+     *   <li>{@code --sessions}: The concurrent sessions (default: 2000).</li>
+     *   <li>{@code --duration}: The seconds measured (default: 30).</li>
+     *   <li>{@code --warmup}: The seconds run before measuring, over which sessions arrive (default: 10).</li>
+     *   <li>{@code --fan-out}: The TAP calls per request (default: 4).</li>
+     *   <li>{@code --think}: The mean pause between a session's requests, in milliseconds (default: 250).</li>
+     *   <li>{@code --cookies}: The other cookies sent with the SSO cookie (default: 20).</li>
+     *   <li>{@code --service-time}: The milliseconds each TAP call takes (default: 2).</li>
+     *   <li>{@code --samples}: The latencies kept for the percentiles (default: 1048576).</li>
+     * </ul>
+     */
+    static final class Options {
+        /**
+         * The concurrent sessions.
+         */
+        int sessions = 2000;
+        /**
+         * How long the load is measured for, after the warm-up.
+         */
+        Duration duration = Duration.ofSeconds(30);
+        /**
+         * How long the load runs before measuring starts, so that the JIT has compiled the relay.
+         */
+        Duration warmup = Duration.ofSeconds(10);
+        /**
+         * The TAP calls each request makes.
+         */
+        int fanOut = 4;
+        /**
+         * The mean pause between a session's requests, in milliseconds.
+         */
+        long thinkMillis = 250;
+        /**
+         * The other cookies in each session's cookie jar, sent with the SSO cookie.
+         */
+        int cookies = 20;
+        /**
+         * How long each TAP call takes to answer, in milliseconds.
+         */
+        long serviceMillis = 2;
+        /**
+         * The latencies kept for the percentiles.
+         */
+        int sampleSize = 1 << 20;
+        /**
+         * Relay settings added to, or overriding, the load test's.
+         */
+        final Map<String, String> settings = new HashMap<>();
+
+        /**
+         * @param args {@code --name=value} options and {@code NAME=value} relay settings.
+         * @return Options The options.
+         * @throws IllegalArgumentException If an argument is not understood.
+         */
+        static Options parse(String... args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int equals = arg.indexOf('=');
+                if (equals < 1) {
+                    throw new IllegalArgumentException("Expected --name=value or NAME=value: " + arg);
+                }
+                String name = arg.substring(0, equals);
+                String value = arg.substring(equals + 1);
+                if (!name.startsWith("--")) {
+                    options.settings.put(name, value);
+                    continue;
+                }
+                switch (name) {
+                    case "--sessions" -> options.sessions = positive(name, value);
+                    case "--duration" -> options.duration = Duration.ofSeconds(positive(name, value));
+                    case "--warmup" -> options.warmup = Duration.ofSeconds(Integer.parseInt(value));
+                    case "--fan-out" -> options.fanOut = Integer.parseInt(value);
+                    case "--think" -> options.thinkMillis = Long.parseLong(value);
+                    case "--cookies" -> options.cookies = Integer.parseInt(value);
+                    case "--service-time" -> options.serviceMillis = Long.parseLong(value);
+                    case "--samples" -> options.sampleSize = positive(name, value);
+                    default -> throw new IllegalArgumentException("Unknown option: " + name);
+                }
+            }
+            return options;
+        }
+
+        private static int positive(String name, String value) {
+            int number = Integer.parseInt(value);
+            if (number < 1) {
+                throw new IllegalArgumentException(name + " must be positive: " + value);
+            }
+            return number;
+        }
+    }
+
+    /**
+     * The simulated browser sessions and what they saw.
+     */
+    static final class Sessions {
+        private final long measureStart;
+        private final long end;
+        private final LatencySample latency;
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        Sessions(long measureStart, long end, int sampleSize) {
+            this.measureStart = measureStart;
+            this.end = end;
+            this.latency = new LatencySample(sampleSize);
+        }
+
+        /**
+         * Runs one session until the end of the test: a Firefly tab whose cookie jar holds the
+         * session's SSO cookie among other site cookies.
+         */
+        void run(HttpClient client, URI uri, int session, Options options) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            String token = MockServices.TOKEN_PREFIX + session + "-" + Long.toHexString(random.nextLong());
+            StringBuilder jar = new StringBuilder("JSESSIONID=").append(Long.toHexString(random.nextLong()));
+            for (int i = 0; i < options.cookies; i++) {
+                jar.append("; _pref").append(i).append('=').append(Long.toHexString(random.nextLong()));
+                if (i == options.cookies / 2) {
+                    jar.append("; CADC_SSO=").append(token);
+                }
+            }
+            if (options.cookies == 0) {
+                jar.append("; CADC_SSO=").append(token);
+            }
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .header(CookieHeader.HEADER, jar.toString())
+                    .GET()
+                    .build();
+            try {
+                // Sessions arrive at random times during the warm-up, or the first think time
+                long ramp = Math.max(options.warmup.toMillis(), options.thinkMillis);
+                Thread.sleep(random.nextLong(ramp + 1));
+                while (System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    int status;
+                    try {
+                        status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+                    } catch (IOException e) {
+                        status = -1;
+                    }
+                    long now = System.nanoTime();
+                    if (start >= measureStart && now <= end) {
+                        latency.record(now - start);
+                        requests.increment();
+                        // 429 is the relay's rate limit, counted by the ingress
+                        if (status != 200 && status != 429) {
+                            errors.increment();
+                        }
+                    }
+                    Thread.sleep(random.nextLong(2 * options.thinkMillis + 1));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The heap allocated and collected over an interval.
+     */
+    record Heap(long allocatedBytes, long collections, long collectionMillis) {
+
+        static Heap snapshot() {
+            long allocated = ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                    .getTotalThreadAllocatedBytes();
+            long collections = 0;
+            long millis = 0;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                collections += Math.max(0, collector.getCollectionCount());
+                millis += Math.max(0, collector.getCollectionTime());
+            }
+            return new Heap(allocated, collections, millis);
+        }
+
+        Heap minus(Heap earlier) {
+            return new Heap(allocatedBytes - earlier.allocatedBytes, collections - earlier.collections,
+                            collectionMillis - earlier.collectionMillis);
+        }
+    }
+
+    /**
+     * The results of a run.
+     */
+    static final class Report {
+        final Options options;
+        final long elapsedNanos;
+        final long requests;
+        final long errors;
+        final LatencySample endToEnd;
+        final LatencySample requestLatency;
+        final LatencySample callLatency;
+        final Heap heap;
+        final long mismatches;
+        final long guests;
+        final long rejected;
+        final long failures;
+        final String lastFailure;
+        final long authorized;
+        final long unauthorized;
+        final long identities;
+        final RelayMetrics metrics;
+
+        Report(Options options, long elapsedNanos, Sessions sessions, LatencySample requestLatency,
+               LatencySample callLatency, Heap heap, FireflyIngress ingress, MockServices services,
+               RelayMetrics metrics) {
+            this.options = options;
+            this.elapsedNanos = elapsedNanos;
+            this.requests = sessions.requests.sum();
+            this.errors = sessions.errors.sum();
+            this.endToEnd = sessions.latency;
+            this.requestLatency = requestLatency;
+            this.callLatency = callLatency;
+            this.heap = heap;
+            this.mismatches = ingress.getMismatches();
+            this.guests = ingress.getGuests();
+            this.rejected = ingress.getRejected();
+            this.failures = ingress.getFailures();
+            this.lastFailure = ingress.getLastFailure();
+            this.authorized = services.getAuthorized();
+            this.unauthorized = services.getUnauthorized();
+            this.identities = services.getIdentities();
+            this.metrics = metrics;
+        }
+
+        /**
+         * @return boolean True if every request was served with its own session's credential.
+         *         Rate limit rejections are expected when a limit is set and do not count.
+         */
+        boolean isClean() {
+            return mismatches == 0 && unauthorized == 0 && failures == 0 && errors == 0;
+        }
+
+        double throughput() {
+            return requests * 1e9 / elapsedNanos;
+        }
+
+        void print(PrintStream out) {
+            double seconds = elapsedNanos / 1e9;
+            out.printf(Locale.ROOT, "sessions %d, fan-out %d, think %d ms, %d cookies, measured %.1f s%n",
+                       options.sessions, options.fanOut, options.thinkMillis, options.cookies, seconds);
+            out.printf(Locale.ROOT, "throughput        %.0f requests/s, %.0f downstream calls/s%n",
+                       throughput(), callLatency.count() / seconds);
+            out.printf(Locale.ROOT, "relay per request p50 %s  p99 %s  mean %s  max %s%n",
+                       micros(requestLatency.percentileNanos(0.5)), micros(requestLatency.percentileNanos(0.99)),
+                       micros(requestLatency.meanNanos()), micros(requestLatency.maxNanos()));
+            out.printf(Locale.ROOT, "setAuthCredential p50 %s  p99 %s  mean %s  max %s%n",
+                       micros(callLatency.percentileNanos(0.5)), micros(callLatency.percentileNanos(0.99)),
+                       micros(callLatency.meanNanos()), micros(callLatency.maxNanos()));
+            out.printf(Locale.ROOT, "end to end        p50 %s  p99 %s  mean %s  max %s%n",
+                       micros(endToEnd.percentileNanos(0.5)), micros(endToEnd.percentileNanos(0.99)),
+                       micros(endToEnd.meanNanos()), micros(endToEnd.maxNanos()));
+            out.printf(Locale.ROOT, "heap              %.1f MB/s allocated, %d bytes/request, %d collections, %d ms%n",
+                       heap.allocatedBytes() / seconds / (1 << 20),
+                       (requests == 0) ? 0 : heap.allocatedBytes() / requests,
+                       heap.collections(), heap.collectionMillis());
+            out.printf(Locale.ROOT, "downstream        %d authorized, %d unauthorized, %d whoami lookups%n",
+                       authorized, unauthorized, identities);
+            out.printf(Locale.ROOT, "relay             %d tokens found, %d missing, %d withheld, %d rate limited%n",
+                       metrics.getTokensFound(), metrics.getTokensMissing(), metrics.getTokensWithheld(),
+                       metrics.getRateLimitDelays() + metrics.getRateLimitRejections());
+            out.printf(Locale.ROOT, "errors            %d failed requests, %d rejected, %d foreign credentials, %d guests%n",
+                       errors, rejected, mismatches, guests);
+            if (lastFailure != null) {
+                out.println("last failure      " + lastFailure);
+            }
+        }
+
+        private static String micros(long nanos) {
+            return String.format(Locale.ROOT, "%8.1f us", nanos / 1e3);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoadTestTest {
+
+    @Test
+    void testShortRunIsClean() throws Exception {
+        LoadTest.Options options = LoadTest.Options.parse(
+                "--sessions=20", "--duration=2", "--warmup=1", "--think=20", "--service-time=0", "--samples=4096");
+
+        LoadTest.Report report = LoadTest.run(options);
+
+        assertTrue(report.requests > 0);
+        assertTrue(report.isClean(), () -> report.errors + " errors, " + report.mismatches + " foreign credentials, "
+                + report.unauthorized + " unauthorized calls, last failure " + report.lastFailure);
+        assertEquals(0, report.metrics.getTokensMissing());
+        assertTrue(report.authorized >= report.requests * options.fanOut);
+        assertTrue(report.requestLatency.percentileNanos(0.99) >= report.requestLatency.percentileNanos(0.5));
+    }
+
+    @Test
+    void testRateLimitedRunRejectsWithoutLeaking() throws Exception {
+        LoadTest.Options options = LoadTest.Options.parse(
+                "--sessions=5", "--duration=2", "--warmup=0", "--think=0", "--service-time=0", "--samples=4096",
+                RelayConfig.RATE_LIMIT + "=5", RelayConfig.RATE_MAX_DELAY + "=0");
+
+        LoadTest.Report report = LoadTest.run(options);
+
+        assertTrue(report.rejected > 0);
+        assertEquals(0, report.errors);
+        assertEquals(0, report.mismatches);
+        assertEquals(0, report.unauthorized);
+        assertTrue(report.isClean());
+    }
+
+    @Test
+    void testOptions() {
+        LoadTest.Options options = LoadTest.Options.parse("--sessions=3", "--fan-out=0", "CADC_SSO_TRACING=true");
+
+        assertEquals(3, options.sessions);
+        assertEquals(0, options.fanOut);
+        assertEquals("true", options.settings.get(RelayConfig.TRACING));
+        assertThrows(IllegalArgumentException.class, () -> LoadTest.Options.parse("--sessions=0"));
+        assertThrows(IllegalArgumentException.class, () -> LoadTest.Options.parse("--bogus=1"));
+        assertThrows(IllegalArgumentException.class, () -> LoadTest.Options.parse("sessions"));
+    }
+
+    @Test
+    void testLatencySamplePercentiles() {
+        LatencySample sample = new LatencySample(1000);
+        for (int i = 1; i <= 100; i++) {
+            sample.record(i * 1000L);
+        }
+
+        assertEquals(100, sample.count());
+        assertEquals(50_000L, sample.percentileNanos(0.5));
+        assertEquals(99_000L, sample.percentileNanos(0.99));
+        assertEquals(100_000L, sample.maxNanos());
+        assertEquals(50_500L, sample.meanNanos());
+        assertEquals(0, new LatencySample(10).percentileNanos(0.5));
+    }
+}
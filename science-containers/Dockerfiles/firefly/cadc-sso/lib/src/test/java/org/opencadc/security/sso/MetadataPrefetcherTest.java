@@ -0,0 +1,353 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.Cookie;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class MetadataPrefetcherTest {
+
+    private static final String OPTIONS = "{\"tap\": {\"additional\": {\"services\": [{\"label\": \"CADC YouCAT\", "
+            + "\"value\": \"https://ws-uv.canfar.net/youcat\", \"centerWP\": \"62;-37;EQ_J2000\", \"fovDeg\": 10}, "
+            + "{\"label\": \"Nothing\"}]}}}";
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private String base;
+    private final AtomicInteger served = new AtomicInteger();
+    private final Map<String, String> authorizations = new ConcurrentHashMap<>();
+    private volatile int tablesBytes;
+    private volatile boolean unavailable;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.createContext("/youcat/", this::vosi);
+        server.createContext("/moved/", this::moved);
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort() + "/youcat";
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    /**
+     * A TAP service whose VOSI documents name the user that asked for them.
+     */
+    private void vosi(HttpExchange exchange) throws IOException {
+        served.incrementAndGet();
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        String path = exchange.getRequestURI().getPath();
+        authorizations.put(path + " " + authorization, "");
+        byte[] body;
+        if (unavailable) {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        } else if (authorization == null) {
+            exchange.sendResponseHeaders(401, -1);
+            exchange.close();
+            return;
+        } else if (path.endsWith("/tables") && tablesBytes > 0) {
+            body = new byte[tablesBytes];
+        } else {
+            body = ("<vosi path=\"" + path + "\" user=\"" + authorization + "\"/>").getBytes(StandardCharsets.UTF_8);
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * A TAP service that moved to a host the relay does not send credentials to.
+     */
+    private void moved(HttpExchange exchange) throws IOException {
+        served.incrementAndGet();
+        String path = exchange.getRequestURI().getPath().replace("/moved/", "/youcat/");
+        exchange.getResponseHeaders().set("Location", "http://localhost:" + server.getAddress().getPort() + path);
+        exchange.sendResponseHeaders(302, -1);
+        exchange.close();
+    }
+
+    private TokenRelay relay(Map<String, String> settings, String token, RelayMetrics metrics) {
+        return RejectedTokensTest.relay(settings, token, metrics);
+    }
+
+    private Map<String, String> settings(String services) {
+        return Map.of(RelayConfig.ALLOWED_DOMAIN, "127.0.0.1", RelayConfig.PREFETCH, "true",
+                      RelayConfig.PREFETCH_SERVICES, services);
+    }
+
+    @Test
+    void testServicesFromFireflyOptions() {
+        assertEquals(List.of("https://ws-uv.canfar.net/youcat"), MetadataPrefetcher.servicesFromOptions(OPTIONS));
+        assertEquals(List.of(), MetadataPrefetcher.servicesFromOptions(null));
+        assertEquals(List.of(), MetadataPrefetcher.servicesFromOptions("{\"charts\": {}}"));
+        assertThrows(IllegalArgumentException.class, () -> MetadataPrefetcher.servicesFromOptions("{\"tap\": "));
+    }
+
+    @Test
+    void testSettings() {
+        assertNull(RelayConfig.fromMap(Map.of()).getPrefetcher());
+        RelayConfig config = RelayConfig.fromMap(Map.of(RelayConfig.PREFETCH, "true", RelayConfig.FIREFLY_OPTIONS, OPTIONS));
+        assertEquals(List.of("https://ws-uv.canfar.net/youcat"), config.getPrefetcher().getServices());
+        assertSame(config.getPrefetcher(), RelayConfig.fromMap(Map.of(RelayConfig.PREFETCH, "true",
+                                                                      RelayConfig.FIREFLY_OPTIONS, OPTIONS), config).getPrefetcher());
+        assertFalse(config.getPrefetcher().isInUse());
+        config.getPrefetcher().markInUse();
+        assertTrue(RelayConfig.fromMap(Map.of(RelayConfig.PREFETCH, "true", RelayConfig.PREFETCH_TTL, "60",
+                                              RelayConfig.FIREFLY_OPTIONS, OPTIONS), config).getPrefetcher().isInUse());
+        assertEquals(List.of("https://ws-cadc.canfar.net/argus", "https://ws-uv.canfar.net/youcat"),
+                     RelayConfig.fromMap(Map.of(RelayConfig.PREFETCH, "true", RelayConfig.FIREFLY_OPTIONS, OPTIONS,
+                                                RelayConfig.PREFETCH_SERVICES,
+                                                "https://ws-cadc.canfar.net/argus/, https://ws-uv.canfar.net/youcat"))
+                                .getPrefetcher().getServices());
+
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(Map.of(RelayConfig.PREFETCH, "true",
+                                                                                      RelayConfig.FIREFLY_OPTIONS, "[")));
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(Map.of(RelayConfig.PREFETCH, "true",
+                                                                                      RelayConfig.PREFETCH_SERVICES, "ftp://x/tap")));
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(Map.of(RelayConfig.PREFETCH, "true",
+                                                                                      RelayConfig.PREFETCH_TTL, "0")));
+    }
+
+    @Test
+    void testPrefetchedOncePerUser() throws Exception {
+        RelayMetrics metrics = new RelayMetrics();
+        TokenRelay relay = relay(settings(base), "token-a", metrics);
+
+        assertNull(relay.getPrefetched(base + "/capabilities"));
+        assertNotNull(relay.getAuthToken());
+        await(() -> relay.getPrefetched(base + "/tables") != null && relay.getPrefetched(base + "/capabilities") != null);
+
+        assertEquals("<vosi path=\"/youcat/tables\" user=\"Bearer token-a\"/>", read(relay.getPrefetched(base + "/tables")));
+        assertEquals("<vosi path=\"/youcat/capabilities\" user=\"Bearer token-a\"/>",
+                     read(relay.getPrefetched(base + "/capabilities")));
+        assertNull(relay.getPrefetched(base + "/availability"));
+        assertEquals(2, served.get());
+        assertTrue(metrics.getPrefetchHits() >= 2L);
+
+        // Later requests of the session do not fetch again
+        RequestAgent later = mock(RequestAgent.class);
+        when(later.getCookie("CADC_SSO")).thenReturn(new Cookie("CADC_SSO", "token-a"));
+        doReturn(later).when(relay).getRequestAgent();
+        assertNotNull(relay.getPrefetched(base + "/tables"));
+        Thread.sleep(200L);
+        assertEquals(2, served.get());
+    }
+
+    @Test
+    void testNothingFetchedUntilAskedFor() throws Exception {
+        TokenRelay relay = relay(settings(base), "token-a", new RelayMetrics());
+
+        // Stock Firefly never asks for the documents, so none are fetched
+        relay.getAuthToken();
+        Thread.sleep(300L);
+        assertEquals(0, served.get());
+
+        // The first lookup misses and starts fetching for its user
+        assertNull(relay.getPrefetched(base + "/tables"));
+        await(() -> relay.getPrefetched(base + "/tables") != null);
+        assertEquals(2, served.get());
+    }
+
+    @Test
+    void testUsersOnlySeeTheirOwnMetadata() throws Exception {
+        TokenRelay relay = relay(settings(base), "token-a", new RelayMetrics());
+        relay.getAuthToken();
+        await(() -> relay.getPrefetched(base + "/tables") != null);
+
+        RequestAgent other = mock(RequestAgent.class);
+        when(other.getCookie("CADC_SSO")).thenReturn(new Cookie("CADC_SSO", "token-b"));
+        doReturn(other).when(relay).getRequestAgent();
+        InputStream document = relay.getPrefetched(base + "/tables");
+        if (document != null) {
+            assertEquals("<vosi path=\"/youcat/tables\" user=\"Bearer token-b\"/>", read(document));
+        }
+        await(() -> relay.getPrefetched(base + "/tables") != null);
+        assertEquals("<vosi path=\"/youcat/tables\" user=\"Bearer token-b\"/>", read(relay.getPrefetched(base + "/tables")));
+
+        // Requests without a token get nothing
+        RequestAgent guest = mock(RequestAgent.class);
+        doReturn(guest).when(relay).getRequestAgent();
+        assertNull(relay.getPrefetched(base + "/tables"));
+    }
+
+    @Test
+    void testServicesWithoutCredentialAreSkipped() throws Exception {
+        String unknown = "http://localhost:" + server.getAddress().getPort() + "/youcat";
+        TokenRelay relay = relay(settings(unknown), "token-a", new RelayMetrics());
+
+        relay.getAuthToken();
+        Thread.sleep(300L);
+
+        assertEquals(0, served.get());
+        assertNull(relay.getPrefetched(unknown + "/tables"));
+    }
+
+    @Test
+    void testLargeDocumentsAreDropped() throws Exception {
+        tablesBytes = MetadataPrefetcher.MAX_USER_BYTES + 1;
+        TokenRelay relay = relay(settings(base), "token-a", new RelayMetrics());
+
+        relay.getAuthToken();
+        await(() -> relay.getPrefetched(base + "/capabilities") != null && served.get() == 2);
+        Thread.sleep(200L);
+
+        assertNull(relay.getPrefetched(base + "/tables"));
+    }
+
+    @Test
+    void testRedirectsAreNotFollowed() throws Exception {
+        String moved = "http://127.0.0.1:" + server.getAddress().getPort() + "/moved";
+        TokenRelay relay = relay(settings(moved), "token-a", new RelayMetrics());
+
+        assertNull(relay.getPrefetched(moved + "/tables"));
+        await(() -> served.get() == 2);
+        Thread.sleep(200L);
+
+        // The Authorization header never reaches the host the service redirects to
+        assertEquals(2, served.get());
+        assertTrue(authorizations.isEmpty());
+        assertNull(relay.getPrefetched(moved + "/tables"));
+    }
+
+    @Test
+    void testFailedUserIsFetchedAgain() throws Exception {
+        Map<String, String> settings = new HashMap<>(settings(base));
+        settings.put(RelayConfig.PREFETCH_TTL, "10");
+        TokenRelay relay = relay(settings, "token-a", new RelayMetrics());
+        unavailable = true;
+
+        assertNull(relay.getPrefetched(base + "/tables"));
+        await(() -> served.get() == 2);
+        unavailable = false;
+
+        // Retried after a tenth of the TTL rather than left empty for all of it
+        long start = System.nanoTime();
+        await(() -> relay.getPrefetched(base + "/tables") != null);
+        assertTrue(System.nanoTime() - start < 5_000_000_000L);
+        assertEquals(4, served.get());
+    }
+
+    @Test
+    void testCircuitOpenHostIsNotPrefetched() throws Exception {
+        Map<String, String> settings = new HashMap<>(settings(base));
+        settings.put(RelayConfig.CIRCUIT_THRESHOLD, "50");
+        settings.put(RelayConfig.CIRCUIT_MIN_CALLS, "1");
+        settings.put(RelayConfig.CIRCUIT_PROBE, "0");
+        TokenRelay relay = relay(settings, "token-a", new RelayMetrics());
+        relay.onDownstreamResponse(base + "/sync", 503);
+
+        assertNull(relay.getPrefetched(base + "/tables"));
+        Thread.sleep(300L);
+
+        assertEquals(0, served.get());
+    }
+
+    private static String read(InputStream document) throws IOException {
+        try (InputStream in = document) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(10L);
+        }
+    }
+}
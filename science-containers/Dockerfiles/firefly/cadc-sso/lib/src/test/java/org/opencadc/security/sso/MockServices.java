@@ -0,0 +1,246 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The CADC services a Firefly session calls, served on the loopback interface: a {@code whoami}
+ * endpoint and two TAP services, plus whatever ingress the load test mounts.
+ *
+ * <p>Every exchange runs on its own virtual thread, as a servlet container with virtual threads
+ * would serve it. The TAP services answer a small VOTable to calls carrying a session token and
+ * 401 to any other, and count both, so a run shows any call the relay sent without a credential
+ * or with someone else's.</p>
+ */
+final class MockServices implements AutoCloseable {
+
+    /**
+     * The prefix of every simulated session token; the rest is the session number and a nonce.
+     */
+    static final String TOKEN_PREFIX = "session-";
+
+    static final String WHOAMI_PATH = "/ac/whoami";
+    static final String[] TAP_PATHS = {"/youcat/sync", "/argus/sync"};
+
+    private static final byte[] VOTABLE = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<VOTABLE xmlns=\"http://www.ivoa.net/xml/VOTable/v1.3\" version=\"1.3\">"
+            + "<RESOURCE type=\"results\"><INFO name=\"QUERY_STATUS\" value=\"OK\"/><TABLE>"
+            + "<FIELD name=\"table_name\" datatype=\"char\" arraysize=\"*\"/><DATA><TABLEDATA>"
+            + "<TR><TD>tap_schema.tables</TD></TR><TR><TD>caom2.Plane</TD></TR>"
+            + "</TABLEDATA></DATA></TABLE></RESOURCE></VOTABLE>\n").getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final long serviceMillis;
+    private final LongAdder authorized = new LongAdder();
+    private final LongAdder unauthorized = new LongAdder();
+    private final LongAdder identities = new LongAdder();
+
+    /**
+     * Starts the services on an ephemeral loopback port.
+     *
+     * @param serviceMillis How long each TAP call takes to answer, in milliseconds.
+     * @throws IOException If the server cannot be bound.
+     */
+    MockServices(long serviceMillis) throws IOException {
+        this.serviceMillis = serviceMillis;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 4096);
+        server.setExecutor(executor);
+        server.createContext(WHOAMI_PATH, this::whoami);
+        for (String path : TAP_PATHS) {
+            server.createContext(path, this::tap);
+        }
+        server.start();
+    }
+
+    /**
+     * Serves an additional path from the same server.
+     *
+     * @param path The context path.
+     * @param handler The handler.
+     */
+    void mount(String path, HttpHandler handler) {
+        server.createContext(path, handler);
+    }
+
+    /**
+     * @return String The {@code host:port} the services listen on.
+     */
+    String getAuthority() {
+        return "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return String The base URL of the services, without a trailing slash.
+     */
+    String getBaseUrl() {
+        return "http://" + getAuthority();
+    }
+
+    /**
+     * @return long The TAP calls answered with a result.
+     */
+    long getAuthorized() {
+        return authorized.sum();
+    }
+
+    /**
+     * @return long The TAP calls refused for a missing or foreign credential.
+     */
+    long getUnauthorized() {
+        return unauthorized.sum();
+    }
+
+    /**
+     * @return long The whoami lookups answered.
+     */
+    long getIdentities() {
+        return identities.sum();
+    }
+
+    private void whoami(HttpExchange exchange) throws IOException {
+        String token = bearer(exchange);
+        if (token == null) {
+            respond(exchange, 401, "text/plain", new byte[0]);
+            return;
+        }
+        identities.increment();
+        String user = userOf(token);
+        String json = "{\"username\":\"" + user + "\",\"email\":\"" + user + "@example.org\","
+                + "\"firstName\":\"Load\",\"lastName\":\"" + user + "\"}";
+        respond(exchange, 200, "application/json", json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void tap(HttpExchange exchange) throws IOException {
+        if (serviceMillis > 0) {
+            try {
+                Thread.sleep(serviceMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (bearer(exchange) == null) {
+            unauthorized.increment();
+            respond(exchange, 401, "text/plain", new byte[0]);
+            return;
+        }
+        authorized.increment();
+        respond(exchange, 200, "application/x-votable+xml", VOTABLE);
+    }
+
+    /**
+     * @return The session token of the request's bearer credential, or null.
+     */
+    private static String bearer(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer " + TOKEN_PREFIX)) {
+            return null;
+        }
+        return authorization.substring("Bearer ".length());
+    }
+
+    /**
+     * @param token A session token.
+     * @return String The user name of the session.
+     */
+    static String userOf(String token) {
+        int end = token.indexOf('-', TOKEN_PREFIX.length());
+        return "user" + token.substring(TOKEN_PREFIX.length(), (end < 0) ? token.length() : end);
+    }
+
+    /**
+     * Drains the request body and sends a complete response.
+     */
+    static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, (body.length == 0) ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.close();
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.Cookie;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class RateLimiterTest {
+
+    private static final long SECOND = 1_000_000_000L;
+    private static final long KEY = RejectedTokens.forHost(RejectedTokens.fingerprint("token-a"), "ws-uv.canfar.net");
+
+    private AtomicLong clock;
+
+    @BeforeEach
+    void setUp() {
+        clock = new AtomicLong(-5 * SECOND);
+    }
+
+    @Test
+    void testBurstThenDelayThenReject() {
+        // 10 per second, bursts of 3, calls up to 150 ms over the limit wait
+        RateLimiter limiter = new RateLimiter(1024, 10.0, 3, 150_000_000L, clock::get);
+
+        assertEquals(0L, limiter.acquire(KEY));
+        assertEquals(0L, limiter.acquire(KEY));
+        assertEquals(0L, limiter.acquire(KEY));
+        assertEquals(SECOND / 10, limiter.acquire(KEY));
+        assertTrue(limiter.acquire(KEY) < 0L);
+        assertEquals(-2 * SECOND / 10, limiter.acquire(KEY), "a rejected call takes nothing from the bucket");
+    }
+
+    @Test
+    void testRefill() {
+        RateLimiter limiter = new RateLimiter(1024, 10.0, 2, 0L, clock::get);
+
+        assertEquals(0L, limiter.acquire(KEY));
+        assertEquals(0L, limiter.acquire(KEY));
+        assertEquals(-SECOND / 10, limiter.acquire(KEY));
+        clock.addAndGet(SECOND / 10);
+        assertEquals(0L, limiter.acquire(KEY));
+        assertTrue(limiter.acquire(KEY) < 0L);
+        // Idle time never fills the bucket beyond the burst
+        clock.addAndGet(60 * SECOND);
+        assertEquals(0L, limiter.acquire(KEY));
+        assertEquals(0L, limiter.acquire(KEY));
+        assertTrue(limiter.acquire(KEY) < 0L);
+    }
+
+    @Test
+    void testKeysAreIndependent() {
+        RateLimiter limiter = new RateLimiter(1024, 1.0, 1, 0L, clock::get);
+        long other = RejectedTokens.forHost(RejectedTokens.fingerprint("token-a"), "ws-cadc.canfar.net");
+
+        assertEquals(0L, limiter.acquire(KEY));
+        assertTrue(limiter.acquire(KEY) < 0L);
+        assertEquals(0L, limiter.acquire(other));
+        assertEquals(0L, limiter.acquire(RejectedTokens.forHost(RejectedTokens.fingerprint("token-b"), "ws-uv.canfar.net")));
+    }
+
+    @Test
+    void testBoundedUnderManyKeys() {
+        RateLimiter limiter = new RateLimiter(64, 1.0, 1, 0L, clock::get);
+
+        for (int i = 0; i < 100_000; i++) {
+            assertEquals(0L, limiter.acquire(RejectedTokens.fingerprint("token-" + i)));
+            clock.addAndGet(SECOND / 1000);
+        }
+        assertTrue(limiter.size() <= 64);
+        // A key still over its limit keeps its bucket while idle keys are replaced
+        assertEquals(0L, limiter.acquire(KEY));
+        for (int i = 0; i < 16; i++) {
+            limiter.acquire(RejectedTokens.fingerprint("other-" + i));
+        }
+        assertTrue(limiter.acquire(KEY) < 0L);
+    }
+
+    @Test
+    void testConcurrentCallsShareOneBucket() throws Exception {
+        RateLimiter limiter = new RateLimiter(1024, 1.0, 100, 0L, clock::get);
+        AtomicInteger allowed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        try (ExecutorService executor = Executors.newFixedThreadPool(8)) {
+            for (int t = 0; t < 8; t++) {
+                executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 1000; i++) {
+                        if (limiter.acquire(KEY) == 0L) {
+                            allowed.incrementAndGet();
+                        }
+                    }
+                    return null;
+                });
+            }
+            start.countDown();
+        }
+
+        assertEquals(100, allowed.get());
+    }
+
+    @Test
+    void testInvalidLimits() {
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(64, 0.0, 1, 0L, clock::get));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(64, Double.NaN, 1, 0L, clock::get));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(64, 1.0, 0, 0L, clock::get));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(64, 1.0, 1, -1L, clock::get));
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(Map.of(RelayConfig.RATE_LIMIT, "-1")));
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(Map.of(RelayConfig.RATE_LIMIT, "1",
+                                                                                   RelayConfig.RATE_MAX_DELAY, "-5")));
+        assertNull(RelayConfig.fromMap(Map.of()).getRateLimiter());
+    }
+
+    @Test
+    void testKeptAcrossReloads() {
+        RelayConfig config = RelayConfig.fromMap(Map.of(RelayConfig.RATE_LIMIT, "5"));
+
+        assertSame(config.getRateLimiter(),
+                   RelayConfig.fromMap(Map.of(RelayConfig.RATE_LIMIT, "5", RelayConfig.DEBUG, "true"), config).getRateLimiter());
+        assertNotSame(config.getRateLimiter(),
+                      RelayConfig.fromMap(Map.of(RelayConfig.RATE_LIMIT, "6"), config).getRateLimiter());
+    }
+
+    @Test
+    void testRelayRejectsOverLimit() {
+        RelayMetrics metrics = new RelayMetrics();
+        TokenRelay relay = RejectedTokensTest.relay(Map.of(RelayConfig.RATE_LIMIT, "0.01", RelayConfig.RATE_BURST, "2",
+                                                           RelayConfig.RATE_MAX_DELAY, "0"), "token-a", metrics);
+
+        assertEquals("Bearer token-a", RejectedTokensTest.authorization(relay, "https://ws-uv.canfar.net/youcat/sync"));
+        assertEquals("Bearer token-a", RejectedTokensTest.authorization(relay, "https://ws-uv.canfar.net/youcat/async"));
+        RelayRejectedException rejected = assertThrows(RelayRejectedException.class,
+                () -> RejectedTokensTest.authorization(relay, "https://ws-uv.canfar.net/youcat/sync"));
+        assertEquals("ws-uv.canfar.net", rejected.getHost());
+        assertTrue(rejected.getRetryAfterMillis() > 90_000L);
+        assertEquals(1L, metrics.getRateLimitRejections());
+
+        // Other hosts and other users have their own buckets
+        assertEquals("Bearer token-a", RejectedTokensTest.authorization(relay, "https://ws-cadc.canfar.net/minoc/files"));
+        RequestAgent agent = mock(RequestAgent.class);
+        when(agent.getCookie("CADC_SSO")).thenReturn(new Cookie("CADC_SSO", "token-b"));
+        doReturn(agent).when(relay).getRequestAgent();
+        assertEquals("Bearer token-b", RejectedTokensTest.authorization(relay, "https://ws-uv.canfar.net/youcat/sync"));
+        // Calls that relay nothing are not limited
+        for (int i = 0; i < 5; i++) {
+            assertNull(RejectedTokensTest.authorization(relay, "https://irsa.ipac.caltech.edu/TAP/sync"));
+        }
+    }
+
+    @Test
+    void testRelayRejectsOverLimitByDefault() {
+        RelayMetrics metrics = new RelayMetrics();
+        TokenRelay relay = RejectedTokensTest.relay(Map.of(RelayConfig.RATE_LIMIT, "20", RelayConfig.RATE_BURST, "1"),
+                                                    "token-a", metrics);
+
+        assertEquals("Bearer token-a", RejectedTokensTest.authorization(relay, "https://ws-uv.canfar.net/youcat/sync"));
+        assertThrows(RelayRejectedException.class,
+                     () -> RejectedTokensTest.authorization(relay, "https://ws-uv.canfar.net/youcat/sync"));
+        assertEquals(0L, metrics.getRateLimitDelays());
+        assertEquals(1L, metrics.getRateLimitRejections());
+    }
+
+    @Test
+    void testRelayDelaysOverLimit() {
+        RelayMetrics metrics = new RelayMetrics();
+        TokenRelay relay = RejectedTokensTest.relay(Map.of(RelayConfig.RATE_LIMIT, "20", RelayConfig.RATE_BURST, "1",
+                                                           RelayConfig.RATE_MAX_DELAY, "1000"), "token-a", metrics);
+
+        assertEquals("Bearer token-a", RejectedTokensTest.authorization(relay, "https://ws-uv.canfar.net/youcat/sync"));
+        long start = System.nanoTime();
+        assertEquals("Bearer token-a", RejectedTokensTest.authorization(relay, "https://ws-uv.canfar.net/youcat/sync"));
+        long elapsed = System.nanoTime() - start;
+
+        assertTrue(elapsed >= 25_000_000L, "delayed " + elapsed);
+        assertEquals(1L, metrics.getRateLimitDelays());
+        assertEquals(0L, metrics.getRateLimitRejections());
+    }
+}
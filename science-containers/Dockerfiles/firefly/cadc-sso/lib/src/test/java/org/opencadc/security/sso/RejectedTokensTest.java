@@ -0,0 +1,207 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.servlet.http.Cookie;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class RejectedTokensTest {
+
+    private static final long TTL = 300_000L;
+
+    private AtomicLong clock;
+    private RejectedTokens rejected;
+
+    @BeforeEach
+    void setUp() {
+        clock = new AtomicLong(1_000_000L);
+        rejected = new RejectedTokens(1024, TTL, clock::get);
+    }
+
+    @Test
+    void testFingerprint() {
+        long fingerprint = RejectedTokens.fingerprint("token-a");
+
+        assertEquals(fingerprint, RejectedTokens.fingerprint("token-a"));
+        assertNotEquals(fingerprint, RejectedTokens.fingerprint("token-b"));
+        assertNotEquals(fingerprint, RejectedTokens.forHost(fingerprint, "ws-uv.canfar.net"));
+        assertNotEquals(RejectedTokens.forHost(fingerprint, "ws-uv.canfar.net"),
+                        RejectedTokens.forHost(fingerprint, "ws-cadc.canfar.net"));
+        assertNotEquals(0L, fingerprint);
+    }
+
+    @Test
+    void testRememberedForBetweenOneAndTwoTtls() {
+        long fingerprint = RejectedTokens.fingerprint("token-a");
+        rejected.add(fingerprint);
+
+        assertTrue(rejected.contains(fingerprint));
+        assertFalse(rejected.contains(RejectedTokens.fingerprint("token-b")));
+        clock.addAndGet(TTL);
+        assertTrue(rejected.contains(fingerprint));
+        clock.addAndGet(TTL);
+        assertFalse(rejected.contains(fingerprint));
+    }
+
+    @Test
+    void testBoundedUnderFlood() {
+        long first = RejectedTokens.fingerprint("token-0");
+        rejected.add(first);
+        for (int i = 1; i < 100_000; i++) {
+            rejected.add(RejectedTokens.fingerprint("token-" + i));
+        }
+
+        assertTrue(rejected.size() <= 2 * 1024);
+        assertTrue(rejected.contains(RejectedTokens.fingerprint("token-99999")));
+        assertFalse(rejected.contains(first));
+    }
+
+    @Test
+    void testRelayWithholdsRefusedToken() {
+        RelayMetrics metrics = new RelayMetrics();
+        TokenRelay relay = relay(Map.of(), "token-a", metrics);
+
+        assertEquals("Bearer token-a", authorization(relay, "https://ws-uv.canfar.net/youcat/sync"));
+        relay.onDownstreamResponse("https://ws-uv.canfar.net/youcat/sync", 401);
+
+        assertNull(authorization(relay, "https://ws-uv.canfar.net/youcat/sync"));
+        assertNull(authorization(relay, "https://ws-cadc.canfar.net/argus/sync"));
+        assertEquals(2L, metrics.getTokensWithheld());
+        assertEquals(1L, metrics.getDownstreamRefusals());
+
+        // Another user's token is still relayed
+        assertEquals("Bearer token-b", authorization(relay(Map.of(), "token-b", metrics),
+                                                     "https://ws-uv.canfar.net/youcat/sync"));
+    }
+
+    @Test
+    void testForbiddenWithheldFromThatHostOnly() {
+        TokenRelay relay = relay(Map.of(), "token-a", new RelayMetrics());
+
+        relay.onDownstreamResponse("https://ws-uv.canfar.net/youcat/sync", 403);
+
+        assertNull(authorization(relay, "https://ws-uv.canfar.net/youcat/async"));
+        assertEquals("Bearer token-a", authorization(relay, "https://ws-cadc.canfar.net/argus/sync"));
+    }
+
+    @Test
+    void testIgnoredResponses() {
+        RelayMetrics metrics = new RelayMetrics();
+        TokenRelay relay = relay(Map.of(), "token-a", metrics);
+
+        relay.onDownstreamResponse("https://ws-uv.canfar.net/youcat/sync", 500);
+        relay.onDownstreamResponse("https://ws-uv.canfar.net/youcat/sync", 200);
+        // The token was never sent to this host
+        relay.onDownstreamResponse("https://tap.example.org/tables", 401);
+
+        assertEquals("Bearer token-a", authorization(relay, "https://ws-uv.canfar.net/youcat/sync"));
+        assertEquals(0L, metrics.getDownstreamRefusals());
+    }
+
+    @Test
+    void testDisabled() {
+        TokenRelay relay = relay(Map.of(RelayConfig.REJECTED_TTL, "0"), "token-a", new RelayMetrics());
+
+        relay.onDownstreamResponse("https://ws-uv.canfar.net/youcat/sync", 401);
+
+        assertEquals("Bearer token-a", authorization(relay, "https://ws-uv.canfar.net/youcat/sync"));
+        assertThrows(IllegalArgumentException.class,
+                     () -> RelayConfig.fromMap(Map.of(RelayConfig.REJECTED_TTL, "-1")));
+        // Firefly reports no refusals, so the set is only kept when asked for
+        assertNull(RelayConfig.fromMap(Map.of()).getRejectedTokens());
+    }
+
+    static TokenRelay relay(Map<String, String> settings, String token, RelayMetrics metrics) {
+        RequestAgent agent = mock(RequestAgent.class);
+        when(agent.getCookie("CADC_SSO")).thenReturn(new Cookie("CADC_SSO", token));
+        Map<String, String> withTtl = new HashMap<>(settings);
+        withTtl.putIfAbsent(RelayConfig.REJECTED_TTL, "300");
+        TokenRelay relay = Mockito.spy(new TokenRelay(RelayConfig.fromMap(withTtl), metrics));
+        doReturn(agent).when(relay).getRequestAgent();
+        return relay;
+    }
+
+    /**
+     * @return The Authorization header the relay sets for a call to the URL, or null if none.
+     */
+    static String authorization(TokenRelay relay, String url) {
+        HttpServiceInput inputs = new HttpServiceInput(url);
+        relay.setAuthCredential(inputs);
+        return (inputs.getHeaders() == null) ? null : inputs.getHeaders().get("Authorization");
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import javax.servlet.http.Cookie;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class RelayConfigSourceTest {
+
+    private static final Map<String, String> ENVIRONMENT = Map.of(
+            RelayConfig.COOKIE_NAME, "CADC_SSO",
+            RelayConfig.ALLOWED_DOMAIN, ".canfar.net");
+
+    @TempDir
+    Path tempDir;
+
+    private Path file;
+    private RelayConfigSource source;
+
+    @BeforeEach
+    void setUp() {
+        file = tempDir.resolve("relay.properties");
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (source != null) {
+            source.close();
+        }
+    }
+
+    @Test
+    void testEnvironmentOnly() {
+        source = new RelayConfigSource(ENVIRONMENT, null);
+
+        assertEquals("CADC_SSO", source.current().getCookieName());
+        assertFalse(source.reload());
+        assertSame(source.current(), source.current());
+    }
+
+    @Test
+    void testInvalidEnvironmentFailsStartup() {
+        // One bad setting must not silently drop the others, e.g. the allow-list
+        Map<String, String> environment = Map.of(RelayConfig.ALLOWED_DOMAIN, ".canfar.net",
+                                                 RelayConfig.RATE_LIMIT, "fast");
+
+        IllegalArgumentException error = assertThrows(IllegalArgumentException.class,
+                                                      () -> RelayConfigSource.fromEnvironment(environment));
+        assertTrue(error.getMessage().contains("fast"), error.getMessage());
+        assertThrows(IllegalArgumentException.class,
+                     () -> RelayConfigSource.fromEnvironment(Map.of(RelayConfig.ALLOWED_DOMAIN, "*.canfar..net")));
+    }
+
+    @Test
+    void testFileOverridesEnvironment() throws Exception {
+        Files.writeString(file, "# Relay settings\nDEBUG = true\nCADC_ALLOWED_DOMAIN=.canfar.net, .example.org\n");
+        source = new RelayConfigSource(ENVIRONMENT, file);
+
+        assertTrue(source.current().isDebug());
+        assertTrue(source.current().getAllowedDomains().isAllowed("https://tap.example.org/"));
+        assertEquals("CADC_SSO", source.current().getCookieName());
+    }
+
+    @Test
+    void testReloadSwapsSnapshotOnlyWhenChanged() throws Exception {
+        Files.writeString(file, "DEBUG=false\n");
+        source = new RelayConfigSource(ENVIRONMENT, file);
+        RelayConfig first = source.current();
+
+        assertFalse(source.reload());
+        assertSame(first, source.current());
+
+        Files.writeString(file, "DEBUG=true\n");
+        assertTrue(source.reload());
+        assertNotSame(first, source.current());
+        assertTrue(source.current().isDebug());
+        assertFalse(first.isDebug());
+    }
+
+    @Test
+    void testInvalidFileKeepsCurrentSnapshot() throws Exception {
+        Files.writeString(file, "CADC_SSO_COOKIE_NAME=RELAY\n");
+        source = new RelayConfigSource(ENVIRONMENT, file);
+        RelayConfig valid = source.current();
+
+        Files.writeString(file, "CADC_SSO_COOKIE_NAME=OTHER\nCADC_ALLOWED_DOMAIN=https://canfar.net\n");
+        assertFalse(source.reload());
+        assertSame(valid, source.current());
+
+        Files.writeString(file, "CADC_SSO_COOKIE_NAME=OTHER\n");
+        assertTrue(source.reload());
+        assertEquals("OTHER", source.current().getCookieName());
+    }
+
+    @Test
+    void testMissingFileUsesEnvironment() throws Exception {
+        source = new RelayConfigSource(ENVIRONMENT, file);
+        assertEquals("CADC_SSO", source.current().getCookieName());
+
+        Files.writeString(file, "CADC_SSO_COOKIE_NAME=RELAY\n");
+        assertTrue(source.reload());
+        assertEquals("RELAY", source.current().getCookieName());
+
+        Files.delete(file);
+        assertTrue(source.reload());
+        assertEquals("CADC_SSO", source.current().getCookieName());
+    }
+
+    @Test
+    void testReplacedJournalClosed() throws Exception {
+        Path journal = tempDir.resolve("audit");
+        Files.writeString(file, "CADC_SSO_AUDIT_DIR=" + journal + "\n");
+        source = new RelayConfigSource(ENVIRONMENT, file);
+        AuditJournal first = source.current().getAuditJournal();
+        // The snapshot is built once, so only one journal opened a segment
+        assertEquals(1, AuditJournal.segments(journal).size());
+
+        Files.writeString(file, "CADC_SSO_AUDIT_DIR=" + journal + "\nDEBUG=true\n");
+        assertTrue(source.reload());
+        assertSame(first, source.current().getAuditJournal());
+
+        Files.writeString(file, "CADC_SSO_AUDIT_DIR=" + tempDir.resolve("audit2") + "\n");
+        assertTrue(source.reload());
+        assertNotSame(first, source.current().getAuditJournal());
+        first.append(null, "ws-uv.canfar.net", AuditJournal.Decision.RELAYED, AuditJournal.Reason.BEARER);
+        assertEquals(1L, first.getDropped());
+    }
+
+    @Test
+    void testFailedSnapshotReleasesItsClients() throws Exception {
+        Path notADirectory = Files.writeString(tempDir.resolve("audit"), "");
+        long before = httpClientThreads();
+
+        // The journal is built last, after the HTTP clients of the resolver and the prefetcher
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(Map.of(
+                RelayConfig.WHOAMI_URL, "http://127.0.0.1:1/whoami", RelayConfig.PREFETCH, "true",
+                RelayConfig.PREFETCH_SERVICES, "http://127.0.0.1:1/tap", RelayConfig.AUDIT_DIR, notADirectory.toString())));
+
+        assertTrue(eventually(() -> httpClientThreads() <= before));
+    }
+
+    private static long httpClientThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("HttpClient-")).count();
+    }
+
+    @Test
+    void testUnchangedValidatorKeptAcrossReloads() throws Exception {
+        Files.writeString(file, "CADC_SSO_JWKS=" + tempDir.resolve("jwks.json") + "\nDEBUG=false\n");
+        source = new RelayConfigSource(ENVIRONMENT, file);
+        JwtValidator validator = source.current().getJwtValidator();
+        assertNotNull(validator);
+
+        Files.writeString(file, "CADC_SSO_JWKS=" + tempDir.resolve("jwks.json") + "\nDEBUG=true\n");
+        assertTrue(source.reload());
+        assertSame(validator, source.current().getJwtValidator());
+
+        Files.writeString(file, "CADC_SSO_JWKS=" + tempDir.resolve("jwks.json") + "\nCADC_SSO_JWT_LEEWAY=5\n");
+        assertTrue(source.reload());
+        assertNotSame(validator, source.current().getJwtValidator());
+    }
+
+    @Test
+    void testWatchedFileReloaded() throws Exception {
+        Files.writeString(file, "DEBUG=false\n");
+        source = new RelayConfigSource(ENVIRONMENT, file);
+        source.watch();
+
+        Files.writeString(file, "DEBUG=true\n");
+
+        assertTrue(eventually(() -> source.current().isDebug()));
+    }
+
+    @Test
+    void testConfigMapSymlinkSwapReloaded() throws Exception {
+        // Kubernetes mounts a ConfigMap as <dir>/<key> -> ..data/<key>, ..data -> ..<timestamp>
+        Path first = Files.createDirectory(tempDir.resolve("..2026_10_01"));
+        Files.writeString(first.resolve("relay.properties"), "CADC_SSO_COOKIE_NAME=FIRST\n");
+        Files.createSymbolicLink(tempDir.resolve("..data"), first.getFileName());
+        Files.createSymbolicLink(file, Path.of("..data", "relay.properties"));
+        source = new RelayConfigSource(ENVIRONMENT, file);
+        source.watch();
+        assertEquals("FIRST", source.current().getCookieName());
+
+        Path second = Files.createDirectory(tempDir.resolve("..2026_10_02"));
+        Files.writeString(second.resolve("relay.properties"), "CADC_SSO_COOKIE_NAME=SECOND\n");
+        Files.createSymbolicLink(tempDir.resolve("..data_tmp"), second.getFileName());
+        Files.move(tempDir.resolve("..data_tmp"), tempDir.resolve("..data"), StandardCopyOption.ATOMIC_MOVE);
+
+        assertTrue(eventually(() -> "SECOND".equals(source.current().getCookieName())));
+    }
+
+    @Test
+    void testRelayUsesReloadedSnapshot() throws Exception {
+        Files.writeString(file, "CADC_SSO_COOKIE_NAME=CADC_SSO\n");
+        source = new RelayConfigSource(ENVIRONMENT, file);
+        TokenRelay relay = Mockito.spy(new TokenRelay(source, new RelayMetrics()));
+        HttpServiceInput inputs = mock(HttpServiceInput.class);
+        when(inputs.getRequestUrl()).thenReturn("https://tap.example.org/tables");
+
+        RequestAgent before = mock(RequestAgent.class);
+        when(before.getCookie("CADC_SSO")).thenReturn(new Cookie("CADC_SSO", "token"));
+        doReturn(before).when(relay).getRequestAgent();
+        relay.setAuthCredential(inputs);
+        verify(inputs, never()).setHeader(anyString(), anyString());
+
+        Files.writeString(file, "CADC_SSO_COOKIE_NAME=RELAY\nCADC_ALLOWED_DOMAIN=.example.org\n");
+        assertTrue(source.reload());
+        RequestAgent after = mock(RequestAgent.class);
+        when(after.getCookie("RELAY")).thenReturn(new Cookie("RELAY", "token"));
+        doReturn(after).when(relay).getRequestAgent();
+        relay.setAuthCredential(inputs);
+        verify(inputs).setHeader("Authorization", "Bearer token");
+    }
+
+    @Test
+    void testPolicyFileReloaded() throws Exception {
+        Path policy = tempDir.resolve("policy.txt");
+        Files.writeString(policy, "bearer .canfar.net\n");
+        Files.writeString(file, "CADC_SSO_POLICY_FILE=" + policy + "\n");
+        source = new RelayConfigSource(ENVIRONMENT, file);
+        RelayConfig first = source.current();
+        assertEquals(CredentialPolicy.Action.BEARER,
+                first.getPolicy().decide("https://ws-uv.canfar.net/youcat").getAction());
+
+        assertFalse(source.reload());
+        Files.writeString(policy, "none .canfar.net\n");
+        assertTrue(source.reload());
+        assertEquals(CredentialPolicy.Action.NONE,
+                source.current().getPolicy().decide("https://ws-uv.canfar.net/youcat").getAction());
+
+        Files.writeString(policy, "send .canfar.net\n");
+        RelayConfig valid = source.current();
+        assertFalse(source.reload());
+        assertSame(valid, source.current());
+    }
+
+    private static boolean eventually(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000L;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(20L);
+        }
+        return true;
+    }
+}
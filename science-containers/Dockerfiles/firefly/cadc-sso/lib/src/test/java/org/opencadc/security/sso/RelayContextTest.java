@@ -0,0 +1,232 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.servlet.http.Cookie;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class RelayContextTest {
+
+    private Thread requestThread;
+    private RequestAgent agent;
+    private TokenRelay relay;
+
+    @BeforeEach
+    void setUp() {
+        requestThread = Thread.currentThread();
+        agent = mock(RequestAgent.class);
+        relay = Mockito.spy(new TokenRelay(RelayConfig.fromMap(Map.of()), new RelayMetrics()));
+        doReturn(agent).when(relay).getRequestAgent();
+    }
+
+    /**
+     * Only the request thread sees the cookie, as with Firefly's thread-bound request owner.
+     */
+    private void requestCookie(String value) {
+        Cookie cookie = new Cookie("CADC_SSO", value);
+        when(agent.getCookie("CADC_SSO")).thenAnswer(
+                invocation -> (Thread.currentThread() == requestThread) ? cookie : null);
+    }
+
+    @Test
+    void testWorkerThreadWithoutContextHasNoToken() throws Exception {
+        requestCookie("request-token");
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        try {
+            assertNull(worker.submit(() -> relay.getAuthToken()).get(5, TimeUnit.SECONDS));
+        } finally {
+            worker.shutdownNow();
+        }
+    }
+
+    @Test
+    void testCallableRunsWithCapturedToken() throws Exception {
+        requestCookie("request-token");
+        RelayContext context = relay.captureContext();
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        try {
+            assertEquals("request-token",
+                         worker.submit(context.wrap(() -> relay.getAuthToken().getId())).get(5, TimeUnit.SECONDS));
+            // The context is unbound once the task is done
+            assertNull(worker.submit(() -> relay.getAuthToken()).get(5, TimeUnit.SECONDS));
+        } finally {
+            worker.shutdownNow();
+        }
+        assertTrue(context.hasToken());
+        assertFalse(context.isExpired());
+        assertEquals(Long.MAX_VALUE, context.getExpiresAt());
+    }
+
+    @Test
+    void testParallelFetchesOnVirtualThreads() throws Exception {
+        requestCookie("request-token");
+        RelayContext context = relay.captureContext();
+        int fetches = 200;
+        List<HttpServiceInput> inputs = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(fetches);
+        try (ExecutorService fetchers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < fetches; i++) {
+                HttpServiceInput input = new HttpServiceInput("https://ws-uv.canfar.net/youcat/async/" + i);
+                inputs.add(input);
+                context.executor(fetchers).execute(() -> {
+                    relay.setAuthCredential(input);
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+        for (HttpServiceInput input : inputs) {
+            assertEquals("Bearer request-token", input.getHeaders().get("Authorization"));
+        }
+    }
+
+    @Test
+    void testExpiredContextRelaysNothing() throws Exception {
+        String expired = jwt(System.currentTimeMillis() / 1000 - 60);
+        String valid = jwt(System.currentTimeMillis() / 1000 + 3600);
+
+        requestCookie(expired);
+        RelayContext expiredContext = relay.captureContext();
+        assertTrue(expiredContext.isExpired());
+
+        TokenRelay other = Mockito.spy(new TokenRelay(RelayConfig.fromMap(Map.of()), new RelayMetrics()));
+        RequestAgent otherAgent = mock(RequestAgent.class);
+        when(otherAgent.getCookie("CADC_SSO")).thenReturn(new Cookie("CADC_SSO", valid));
+        doReturn(otherAgent).when(other).getRequestAgent();
+        RelayContext validContext = other.captureContext();
+        assertFalse(validContext.isExpired());
+        assertEquals((System.currentTimeMillis() / 1000 + 3600) * 1000, validContext.getExpiresAt(), 2000.0);
+
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        try {
+            HttpServiceInput input = mock(HttpServiceInput.class);
+            when(input.getRequestUrl()).thenReturn("https://ws-uv.canfar.net/youcat");
+            worker.submit(expiredContext.wrap(() -> relay.setAuthCredential(input))).get(5, TimeUnit.SECONDS);
+            verify(input, never()).setHeader(anyString(), anyString());
+
+            Future<String> token = worker.submit(validContext.wrap(() -> relay.getAuthToken().getId()));
+            assertEquals(valid, token.get(5, TimeUnit.SECONDS));
+        } finally {
+            worker.shutdownNow();
+        }
+    }
+
+    @Test
+    void testContextWithoutTokenOverridesThreadState() {
+        RelayContext anonymous = relay.captureContext();
+        assertFalse(anonymous.hasToken());
+
+        requestCookie("request-token");
+        RelayContext context = new TokenRelay(RelayConfig.fromMap(Map.of()), new RelayMetrics()) {
+            @Override
+            RequestAgent getRequestAgent() {
+                return agent;
+            }
+        }.captureContext();
+
+        // Nested tasks restore the outer binding when they finish
+        context.wrap(() -> {
+            assertEquals("request-token", relay.getAuthToken().getId());
+            anonymous.wrap(() -> assertNull(relay.getAuthToken())).run();
+            assertEquals("request-token", relay.getAuthToken().getId());
+        }).run();
+        assertNull(RelayContext.bound());
+    }
+
+    @Test
+    void testReadExpiry() {
+        assertEquals(1_800_000_000_000L, JwtValidator.readExpiry(jwt(1_800_000_000L)));
+        assertEquals(Long.MAX_VALUE, JwtValidator.readExpiry("opaque-token"));
+        assertEquals(Long.MAX_VALUE, JwtValidator.readExpiry("e30.e30.c2ln"));
+        assertEquals(Long.MAX_VALUE, JwtValidator.readExpiry("###.###.###"));
+    }
+
+    private static String jwt(long exp) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"RS256\"}".getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString(("{\"sub\":\"jdoe\",\"exp\":" + exp + "}").getBytes(StandardCharsets.UTF_8))
+                + ".c2ln";
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.message.StringMapMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RelayEventLogTest {
+
+    private static final long MINUTE = 60_000L;
+
+    private RecordingSink sink;
+    private AtomicLong clock;
+    private RelayEventLog log;
+
+    @BeforeEach
+    void setUp() {
+        sink = new RecordingSink(Level.INFO);
+        clock = new AtomicLong(10 * MINUTE);
+        log = new RelayEventLog(sink, 64, clock::get);
+    }
+
+    @Test
+    void testEventWrittenAsStructuredMessage() {
+        log.emit(RelayEventLog.Policy.DEFAULT, RelayEvent.HEADER_SET, "ws-uv.canfar.net", null);
+        log.drain();
+
+        assertEquals(1, sink.messages.size());
+        StringMapMessage message = sink.messages.get(0);
+        assertEquals("header_set", message.get("event"));
+        assertEquals("ws-uv.canfar.net", message.get("host"));
+        assertEquals("Authorization Header Set", message.get("message"));
+        assertEquals(Level.INFO, sink.levels.get(0));
+    }
+
+    @Test
+    void testNothingBufferedWhenLevelDisabled() {
+        RelayEventLog quiet = new RelayEventLog(new RecordingSink(Level.ERROR), 64, clock::get);
+
+        assertFalse(quiet.isEnabled(RelayEvent.HEADER_SET));
+        assertTrue(quiet.isEnabled(RelayEvent.TOKEN_EMPTY));
+        quiet.emit(RelayEventLog.Policy.DEFAULT, RelayEvent.HEADER_SET, "ws-uv.canfar.net", null);
+
+        assertEquals(0, quiet.drain());
+    }
+
+    @Test
+    void testRateLimitPerKeyThenSummary() {
+        RelayEventLog.Policy policy = new RelayEventLog.Policy(3, Map.of());
+        for (int i = 0; i < 10; i++) {
+            log.emit(policy, RelayEvent.DOMAIN_REJECTED, "evil.example.com", null);
+            log.emit(policy, RelayEvent.DOMAIN_REJECTED, "irsa.ipac.caltech.edu", null);
+        }
+        log.drain();
+        assertEquals(6, sink.messages.size());
+
+        // The next minute starts with a summary of what was suppressed
+        clock.addAndGet(MINUTE);
+        log.emit(policy, RelayEvent.DOMAIN_REJECTED, "evil.example.com", null);
+        log.drain();
+
+        // One summary for the key that carried on, one from the sweep for the key that went quiet
+        List<String> details = sink.values("detail");
+        assertEquals(2, details.stream().filter("suppressed 7 in the last minute"::equals).count());
+        assertEquals(9, sink.messages.size());
+    }
+
+    @Test
+    void testSummaryForQuietKeyOnSweep() {
+        RelayEventLog.Policy policy = new RelayEventLog.Policy(2, Map.of());
+        for (int i = 0; i < 5; i++) {
+            log.emit(policy, RelayEvent.DOMAIN_REJECTED, "evil.example.com", null);
+        }
+        log.drain();
+        assertEquals(2, sink.messages.size());
+
+        clock.addAndGet(MINUTE);
+        log.drain();
+
+        assertEquals(3, sink.messages.size());
+        assertEquals("suppressed 3 in the last minute", sink.messages.get(2).get("detail"));
+        assertEquals("evil.example.com", sink.messages.get(2).get("host"));
+
+        // The summary is only logged once
+        clock.addAndGet(MINUTE);
+        log.drain();
+        assertEquals(3, sink.messages.size());
+    }
+
+    @Test
+    void testUnlimitedRate() {
+        RelayEventLog.Policy policy = new RelayEventLog.Policy(0, Map.of());
+        for (int i = 0; i < 50; i++) {
+            log.emit(policy, RelayEvent.HEADER_SET, "ws-uv.canfar.net", null);
+        }
+
+        assertEquals(50, log.drain());
+    }
+
+    @Test
+    void testSampling() {
+        RelayEventLog big = new RelayEventLog(sink, 1 << 14, clock::get);
+        RelayEventLog.Policy policy = RelayEventLog.Policy.parse(0, "header_set=10");
+        for (int i = 0; i < 10_000; i++) {
+            big.emit(policy, RelayEvent.HEADER_SET, "ws-uv.canfar.net", null);
+        }
+        big.emit(policy, RelayEvent.TOKEN_RETRIEVED, "CADC_SSO", null);
+
+        int written = big.drain();
+        assertTrue(written > 700 && written < 1300, "Sampled " + written + " of 10000");
+        assertEquals("token_retrieved", sink.messages.get(sink.messages.size() - 1).get("event"));
+    }
+
+    @Test
+    void testInvalidSampling() {
+        assertThrows(IllegalArgumentException.class, () -> RelayEventLog.Policy.parse(10, "no_such_event=5"));
+        assertThrows(IllegalArgumentException.class, () -> RelayEventLog.Policy.parse(10, "header_set"));
+        assertThrows(IllegalArgumentException.class, () -> RelayEventLog.Policy.parse(10, "header_set=often"));
+    }
+
+    @Test
+    void testFullBufferDropsAndReports() {
+        RelayEventLog.Policy policy = new RelayEventLog.Policy(0, Map.of());
+        for (int i = 0; i < 100; i++) {
+            log.emit(policy, RelayEvent.HEADER_SET, "ws-uv.canfar.net", null);
+        }
+
+        assertEquals(36, log.getDropped());
+        assertEquals(64, log.drain());
+        assertEquals("events_dropped", sink.messages.get(64).get("event"));
+        assertEquals("36", sink.messages.get(64).get("count"));
+    }
+
+    @Test
+    void testConcurrentProducers() throws Exception {
+        RelayEventLog big = new RelayEventLog(sink, 1 << 16, clock::get);
+        RelayEventLog.Policy policy = new RelayEventLog.Policy(0, Map.of());
+        int threads = 8;
+        int perThread = 5000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String host = "host" + t + ".canfar.net";
+            Thread producer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    big.emit(policy, RelayEvent.HEADER_SET, host, Integer.toString(i));
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+        start.countDown();
+        int drained = 0;
+        while (producers.stream().anyMatch(Thread::isAlive)) {
+            drained += big.drain();
+        }
+        drained += big.drain();
+
+        assertEquals(threads * perThread, drained);
+        assertEquals(0, big.getDropped());
+        // Events from one producer keep their order
+        List<String> host0 = new ArrayList<>();
+        for (StringMapMessage message : sink.messages) {
+            if ("host0.canfar.net".equals(message.get("host"))) {
+                host0.add(message.get("detail"));
+            }
+        }
+        for (int i = 0; i < perThread; i++) {
+            assertEquals(Integer.toString(i), host0.get(i));
+        }
+    }
+
+    /**
+     * Collects the messages written by the drain.
+     */
+    private static class RecordingSink implements RelayEventLog.Sink {
+        private final Level threshold;
+        private final List<Level> levels = new ArrayList<>();
+        private final List<StringMapMessage> messages = new ArrayList<>();
+
+        RecordingSink(Level threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public boolean isEnabled(Level level) {
+            return level.isMoreSpecificThan(threshold);
+        }
+
+        @Override
+        public void log(Level level, StringMapMessage message) {
+            levels.add(level);
+            messages.add(message);
+        }
+
+        List<String> values(String field) {
+            List<String> values = new ArrayList<>();
+            for (StringMapMessage message : messages) {
+                values.add(message.get(field));
+            }
+            return values;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletContext;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.*;
+
+class RelayMetricsTest {
+
+    private RelayMetrics metrics;
+    private TokenRelay spyRelay;
+    private RequestAgent mockAgent;
+
+    @BeforeEach
+    void setUp() {
+        metrics = new RelayMetrics();
+        mockAgent = mock(RequestAgent.class);
+        spyRelay = Mockito.spy(new TokenRelay(RelayConfig.fromMap(Map.of()), metrics));
+        doReturn(mockAgent).when(spyRelay).getRequestAgent();
+    }
+
+    @Test
+    void testTokenOutcomes() {
+        when(mockAgent.getCookie("CADC_SSO")).thenReturn(null);
+        spyRelay.getAuthToken();
+
+        RequestAgent emptyAgent = mock(RequestAgent.class);
+        when(emptyAgent.getCookie("CADC_SSO")).thenReturn(new Cookie("CADC_SSO", ""));
+        doReturn(emptyAgent).when(spyRelay).getRequestAgent();
+        spyRelay.getAuthToken();
+
+        RequestAgent validAgent = mock(RequestAgent.class);
+        when(validAgent.getCookie("CADC_SSO")).thenReturn(new Cookie("CADC_SSO", "valid_token"));
+        doReturn(validAgent).when(spyRelay).getRequestAgent();
+        spyRelay.getAuthToken();
+        spyRelay.getAuthToken(); // memoized, not counted again
+
+        assertEquals(1, metrics.getTokensMissing());
+        assertEquals(1, metrics.getTokensEmpty());
+        assertEquals(1, metrics.getTokensFound());
+        assertEquals(0, metrics.getTokensInvalidDomain());
+    }
+
+    @Test
+    void testInvalidCookieDomainCounted() {
+        Cookie cookie = new Cookie("CADC_SSO", "valid_token");
+        cookie.setDomain(".invalid.net");
+        when(mockAgent.getCookie("CADC_SSO")).thenReturn(cookie);
+
+        RelayConfig config = RelayConfig.fromMap(Map.of(RelayConfig.ENFORCE_COOKIE_DOMAIN, "true"));
+        TokenRelay enforcing = Mockito.spy(new TokenRelay(config, metrics));
+        doReturn(mockAgent).when(enforcing).getRequestAgent();
+
+        assertNull(enforcing.getAuthToken());
+        assertEquals(1, metrics.getTokensInvalidDomain());
+    }
+
+    @Test
+    void testHeadersAndRejectionsByHost() {
+        when(mockAgent.getCookie("CADC_SSO")).thenReturn(new Cookie("CADC_SSO", "valid_token"));
+
+        spyRelay.setAuthCredential(inputsFor("https://ws-uv.canfar.net/youcat/sync"));
+        spyRelay.setAuthCredential(inputsFor("https://WS-UV.canfar.net/youcat/tables"));
+        spyRelay.setAuthCredential(inputsFor("https://ws-cadc.canfar.net/minoc/files"));
+        spyRelay.setAuthCredential(inputsFor("https://evilcanfar.net/"));
+        spyRelay.setAuthCredential(inputsFor("https://irsa.ipac.caltech.edu/TAP"));
+
+        assertEquals(Map.of("ws-uv.canfar.net", 2L, "ws-cadc.canfar.net", 1L), metrics.getHeadersInjected());
+        assertEquals(2, metrics.getDomainRejections());
+        assertEquals(5, metrics.getSetAuthCredentialCount());
+        assertTrue(metrics.getSetAuthCredentialP99Nanos() > 0);
+    }
+
+    @Test
+    void testHostCardinalityIsBounded() {
+        for (int i = 0; i < RelayMetrics.MAX_HOSTS + 10; i++) {
+            metrics.headerInjected("host" + i + ".canfar.net");
+        }
+
+        Map<String, Long> counts = metrics.getHeadersInjected();
+        assertTrue(counts.size() <= RelayMetrics.MAX_HOSTS + 1);
+        assertEquals(RelayMetrics.MAX_HOSTS + 10, counts.values().stream().mapToLong(Long::longValue).sum());
+        assertTrue(counts.get(RelayMetrics.OTHER_HOSTS) >= 10);
+    }
+
+    @Test
+    void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1_000);
+        }
+        histogram.record(1_000_000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(1024, histogram.getQuantileNanos(0.5));
+        assertEquals(1024, histogram.getQuantileNanos(0.99));
+        assertEquals(1L << 20, histogram.getQuantileNanos(1.0));
+        assertEquals((99 * 1_000 + 1_000_000) / 100, histogram.getMeanNanos());
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        assertEquals(0, LatencyHistogram.bucketOf(256));
+        assertEquals(1, LatencyHistogram.bucketOf(257));
+    }
+
+    @Test
+    void testPrometheusFormat() {
+        when(mockAgent.getCookie("CADC_SSO")).thenReturn(new Cookie("CADC_SSO", "valid_token"));
+        spyRelay.setAuthCredential(inputsFor("https://ws-uv.canfar.net/youcat/sync"));
+
+        StringWriter text = new StringWriter();
+        metrics.writePrometheus(new PrintWriter(text));
+        String output = text.toString();
+
+        assertTrue(output.contains("cadc_sso_tokens_total{outcome=\"found\"} 1"));
+        assertTrue(output.contains("cadc_sso_headers_injected_total{host=\"ws-uv.canfar.net\"} 1"));
+        assertTrue(output.contains("# TYPE cadc_sso_set_auth_credential_seconds histogram"));
+        assertTrue(output.contains("cadc_sso_set_auth_credential_seconds_bucket{le=\"+Inf\"} 1"));
+        assertTrue(output.contains("cadc_sso_set_auth_credential_seconds_count 1"));
+    }
+
+    @Test
+    void testSharedMetricsRegisteredWithJmx() throws Exception {
+        RelayMetrics shared = RelayMetrics.shared();
+        long before = shared.getTokensFound();
+        shared.tokenFound();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Object found = server.getAttribute(new ObjectName(RelayMetrics.OBJECT_NAME), "TokensFound");
+
+        assertEquals(before + 1, found);
+        assertSame(shared, RelayMetrics.shared());
+    }
+
+    @Test
+    void testMetricsServlet() throws Exception {
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        StringWriter body = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(body));
+
+        new RelayMetricsServlet().doGet(mock(HttpServletRequest.class), response);
+
+        verify(response).setContentType(RelayMetricsServlet.CONTENT_TYPE);
+        assertTrue(body.toString().contains("# TYPE cadc_sso_tokens_total counter"));
+    }
+
+    @Test
+    void testMetricsEndpointIsOptIn() {
+        assumeTrue(System.getenv(RelayMetricsInitializer.METRICS_PATH) == null);
+        ServletContext context = mock(ServletContext.class);
+
+        new RelayMetricsInitializer().onStartup(null, context);
+
+        verifyNoInteractions(context);
+    }
+
+    private static HttpServiceInput inputsFor(String url) {
+        HttpServiceInput inputs = mock(HttpServiceInput.class);
+        when(inputs.getRequestUrl()).thenReturn(url);
+        return inputs;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RevocationListTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path file;
+    private AtomicLong clock;
+
+    @BeforeEach
+    void setUp() {
+        file = tempDir.resolve("revoked.txt");
+        clock = new AtomicLong(1_000_000L);
+    }
+
+    private static byte[] sha256(String token) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String hex(String token) throws Exception {
+        return HexFormat.of().formatHex(sha256(token));
+    }
+
+    private static String base64url(String token) throws Exception {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sha256(token));
+    }
+
+    @Test
+    void testParseFormats() throws Exception {
+        String content = "# revoked tokens\n"
+                         + hex("token-a") + "\n"
+                         + "  " + base64url("token-b") + " \r\n"
+                         + Base64.getUrlEncoder().encodeToString(sha256("token-c")) + "\n"
+                         + "\n"
+                         + "not-a-digest\n"
+                         + hex("token-d").toUpperCase();
+        long[] fingerprints = RevocationList.parse(ByteBuffer.wrap(content.getBytes(StandardCharsets.US_ASCII)));
+
+        assertEquals(4, fingerprints.length);
+        for (String token : new String[] {"token-a", "token-b", "token-c", "token-d"}) {
+            assertTrue(Arrays.binarySearch(fingerprints, RejectedTokens.fingerprint(token)) >= 0, token);
+        }
+    }
+
+    @Test
+    void testMappedFile() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            content.append(hex("token-" + i)).append('\n');
+        }
+        Files.writeString(file, content);
+        RevocationList list = new RevocationList(file, clock::get);
+
+        assertEquals(10_000, list.size());
+        assertTrue(list.contains(RejectedTokens.fingerprint("token-0")));
+        assertTrue(list.contains(RejectedTokens.fingerprint("token-9999")));
+        assertFalse(list.contains(RejectedTokens.fingerprint("token-10000")));
+    }
+
+    @Test
+    void testReloadedWhenModified() throws Exception {
+        Files.writeString(file, hex("token-a") + "\n");
+        RevocationList list = new RevocationList(file, clock::get);
+        assertFalse(list.reload());
+
+        Files.writeString(file, hex("token-a") + "\n" + hex("token-b") + "\n");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10_000L));
+        assertTrue(list.reload());
+        assertTrue(list.contains(RejectedTokens.fingerprint("token-b")));
+
+        Files.delete(file);
+        assertTrue(list.reload());
+        assertFalse(list.reload());
+        assertEquals(0, list.size());
+    }
+
+    @Test
+    void testCheckedInBackground() throws Exception {
+        Files.writeString(file, "");
+        RevocationList list = new RevocationList(file, clock::get);
+        Files.writeString(file, hex("token-a") + "\n");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10_000L));
+
+        long fingerprint = RejectedTokens.fingerprint("token-a");
+        assertFalse(list.contains(fingerprint));
+        clock.addAndGet(RevocationList.CHECK_MILLIS);
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (!list.contains(fingerprint) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5L);
+        }
+        assertTrue(list.contains(fingerprint));
+    }
+
+    @Test
+    void testRelayWithholdsRevokedToken() throws Exception {
+        Files.writeString(file, hex("revoked-token") + "\n");
+        Map<String, String> settings = Map.of(RelayConfig.REVOCATION_FILE, file.toString());
+        RelayMetrics metrics = new RelayMetrics();
+
+        assertNull(RejectedTokensTest.authorization(RejectedTokensTest.relay(settings, "revoked-token", metrics),
+                                                    "https://ws-uv.canfar.net/youcat/sync"));
+        assertEquals("Bearer token-a",
+                     RejectedTokensTest.authorization(RejectedTokensTest.relay(settings, "token-a", metrics),
+                                                      "https://ws-uv.canfar.net/youcat/sync"));
+        assertEquals(1L, metrics.getTokensWithheld());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.security.SsoAdapter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionCredentialStoreTest {
+
+    private static final long IDLE = 60_000L;
+
+    private AtomicLong clock;
+    private SessionCredentialStore store;
+
+    @BeforeEach
+    void setUp() {
+        clock = new AtomicLong(1_000_000L);
+        store = new SessionCredentialStore(64, IDLE, clock::get);
+    }
+
+    private static RequestCredential credential(String token) {
+        return new RequestCredential(new SsoAdapter.Token(token));
+    }
+
+    @Test
+    void testLookupByExactToken() {
+        RequestCredential alice = credential("alice-token");
+        store.put("alice-token", alice, Long.MAX_VALUE);
+
+        assertSame(alice, store.get(new String("alice-token".toCharArray())));
+        assertNull(store.get("alice-token "));
+        assertNull(store.get("ALICE-TOKEN"));
+        assertNull(store.get("bob-token"));
+    }
+
+    @Test
+    void testIdleSessionsDropped() {
+        store.put("alice-token", credential("alice-token"), Long.MAX_VALUE);
+        store.put("bob-token", credential("bob-token"), Long.MAX_VALUE);
+
+        clock.addAndGet(IDLE - 1);
+        assertNotNull(store.get("alice-token"));
+        clock.addAndGet(IDLE - 1);
+        // Alice was used recently, Bob was not
+        assertNotNull(store.get("alice-token"));
+        assertNull(store.get("bob-token"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    void testExpiredTokensDropped() {
+        store.put("alice-token", credential("alice-token"), clock.get() + 1000L);
+
+        assertNotNull(store.get("alice-token"));
+        clock.addAndGet(1000L);
+        assertNull(store.get("alice-token"));
+    }
+
+    @Test
+    void testSweep() {
+        for (int i = 0; i < 10; i++) {
+            store.put("token-" + i, credential("token-" + i), (i < 5) ? clock.get() + 1000L : Long.MAX_VALUE);
+        }
+        clock.addAndGet(1000L);
+        assertEquals(5, store.sweep());
+        assertEquals(5, store.size());
+
+        clock.addAndGet(IDLE);
+        assertEquals(5, store.sweep());
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void testCapacityBounded() {
+        for (int i = 0; i < 10_000; i++) {
+            store.put("token-" + i, credential("token-" + i), Long.MAX_VALUE);
+        }
+        assertTrue(store.size() <= 64, "size " + store.size());
+        // The most recent sessions are kept
+        assertNotNull(store.get("token-9999"));
+    }
+
+    @Test
+    void testLeastRecentlyUsedEvicted() {
+        SessionCredentialStore lru = new SessionCredentialStore(1, IDLE, clock::get);
+        lru.put("a", credential("a"), Long.MAX_VALUE);
+        lru.put("b", credential("b"), Long.MAX_VALUE);
+
+        assertNull(lru.get("a"));
+        assertNotNull(lru.get("b"));
+        assertEquals(1, lru.shardCount());
+    }
+
+    @Test
+    void testRemove() {
+        store.put("alice-token", credential("alice-token"), Long.MAX_VALUE);
+        store.remove("alice-token");
+
+        assertNull(store.get("alice-token"));
+    }
+
+    @Test
+    void testConfiguredFromSettings() {
+        assertNotNull(RelayConfig.fromMap(Map.of()).getSessions());
+        assertNull(RelayConfig.fromMap(Map.of(RelayConfig.SESSION_CAPACITY, "0")).getSessions());
+        assertThrows(IllegalArgumentException.class,
+                     () -> RelayConfig.fromMap(Map.of(RelayConfig.SESSION_IDLE, "0")));
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.message.StringMapMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.servlet.http.Cookie;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class TokenExchangerTest {
+
+    private static final long LIFETIME_SECONDS = 600L;
+    private static final long REFRESH_AHEAD = 60_000L;
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile int status = 200;
+    private volatile long expiresIn = LIFETIME_SECONDS;
+    private volatile CountDownLatch gate;
+    private final List<Map<String, String>> forms = new ArrayList<>();
+    private final List<String> authorizations = new ArrayList<>();
+    private AtomicLong clock;
+    private RecordingSink sink;
+    private RelayEventLog events;
+    private TokenExchanger exchanger;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.createContext("/token", this::token);
+        server.start();
+        clock = new AtomicLong(1_000_000L);
+        sink = new RecordingSink();
+        events = new RelayEventLog(sink, 64, clock::get);
+        exchanger = exchanger(Duration.ofSeconds(5));
+    }
+
+    private TokenExchanger exchanger(Duration wait) {
+        return new TokenExchanger(endpoint(), "firefly", "s3cret", REFRESH_AHEAD, Duration.ofSeconds(5), wait,
+                                  clock::get, events, RelayEventLog.Policy.DEFAULT);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    private URI endpoint() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/token");
+    }
+
+    /**
+     * Answers with a token naming the subject, the audience and the call number.
+     */
+    private void token(HttpExchange exchange) throws IOException {
+        int call = calls.incrementAndGet();
+        Map<String, String> form = new HashMap<>();
+        for (String pair : new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8).split("&")) {
+            int eq = pair.indexOf('=');
+            form.put(pair.substring(0, eq), URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        synchronized (forms) {
+            forms.add(form);
+            authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+        }
+        CountDownLatch waitFor = gate;
+        if (waitFor != null) {
+            try {
+                waitFor.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        String body = (status == 200)
+                ? "{\"access_token\": \"" + form.get("subject_token") + "@" + form.get("audience") + "#" + call
+                  + "\", \"token_type\": \"Bearer\", \"expires_in\": " + expiresIn + "}"
+                : "{\"error\": \"invalid_grant\"}";
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String jwtExpiringAt(long millis) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "."
+               + encoder.encodeToString(("{\"exp\":" + (millis / 1000L) + "}").getBytes(StandardCharsets.UTF_8))
+               + ".";
+    }
+
+    private static boolean eventually(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5L);
+        }
+        return true;
+    }
+
+    @Test
+    void testExchangeRequest() {
+        assertEquals("user-a@ws-uv.canfar.net#1", exchanger.exchange("user-a", "ws-uv.canfar.net"));
+
+        Map<String, String> form = forms.get(0);
+        assertEquals(TokenExchanger.GRANT_TYPE, form.get("grant_type"));
+        assertEquals("user-a", form.get("subject_token"));
+        assertEquals(TokenExchanger.ACCESS_TOKEN_TYPE, form.get("subject_token_type"));
+        assertEquals("ws-uv.canfar.net", form.get("audience"));
+        assertEquals("Basic " + Base64.getEncoder().encodeToString("firefly:s3cret".getBytes(StandardCharsets.UTF_8)),
+                     authorizations.get(0));
+    }
+
+    @Test
+    void testCachedPerUserAndAudience() {
+        assertEquals("user-a@ws-uv.canfar.net#1", exchanger.exchange("user-a", "ws-uv.canfar.net"));
+        assertEquals("user-a@ws-uv.canfar.net#1", exchanger.exchange("user-a", "ws-uv.canfar.net"));
+        assertEquals("user-a@ws-cadc.canfar.net#2", exchanger.exchange("user-a", "ws-cadc.canfar.net"));
+        assertEquals("user-b@ws-uv.canfar.net#3", exchanger.exchange("user-b", "ws-uv.canfar.net"));
+        assertEquals("user-a@ws-cadc.canfar.net#2", exchanger.exchange("user-a", "ws-cadc.canfar.net"));
+        assertEquals(3, calls.get());
+        assertEquals(3, exchanger.size());
+    }
+
+    @Test
+    void testRefreshedAheadOfExpiryInBackground() throws Exception {
+        exchanger.exchange("user-a", "ws-uv.canfar.net");
+        clock.addAndGet(LIFETIME_SECONDS * 1000L - REFRESH_AHEAD);
+        gate = new CountDownLatch(1);
+
+        // Served from the cache while the refresh is held up at the server
+        assertEquals("user-a@ws-uv.canfar.net#1", exchanger.exchange("user-a", "ws-uv.canfar.net"));
+        assertEquals("user-a@ws-uv.canfar.net#1", exchanger.exchange("user-a", "ws-uv.canfar.net"));
+        gate.countDown();
+
+        assertTrue(eventually(() -> exchanger.exchange("user-a", "ws-uv.canfar.net").endsWith("#2")));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void testExpiredTokenExchangedAgain() {
+        exchanger.exchange("user-a", "ws-uv.canfar.net");
+        clock.addAndGet(LIFETIME_SECONDS * 1000L);
+
+        assertEquals("user-a@ws-uv.canfar.net#2", exchanger.exchange("user-a", "ws-uv.canfar.net"));
+    }
+
+    @Test
+    void testShortLivedTokenRefreshedHalfway() {
+        TokenExchanger.Entry entry = exchanger.parse("{\"access_token\": \"t\", \"expires_in\": 30}",
+                                                     clock.get(), Long.MAX_VALUE);
+
+        assertEquals(clock.get() + 12_500L, entry.getRefreshAt());
+        assertEquals(clock.get() + 30_000L, entry.getExpiresAt());
+    }
+
+    @Test
+    void testRefreshDueBeforeCacheExpiry() {
+        TokenExchanger.Entry entry = exchanger.parse("{\"access_token\": \"t\", \"expires_in\": 8}",
+                                                     clock.get(), Long.MAX_VALUE);
+
+        assertTrue(entry.getRefreshAt() <= entry.getExpiresAt() - TokenExchanger.EXPIRY_MARGIN_MILLIS);
+        assertEquals(clock.get() + 1_500L, entry.getRefreshAt());
+    }
+
+    @Test
+    void testLifetimeCappedBySubjectToken() {
+        long now = clock.get();
+        String subject = jwtExpiringAt(now + 120_000L);
+        TokenExchanger.Entry entry = exchanger.parse("{\"access_token\": \"t\", \"expires_in\": 600}", now,
+                                                     JwtValidator.readExpiry(subject));
+        assertEquals(now + 120_000L, entry.getExpiresAt());
+
+        String exchanged = exchanger.exchange(subject, "ws-uv.canfar.net");
+        clock.addAndGet(120_000L);
+        assertNotEquals(exchanged, exchanger.exchange(subject, "ws-uv.canfar.net"));
+    }
+
+    @Test
+    void testParseWithoutExpiresIn() {
+        long now = clock.get();
+        String jwt = jwtExpiringAt(now + 90_000L);
+
+        assertEquals(now + 90_000L, exchanger.parse("{\"access_token\": \"" + jwt + "\"}", now, Long.MAX_VALUE)
+                .getExpiresAt());
+        assertEquals(now + TokenExchanger.DEFAULT_LIFETIME_MILLIS,
+                     exchanger.parse("{\"access_token\": \"opaque\"}", now, Long.MAX_VALUE).getExpiresAt());
+        assertThrows(IllegalArgumentException.class, () -> exchanger.parse("{\"error\": \"x\"}", now, Long.MAX_VALUE));
+    }
+
+    @Test
+    void testConcurrentExchangesShareOneCall() throws Exception {
+        gate = new CountDownLatch(1);
+        ExecutorService requests = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(requests.submit(() -> exchanger.exchange("user-a", "ws-uv.canfar.net")));
+            }
+            assertTrue(eventually(() -> calls.get() > 0));
+            Thread.sleep(50L);
+            gate.countDown();
+            for (Future<String> result : results) {
+                assertEquals("user-a@ws-uv.canfar.net#1", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            requests.shutdownNow();
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void testFirstExchangeWaitIsBounded() throws Exception {
+        gate = new CountDownLatch(1);
+        TokenExchanger bounded = exchanger(Duration.ofMillis(100));
+
+        long start = System.nanoTime();
+        assertNull(bounded.exchange("user-a", "ws-uv.canfar.net"));
+        assertTrue(System.nanoTime() - start < 2_000_000_000L);
+
+        // The call goes on in the background and serves the next request
+        gate.countDown();
+        assertTrue(eventually(() -> bounded.size() == 1));
+        assertEquals("user-a@ws-uv.canfar.net#1", bounded.exchange("user-a", "ws-uv.canfar.net"));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void testNoWaitWarmsCacheInBackground() throws Exception {
+        TokenExchanger background = exchanger(Duration.ZERO);
+
+        assertNull(background.exchange("user-a", "ws-uv.canfar.net"));
+        assertTrue(eventually(() -> "user-a@ws-uv.canfar.net#1".equals(background.exchange("user-a", "ws-uv.canfar.net"))));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void testRefusedTokenCachedBriefly() {
+        status = 400;
+
+        assertNull(exchanger.exchange("expired", "ws-uv.canfar.net"));
+        assertNull(exchanger.exchange("expired", "ws-uv.canfar.net"));
+        assertEquals(1, calls.get());
+
+        clock.addAndGet(TokenExchanger.NEGATIVE_TTL_MILLIS);
+        status = 200;
+        assertEquals("expired@ws-uv.canfar.net#2", exchanger.exchange("expired", "ws-uv.canfar.net"));
+    }
+
+    @Test
+    void testServerErrorNotCached() {
+        status = 503;
+
+        assertNull(exchanger.exchange("user-a", "ws-uv.canfar.net"));
+        status = 200;
+        assertEquals("user-a@ws-uv.canfar.net#2", exchanger.exchange("user-a", "ws-uv.canfar.net"));
+
+        events.drain();
+        assertEquals("token_exchange_failed", sink.messages.get(0).get("event"));
+        assertEquals("HTTP 503", sink.messages.get(0).get("error"));
+    }
+
+    @Test
+    void testTokenRelaySendsExchangedToken() {
+        RelayConfig config = RelayConfig.fromMap(Map.of(RelayConfig.EXCHANGE_URL, endpoint().toString()));
+        RequestAgent agent = mock(RequestAgent.class);
+        when(agent.getCookie("CADC_SSO")).thenReturn(new Cookie("CADC_SSO", "user-a"));
+        RelayMetrics metrics = new RelayMetrics();
+        TokenRelay relay = Mockito.spy(new TokenRelay(config, metrics));
+        doReturn(agent).when(relay).getRequestAgent();
+
+        for (int i = 0; i < 3; i++) {
+            HttpServiceInput inputs = mock(HttpServiceInput.class);
+            when(inputs.getRequestUrl()).thenReturn("https://ws-uv.canfar.net/youcat/sync");
+            relay.setAuthCredential(inputs);
+            verify(inputs).setHeader("Authorization", "Bearer user-a@ws-uv.canfar.net#1");
+        }
+        assertEquals(1, calls.get());
+
+        status = 403;
+        HttpServiceInput other = mock(HttpServiceInput.class);
+        when(other.getRequestUrl()).thenReturn("https://ws-cadc.canfar.net/argus/sync");
+        relay.setAuthCredential(other);
+        verify(other, never()).setHeader(anyString(), anyString());
+        assertEquals(1L, metrics.getExchangeFailures());
+        assertEquals(0L, metrics.getDomainRejections());
+    }
+
+    @Test
+    void testInvalidSettings() {
+        assertThrows(IllegalArgumentException.class,
+                     () -> RelayConfig.fromMap(Map.of(RelayConfig.EXCHANGE_URL, "file:/etc/passwd")));
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(Map.of(
+                RelayConfig.EXCHANGE_URL, endpoint().toString(), RelayConfig.EXCHANGE_REFRESH_AHEAD, "-1")));
+        assertThrows(IllegalArgumentException.class, () -> RelayConfig.fromMap(Map.of(
+                RelayConfig.EXCHANGE_URL, endpoint().toString(), RelayConfig.EXCHANGE_WAIT, "5001")));
+        assertNull(RelayConfig.fromMap(Map.of()).getTokenExchanger());
+    }
+
+    private static class RecordingSink implements RelayEventLog.Sink {
+        private final List<StringMapMessage> messages = new ArrayList<>();
+
+        @Override
+        public boolean isEnabled(Level level) {
+            return true;
+        }
+
+        @Override
+        public void log(Level level, StringMapMessage message) {
+            messages.add(message);
+        }
+    }
+}
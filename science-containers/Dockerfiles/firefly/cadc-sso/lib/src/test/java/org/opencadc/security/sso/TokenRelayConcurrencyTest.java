@@ -0,0 +1,180 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
+import edu.caltech.ipac.firefly.server.security.SsoAdapter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.Invocation;
+
+import javax.servlet.http.Cookie;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Stress tests sharing a single {@link TokenRelay} between many concurrent requests.
+ */
+class TokenRelayConcurrencyTest {
+
+    private static final int REQUESTS = 2000;
+    private static final int CALLS_PER_REQUEST = 8;
+    private static final String ALLOWED_URL = "https://ws-uv.canfar.net/youcat/sync";
+
+    /**
+     * The request agent of the request a thread is currently serving, as Firefly's ServerContext would.
+     */
+    private static final ThreadLocal<RequestAgent> CURRENT_AGENT = new ThreadLocal<>();
+
+    private TokenRelay sharedRelay;
+    private RequestAgent[] agents;
+    private HttpServiceInput[] inputs;
+
+    @BeforeEach
+    void setUp() {
+        sharedRelay = Mockito.spy(new TokenRelay(RelayConfig.fromMap(Map.of())));
+        doAnswer(invocation -> CURRENT_AGENT.get()).when(sharedRelay).getRequestAgent();
+
+        agents = new RequestAgent[REQUESTS];
+        inputs = new HttpServiceInput[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            Cookie cookie = new Cookie("CADC_SSO", tokenFor(i));
+            cookie.setDomain(".canfar.net");
+            agents[i] = mock(RequestAgent.class);
+            when(agents[i].getCookie("CADC_SSO")).thenReturn(cookie);
+            inputs[i] = mock(HttpServiceInput.class);
+            when(inputs[i].getRequestUrl()).thenReturn(ALLOWED_URL);
+        }
+    }
+
+    @Test
+    void testNoTokenLeaksAcrossConcurrentRequests() throws Exception {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger mismatches = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>(REQUESTS);
+        try {
+            for (int i = 0; i < REQUESTS; i++) {
+                final int request = i;
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    CURRENT_AGENT.set(agents[request]);
+                    try {
+                        for (int call = 0; call < CALLS_PER_REQUEST; call++) {
+                            SsoAdapter.Token token = sharedRelay.getAuthToken();
+                            if (token == null || !tokenFor(request).equals(token.getId())) {
+                                mismatches.incrementAndGet();
+                            }
+                            sharedRelay.setAuthCredential(inputs[request]);
+                            Thread.yield();
+                        }
+                    } finally {
+                        CURRENT_AGENT.remove();
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(0, mismatches.get(), "A request observed another request's token");
+        for (int i = 0; i < REQUESTS; i++) {
+            verify(agents[i], times(1)).getCookie("CADC_SSO");
+            int headers = 0;
+            for (Invocation invocation : mockingDetails(inputs[i]).getInvocations()) {
+                if (invocation.getMethod().getName().equals("setHeader")) {
+                    assertEquals("Authorization", invocation.getArgument(0));
+                    assertEquals("Bearer " + tokenFor(i), invocation.getArgument(1));
+                    headers++;
+                }
+            }
+            assertEquals(CALLS_PER_REQUEST, headers);
+        }
+    }
+
+    private static String tokenFor(int request) {
+        return "token-" + request;
+    }
+}
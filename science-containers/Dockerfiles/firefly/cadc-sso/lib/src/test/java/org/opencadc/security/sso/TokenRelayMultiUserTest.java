@@ -0,0 +1,200 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
+import edu.caltech.ipac.firefly.server.security.SsoAdapter;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.servlet.http.Cookie;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Simulates a shared Firefly deployment: hundreds of users with interleaved requests served by
+ * one {@link TokenRelay}, checking that no request ever sees another user's credential.
+ */
+class TokenRelayMultiUserTest {
+
+    private static final int USERS = 300;
+    private static final int AGENTS_PER_USER = 4;
+    private static final int REQUESTS = 6_000;
+    private static final int CALLS_PER_REQUEST = 4;
+
+    /**
+     * The request agent of the request a thread is currently serving, as Firefly's ServerContext would.
+     */
+    private static final ThreadLocal<RequestAgent> CURRENT_AGENT = new ThreadLocal<>();
+
+    @Test
+    void testNoCredentialCrossedWithSessionStore() throws Exception {
+        // Fewer sessions than users, so sessions are evicted and resolved again under load
+        runUsers(Map.of(RelayConfig.SESSION_CAPACITY, "64"));
+    }
+
+    @Test
+    void testNoCredentialCrossedWithoutSessionStore() throws Exception {
+        runUsers(Map.of(RelayConfig.SESSION_CAPACITY, "0"));
+    }
+
+    @Test
+    void testNoCredentialCrossedWithRoomForAllUsers() throws Exception {
+        RelayMetrics metrics = runUsers(Map.of(RelayConfig.SESSION_CAPACITY, "4096"));
+
+        assertEquals(0, metrics.getTokensMissing());
+    }
+
+    private RelayMetrics runUsers(Map<String, String> settings) throws Exception {
+        RelayConfig config = RelayConfig.fromMap(settings);
+        RelayMetrics metrics = new RelayMetrics();
+        TokenRelay relay = Mockito.spy(new TokenRelay(config, metrics));
+        doAnswer(invocation -> CURRENT_AGENT.get()).when(relay).getRequestAgent();
+
+        // Several agents per user, as a user's successive requests each get a new one
+        RequestAgent[][] agents = new RequestAgent[USERS][AGENTS_PER_USER];
+        for (int user = 0; user < USERS; user++) {
+            for (int a = 0; a < AGENTS_PER_USER; a++) {
+                agents[user][a] = mock(RequestAgent.class, withSettings().stubOnly());
+                when(agents[user][a].getCookie("CADC_SSO")).thenReturn(new Cookie("CADC_SSO", tokenFor(user)));
+            }
+        }
+
+        int threads = Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger served = new AtomicInteger();
+        ConcurrentLinkedQueue<String> crossings = new ConcurrentLinkedQueue<>();
+        List<Future<?>> futures = new ArrayList<>(threads);
+        try {
+            for (int t = 0; t < threads; t++) {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (next.getAndIncrement() < REQUESTS) {
+                        int user = random.nextInt(USERS);
+                        String expected = tokenFor(user);
+                        CURRENT_AGENT.set(agents[user][random.nextInt(AGENTS_PER_USER)]);
+                        try {
+                            for (int call = 0; call < CALLS_PER_REQUEST; call++) {
+                                SsoAdapter.Token token = relay.getAuthToken();
+                                if (token == null || !expected.equals(token.getId())) {
+                                    crossings.add(expected + " got " + ((token == null) ? null : token.getId()));
+                                }
+                                HttpServiceInput input = new HttpServiceInput("https://ws-uv.canfar.net/youcat/sync");
+                                relay.setAuthCredential(input);
+                                Object header = input.getHeaders().get("Authorization");
+                                if (!("Bearer " + expected).equals(header)) {
+                                    crossings.add(expected + " sent " + header);
+                                }
+                                if (random.nextInt(8) == 0) {
+                                    Thread.yield();
+                                }
+                            }
+                        } finally {
+                            CURRENT_AGENT.remove();
+                        }
+                        served.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(120, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(REQUESTS, served.get());
+        assertTrue(crossings.isEmpty(), crossings.size() + " crossed credentials, e.g. " + crossings.peek());
+        SessionCredentialStore sessions = config.getSessions();
+        if (sessions != null) {
+            assertTrue(sessions.size() <= Integer.parseInt(settings.get(RelayConfig.SESSION_CAPACITY)));
+        }
+        return metrics;
+    }
+
+    private static String tokenFor(int user) {
+        return "token-of-user-" + user;
+    }
+}
@@ -68,13 +68,14 @@ package org.opencadc.security.sso;
 
 import edu.caltech.ipac.firefly.data.userdata.UserInfo;
 import edu.caltech.ipac.firefly.server.RequestAgent;
+import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
 import edu.caltech.ipac.firefly.server.security.SsoAdapter;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
 import javax.servlet.http.Cookie;
-import java.lang.reflect.Field;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -86,7 +87,7 @@ class TokenRelayTest {
 
     @BeforeEach
     void setUp() {
-        tokenRelay = new TokenRelay();
+        tokenRelay = new TokenRelay(RelayConfig.fromMap(Map.of()));
         mockAgent = mock(RequestAgent.class);
     }
 
@@ -149,21 +150,13 @@ class TokenRelayTest {
 
         when(mockAgent.getCookie("CADC_SSO")).thenReturn(invalidDomainCookie);
 
-        TokenRelay spyRelay = Mockito.spy(tokenRelay);
+        // Enforce the cookie domain, with debug logging on
+        RelayConfig config = RelayConfig.fromMap(Map.of(
+                RelayConfig.ENFORCE_COOKIE_DOMAIN, "true",
+                RelayConfig.DEBUG, "true"));
+        TokenRelay spyRelay = Mockito.spy(new TokenRelay(config));
         doReturn(mockAgent).when(spyRelay).getRequestAgent();
 
-        // Set ENFORCE_DOMAIN to true using reflection
-        try {
-            Field enforceDomainField = TokenRelay.class.getDeclaredField("ENFORCE_DOMAIN");
-            Field debugField = TokenRelay.class.getDeclaredField("DEBUG");
-            enforceDomainField.setAccessible(true);
-            enforceDomainField.setBoolean(spyRelay, true);
-            debugField.setAccessible(true);
-            debugField.setBoolean(spyRelay, true);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
         SsoAdapter.Token token = spyRelay.getAuthToken();
 
         assertNull(token);
@@ -176,22 +169,97 @@ class TokenRelayTest {
 
         when(mockAgent.getCookie("CADC_SSO")).thenReturn(validDomainCookie);
 
+        // Enforce the cookie domain
+        RelayConfig config = RelayConfig.fromMap(Map.of(RelayConfig.ENFORCE_COOKIE_DOMAIN, "true"));
+        TokenRelay spyRelay = Mockito.spy(new TokenRelay(config));
+        doReturn(mockAgent).when(spyRelay).getRequestAgent();
+
+        SsoAdapter.Token token = spyRelay.getAuthToken();
+
+        assertNotNull(token);
+        assertEquals("valid_token", token.getId());
+    }
+
+    @Test
+    void testCookieReadOncePerRequest() {
+        Cookie validCookie = new Cookie("CADC_SSO", "valid_token");
+        validCookie.setDomain(".canfar.net");
+
+        when(mockAgent.getCookie("CADC_SSO")).thenReturn(validCookie);
+
         TokenRelay spyRelay = Mockito.spy(tokenRelay);
         doReturn(mockAgent).when(spyRelay).getRequestAgent();
 
-        // Set ENFORCE_DOMAIN to true using reflection
-        try {
-            Field enforceDomainField = TokenRelay.class.getDeclaredField("ENFORCE_DOMAIN");
-            enforceDomainField.setAccessible(true);
-            enforceDomainField.setBoolean(spyRelay, true);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        HttpServiceInput inputs = mock(HttpServiceInput.class);
+        when(inputs.getRequestUrl()).thenReturn("https://ws-uv.canfar.net/youcat/sync");
 
+        // A single request fanning out into several downstream calls
+        for (int i = 0; i < 5; i++) {
+            spyRelay.setAuthCredential(inputs);
+        }
         SsoAdapter.Token token = spyRelay.getAuthToken();
 
-        assertNotNull(token);
         assertEquals("valid_token", token.getId());
+        verify(mockAgent, times(1)).getCookie("CADC_SSO");
+        verify(inputs, times(5)).setHeader("Authorization", "Bearer valid_token");
+    }
+
+    @Test
+    void testMissingCookieReadOncePerRequest() {
+        when(mockAgent.getCookie("CADC_SSO")).thenReturn(null);
+
+        TokenRelay spyRelay = Mockito.spy(tokenRelay);
+        doReturn(mockAgent).when(spyRelay).getRequestAgent();
+
+        HttpServiceInput inputs = mock(HttpServiceInput.class);
+        when(inputs.getRequestUrl()).thenReturn("https://ws-uv.canfar.net/youcat/sync");
+
+        spyRelay.setAuthCredential(inputs);
+        spyRelay.setAuthCredential(inputs);
+
+        assertNull(spyRelay.getAuthToken());
+        verify(mockAgent, times(1)).getCookie("CADC_SSO");
+        verify(inputs, never()).setHeader(anyString(), anyString());
+    }
+
+    @Test
+    void testTokenMemoizedPerRequest() {
+        Cookie validCookie = new Cookie("CADC_SSO", "valid_token");
+        validCookie.setDomain(".canfar.net");
+
+        when(mockAgent.getCookie("CADC_SSO")).thenReturn(validCookie);
+
+        TokenRelay spyRelay = Mockito.spy(tokenRelay);
+        doReturn(mockAgent).when(spyRelay).getRequestAgent();
+
+        SsoAdapter.Token first = spyRelay.getAuthToken();
+        SsoAdapter.Token second = spyRelay.getAuthToken();
+
+        assertSame(first, second);
+    }
+
+    @Test
+    void testCookieReadAgainForNewRequest() {
+        Cookie firstCookie = new Cookie("CADC_SSO", "first_token");
+        Cookie secondCookie = new Cookie("CADC_SSO", "second_token");
+        firstCookie.setDomain(".canfar.net");
+        secondCookie.setDomain(".canfar.net");
+        RequestAgent nextAgent = mock(RequestAgent.class);
+
+        when(mockAgent.getCookie("CADC_SSO")).thenReturn(firstCookie);
+        when(nextAgent.getCookie("CADC_SSO")).thenReturn(secondCookie);
+
+        TokenRelay spyRelay = Mockito.spy(tokenRelay);
+        doReturn(mockAgent).when(spyRelay).getRequestAgent();
+        assertEquals("first_token", spyRelay.getAuthToken().getId());
+
+        // The thread moves on to the next request
+        doReturn(nextAgent).when(spyRelay).getRequestAgent();
+        assertEquals("second_token", spyRelay.getAuthToken().getId());
+        assertEquals("second_token", spyRelay.getAuthToken().getId());
+
+        verify(mockAgent, times(1)).getCookie("CADC_SSO");
+        verify(nextAgent, times(1)).getCookie("CADC_SSO");
     }
 
     @Test
@@ -264,6 +332,43 @@ class TokenRelayTest {
         assertFalse(result);
     }
 
+    @Test
+    void testIsRequestToAllowedDomainSuffixBoundary() {
+        String requestURL = "https://evilcanfar.net/resource";
+        String allowedDomain = "canfar.net";
+
+        boolean result = TokenRelay.isRequestToAllowedDomain(requestURL, allowedDomain);
+
+        assertFalse(result);
+    }
+
+    @Test
+    void testIsRequestToAllowedDomainList() {
+        String allowedDomain = ".canfar.net, cadc-ccda.hia-iha.nrc-cnrc.gc.ca";
+
+        assertTrue(TokenRelay.isRequestToAllowedDomain("https://ws-uv.canfar.net/youcat", allowedDomain));
+        assertTrue(TokenRelay.isRequestToAllowedDomain("https://cadc-ccda.hia-iha.nrc-cnrc.gc.ca/argus", allowedDomain));
+        assertFalse(TokenRelay.isRequestToAllowedDomain("https://example.invalid.net/resource", allowedDomain));
+    }
+
+    @Test
+    void testSetAuthCredentialDisallowedHost() {
+        Cookie validCookie = new Cookie("CADC_SSO", "valid_token");
+        validCookie.setDomain(".canfar.net");
+
+        when(mockAgent.getCookie("CADC_SSO")).thenReturn(validCookie);
+
+        TokenRelay spyRelay = Mockito.spy(tokenRelay);
+        doReturn(mockAgent).when(spyRelay).getRequestAgent();
+
+        HttpServiceInput inputs = mock(HttpServiceInput.class);
+        when(inputs.getRequestUrl()).thenReturn("https://evilcanfar.net/youcat/sync");
+
+        spyRelay.setAuthCredential(inputs);
+
+        verify(inputs, never()).setHeader(anyString(), anyString());
+    }
+
     @Test
     void testURISyntaxException() {
         String requestURL = "\"https://example.com/search?q=hello world\"";
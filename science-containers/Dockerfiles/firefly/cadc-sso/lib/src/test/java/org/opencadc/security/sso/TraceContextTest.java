@@ -0,0 +1,135 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TraceContextTest {
+
+    private static final String TRACEPARENT = "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01";
+
+    @Test
+    void testParse() {
+        TraceContext trace = TraceContext.parse(TRACEPARENT, "congo=t61rcWkgMzE, rojo=00f067aa0ba902b7");
+
+        assertNotNull(trace);
+        assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", trace.getTraceId());
+        assertEquals(0x00f067aa0ba902b7L, trace.getParentSpanId());
+        assertTrue(trace.isSampled());
+        assertEquals("congo=t61rcWkgMzE, rojo=00f067aa0ba902b7", trace.getTraceState());
+        assertFalse(TraceContext.parse(TRACEPARENT.replace("-01", "-00"), null).isSampled());
+        assertNull(TraceContext.parse(TRACEPARENT, " ").getTraceState());
+    }
+
+    @Test
+    void testChildHeader() {
+        TraceContext trace = TraceContext.parse(TRACEPARENT, null);
+        String child = trace.childHeader(0xfedcba9876543210L);
+
+        assertEquals("00-4bf92f3577b34da6a3ce929d0e0e4736-fedcba9876543210-01", child);
+        assertEquals(0xfedcba9876543210L, TraceContext.spanId(child));
+        assertEquals(trace.getTraceId(), TraceContext.parse(child, null).getTraceId());
+    }
+
+    @Test
+    void testGenerate() {
+        TraceContext first = TraceContext.generate();
+        TraceContext second = TraceContext.generate();
+
+        assertNotEquals(first.getTraceId(), second.getTraceId());
+        assertEquals(0L, first.getParentSpanId());
+        assertTrue(first.isSampled());
+        assertNull(first.getTraceState());
+        String header = first.childHeader(TraceContext.newSpanId());
+        assertTrue(header.matches("00-[0-9a-f]{32}-[0-9a-f]{16}-01"), header);
+        assertNotEquals(0L, TraceContext.spanId(header));
+    }
+
+    @Test
+    void testFutureVersions() {
+        assertNotNull(TraceContext.parse("cc" + TRACEPARENT.substring(2), null));
+        assertNotNull(TraceContext.parse("cc" + TRACEPARENT.substring(2) + "-what-the-future-holds", null));
+        assertNull(TraceContext.parse(TRACEPARENT + "-extra", null));
+        assertNull(TraceContext.parse("ff" + TRACEPARENT.substring(2), null));
+    }
+
+    @Test
+    void testInvalid() {
+        assertNull(TraceContext.parse(null, null));
+        assertNull(TraceContext.parse("", null));
+        assertNull(TraceContext.parse(TRACEPARENT.toUpperCase(), null));
+        assertNull(TraceContext.parse("00-00000000000000000000000000000000-00f067aa0ba902b7-01", null));
+        assertNull(TraceContext.parse("00-4bf92f3577b34da6a3ce929d0e0e4736-0000000000000000-01", null));
+        assertNull(TraceContext.parse("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-0g", null));
+        assertNull(TraceContext.parse("00_4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01", null));
+        assertNull(TraceContext.parse("00-4bf92f3577b34da6a3ce929d0e0e473-600f067aa0ba902b7-01", null));
+        assertEquals(0L, TraceContext.spanId("Bearer token"));
+        assertEquals(0L, TraceContext.spanId(null));
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ ************************************************************************
+ *******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+ **************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+ *
+ *  (c) 2026.                            (c) 2026.
+ *  Government of Canada                 Gouvernement du Canada
+ *  National Research Council            Conseil national de recherches
+ *  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+ *  All rights reserved                  Tous droits réservés
+ *
+ *  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+ *  expressed, implied, or               énoncée, implicite ou légale,
+ *  statutory, of any kind with          de quelque nature que ce
+ *  respect to the software,             soit, concernant le logiciel,
+ *  including without limitation         y compris sans restriction
+ *  any warranty of merchantability      toute garantie de valeur
+ *  or fitness for a particular          marchande ou de pertinence
+ *  purpose. NRC shall not be            pour un usage particulier.
+ *  liable in any event for any          Le CNRC ne pourra en aucun cas
+ *  damages, whether direct or           être tenu responsable de tout
+ *  indirect, special or general,        dommage, direct ou indirect,
+ *  consequential or incidental,         particulier ou général,
+ *  arising from the use of the          accessoire ou fortuit, résultant
+ *  software.  Neither the name          de l'utilisation du logiciel. Ni
+ *  of the National Research             le nom du Conseil National de
+ *  Council of Canada nor the            Recherches du Canada ni les noms
+ *  names of its contributors may        de ses  participants ne peuvent
+ *  be used to endorse or promote        être utilisés pour approuver ou
+ *  products derived from this           promouvoir les produits dérivés
+ *  software without specific prior      de ce logiciel sans autorisation
+ *  written permission.                  préalable et particulière
+ *                                       par écrit.
+ *
+ *  This file is part of the             Ce fichier fait partie du projet
+ *  OpenCADC project.                    OpenCADC.
+ *
+ *  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+ *  you can redistribute it and/or       vous pouvez le redistribuer ou le
+ *  modify it under the terms of         modifier suivant les termes de
+ *  the GNU Affero General Public        la “GNU Affero General Public
+ *  License as published by the          License” telle que publiée
+ *  Free Software Foundation,            par la Free Software Foundation
+ *  either version 3 of the              : soit la version 3 de cette
+ *  License, or (at your option)         licence, soit (à votre gré)
+ *  any later version.                   toute version ultérieure.
+ *
+ *  OpenCADC is distributed in the       OpenCADC est distribué
+ *  hope that it will be useful,         dans l’espoir qu’il vous
+ *  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+ *  without even the implied             GARANTIE : sans même la garantie
+ *  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+ *  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+ *  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+ *  General Public License for           Générale Publique GNU Affero
+ *  more details.                        pour plus de détails.
+ *
+ *  You should have received             Vous devriez avoir reçu une
+ *  a copy of the GNU Affero             copie de la Licence Générale
+ *  General Public License along         Publique GNU Affero avec
+ *  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+ *  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+ *                                       <http://www.gnu.org/licenses/>.
+ *
+ ************************************************************************
+ */
+package org.opencadc.security.sso;
+
+import com.sun.net.httpserver.HttpServer;
+import edu.caltech.ipac.firefly.server.RequestAgent;
+import edu.caltech.ipac.firefly.server.network.HttpServiceInput;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import javax.servlet.http.Cookie;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class TracerTest {
+
+    private static final String TRACEPARENT = "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01";
+
+    @TempDir
+    Path tempDir;
+
+    private static TokenRelay relay(Map<String, String> settings, String token, String traceparent) {
+        return relay(RelayConfig.fromMap(settings), token, traceparent);
+    }
+
+    private static TokenRelay relay(RelayConfig config, String token, String traceparent) {
+        RequestAgent agent = mock(RequestAgent.class);
+        when(agent.getCookie("CADC_SSO")).thenReturn((token == null) ? null : new Cookie("CADC_SSO", token));
+        when(agent.getHeader("traceparent")).thenReturn(traceparent);
+        when(agent.getHeader("tracestate")).thenReturn((traceparent == null) ? null : "cadc=1");
+        TokenRelay relay = Mockito.spy(new TokenRelay(config, new RelayMetrics()));
+        doReturn(agent).when(relay).getRequestAgent();
+        return relay;
+    }
+
+    private static HttpServiceInput call(TokenRelay relay, String url) {
+        HttpServiceInput inputs = new HttpServiceInput(url);
+        relay.setAuthCredential(inputs);
+        return inputs;
+    }
+
+    private static String header(HttpServiceInput inputs, String name) {
+        return (inputs.getHeaders() == null) ? null : inputs.getHeaders().get(name);
+    }
+
+    @Test
+    void testOffByDefault() {
+        TokenRelay relay = relay(Map.of(), "token-a", TRACEPARENT);
+
+        assertNull(header(call(relay, "https://ws-uv.canfar.net/youcat/sync"), "traceparent"));
+        assertNull(RelayConfig.fromMap(Map.of()).getTracer());
+    }
+
+    @Test
+    void testContinuesIncomingTrace() {
+        TokenRelay relay = relay(Map.of(RelayConfig.TRACING, "true"), "token-a", TRACEPARENT);
+
+        HttpServiceInput first = call(relay, "https://ws-uv.canfar.net/youcat/sync");
+        HttpServiceInput second = call(relay, "https://cadc-ccda.hia-iha.nrc-cnrc.gc.ca/argus/sync");
+        String traceparent = header(first, "traceparent");
+
+        assertEquals("Bearer token-a", header(first, "Authorization"));
+        assertTrue(traceparent.startsWith("00-4bf92f3577b34da6a3ce929d0e0e4736-"), traceparent);
+        assertTrue(traceparent.endsWith("-01"));
+        assertNotEquals("00f067aa0ba902b7", traceparent.substring(36, 52));
+        assertEquals("cadc=1", header(first, "tracestate"));
+        // Calls to hosts the policy does not know get no trace headers, nor a token
+        assertNull(second.getHeaders());
+    }
+
+    @Test
+    void testStartsTraceOncePerRequest() {
+        TokenRelay relay = relay(Map.of(RelayConfig.TRACING, "true"), null, null);
+
+        String first = header(call(relay, "https://ws-uv.canfar.net/youcat/sync"), "traceparent");
+        String second = header(call(relay, "https://ws-cadc.canfar.net/minoc/files"), "traceparent");
+
+        // Calls without a token are traced too, as one new trace with a span each
+        assertNotNull(first);
+        assertEquals(first.substring(0, 35), second.substring(0, 35));
+        assertNotEquals(first.substring(36, 52), second.substring(36, 52));
+        assertNull(header(call(relay, "https://ws-uv.canfar.net/youcat/sync"), "Authorization"));
+    }
+
+    @Test
+    void testBackgroundCallsJoinTrace() throws Exception {
+        TokenRelay relay = relay(Map.of(RelayConfig.TRACING, "true"), "token-a", TRACEPARENT);
+        RelayContext context = relay.captureContext();
+
+        String traceparent = CompletableFuture.supplyAsync(
+                () -> header(call(relay, "https://ws-uv.canfar.net/youcat/sync"), "traceparent"),
+                context.executor(Executors.newVirtualThreadPerTaskExecutor())).get();
+
+        assertTrue(traceparent.startsWith("00-4bf92f3577b34da6a3ce929d0e0e4736-"), traceparent);
+    }
+
+    @Test
+    void testSpansExportedToFile() throws Exception {
+        Path spans = tempDir.resolve("spans.jsonl");
+        RelayConfig config = RelayConfig.fromMap(Map.of(RelayConfig.TRACING, "true", RelayConfig.TRACE_EXPORT,
+                                                        spans.toString(), RelayConfig.TRACE_SERVICE, "firefly-test",
+                                                        RelayConfig.RATE_LIMIT, "20", RelayConfig.RATE_BURST, "1"));
+        TokenRelay relay = relay(config, "token-a", TRACEPARENT);
+
+        // A span ends with the reported response, a refused call's with the relay decision
+        HttpServiceInput inputs = call(relay, "https://ws-uv.canfar.net/youcat/sync?QUERY=SELECT");
+        assertThrows(RelayRejectedException.class, () -> call(relay, "https://ws-uv.canfar.net/youcat/sync"));
+        SpanExporter exporter = config.getTracer().getExporter();
+        exporter.flush();
+        assertEquals(1L, exporter.getExported());
+        relay.onDownstreamResponse(inputs, 200, 42L);
+        exporter.flush();
+
+        List<String> lines = Files.readAllLines(spans);
+        assertEquals(2, lines.size());
+        Map<String, Object> request = Json.parseObject(lines.get(1));
+        Object resourceSpans = ((List<?>) request.get("resourceSpans")).get(0);
+        List<?> exported = (List<?>) Json.path(((List<?>) Json.path(resourceSpans, "scopeSpans")).get(0), "spans");
+        assertEquals(1, exported.size());
+        assertEquals("firefly-test", Json.path(((List<?>) Json.path(resourceSpans, "resource", "attributes")).get(0),
+                                               "value", "stringValue"));
+        Object span = exported.get(0);
+        assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", Json.path(span, "traceId"));
+        assertEquals("00f067aa0ba902b7", Json.path(span, "parentSpanId"));
+        assertEquals(header(inputs, "traceparent").substring(36, 52), Json.path(span, "spanId"));
+        assertEquals("ws-uv.canfar.net", Json.path(span, "name"));
+        assertEquals(3L, Json.path(span, "kind"));
+        // The span covers the relay decision and the 42 ms the call took
+        assertTrue(Long.parseLong((String) Json.path(span, "endTimeUnixNano"))
+                   - Long.parseLong((String) Json.path(span, "startTimeUnixNano")) >= 42_000_000L);
+        assertTrue(lines.get(1).contains("{\"key\":\"http.response.status_code\",\"value\":{\"intValue\":\"200\"}}"));
+        assertFalse(lines.get(1).contains("QUERY=SELECT"));
+        assertEquals(0L, Json.path(span, "status", "code"));
+        // The call over the rate limit was refused by the relay
+        assertTrue(lines.get(0).contains("\"status\":{\"code\":2}"));
+        assertFalse(lines.get(0).contains("http.response.status_code"));
+        assertEquals(2L, exporter.getExported());
+    }
+
+    @Test
+    void testSpansExportedToCollector() throws Exception {
+        List<String> received = new CopyOnWriteArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/traces", exchange -> {
+            received.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)
+                         + " " + exchange.getRequestHeaders().getFirst("Content-Type"));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            String endpoint = "http://127.0.0.1:" + server.getAddress().getPort() + "/v1/traces";
+            RelayConfig config = RelayConfig.fromMap(Map.of(RelayConfig.TRACING, "true",
+                                                            RelayConfig.TRACE_EXPORT, endpoint));
+            TokenRelay relay = relay(config, "token-a", TRACEPARENT);
+
+            relay.onDownstreamResponse(call(relay, "https://ws-uv.canfar.net/youcat/sync"), 503, 10L);
+            SpanExporter exporter = config.getTracer().getExporter();
+            exporter.flush();
+
+            assertEquals(1, received.size());
+            assertTrue(received.get(0).contains("\"traceId\":\"4bf92f3577b34da6a3ce929d0e0e4736\""));
+            assertTrue(received.get(0).contains("\"status\":{\"code\":2}"));
+            assertTrue(received.get(0).endsWith(" application/json"));
+            assertEquals(1L, exporter.getExported());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testUnreportedSpansEndAtDecision() {
+        SpanExporter exporter = new SpanExporter(tempDir.resolve("spans.jsonl").toString(), "firefly");
+        Tracer tracer = new Tracer(exporter, System::currentTimeMillis);
+        HttpServiceInput inputs = new HttpServiceInput("https://ws-uv.canfar.net/youcat/sync");
+        HttpServiceInput other = new HttpServiceInput("https://ws-uv.canfar.net/youcat/sync");
+        other.setHeader("traceparent", TRACEPARENT);
+
+        tracer.decided(tracer.inject(inputs, TraceContext.generate(), "ws-uv.canfar.net", CredentialPolicy.Action.BEARER));
+        exporter.flush();
+        assertEquals(0L, exporter.getExported());
+        // Only the traceparent the relay set finds the span
+        assertFalse(tracer.respond(other, 200, 1L));
+        assertFalse(tracer.respond(new HttpServiceInput("https://ws-uv.canfar.net/"), 200, 1L));
+
+        // Retiring the tracer exports what is still open, as it was at the decision
+        tracer.close();
+        assertEquals(1L, exporter.getExported());
+        assertFalse(tracer.respond(inputs, 200, 1L));
+    }
+
+    @Test
+    void testFailedExportIsDropped() {
+        SpanExporter exporter = new SpanExporter("http://127.0.0.1:1/v1/traces", "firefly");
+        Tracer tracer = new Tracer(exporter, System::currentTimeMillis);
+        HttpServiceInput inputs = new HttpServiceInput("https://ws-uv.canfar.net/youcat/sync");
+
+        tracer.end(tracer.inject(inputs, TraceContext.generate(), "ws-uv.canfar.net", CredentialPolicy.Action.BEARER),
+                   false);
+        exporter.flush();
+
+        assertEquals(0L, exporter.getExported());
+        assertEquals(1L, exporter.getDropped());
+    }
+
+    @Test
+    void testUnsampledSpansNotRecorded() {
+        SpanExporter exporter = new SpanExporter(tempDir.resolve("spans.jsonl").toString(), "firefly");
+        Tracer tracer = new Tracer(exporter, System::currentTimeMillis);
+        HttpServiceInput inputs = new HttpServiceInput("https://ws-uv.canfar.net/");
+
+        assertNull(tracer.inject(inputs, TraceContext.parse(TRACEPARENT.replace("-01", "-00"), null),
+                                 "ws-uv.canfar.net", CredentialPolicy.Action.BEARER));
+        // The header is still propagated, so the trace stays unsampled downstream
+        assertTrue(inputs.getHeaders().get("traceparent").endsWith("-00"));
+        exporter.flush();
+        assertEquals(0L, exporter.getExported());
+    }
+
+    @Test
+    void testKeptAcrossReloads() {
+        RelayConfig config = RelayConfig.fromMap(Map.of(RelayConfig.TRACING, "true"));
+
+        assertSame(config.getTracer(),
+                   RelayConfig.fromMap(Map.of(RelayConfig.TRACING, "true", RelayConfig.DEBUG, "true"), config).getTracer());
+        assertNull(RelayConfig.fromMap(Map.of(RelayConfig.TRACING, "false"), config).getTracer());
+    }
+}